@@ -0,0 +1,135 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+/**
+ * End-to-end throughput and latency of the relay. The relay server runs in-process in front of
+ * an in-process upstream server, and concurrent clients request a page the relay rewrites and a
+ * binary body it passes through, with either engine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Threads(16)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+public class RelayThroughputBenchmark {
+
+  @Param({"servlet", "reactive"})
+  private String engine;
+
+  @Param({"/html", "/bin"})
+  private String path;
+
+  private StubUpstream upstream;
+  private ConfigurableApplicationContext relay;
+  private HttpClient httpClient;
+  private HttpRequest request;
+
+  /**
+   * Starts the upstream server and the relay server.
+   *
+   * @throws IOException if the upstream server cannot be started
+   */
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    upstream = new StubUpstream();
+    relay =
+        new SpringApplicationBuilder(RelayServerApplication.class)
+            .run(
+                "--server.port=0",
+                "--spring.main.banner-mode=off",
+                "--logging.level.root=WARN",
+                "--logging.level.com.wilddiary=WARN",
+                "--relay.engine=" + engine,
+                "--relay.context.mapping={\"/up\":\"" + upstream.url() + "\"}");
+    String port = relay.getEnvironment().getProperty("local.server.port");
+    httpClient = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    request =
+        HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + port + "/relay/up" + path))
+            .header("Accept-Encoding", "identity")
+            .build();
+  }
+
+  /** Stops the relay server and the upstream server. */
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    relay.close();
+    upstream.close();
+  }
+
+  /**
+   * Benchmarks relaying a request and reading the whole response.
+   *
+   * @param client the client state of the benchmark thread
+   * @return the number of bytes of the response body
+   * @throws IOException if the request fails
+   * @throws InterruptedException if interrupted while waiting for the response
+   */
+  @Benchmark
+  public long relay(Client client) throws IOException, InterruptedException {
+    HttpResponse<InputStream> response =
+        httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+    long length = 0;
+    try (InputStream body = response.body()) {
+      int read;
+      while ((read = body.read(client.buffer)) != -1) {
+        length += read;
+      }
+    }
+    if (response.statusCode() != 200) {
+      throw new IllegalStateException("Relay responded with status " + response.statusCode());
+    }
+    return length;
+  }
+
+  /** State of a client thread. */
+  @State(Scope.Thread)
+  public static class Client {
+
+    private final byte[] buffer = new byte[8192];
+  }
+}
@@ -0,0 +1,110 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-process upstream server for the end-to-end benchmarks. It serves an HTML page linking back
+ * to itself, for the relay to rewrite, and a binary body, for the relay to pass through, from
+ * memory so that it does not hold up the relay.
+ */
+final class StubUpstream implements AutoCloseable {
+
+  private final HttpServer server;
+  private final ExecutorService executor = Executors.newFixedThreadPool(64);
+
+  /**
+   * Constructor for the StubUpstream. The server is started on an ephemeral port.
+   *
+   * @throws IOException if the server cannot be started
+   */
+  StubUpstream() throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+    byte[] html = html(url(), 32 * 1024);
+    byte[] binary = new byte[256 * 1024];
+    for (int i = 0; i < binary.length; i++) {
+      binary[i] = (byte) i;
+    }
+    server.createContext("/html", exchange -> respond(exchange, "text/html; charset=utf-8", html));
+    server.createContext(
+        "/bin", exchange -> respond(exchange, "application/octet-stream", binary));
+    server.setExecutor(executor);
+    server.start();
+  }
+
+  /**
+   * Gets the URL of the server.
+   *
+   * @return the URL
+   */
+  String url() {
+    return "http://127.0.0.1:" + server.getAddress().getPort();
+  }
+
+  /**
+   * Creates an HTML page with a link to the server about every 100 bytes.
+   *
+   * @param url the URL of the server
+   * @param size the size of the page
+   * @return the page
+   */
+  private static byte[] html(String url, int size) {
+    StringBuilder html = new StringBuilder(size + 128);
+    for (int i = 0; html.length() < size; i++) {
+      html.append("<li><a href=\"").append(url).append("/items/").append(i).append("\">Item</a>\n");
+    }
+    return html.substring(0, size).getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Sends a response.
+   *
+   * @param exchange the exchange
+   * @param contentType the content type of the body
+   * @param body the body
+   * @throws IOException if the response cannot be sent
+   */
+  private static void respond(HttpExchange exchange, String contentType, byte[] body)
+      throws IOException {
+    exchange.getRequestBody().readAllBytes();
+    exchange.getResponseHeaders().set("Content-Type", contentType);
+    exchange.getResponseHeaders().set("Cache-Control", "max-age=60");
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  @Override
+  public void close() {
+    server.stop(0);
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services;
+
+import com.aayushatharva.brotli4j.Brotli4jLoader;
+import com.aayushatharva.brotli4j.encoder.Encoder;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.compress.compressors.CompressorException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks decompressing upstream response bodies to rewrite them, per content encoding and
+ * across body sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class DecompressionBenchmark {
+
+  @Param({"gzip", "deflate", "br"})
+  private String contentEncoding;
+
+  @Param({"65536", "1048576"})
+  private int bodySize;
+
+  private byte[] compressedBody;
+  private final byte[] buffer = new byte[4096];
+
+  /**
+   * Compresses an HTML body with the content encoding.
+   *
+   * @throws IOException if the body cannot be compressed
+   */
+  @Setup
+  public void setUp() throws IOException {
+    Random random = new Random(42);
+    StringBuilder html = new StringBuilder(bodySize + 256);
+    while (html.length() < bodySize) {
+      html.append("<li><a href=\"https://upstream.example.com/items/")
+          .append(random.nextInt(100_000))
+          .append("\">Item</a><span>")
+          .append(Long.toHexString(random.nextLong()))
+          .append("</span></li>\n");
+    }
+    byte[] body = html.substring(0, bodySize).getBytes(StandardCharsets.UTF_8);
+    if (contentEncoding.equals("br")) {
+      Brotli4jLoader.ensureAvailability();
+      compressedBody = Encoder.compress(body, new Encoder.Parameters().setQuality(4));
+      return;
+    }
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    try (OutputStream out =
+        contentEncoding.equals("gzip")
+            ? new GZIPOutputStream(compressed)
+            : new DeflaterOutputStream(compressed)) {
+      out.write(body);
+    }
+    compressedBody = compressed.toByteArray();
+  }
+
+  /**
+   * Benchmarks decompressing the body.
+   *
+   * @return the number of bytes decompressed
+   * @throws IOException if the body cannot be decompressed
+   * @throws CompressorException if the content encoding is not supported
+   */
+  @Benchmark
+  public long decompressResponseBody() throws IOException, CompressorException {
+    long decompressed = 0;
+    try (InputStream in =
+        RelayServiceImpl.decompressResponseBody(
+                new ByteArrayInputStream(compressedBody), contentEncoding)
+            .orElseThrow()) {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        decompressed += read;
+      }
+    }
+    return decompressed;
+  }
+}
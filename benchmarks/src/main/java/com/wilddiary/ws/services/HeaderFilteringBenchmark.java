@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services;
+
+import com.wilddiary.ws.config.RelayProperties;
+import com.wilddiary.ws.services.headers.HeaderRules;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpHeaders;
+
+/**
+ * Benchmarks copying the headers of a typical browser request to the upstream request, and
+ * filtering the headers of a typical upstream response, done for every relayed request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class HeaderFilteringBenchmark {
+
+  private HeaderRules headerRules;
+  private HttpHeaders requestHeaders;
+  private HttpHeaders responseHeaders;
+
+  /** Creates the header rules and the headers to copy and filter. */
+  @Setup
+  public void setUp() {
+    headerRules = new HeaderRules(new RelayProperties().headersFor("/gh"));
+
+    requestHeaders = new HttpHeaders();
+    requestHeaders.add(HttpHeaders.HOST, "relay.example.com");
+    requestHeaders.add(HttpHeaders.CONNECTION, "keep-alive");
+    requestHeaders.add(HttpHeaders.ACCEPT, "text/html,application/xhtml+xml;q=0.9,*/*;q=0.8");
+    requestHeaders.add(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate, br, zstd");
+    requestHeaders.add(HttpHeaders.ACCEPT_LANGUAGE, "en-GB,en;q=0.9");
+    requestHeaders.add(HttpHeaders.CACHE_CONTROL, "max-age=0");
+    requestHeaders.add(HttpHeaders.COOKIE, "session=3f2a9c; theme=dark; consent=1");
+    requestHeaders.add(HttpHeaders.IF_NONE_MATCH, "\"5d8c72a5edda8d6a\"");
+    requestHeaders.add(HttpHeaders.REFERER, "https://relay.example.com/relay/gh/");
+    requestHeaders.add(HttpHeaders.USER_AGENT, "Mozilla/5.0 (X11; Linux x86_64) Firefox/128.0");
+    requestHeaders.add("Sec-Fetch-Dest", "document");
+    requestHeaders.add("Sec-Fetch-Mode", "navigate");
+    requestHeaders.add("Sec-Fetch-Site", "same-origin");
+    requestHeaders.add("Upgrade-Insecure-Requests", "1");
+
+    responseHeaders = new HttpHeaders();
+    responseHeaders.add(HttpHeaders.DATE, "Sun, 18 Oct 2026 10:00:00 GMT");
+    responseHeaders.add(HttpHeaders.CONTENT_TYPE, "text/html; charset=utf-8");
+    responseHeaders.add(HttpHeaders.TRANSFER_ENCODING, "chunked");
+    responseHeaders.add(HttpHeaders.CONNECTION, "keep-alive");
+    responseHeaders.add(HttpHeaders.VARY, "X-PJAX, X-PJAX-Container, Turbo-Visit");
+    responseHeaders.add(HttpHeaders.VARY, "Accept-Encoding, Accept, X-Requested-With");
+    responseHeaders.add(HttpHeaders.ETAG, "W/\"5d8c72a5edda8d6a\"");
+    responseHeaders.add(HttpHeaders.CACHE_CONTROL, "max-age=0, private, must-revalidate");
+    responseHeaders.add("Strict-Transport-Security", "max-age=31536000; includeSubdomains");
+    responseHeaders.add("X-Frame-Options", "deny");
+    responseHeaders.add("X-Content-Type-Options", "nosniff");
+    responseHeaders.add("Referrer-Policy", "origin-when-cross-origin");
+    responseHeaders.add("Content-Security-Policy", "default-src 'none'; base-uri 'self'");
+    responseHeaders.add(HttpHeaders.SET_COOKIE, "_gh_sess=abc; path=/; secure; HttpOnly");
+    responseHeaders.add(HttpHeaders.CONTENT_ENCODING, "gzip");
+    responseHeaders.add("X-GitHub-Request-Id", "C0A8:2D4E:1B2F3A:1C3D4E:67123456");
+  }
+
+  /**
+   * Benchmarks copying the request headers relayed upstream.
+   *
+   * @return the upstream request headers
+   */
+  @Benchmark
+  public HttpHeaders copyRequestHeaders() {
+    HttpHeaders upstreamHeaders = new HttpHeaders();
+    String connection = requestHeaders.getFirst(HttpHeaders.CONNECTION);
+    requestHeaders.forEach(
+        (name, values) -> {
+          if (headerRules.isRelayedRequestHeader(name, connection)) {
+            upstreamHeaders.addAll(name, values);
+          }
+        });
+    return upstreamHeaders;
+  }
+
+  /**
+   * Benchmarks filtering the response headers carried over downstream.
+   *
+   * @return the downstream response headers
+   */
+  @Benchmark
+  public HttpHeaders filterResponseHeaders() {
+    return headerRules.filterResponseHeaders(responseHeaders);
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services;
+
+import com.wilddiary.ws.config.RelayProperties;
+import com.wilddiary.ws.controllers.RelayController;
+import com.wilddiary.ws.services.routing.RouteMatch;
+import com.wilddiary.ws.services.routing.RouteSnapshot;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks matching a request path to its route and building the upstream URL, done for every
+ * relayed request, across context mappings of different sizes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RoutingBenchmark {
+
+  private static final String QUERY = "page=2&sort=name%20desc";
+
+  @Param({"10", "100", "1000"})
+  private int mappings;
+
+  private RouteSnapshot routes;
+  private String[] paths;
+  private int next;
+
+  /** Compiles the routes of the mappings, and the request paths to match against them. */
+  @Setup
+  public void setUp() {
+    Map<String, String> contextMap = new LinkedHashMap<>();
+    for (int i = 0; i < mappings; i++) {
+      contextMap.put("/ctx" + i + "/api", "https://upstream" + i + ".example.com/base");
+    }
+    routes = RouteSnapshot.of(1, contextMap, new RelayProperties());
+    Random random = new Random(42);
+    paths = new String[1024];
+    for (int i = 0; i < paths.length; i++) {
+      paths[i] =
+          RelayController.CONTROLLER_CONTEXT
+              + "/ctx"
+              + random.nextInt(mappings)
+              + "/api/v1/items/"
+              + random.nextInt(100_000)
+              + "/caf%C3%A9%20menu";
+    }
+  }
+
+  /**
+   * Benchmarks matching a request path to its route.
+   *
+   * @return the route match
+   */
+  @Benchmark
+  public RouteMatch matchRoute() {
+    String path = nextPath();
+    return routes
+        .routeTable()
+        .match(path, RelaySupport.relayPathStart(path, "", RelayController.CONTROLLER_CONTEXT))
+        .orElseThrow();
+  }
+
+  /**
+   * Benchmarks matching a request path to its route and building the upstream URL from it.
+   *
+   * @return the upstream URL
+   */
+  @Benchmark
+  public URI buildUpstreamUrl() {
+    RouteMatch match = matchRoute();
+    return match.upstreamUri(match.route().pool().targets().get(0), QUERY);
+  }
+
+  /**
+   * Gets the next request path, cycling through them.
+   *
+   * @return the request path
+   */
+  private String nextPath() {
+    return paths[next++ & (paths.length - 1)];
+  }
+}
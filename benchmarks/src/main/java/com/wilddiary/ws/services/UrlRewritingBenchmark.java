@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services;
+
+import com.wilddiary.ws.services.rewrite.RewriteScope;
+import com.wilddiary.ws.services.rewrite.UrlRewriteDictionary;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.http.MediaType;
+
+/**
+ * Benchmarks rewriting the upstream URLs in HTML response bodies across body sizes and context
+ * mappings of different sizes, over the whole body or only its link attributes. The body is
+ * written in the chunks the servlet engine copies it in.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class UrlRewritingBenchmark {
+
+  private static final int CHUNK_SIZE = 4096;
+  private static final String RELAY_URL = "https://relay.example.com:443/relay";
+
+  @Param({"1024", "65536", "1048576"})
+  private int bodySize;
+
+  @Param({"1", "10", "100"})
+  private int mappings;
+
+  @Param({"false", "true"})
+  private boolean structural;
+
+  private UrlRewriteDictionary dictionary;
+  private RewriteScope scope;
+  private byte[] body;
+
+  /** Creates the dictionary of the mappings, and a body linking to the mapped upstream URLs. */
+  @Setup
+  public void setUp() {
+    Map<String, String> upstreamUrlToContext = new LinkedHashMap<>();
+    for (int i = 0; i < mappings; i++) {
+      upstreamUrlToContext.put("https://upstream" + i + ".example.com", "/ctx" + i);
+    }
+    dictionary = new UrlRewriteDictionary(upstreamUrlToContext);
+    scope = structural ? RewriteScope.structural(List.of()) : RewriteScope.WHOLE_BODY;
+
+    // A link to a mapped upstream URL about every 200 bytes, as in a typical page
+    Random random = new Random(42);
+    StringBuilder html = new StringBuilder(bodySize + 256);
+    while (html.length() < bodySize) {
+      html.append("<li><a href=\"https://upstream")
+          .append(random.nextInt(mappings))
+          .append(".example.com/items/")
+          .append(random.nextInt(100_000))
+          .append("\">Item</a><span class=\"description\">Lorem ipsum dolor sit amet, ")
+          .append("consectetur adipiscing elit, sed do eiusmod tempor.</span></li>\n");
+    }
+    body = html.substring(0, bodySize).getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Benchmarks rewriting the body.
+   *
+   * @param blackhole the blackhole consuming the rewritten body
+   * @throws IOException if the body cannot be rewritten
+   */
+  @Benchmark
+  public void rewriteUrlsInResponseBody(Blackhole blackhole) throws IOException {
+    OutputStream out = new BlackholeOutputStream(blackhole);
+    try (OutputStream rewriting =
+        dictionary.rewrite(
+            out,
+            StandardCharsets.UTF_8,
+            RELAY_URL,
+            scope.newScanner(MediaType.TEXT_HTML, StandardCharsets.UTF_8))) {
+      for (int offset = 0; offset < body.length; offset += CHUNK_SIZE) {
+        rewriting.write(body, offset, Math.min(CHUNK_SIZE, body.length - offset));
+      }
+    }
+  }
+
+  /** Output stream handing what is written to it to a blackhole. */
+  private static final class BlackholeOutputStream extends OutputStream {
+
+    private final Blackhole blackhole;
+
+    private BlackholeOutputStream(Blackhole blackhole) {
+      this.blackhole = blackhole;
+    }
+
+    @Override
+    public void write(int b) {
+      blackhole.consume(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      blackhole.consume(b);
+      blackhole.consume(len);
+    }
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.actuator;
+
+import com.wilddiary.ws.services.breaker.CircuitBreaker;
+import com.wilddiary.ws.services.breaker.CircuitBreakers;
+import java.util.Map;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * Actuator endpoint exposing the circuit breakers of the upstream servers, with the rates of their
+ * rolling windows and their last transitions.
+ */
+@Component
+@Endpoint(id = "circuitbreakers")
+public class CircuitBreakersEndpoint {
+
+  private final CircuitBreakers circuitBreakers;
+
+  /**
+   * Constructor for the CircuitBreakersEndpoint.
+   *
+   * @param circuitBreakers the circuit breakers
+   */
+  public CircuitBreakersEndpoint(CircuitBreakers circuitBreakers) {
+    this.circuitBreakers = circuitBreakers;
+  }
+
+  /**
+   * Gets the state of the circuit breakers.
+   *
+   * @return the state of each breaker, keyed by upstream server
+   */
+  @ReadOperation
+  public Map<String, CircuitBreaker.Snapshot> breakers() {
+    return circuitBreakers.snapshots();
+  }
+}
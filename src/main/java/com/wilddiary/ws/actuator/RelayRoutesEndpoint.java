@@ -0,0 +1,125 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.actuator;
+
+import com.wilddiary.ws.services.routing.Route;
+import com.wilddiary.ws.services.routing.RouteRegistry;
+import com.wilddiary.ws.services.routing.RouteSnapshot;
+import com.wilddiary.ws.services.routing.UpstreamTarget;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.springframework.boot.actuate.endpoint.InvalidEndpointRequestException;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.actuate.endpoint.annotation.WriteOperation;
+import org.springframework.stereotype.Component;
+
+/** Actuator endpoint exposing the current context mapping and reloading it from its file. */
+@Component
+@Endpoint(id = "relayroutes")
+public class RelayRoutesEndpoint {
+
+  private final RouteRegistry routeRegistry;
+
+  /**
+   * Constructor for the RelayRoutesEndpoint.
+   *
+   * @param routeRegistry the route registry
+   */
+  public RelayRoutesEndpoint(RouteRegistry routeRegistry) {
+    this.routeRegistry = routeRegistry;
+  }
+
+  /**
+   * Gets the current context mapping.
+   *
+   * @return the current context mapping
+   */
+  @ReadOperation
+  public Routes routes() {
+    return Routes.of(routeRegistry.current());
+  }
+
+  /**
+   * Reloads the context mapping from the mapping file. The current mapping is kept if the file
+   * cannot be loaded.
+   *
+   * @return the reloaded context mapping
+   */
+  @WriteOperation
+  public Routes reload() {
+    try {
+      return Routes.of(routeRegistry.reload());
+    } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+      throw new InvalidEndpointRequestException(
+          "Failed to reload the context mapping: " + e.getMessage(), e.getMessage());
+    }
+  }
+
+  /**
+   * A context mapping snapshot.
+   *
+   * @param version the version of the snapshot
+   * @param loadedAt the time the snapshot was loaded
+   * @param mappings the upstream URL of each context
+   * @param pools the upstream servers of each context
+   */
+  public record Routes(
+      long version,
+      Instant loadedAt,
+      Map<String, String> mappings,
+      Map<String, List<Target>> pools) {
+
+    static Routes of(RouteSnapshot snapshot) {
+      long now = System.nanoTime();
+      Map<String, List<Target>> pools = new LinkedHashMap<>();
+      for (Route route : snapshot.routeTable().routes()) {
+        pools.put(
+            route.context(),
+            route.pool().targets().stream().map(target -> Target.of(target, now)).toList());
+      }
+      return new Routes(snapshot.version(), snapshot.loadedAt(), snapshot.contextMap(), pools);
+    }
+  }
+
+  /**
+   * The state of an upstream server.
+   *
+   * @param url the URL of the server
+   * @param weight the weight of the server
+   * @param outstanding the number of requests in flight to the server
+   * @param ejected whether the server is ejected from load balancing
+   */
+  public record Target(String url, int weight, int outstanding, boolean ejected) {
+
+    static Target of(UpstreamTarget target, long now) {
+      return new Target(
+          target.getTargetUrl(),
+          target.getWeight(),
+          target.getOutstanding(),
+          target.isEjected(now));
+    }
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.actuator;
+
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.hc.client5.http.HttpRoute;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.core5.pool.PoolStats;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Component;
+
+/** Actuator endpoint exposing the upstream connection pool statistics. */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@Endpoint(id = "upstreampool")
+public class UpstreamPoolEndpoint {
+
+  private final PoolingHttpClientConnectionManager connectionManager;
+
+  /**
+   * Constructor for the UpstreamPoolEndpoint.
+   *
+   * @param connectionManager the upstream connection manager
+   */
+  public UpstreamPoolEndpoint(PoolingHttpClientConnectionManager connectionManager) {
+    this.connectionManager = connectionManager;
+  }
+
+  /**
+   * Gets the pool statistics, in total and per upstream server.
+   *
+   * @return the pool statistics
+   */
+  @ReadOperation
+  public UpstreamPools pools() {
+    Map<String, Pool> routes = new TreeMap<>();
+    for (HttpRoute route : connectionManager.getRoutes()) {
+      routes.put(route.getTargetHost().toURI(), Pool.of(connectionManager.getStats(route)));
+    }
+    return new UpstreamPools(Pool.of(connectionManager.getTotalStats()), routes);
+  }
+
+  /**
+   * Pool statistics of the upstream connection pool.
+   *
+   * @param total the statistics across all upstream servers
+   * @param routes the statistics per upstream server
+   */
+  public record UpstreamPools(Pool total, Map<String, Pool> routes) {}
+
+  /**
+   * Statistics of a connection pool.
+   *
+   * @param leased the number of connections in use
+   * @param available the number of idle connections
+   * @param pending the number of requests waiting for a connection
+   * @param max the maximum number of connections
+   */
+  public record Pool(int leased, int available, int pending, int max) {
+
+    static Pool of(PoolStats stats) {
+      return new Pool(
+          stats.getLeased(), stats.getAvailable(), stats.getPending(), stats.getMax());
+    }
+  }
+}
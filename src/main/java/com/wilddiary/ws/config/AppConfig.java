@@ -20,59 +20,359 @@
 
 package com.wilddiary.ws.config;
 
+import com.wilddiary.ws.services.metrics.RelayMetrics;
+import com.wilddiary.ws.services.routing.RouteRegistry;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.httpcomponents.hc5.PoolingHttpClientConnectionManagerMetricsBinder;
 import java.io.IOException;
-import java.net.HttpURLConnection;
+import java.net.URI;
 import java.time.Duration;
-import lombok.RequiredArgsConstructor;
-import org.springframework.beans.factory.annotation.Value;
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.HttpClients;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.pool.PoolConcurrencyPolicy;
+import org.apache.hc.core5.pool.PoolReusePolicy;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.boot.web.client.RestTemplateBuilder;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.web.client.RestTemplate;
 
 /** Configuration for the application. */
 @Configuration
+@EnableConfigurationProperties(RelayProperties.class)
 public class AppConfig {
 
   /**
-   * Create a {@link RestTemplate} with a 10 second connect and read timeout.
+   * Create the upstream settings, resolving the per-context settings to the upstream servers of
+   * the current context mapping, and again on every reload.
+   *
+   * @param routeRegistry the route registry
+   * @param relayProperties the relay properties
+   * @return the {@link UpstreamRouteSettings}
+   */
+  @Bean
+  public UpstreamRouteSettings upstreamRouteSettings(
+      RouteRegistry routeRegistry, RelayProperties relayProperties) {
+    UpstreamRouteSettings routeSettings =
+        new UpstreamRouteSettings(routeRegistry.current().invertedContextMap(), relayProperties);
+    routeRegistry.addListener(routes -> routeSettings.update(routes.invertedContextMap()));
+    return routeSettings;
+  }
+
+  /**
+   * Create the resolver of the upstream host names, caching their addresses for the DNS TTL of
+   * each upstream server and refreshing them in the background.
+   *
+   * @param routeSettings the upstream settings
+   * @param relayProperties the relay properties
+   * @param meterRegistry the meter registry
+   * @return the {@link UpstreamDnsResolver}
+   */
+  @Bean(destroyMethod = "close")
+  @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+  public UpstreamDnsResolver upstreamDnsResolver(
+      UpstreamRouteSettings routeSettings,
+      RelayProperties relayProperties,
+      MeterRegistry meterRegistry) {
+    return new UpstreamDnsResolver(routeSettings, relayProperties.getDns(), meterRegistry);
+  }
+
+  /**
+   * Create the TLS of the upstream connections, with a TLS context for each distinct TLS setting
+   * of the upstream servers. Sessions are cached for resumption, and the handshakes are recorded
+   * in the relay metrics.
+   *
+   * @param routeSettings the upstream settings
+   * @param relayMetrics the relay metrics
+   * @return the {@link UpstreamTls}
+   */
+  @Bean
+  @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+  public UpstreamTls upstreamTls(UpstreamRouteSettings routeSettings, RelayMetrics relayMetrics) {
+    return new UpstreamTls(routeSettings, relayMetrics);
+  }
+
+  /**
+   * Create the pooled upstream connection manager. Connections are kept alive and reused across
+   * relayed requests, with per-route limits, time-to-live and validation taken from the settings
+   * of the context mapped to each upstream server. The per-route limits are applied again when the
+   * context mapping is reloaded, after the upstream settings are resolved. Connects race across
+   * the addresses of the upstream hosts, TLS is layered with the TLS settings of each server, and
+   * the time taken to establish each connection is recorded in the relay metrics.
+   *
+   * @param routeSettings the upstream settings
+   * @param routeRegistry the route registry
+   * @param relayMetrics the relay metrics
+   * @param dnsResolver the resolver of the upstream host names
+   * @param upstreamTls the TLS of the upstream connections
+   * @param relayProperties the relay properties
+   * @return the {@link PoolingHttpClientConnectionManager}
+   */
+  @Bean
+  @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+  public PoolingHttpClientConnectionManager upstreamConnectionManager(
+      UpstreamRouteSettings routeSettings,
+      RouteRegistry routeRegistry,
+      RelayMetrics relayMetrics,
+      UpstreamDnsResolver dnsResolver,
+      UpstreamTls upstreamTls,
+      RelayProperties relayProperties) {
+    RelayProperties.Upstream defaults = routeSettings.defaults();
+    // The constructor taking a connection operator is only open to subclasses
+    PoolingHttpClientConnectionManager connectionManager =
+        new PoolingHttpClientConnectionManager(
+            new MeteredConnectionOperator(
+                relayMetrics, routeSettings, dnsResolver, relayProperties.getDns(), upstreamTls),
+            PoolConcurrencyPolicy.STRICT,
+            PoolReusePolicy.LIFO,
+            TimeValue.NEG_ONE_MILLISECOND,
+            null) {};
+    connectionManager.setMaxTotal(defaults.getMaxConnectionsTotal());
+    connectionManager.setDefaultMaxPerRoute(defaults.getMaxConnectionsPerRoute());
+    connectionManager.setConnectionConfigResolver(
+        route -> connectionConfig(routeSettings.forTarget(route.getTargetHost())));
+    applyMaxPerRoute(connectionManager, routeSettings);
+    routeRegistry.addListener(routes -> applyMaxPerRoute(connectionManager, routeSettings));
+    return connectionManager;
+  }
+
+  /**
+   * Apply the per-route connection limits of the upstream servers to the connection manager.
+   *
+   * @param connectionManager the connection manager
+   * @param routeSettings the upstream settings
+   */
+  private static void applyMaxPerRoute(
+      PoolingHttpClientConnectionManager connectionManager, UpstreamRouteSettings routeSettings) {
+    routeSettings
+        .targets()
+        .forEach(
+            (target, settings) ->
+                connectionManager.setMaxPerRoute(
+                    UpstreamRouteSettings.routeOf(target), settings.getMaxConnectionsPerRoute()));
+  }
+
+  /**
+   * Create the upstream HTTP client. Content decompression, cookie management and redirect
+   * handling are left to the relay, so the client does not alter the relayed exchange.
+   *
+   * @param connectionManager the connection manager
+   * @param routeSettings the upstream settings
+   * @return the {@link CloseableHttpClient}
+   */
+  @Bean(destroyMethod = "close")
+  @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+  public CloseableHttpClient upstreamHttpClient(
+      PoolingHttpClientConnectionManager connectionManager, UpstreamRouteSettings routeSettings) {
+    return HttpClients.custom()
+        .setConnectionManager(connectionManager)
+        .disableContentCompression()
+        .disableCookieManagement()
+        .evictExpiredConnections()
+        .evictIdleConnections(timeValue(routeSettings.defaults().getIdleTimeout()))
+        .build();
+  }
+
+  /**
+   * Create the upstream HTTP/2 client, for the upstream servers spoken to over HTTP/2. It keeps a
+   * connection to each server and multiplexes the relayed requests over it, negotiating HTTP/2
+   * with ALPN over TLS and with prior knowledge in clear text. As with the HTTP/1.1 client, content
+   * decompression and cookies are left to the relay, host names are resolved through the upstream
+   * resolver, and TLS uses the TLS settings of each server.
+   *
+   * @param routeSettings the upstream settings
+   * @param relayProperties the relay properties
+   * @param dnsResolver the resolver of the upstream host names
+   * @param upstreamTls the TLS of the upstream connections
+   * @return the started {@link CloseableHttpAsyncClient}
+   */
+  @Bean(destroyMethod = "close")
+  @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+  public CloseableHttpAsyncClient upstreamHttp2Client(
+      UpstreamRouteSettings routeSettings,
+      RelayProperties relayProperties,
+      UpstreamDnsResolver dnsResolver,
+      UpstreamTls upstreamTls) {
+    CloseableHttpAsyncClient httpClient =
+        HttpAsyncClients.customHttp2()
+            .setH2Config(
+                H2Config.custom()
+                    .setPushEnabled(false)
+                    .setInitialWindowSize(
+                        (int) relayProperties.getHttp2().getInitialWindowSize().toBytes())
+                    .build())
+            .setConnectionConfigResolver(
+                target -> connectionConfig(routeSettings.forTarget(target)))
+            .setDnsResolver(dnsResolver)
+            .setTlsStrategy(upstreamTls.tlsStrategy())
+            .disableCookieManagement()
+            .evictIdleConnections(timeValue(routeSettings.defaults().getIdleTimeout()))
+            .build();
+    httpClient.start();
+    return httpClient;
+  }
+
+  /**
+   * Expose the upstream connection pool statistics as metrics.
+   *
+   * @param connectionManager the connection manager
+   * @return the {@link PoolingHttpClientConnectionManagerMetricsBinder}
+   */
+  @Bean
+  @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+  public PoolingHttpClientConnectionManagerMetricsBinder upstreamConnectionPoolMetrics(
+      PoolingHttpClientConnectionManager connectionManager) {
+    return new PoolingHttpClientConnectionManagerMetricsBinder(connectionManager, "upstream");
+  }
+
+  /**
+   * Create a {@link RestTemplate} on the upstream HTTP clients. Requests to the upstream servers
+   * spoken to over HTTP/2 go through the HTTP/2 client, the others through the pooled HTTP/1.1
+   * client.
    *
    * @param builder the {@link RestTemplateBuilder}
-   * @param followRedirects whether to follow redirects
+   * @param httpClient the upstream HTTP client
+   * @param http2Client the upstream HTTP/2 client
+   * @param routeSettings the upstream settings
+   * @param relayProperties the relay properties
    * @return the {@link RestTemplate}
    */
   @Bean
+  @ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
   public RestTemplate httpClient(
       RestTemplateBuilder builder,
-      @Value("${relay.follow-redirects:false}") boolean followRedirects) {
+      CloseableHttpClient httpClient,
+      CloseableHttpAsyncClient http2Client,
+      UpstreamRouteSettings routeSettings,
+      RelayProperties relayProperties) {
+    boolean followRedirects = relayProperties.isFollowRedirects();
     return builder
-        .setConnectTimeout(Duration.ofSeconds(10))
-        .setReadTimeout(Duration.ofSeconds(10))
-        .requestFactory(() -> httpFactory(followRedirects))
+        .requestFactory(
+            () ->
+                new Http2RequestFactory(
+                    http2Client,
+                    httpFactory(httpClient, routeSettings, followRedirects),
+                    routeSettings,
+                    followRedirects))
         .build();
   }
 
   /**
    * Create a {@link HttpRequestFactory} with the given followRedirects setting.
    *
+   * @param httpClient the upstream HTTP client
+   * @param routeSettings the upstream settings
    * @param followRedirects whether to follow redirects
    * @return the {@link HttpRequestFactory}
    */
-  private HttpRequestFactory httpFactory(boolean followRedirects) {
-    return new HttpRequestFactory(followRedirects);
+  private HttpRequestFactory httpFactory(
+      CloseableHttpClient httpClient,
+      UpstreamRouteSettings routeSettings,
+      boolean followRedirects) {
+    return new HttpRequestFactory(httpClient, routeSettings, followRedirects);
+  }
+
+  /**
+   * Create the connection settings for an upstream server.
+   *
+   * @param settings the upstream settings
+   * @return the {@link ConnectionConfig}
+   */
+  private static ConnectionConfig connectionConfig(RelayProperties.Upstream settings) {
+    return ConnectionConfig.custom()
+        .setConnectTimeout(timeout(settings.getConnectTimeout()))
+        .setSocketTimeout(timeout(settings.getReadTimeout()))
+        .setTimeToLive(timeValue(settings.getTimeToLive()))
+        .setValidateAfterInactivity(timeValue(settings.getValidateAfterInactivity()))
+        .build();
+  }
+
+  /**
+   * Create the settings of a request to an upstream server.
+   *
+   * @param settings the upstream settings
+   * @param followRedirects whether to follow redirects
+   * @return the {@link RequestConfig}
+   */
+  static RequestConfig requestConfig(RelayProperties.Upstream settings, boolean followRedirects) {
+    return RequestConfig.custom()
+        .setConnectionRequestTimeout(timeout(settings.getConnectionRequestTimeout()))
+        .setResponseTimeout(timeout(settings.getReadTimeout()))
+        .setRedirectsEnabled(followRedirects)
+        .build();
   }
 
-  /** A {@link SimpleClientHttpRequestFactory} that allows setting the followRedirects property. */
-  @RequiredArgsConstructor
-  static class HttpRequestFactory extends SimpleClientHttpRequestFactory {
+  private static Timeout timeout(Duration duration) {
+    return Timeout.ofMilliseconds(duration.toMillis());
+  }
+
+  private static TimeValue timeValue(Duration duration) {
+    return TimeValue.ofMilliseconds(duration.toMillis());
+  }
+
+  /**
+   * A {@link HttpComponentsClientHttpRequestFactory} that applies the read timeout and lease
+   * timeout of the upstream server, and allows setting the followRedirects property. Its requests
+   * can be aborted.
+   */
+  static class HttpRequestFactory extends HttpComponentsClientHttpRequestFactory {
+    private final UpstreamRouteSettings routeSettings;
     private final boolean followRedirects;
+    // The request of the HTTP client being created on this thread, which the created request hides
+    private final ThreadLocal<HttpUriRequestBase> creating = new ThreadLocal<>();
+
+    HttpRequestFactory(
+        CloseableHttpClient httpClient,
+        UpstreamRouteSettings routeSettings,
+        boolean followRedirects) {
+      super(httpClient);
+      this.routeSettings = routeSettings;
+      this.followRedirects = followRedirects;
+    }
+
+    @Override
+    public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) throws IOException {
+      try {
+        ClientHttpRequest request = super.createRequest(uri, httpMethod);
+        HttpUriRequestBase upstreamRequest = creating.get();
+        return upstreamRequest != null
+            ? new Http11ClientHttpRequest(request, upstreamRequest)
+            : request;
+      } finally {
+        creating.remove();
+      }
+    }
+
+    @Override
+    protected void postProcessHttpRequest(ClassicHttpRequest request) {
+      if (request instanceof HttpUriRequestBase upstreamRequest) {
+        creating.set(upstreamRequest);
+      }
+    }
 
     @Override
-    protected void prepareConnection(HttpURLConnection connection, String httpMethod)
-        throws IOException {
-      super.prepareConnection(connection, httpMethod);
-      connection.setInstanceFollowRedirects(followRedirects);
+    protected HttpContext createHttpContext(HttpMethod httpMethod, URI uri) {
+      RelayProperties.Upstream settings =
+          routeSettings.forTarget(UpstreamRouteSettings.targetOf(uri));
+      HttpClientContext context = HttpClientContext.create();
+      context.setRequestConfig(requestConfig(settings, followRedirects));
+      return context;
     }
   }
 }
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.config;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import org.apache.hc.client5.http.classic.methods.HttpUriRequestBase;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.StreamingHttpOutputMessage;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+
+/**
+ * An upstream request relayed over HTTP/1.1 by the pooled client. Aborting it cancels the
+ * underlying request, which closes its connection whether it is still waiting for the response or
+ * already reading its body.
+ */
+final class Http11ClientHttpRequest
+    implements AbortableClientHttpRequest, StreamingHttpOutputMessage {
+
+  private final ClientHttpRequest request;
+  private final HttpUriRequestBase upstreamRequest;
+
+  /**
+   * Constructor for the Http11ClientHttpRequest.
+   *
+   * @param request the request created by the request factory
+   * @param upstreamRequest the request sent by the HTTP client, cancelled to abort
+   */
+  Http11ClientHttpRequest(ClientHttpRequest request, HttpUriRequestBase upstreamRequest) {
+    this.request = request;
+    this.upstreamRequest = upstreamRequest;
+  }
+
+  @Override
+  public HttpMethod getMethod() {
+    return request.getMethod();
+  }
+
+  @Override
+  public URI getURI() {
+    return request.getURI();
+  }
+
+  @Override
+  public HttpHeaders getHeaders() {
+    return request.getHeaders();
+  }
+
+  @Override
+  public OutputStream getBody() throws IOException {
+    return request.getBody();
+  }
+
+  @Override
+  public void setBody(Body body) {
+    if (request instanceof StreamingHttpOutputMessage streamingRequest) {
+      streamingRequest.setBody(body);
+    } else {
+      throw new IllegalStateException("Request does not stream its body");
+    }
+  }
+
+  @Override
+  public ClientHttpResponse execute() throws IOException {
+    return request.execute();
+  }
+
+  @Override
+  public void abort() {
+    upstreamRequest.cancel();
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.config;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.core5.http.ConnectionRequestTimeoutException;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.message.BasicHttpRequest;
+import org.apache.hc.core5.http.nio.support.BasicRequestProducer;
+import org.apache.hc.core5.http2.impl.nio.ProtocolNegotiationException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.StreamingHttpOutputMessage;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.util.FastByteArrayOutputStream;
+
+/**
+ * An upstream request relayed over HTTP/2. The body is streamed to the upstream server once the
+ * stream of the request is open, so it is still unread when the server cannot be connected to, and
+ * the response is returned as soon as its head is received. A request to a server that does not
+ * negotiate HTTP/2 is relayed over HTTP/1.1 instead.
+ */
+final class Http2ClientHttpRequest
+    implements AbortableClientHttpRequest, StreamingHttpOutputMessage {
+
+  private final Http2RequestFactory requestFactory;
+  private final CloseableHttpAsyncClient httpClient;
+  private final HttpMethod method;
+  private final URI uri;
+  private final RequestConfig requestConfig;
+  private final Semaphore streams;
+  private final HttpHeaders headers = new HttpHeaders();
+  private Body body;
+  private FastByteArrayOutputStream bufferedBody;
+  private volatile boolean aborted;
+  private volatile Http2Exchange exchange;
+  private volatile ClientHttpRequest fallback;
+
+  /**
+   * Constructor for the Http2ClientHttpRequest.
+   *
+   * @param requestFactory the request factory, to fall back to HTTP/1.1
+   * @param httpClient the upstream HTTP/2 client
+   * @param method the method of the request
+   * @param uri the URI of the request
+   * @param requestConfig the settings of the request
+   * @param streams the permits of the streams to the upstream server
+   */
+  Http2ClientHttpRequest(
+      Http2RequestFactory requestFactory,
+      CloseableHttpAsyncClient httpClient,
+      HttpMethod method,
+      URI uri,
+      RequestConfig requestConfig,
+      Semaphore streams) {
+    this.requestFactory = requestFactory;
+    this.httpClient = httpClient;
+    this.method = method;
+    this.uri = uri;
+    this.requestConfig = requestConfig;
+    this.streams = streams;
+  }
+
+  @Override
+  public HttpMethod getMethod() {
+    return method;
+  }
+
+  @Override
+  public URI getURI() {
+    return uri;
+  }
+
+  @Override
+  public HttpHeaders getHeaders() {
+    return headers;
+  }
+
+  @Override
+  public OutputStream getBody() {
+    if (bufferedBody == null) {
+      bufferedBody = new FastByteArrayOutputStream();
+      body = bufferedBody::writeTo;
+    }
+    return bufferedBody;
+  }
+
+  @Override
+  public void setBody(Body body) {
+    this.body = body;
+  }
+
+  @Override
+  public ClientHttpResponse execute() throws IOException {
+    acquireStream();
+    HttpClientContext context = HttpClientContext.create();
+    context.setRequestConfig(requestConfig);
+    Http2Exchange exchange = new Http2Exchange(streams, body != null);
+    exchange.start(
+        httpClient.execute(
+            new BasicRequestProducer(
+                request(), body != null ? exchange.requestBody(headers.getContentLength()) : null),
+            exchange.responseConsumer(),
+            context,
+            exchange));
+    this.exchange = exchange;
+    if (aborted) {
+      exchange.cancel();
+    }
+    try {
+      if (body != null && exchange.awaitStream()) {
+        writeBody(exchange);
+      }
+      return new Http2ClientHttpResponse(exchange.awaitResponse(), exchange);
+    } catch (ProtocolNegotiationException e) {
+      // Nothing was sent, as the server selected another protocol on connecting
+      ClientHttpRequest fallback = requestFactory.fallBack(uri, method);
+      this.fallback = fallback;
+      if (aborted) {
+        abort();
+      }
+      fallback.getHeaders().putAll(headers);
+      if (body != null && fallback instanceof StreamingHttpOutputMessage streamingRequest) {
+        streamingRequest.setBody(body);
+      } else if (body != null) {
+        body.writeTo(fallback.getBody());
+      }
+      return fallback.execute();
+    }
+  }
+
+  /** Aborts the request by resetting its stream, or by aborting the request it fell back to. */
+  @Override
+  public void abort() {
+    aborted = true;
+    Http2Exchange started = exchange;
+    if (started != null) {
+      started.cancel();
+    }
+    if (fallback instanceof AbortableClientHttpRequest abortable) {
+      abortable.abort();
+    }
+  }
+
+  /**
+   * Waits for a stream to the upstream server to be free, as long as the lease timeout allows.
+   *
+   * @throws IOException if no stream is free in time
+   */
+  private void acquireStream() throws IOException {
+    try {
+      long timeout = requestConfig.getConnectionRequestTimeout().toMilliseconds();
+      if (!streams.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+        throw new ConnectionRequestTimeoutException(
+            "Timeout waiting for a stream to " + uri.getAuthority());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a stream");
+    }
+  }
+
+  /**
+   * Creates the request sent to the upstream server. The body is framed by HTTP/2, so its length
+   * goes with the body rather than in a header.
+   *
+   * @return the request
+   */
+  private HttpRequest request() {
+    HttpRequest request = new BasicHttpRequest(method.name(), uri);
+    headers.forEach(
+        (name, values) -> {
+          if (!HttpHeaders.CONTENT_LENGTH.equalsIgnoreCase(name)
+              && !HttpHeaders.TRANSFER_ENCODING.equalsIgnoreCase(name)
+              && !HttpHeaders.HOST.equalsIgnoreCase(name)) {
+            values.forEach(value -> request.addHeader(name, value));
+          }
+        });
+    return request;
+  }
+
+  /**
+   * Writes the body to the open stream of the request. A write failing because the exchange
+   * failed reports the failure of the exchange, any other failure cancels the exchange.
+   *
+   * @param exchange the exchange of the request
+   * @throws IOException if the body cannot be written
+   */
+  private void writeBody(Http2Exchange exchange) throws IOException {
+    try (OutputStream requestBody = exchange.requestBodyStream()) {
+      body.writeTo(requestBody);
+    } catch (IOException e) {
+      exchange.checkFailure();
+      exchange.cancel();
+      throw e;
+    }
+  }
+}
@@ -0,0 +1,93 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.config;
+
+import java.io.FilterInputStream;
+import java.io.InputStream;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.client.ClientHttpResponse;
+
+/**
+ * An upstream response received over HTTP/2. Closing it before its body is read to the end resets
+ * the stream of the request, rather than reading the rest of the body.
+ */
+final class Http2ClientHttpResponse implements ClientHttpResponse {
+
+  private final HttpResponse response;
+  private final Http2Exchange exchange;
+  private final HttpHeaders headers = new HttpHeaders();
+  private InputStream body;
+
+  /**
+   * Constructor for the Http2ClientHttpResponse.
+   *
+   * @param response the head of the response
+   * @param exchange the exchange of the request
+   */
+  Http2ClientHttpResponse(HttpResponse response, Http2Exchange exchange) {
+    this.response = response;
+    this.exchange = exchange;
+    for (Header header : response.getHeaders()) {
+      headers.add(header.getName(), header.getValue());
+    }
+  }
+
+  @Override
+  public HttpStatusCode getStatusCode() {
+    return HttpStatusCode.valueOf(response.getCode());
+  }
+
+  @Override
+  public String getStatusText() {
+    String reasonPhrase = response.getReasonPhrase();
+    return reasonPhrase != null ? reasonPhrase : "";
+  }
+
+  @Override
+  public HttpHeaders getHeaders() {
+    return headers;
+  }
+
+  @Override
+  public InputStream getBody() {
+    if (body == null) {
+      body =
+          new FilterInputStream(exchange.responseBodyStream()) {
+            @Override
+            public void close() {
+              Http2ClientHttpResponse.this.close();
+            }
+          };
+    }
+    return body;
+  }
+
+  @Override
+  public void close() {
+    if (!exchange.isResponseRead()) {
+      exchange.cancel();
+    }
+  }
+}
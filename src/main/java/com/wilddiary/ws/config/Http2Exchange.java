@@ -0,0 +1,346 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.EntityDetails;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpResponse;
+import org.apache.hc.core5.http.nio.AsyncEntityProducer;
+import org.apache.hc.core5.http.nio.AsyncResponseConsumer;
+import org.apache.hc.core5.http.nio.CapacityChannel;
+import org.apache.hc.core5.http.nio.DataStreamChannel;
+import org.apache.hc.core5.http.nio.support.classic.ContentInputStream;
+import org.apache.hc.core5.http.nio.support.classic.ContentOutputStream;
+import org.apache.hc.core5.http.nio.support.classic.SharedInputBuffer;
+import org.apache.hc.core5.http.nio.support.classic.SharedOutputBuffer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+
+/**
+ * The exchange of a request relayed over HTTP/2, bridging the stream of the request to the
+ * blocking relay. The request body is written to a buffer the stream drains as the flow-control
+ * window of the upstream server allows, and the response body is read from a buffer the stream
+ * fills, opening the window of the stream again as it is read. The stream of the request is
+ * released once the exchange completes, fails or is cancelled.
+ */
+final class Http2Exchange implements FutureCallback<Void> {
+
+  private static final int BUFFER_SIZE = 16 * 1024;
+
+  private final Semaphore streams;
+  private final SharedOutputBuffer requestBuffer;
+  private final SharedInputBuffer responseBuffer = new SharedInputBuffer(BUFFER_SIZE);
+  private final CompletableFuture<Void> stream = new CompletableFuture<>();
+  private final CompletableFuture<HttpResponse> response = new CompletableFuture<>();
+  private volatile Future<Void> future;
+  private volatile Exception failure;
+
+  /**
+   * Constructor for the Http2Exchange.
+   *
+   * @param streams the permits of the streams to the upstream server, one of them acquired
+   * @param hasRequestBody whether the request has a body
+   */
+  Http2Exchange(Semaphore streams, boolean hasRequestBody) {
+    this.streams = streams;
+    this.requestBuffer = hasRequestBody ? new SharedOutputBuffer(BUFFER_SIZE) : null;
+  }
+
+  /**
+   * Starts the exchange.
+   *
+   * @param future the future of the exchange, to cancel it
+   */
+  void start(Future<Void> future) {
+    this.future = future;
+  }
+
+  /**
+   * Waits for the stream of the request to open, or for the exchange to fail before that.
+   *
+   * @return true if the stream is open
+   * @throws IOException if interrupted
+   */
+  boolean awaitStream() throws IOException {
+    try {
+      CompletableFuture.anyOf(stream, response).exceptionally(e -> null).get();
+      return stream.isDone();
+    } catch (InterruptedException | ExecutionException e) {
+      throw interrupted(e);
+    }
+  }
+
+  /**
+   * Waits for the head of the response.
+   *
+   * @return the head of the response
+   * @throws IOException if the exchange fails before the head is received
+   */
+  HttpResponse awaitResponse() throws IOException {
+    try {
+      return response.get();
+    } catch (ExecutionException e) {
+      checkFailure();
+      throw new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      throw interrupted(e);
+    }
+  }
+
+  /**
+   * Cancels an exchange the relay was interrupted waiting on.
+   *
+   * @param e the interruption
+   * @return the exception to report
+   */
+  private InterruptedIOException interrupted(Exception e) {
+    cancel();
+    Thread.currentThread().interrupt();
+    InterruptedIOException interrupted =
+        new InterruptedIOException("Interrupted while waiting for the upstream response");
+    interrupted.initCause(e);
+    return interrupted;
+  }
+
+  /**
+   * Reports the failure of the exchange, if it failed.
+   *
+   * @throws IOException the failure of the exchange
+   */
+  void checkFailure() throws IOException {
+    Exception cause = failure;
+    if (cause instanceof IOException e) {
+      throw e;
+    } else if (cause != null) {
+      throw new IOException(cause.getMessage(), cause);
+    }
+  }
+
+  /** Cancels the exchange, resetting its stream unless it is complete. */
+  void cancel() {
+    Future<Void> started = future;
+    if (started != null) {
+      started.cancel(true);
+    }
+    fail(new InterruptedIOException("Exchange cancelled"));
+  }
+
+  /**
+   * Whether the response body has been read to its end.
+   *
+   * @return true if the response body is fully read
+   */
+  boolean isResponseRead() {
+    return responseBuffer.isEndStream();
+  }
+
+  /**
+   * Gets the stream to write the request body to. Closing it ends the request.
+   *
+   * @return the request body stream
+   */
+  OutputStream requestBodyStream() {
+    return new ContentOutputStream(requestBuffer);
+  }
+
+  /**
+   * Gets the stream to read the response body from. A body cut short by a failure of the exchange
+   * reports the failure rather than its end.
+   *
+   * @return the response body stream
+   */
+  InputStream responseBodyStream() {
+    return new ContentInputStream(responseBuffer) {
+      @Override
+      public int read() throws IOException {
+        return checkEnd(super.read());
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        return checkEnd(super.read(b, off, len));
+      }
+
+      private int checkEnd(int read) throws IOException {
+        if (read < 0) {
+          checkFailure();
+        }
+        return read;
+      }
+    };
+  }
+
+  /**
+   * Fails the exchange, waking up the relay waiting on it.
+   *
+   * @param cause the cause of the failure
+   */
+  private void fail(Exception cause) {
+    if (failure == null && !responseBuffer.isEndStream()) {
+      failure = cause;
+    }
+    response.completeExceptionally(cause);
+    if (requestBuffer != null) {
+      requestBuffer.abort();
+    }
+    responseBuffer.abort();
+  }
+
+  @Override
+  public void completed(Void result) {
+    streams.release();
+  }
+
+  @Override
+  public void failed(Exception cause) {
+    fail(cause);
+    streams.release();
+  }
+
+  @Override
+  public void cancelled() {
+    fail(new InterruptedIOException("Exchange cancelled"));
+    streams.release();
+  }
+
+  /**
+   * Creates the producer of the request body.
+   *
+   * @param contentLength the length of the body, or -1 if unknown
+   * @return the request body producer
+   */
+  AsyncEntityProducer requestBody(long contentLength) {
+    return new AsyncEntityProducer() {
+      @Override
+      public boolean isRepeatable() {
+        return false;
+      }
+
+      @Override
+      public void failed(Exception cause) {
+        fail(cause);
+      }
+
+      @Override
+      public long getContentLength() {
+        return contentLength;
+      }
+
+      @Override
+      public String getContentType() {
+        return null;
+      }
+
+      @Override
+      public String getContentEncoding() {
+        return null;
+      }
+
+      @Override
+      public boolean isChunked() {
+        return contentLength < 0;
+      }
+
+      @Override
+      public Set<String> getTrailerNames() {
+        return null;
+      }
+
+      @Override
+      public int available() {
+        return requestBuffer.length();
+      }
+
+      @Override
+      public void produce(DataStreamChannel channel) throws IOException {
+        stream.complete(null);
+        requestBuffer.flush(channel);
+      }
+
+      @Override
+      public void releaseResources() {}
+    };
+  }
+
+  /**
+   * Creates the consumer of the response.
+   *
+   * @return the response consumer
+   */
+  AsyncResponseConsumer<Void> responseConsumer() {
+    return new AsyncResponseConsumer<>() {
+      private FutureCallback<Void> resultCallback;
+
+      @Override
+      public void consumeResponse(
+          HttpResponse head,
+          EntityDetails entityDetails,
+          HttpContext context,
+          FutureCallback<Void> resultCallback) {
+        this.resultCallback = resultCallback;
+        if (entityDetails == null) {
+          responseBuffer.markEndStream();
+          resultCallback.completed(null);
+        }
+        response.complete(head);
+      }
+
+      @Override
+      public void informationResponse(HttpResponse head, HttpContext context) {}
+
+      @Override
+      public void updateCapacity(CapacityChannel capacityChannel) throws IOException {
+        responseBuffer.updateCapacity(capacityChannel);
+      }
+
+      @Override
+      public void consume(ByteBuffer src) {
+        responseBuffer.fill(src);
+      }
+
+      @Override
+      public void streamEnd(List<? extends Header> trailers) {
+        responseBuffer.markEndStream();
+        resultCallback.completed(null);
+      }
+
+      @Override
+      public void failed(Exception cause) {
+        fail(cause);
+      }
+
+      @Override
+      public void releaseResources() {}
+    };
+  }
+}
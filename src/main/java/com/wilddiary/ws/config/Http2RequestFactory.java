@@ -0,0 +1,131 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.config;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.core5.http.HttpHost;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpRequestFactory;
+
+/**
+ * Creates the upstream requests, relaying the requests to the upstream servers spoken to over
+ * HTTP/2 through the HTTP/2 client. The requests to each of those servers are multiplexed over a
+ * single connection, with at most the maximum number of concurrent streams of the server in
+ * flight. Requests to the other servers, and to the servers found not to negotiate HTTP/2, are
+ * created by the HTTP/1.1 request factory.
+ */
+@Slf4j
+class Http2RequestFactory implements ClientHttpRequestFactory {
+
+  private final CloseableHttpAsyncClient httpClient;
+  private final ClientHttpRequestFactory http11RequestFactory;
+  private final UpstreamRouteSettings routeSettings;
+  private final boolean followRedirects;
+  private final Set<HttpHost> http11Targets = ConcurrentHashMap.newKeySet();
+  private final Map<HttpHost, Streams> streams = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor for the Http2RequestFactory.
+   *
+   * @param httpClient the upstream HTTP/2 client
+   * @param http11RequestFactory the factory of the requests relayed over HTTP/1.1
+   * @param routeSettings the upstream settings
+   * @param followRedirects whether to follow redirects
+   */
+  Http2RequestFactory(
+      CloseableHttpAsyncClient httpClient,
+      ClientHttpRequestFactory http11RequestFactory,
+      UpstreamRouteSettings routeSettings,
+      boolean followRedirects) {
+    this.httpClient = httpClient;
+    this.http11RequestFactory = http11RequestFactory;
+    this.routeSettings = routeSettings;
+    this.followRedirects = followRedirects;
+  }
+
+  @Override
+  public ClientHttpRequest createRequest(URI uri, HttpMethod httpMethod) throws IOException {
+    HttpHost target = UpstreamRouteSettings.targetOf(uri);
+    RelayProperties.Upstream settings = routeSettings.forTarget(target);
+    if (settings.getProtocol() != RelayProperties.Upstream.Protocol.HTTP_2
+        || http11Targets.contains(target)) {
+      return http11RequestFactory.createRequest(uri, httpMethod);
+    }
+    return new Http2ClientHttpRequest(
+        this,
+        httpClient,
+        httpMethod,
+        uri,
+        AppConfig.requestConfig(settings, followRedirects),
+        streams(target, settings.getMaxConcurrentStreams()));
+  }
+
+  /**
+   * Creates an upstream request over HTTP/1.1 to a server that does not negotiate HTTP/2. The
+   * server is spoken to over HTTP/1.1 from then on.
+   *
+   * @param uri the URI of the request
+   * @param httpMethod the method of the request
+   * @return the upstream request
+   * @throws IOException if the request cannot be created
+   */
+  ClientHttpRequest fallBack(URI uri, HttpMethod httpMethod) throws IOException {
+    HttpHost target = UpstreamRouteSettings.targetOf(uri);
+    if (http11Targets.add(target)) {
+      log.warn("Upstream {} does not negotiate HTTP/2, falling back to HTTP/1.1", target);
+    }
+    return http11RequestFactory.createRequest(uri, httpMethod);
+  }
+
+  /**
+   * Gets the streams open to an upstream server, limited to its maximum number of concurrent
+   * streams. The limit is replaced when the settings of the server change.
+   *
+   * @param target the upstream server
+   * @param maxConcurrentStreams the maximum number of concurrent streams
+   * @return the permits of the streams
+   */
+  private Semaphore streams(HttpHost target, int maxConcurrentStreams) {
+    Streams current = streams.get(target);
+    if (current == null || current.max() != maxConcurrentStreams) {
+      current =
+          streams.compute(
+              target,
+              (t, s) ->
+                  s != null && s.max() == maxConcurrentStreams
+                      ? s
+                      : new Streams(maxConcurrentStreams, new Semaphore(maxConcurrentStreams)));
+    }
+    return current.permits();
+  }
+
+  /** The permits of the streams to an upstream server, and their number. */
+  private record Streams(int max, Semaphore permits) {}
+}
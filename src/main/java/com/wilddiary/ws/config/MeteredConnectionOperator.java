@@ -0,0 +1,359 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.config;
+
+import com.wilddiary.ws.services.metrics.RelayMetrics;
+import io.micrometer.core.instrument.Timer;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hc.client5.http.ConnectExceptionSupport;
+import org.apache.hc.client5.http.UnsupportedSchemeException;
+import org.apache.hc.client5.http.impl.DefaultSchemePortResolver;
+import org.apache.hc.client5.http.impl.io.DefaultHttpClientConnectionOperator;
+import org.apache.hc.client5.http.io.ManagedHttpClientConnection;
+import org.apache.hc.client5.http.socket.ConnectionSocketFactory;
+import org.apache.hc.client5.http.socket.LayeredConnectionSocketFactory;
+import org.apache.hc.client5.http.socket.PlainConnectionSocketFactory;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.config.Lookup;
+import org.apache.hc.core5.http.config.RegistryBuilder;
+import org.apache.hc.core5.http.io.SocketConfig;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.util.Timeout;
+
+/**
+ * Connects the pooled upstream connections, timing each connection established, TLS handshake
+ * included, under the upstream server it is for. Servers that are not mapped, reached by following
+ * redirects, share a single tag. Host names are resolved through the upstream resolver, and
+ * connects to a host with several addresses race across them as described in RFC 8305: the next
+ * address is tried when the previous ones failed or are still pending after the attempt delay,
+ * alternating between IPv6 and IPv4, and the first connected socket is used.
+ */
+@Slf4j
+class MeteredConnectionOperator extends DefaultHttpClientConnectionOperator {
+
+  private static final AtomicInteger CONNECT_THREADS = new AtomicInteger();
+
+  // Runs the connect attempts racing the one of the requesting thread
+  private static final ExecutorService CONNECTS =
+      Executors.newCachedThreadPool(
+          task -> {
+            Thread thread = new Thread(task, "relay-connect-" + CONNECT_THREADS.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private final RelayMetrics relayMetrics;
+  private final UpstreamRouteSettings routeSettings;
+  private final Lookup<ConnectionSocketFactory> socketFactories;
+  private final UpstreamDnsResolver dnsResolver;
+  private final boolean happyEyeballs;
+  private final long attemptDelay;
+
+  /**
+   * Constructor for the MeteredConnectionOperator.
+   *
+   * @param relayMetrics the relay metrics
+   * @param routeSettings the upstream settings
+   * @param dnsResolver the resolver of the upstream host names
+   * @param dns the resolution settings
+   * @param upstreamTls the TLS of the upstream connections
+   */
+  MeteredConnectionOperator(
+      RelayMetrics relayMetrics,
+      UpstreamRouteSettings routeSettings,
+      UpstreamDnsResolver dnsResolver,
+      RelayProperties.Dns dns,
+      UpstreamTls upstreamTls) {
+    this(relayMetrics, routeSettings, dnsResolver, dns, socketFactories(upstreamTls));
+  }
+
+  private MeteredConnectionOperator(
+      RelayMetrics relayMetrics,
+      UpstreamRouteSettings routeSettings,
+      UpstreamDnsResolver dnsResolver,
+      RelayProperties.Dns dns,
+      Lookup<ConnectionSocketFactory> socketFactories) {
+    super(socketFactories, DefaultSchemePortResolver.INSTANCE, dnsResolver);
+    this.relayMetrics = relayMetrics;
+    this.routeSettings = routeSettings;
+    this.socketFactories = socketFactories;
+    this.dnsResolver = dnsResolver;
+    this.happyEyeballs = dns.isHappyEyeballs();
+    this.attemptDelay = dns.getConnectionAttemptDelay().toNanos();
+  }
+
+  private static Lookup<ConnectionSocketFactory> socketFactories(UpstreamTls upstreamTls) {
+    return RegistryBuilder.<ConnectionSocketFactory>create()
+        .register(URIScheme.HTTP.id, PlainConnectionSocketFactory.getSocketFactory())
+        .register(URIScheme.HTTPS.id, upstreamTls.socketFactory())
+        .build();
+  }
+
+  @Override
+  public void connect(
+      ManagedHttpClientConnection conn,
+      HttpHost host,
+      InetSocketAddress localAddress,
+      Timeout connectTimeout,
+      SocketConfig socketConfig,
+      Object attachment,
+      HttpContext context)
+      throws IOException {
+    String upstream =
+        routeSettings.targets().containsKey(host) ? host.toURI() : RelayMetrics.OTHER;
+    Timer.Sample sample = Timer.start();
+    try {
+      InetAddress[] addresses =
+          happyEyeballs && host.getAddress() == null && socketConfig.getSocksProxyAddress() == null
+              ? dnsResolver.resolve(host.getHostName())
+              : null;
+      if (addresses == null || addresses.length < 2) {
+        // A single address is connected to as usual, resolved again from the cache
+        super.connect(conn, host, localAddress, connectTimeout, socketConfig, attachment, context);
+      } else {
+        race(
+            conn, host, addresses, localAddress, connectTimeout, socketConfig, attachment, context);
+      }
+    } finally {
+      sample.stop(relayMetrics.connectTimer(upstream));
+    }
+  }
+
+  /**
+   * Connects to the first address of a host that accepts the connection, racing the connects
+   * across its addresses, and layers TLS over the connected socket if the scheme requires it.
+   *
+   * @param conn the connection to bind the socket to
+   * @param host the upstream server
+   * @param addresses the addresses of the host
+   * @param localAddress the local address to bind the sockets to, may be null
+   * @param connectTimeout the timeout of the whole connect
+   * @param socketConfig the socket settings
+   * @param attachment the TLS settings, may be null
+   * @param context the HTTP context
+   * @throws IOException if no address accepts the connection
+   */
+  private void race(
+      ManagedHttpClientConnection conn,
+      HttpHost host,
+      InetAddress[] addresses,
+      InetSocketAddress localAddress,
+      Timeout connectTimeout,
+      SocketConfig socketConfig,
+      Object attachment,
+      HttpContext context)
+      throws IOException {
+    ConnectionSocketFactory socketFactory = socketFactories.lookup(host.getSchemeName());
+    if (socketFactory == null) {
+      throw new UnsupportedSchemeException(host.getSchemeName() + " protocol is not supported");
+    }
+    int port = DefaultSchemePortResolver.INSTANCE.resolve(host);
+    List<InetAddress> ordered = interleave(addresses);
+    long timeout =
+        connectTimeout == null || connectTimeout.isDisabled() ? 0 : connectTimeout.toNanoseconds();
+    long deadline = System.nanoTime() + timeout;
+    BlockingQueue<Attempt> finished = new LinkedBlockingQueue<>();
+    List<Attempt> attempts = new ArrayList<>(ordered.size());
+    Attempt winner = null;
+    IOException failure = null;
+    int pending = 0;
+    try {
+      while (winner == null) {
+        if (attempts.size() < ordered.size()) {
+          Attempt attempt =
+              new Attempt(
+                  configure(socketFactory.createSocket(context), socketConfig),
+                  new InetSocketAddress(ordered.get(attempts.size()), port));
+          attempts.add(attempt);
+          pending++;
+          int remaining =
+              timeout == 0 ? 0 : (int) Math.max(1, (deadline - System.nanoTime()) / 1_000_000);
+          CONNECTS.execute(() -> attempt.connect(localAddress, remaining, finished));
+        } else if (pending == 0) {
+          break;
+        }
+        // Wait for an attempt to finish, or the attempt delay before starting the next one
+        Attempt done =
+            attempts.size() < ordered.size()
+                ? finished.poll(attemptDelay, TimeUnit.NANOSECONDS)
+                : finished.take();
+        if (done == null) {
+          continue;
+        }
+        pending--;
+        if (done.failure == null) {
+          winner = done;
+        } else {
+          failure = done.failure;
+          log.debug("Failed to connect to {} at {}: {}", host, done.address, failure.toString());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      failure = new InterruptedIOException("Interrupted while connecting to " + host);
+    } finally {
+      for (Attempt attempt : attempts) {
+        if (attempt != winner) {
+          attempt.close();
+        }
+      }
+    }
+    if (winner == null) {
+      throw failure instanceof SocketTimeoutException
+          ? ConnectExceptionSupport.createConnectTimeoutException(failure, host, addresses)
+          : ConnectExceptionSupport.enhance(failure, host, addresses);
+    }
+    log.debug(
+        "Connected to {} at {}, racing {} of {} addresses",
+        host,
+        winner.address,
+        attempts.size(),
+        ordered.size());
+
+    Socket socket = winner.socket;
+    try {
+      conn.bind(socket);
+      if (socketFactory instanceof LayeredConnectionSocketFactory layeredFactory) {
+        socket =
+            layeredFactory.createLayeredSocket(
+                socket, host.getHostName(), port, attachment, context);
+        conn.bind(socket);
+      }
+      conn.setSocketTimeout(socketConfig.getSoTimeout());
+    } catch (IOException | RuntimeException e) {
+      winner.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Orders the addresses of a host to alternate between the address families, starting with the
+   * family of the first address.
+   *
+   * @param addresses the addresses, in the order the name servers returned them
+   * @return the addresses in the order to connect to them
+   */
+  static List<InetAddress> interleave(InetAddress[] addresses) {
+    boolean firstIsV6 = addresses[0] instanceof Inet6Address;
+    List<InetAddress> preferred = new ArrayList<>();
+    List<InetAddress> other = new ArrayList<>();
+    for (InetAddress address : addresses) {
+      (address instanceof Inet6Address == firstIsV6 ? preferred : other).add(address);
+    }
+    List<InetAddress> ordered = new ArrayList<>(addresses.length);
+    for (int i = 0; i < Math.max(preferred.size(), other.size()); i++) {
+      if (i < preferred.size()) {
+        ordered.add(preferred.get(i));
+      }
+      if (i < other.size()) {
+        ordered.add(other.get(i));
+      }
+    }
+    return ordered;
+  }
+
+  /**
+   * Applies the socket settings to a socket not connected yet, as the default operator does.
+   *
+   * @param socket the socket
+   * @param socketConfig the socket settings
+   * @return the socket
+   * @throws IOException if a setting cannot be applied
+   */
+  private static Socket configure(Socket socket, SocketConfig socketConfig) throws IOException {
+    if (socketConfig.getSoTimeout() != null) {
+      socket.setSoTimeout(socketConfig.getSoTimeout().toMillisecondsIntBound());
+    }
+    socket.setReuseAddress(socketConfig.isSoReuseAddress());
+    socket.setTcpNoDelay(socketConfig.isTcpNoDelay());
+    socket.setKeepAlive(socketConfig.isSoKeepAlive());
+    if (socketConfig.getRcvBufSize() > 0) {
+      socket.setReceiveBufferSize(socketConfig.getRcvBufSize());
+    }
+    if (socketConfig.getSndBufSize() > 0) {
+      socket.setSendBufferSize(socketConfig.getSndBufSize());
+    }
+    if (socketConfig.getSoLinger() != null && socketConfig.getSoLinger().toMilliseconds() >= 0) {
+      socket.setSoLinger(true, socketConfig.getSoLinger().toMillisecondsIntBound());
+    }
+    return socket;
+  }
+
+  /** A connect to one of the addresses of a host. */
+  private static final class Attempt {
+    private final Socket socket;
+    private final InetSocketAddress address;
+    private volatile IOException failure;
+
+    private Attempt(Socket socket, InetSocketAddress address) {
+      this.socket = socket;
+      this.address = address;
+    }
+
+    /**
+     * Connects the socket, then reports the attempt as finished.
+     *
+     * @param localAddress the local address to bind the socket to, may be null
+     * @param timeout the connect timeout in milliseconds, 0 for none
+     * @param finished the queue of the finished attempts
+     */
+    private void connect(
+        InetSocketAddress localAddress, int timeout, BlockingQueue<Attempt> finished) {
+      try {
+        if (localAddress != null) {
+          socket.bind(localAddress);
+        }
+        socket.connect(address, timeout);
+      } catch (IOException e) {
+        failure = e;
+      } catch (RuntimeException e) {
+        failure = new IOException(e);
+      } finally {
+        finished.add(this);
+      }
+    }
+
+    private void close() {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        // Nothing to do for a connect that lost the race
+      }
+    }
+  }
+}
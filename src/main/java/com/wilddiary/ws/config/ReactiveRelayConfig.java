@@ -0,0 +1,188 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.config;
+
+import io.netty.channel.ChannelOption;
+import java.net.InetSocketAddress;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.Http2AllocationStrategy;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+/**
+ * Configuration of the reactive engine. Upstream requests go through non-blocking Reactor Netty
+ * clients, with a connection pool per upstream server sized and timed out by the same upstream
+ * settings as the servlet engine. Upstream servers spoken to over HTTP/2 have pools of their own,
+ * multiplexing the requests over their connections.
+ */
+@Configuration
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveRelayConfig {
+
+  private static final String UPSTREAM_URI_TAG = "relayed";
+
+  /**
+   * Create the pooled upstream connection provider. Each upstream server gets a pool of its own,
+   * with the limits, lifetimes and lease timeout of the context mapped to it.
+   *
+   * @param routeSettings the upstream settings
+   * @return the {@link ConnectionProvider}
+   */
+  @Bean(destroyMethod = "dispose")
+  public ConnectionProvider upstreamConnectionProvider(UpstreamRouteSettings routeSettings) {
+    ConnectionProvider.Builder builder = ConnectionProvider.builder("upstream").metrics(true);
+    configure(builder, routeSettings.defaults());
+    routeSettings
+        .targets()
+        .forEach(
+            (target, settings) ->
+                builder.forRemoteHost(
+                    InetSocketAddress.createUnresolved(target.getHostName(), target.getPort()),
+                    spec -> configure(spec, settings)));
+    return builder.build();
+  }
+
+  /**
+   * Create the pooled upstream HTTP/2 connection provider. Each upstream server gets a pool of its
+   * own, opening another connection only when the streams of the open ones are all in use.
+   *
+   * @param routeSettings the upstream settings
+   * @return the {@link ConnectionProvider}
+   */
+  @Bean(destroyMethod = "dispose")
+  public ConnectionProvider upstreamHttp2ConnectionProvider(UpstreamRouteSettings routeSettings) {
+    ConnectionProvider.Builder builder = ConnectionProvider.builder("upstream-h2").metrics(true);
+    configureHttp2(builder, routeSettings.defaults());
+    routeSettings
+        .targets()
+        .forEach(
+            (target, settings) ->
+                builder.forRemoteHost(
+                    InetSocketAddress.createUnresolved(target.getHostName(), target.getPort()),
+                    spec -> configureHttp2(spec, settings)));
+    return builder.build();
+  }
+
+  /**
+   * Apply upstream settings to a connection pool.
+   *
+   * @param spec the connection pool spec
+   * @param settings the upstream settings
+   */
+  private static void configure(
+      ConnectionProvider.ConnectionPoolSpec<?> spec, RelayProperties.Upstream settings) {
+    // Requests wait for a connection as long as the lease timeout allows, however many there are
+    spec.maxConnections(settings.getMaxConnectionsPerRoute())
+        .pendingAcquireMaxCount(-1)
+        .pendingAcquireTimeout(settings.getConnectionRequestTimeout())
+        .maxIdleTime(settings.getIdleTimeout())
+        .maxLifeTime(settings.getTimeToLive())
+        .evictInBackground(settings.getIdleTimeout());
+  }
+
+  /**
+   * Apply upstream settings to a HTTP/2 connection pool, limiting the streams of each connection
+   * as well as the connections.
+   *
+   * @param spec the connection pool spec
+   * @param settings the upstream settings
+   */
+  private static void configureHttp2(
+      ConnectionProvider.ConnectionPoolSpec<?> spec, RelayProperties.Upstream settings) {
+    configure(spec, settings);
+    spec.allocationStrategy(
+        Http2AllocationStrategy.builder()
+            .maxConcurrentStreams(settings.getMaxConcurrentStreams())
+            .maxConnections(settings.getMaxConnectionsPerRoute())
+            .minConnections(1)
+            .build());
+  }
+
+  /**
+   * Create the upstream web clients. Content decompression and cookies are left to the relay, so
+   * the clients do not alter the relayed exchange. The clients publish the Reactor Netty metrics,
+   * connect and TLS handshake times included, tagged by the address of the upstream server.
+   * Relayed paths are unbounded, so they all share one URI tag.
+   *
+   * @param builder the {@link WebClient.Builder}
+   * @param upstreamConnectionProvider the upstream connection provider
+   * @param upstreamHttp2ConnectionProvider the upstream HTTP/2 connection provider
+   * @param routeSettings the upstream settings
+   * @param relayProperties the relay properties
+   * @return the {@link UpstreamWebClients}
+   */
+  @Bean
+  public UpstreamWebClients upstreamWebClients(
+      WebClient.Builder builder,
+      ConnectionProvider upstreamConnectionProvider,
+      ConnectionProvider upstreamHttp2ConnectionProvider,
+      UpstreamRouteSettings routeSettings,
+      RelayProperties relayProperties) {
+    int initialWindowSize = (int) relayProperties.getHttp2().getInitialWindowSize().toBytes();
+    HttpClient http11Client =
+        httpClient(upstreamConnectionProvider, routeSettings, relayProperties);
+    HttpClient http2Client =
+        httpClient(upstreamHttp2ConnectionProvider, routeSettings, relayProperties)
+            .http2Settings(settings -> settings.initialWindowSize(initialWindowSize));
+    return new UpstreamWebClients(
+        routeSettings,
+        webClient(builder, http11Client),
+        webClient(builder, http2Client.protocol(HttpProtocol.H2, HttpProtocol.HTTP11)),
+        webClient(builder, http2Client.protocol(HttpProtocol.H2C)));
+  }
+
+  /**
+   * Create an upstream HTTP client.
+   *
+   * @param connectionProvider the connection provider
+   * @param routeSettings the upstream settings
+   * @param relayProperties the relay properties
+   * @return the {@link HttpClient}
+   */
+  private static HttpClient httpClient(
+      ConnectionProvider connectionProvider,
+      UpstreamRouteSettings routeSettings,
+      RelayProperties relayProperties) {
+    return HttpClient.create(connectionProvider)
+        .option(
+            ChannelOption.CONNECT_TIMEOUT_MILLIS,
+            (int) routeSettings.defaults().getConnectTimeout().toMillis())
+        .followRedirect(relayProperties.isFollowRedirects())
+        .metrics(true, uri -> UPSTREAM_URI_TAG)
+        .responseTimeout(routeSettings.defaults().getReadTimeout());
+  }
+
+  /**
+   * Create a web client on an upstream HTTP client.
+   *
+   * @param builder the {@link WebClient.Builder}
+   * @param httpClient the upstream HTTP client
+   * @return the {@link WebClient}
+   */
+  private static WebClient webClient(WebClient.Builder builder, HttpClient httpClient) {
+    return builder.clone().clientConnector(new ReactorClientHttpConnector(httpClient)).build();
+  }
+}
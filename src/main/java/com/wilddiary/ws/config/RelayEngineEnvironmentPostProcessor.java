@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.config;
+
+import java.util.Map;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.boot.env.EnvironmentPostProcessor;
+import org.springframework.core.env.ConfigurableEnvironment;
+import org.springframework.core.env.MapPropertySource;
+
+/**
+ * Selects the web application type of the engine set with {@code relay.engine}. Both the servlet
+ * and the reactive stack are on the classpath, where Spring Boot starts a servlet application;
+ * the reactive engine has it start a reactive one instead, on the same Undertow server. An
+ * explicit {@code spring.main.web-application-type} still takes precedence.
+ */
+public class RelayEngineEnvironmentPostProcessor implements EnvironmentPostProcessor {
+
+  private static final String WEB_APPLICATION_TYPE = "spring.main.web-application-type";
+
+  @Override
+  public void postProcessEnvironment(
+      ConfigurableEnvironment environment, SpringApplication application) {
+    RelayProperties.Engine engine =
+        Binder.get(environment)
+            .bind("relay.engine", RelayProperties.Engine.class)
+            .orElse(RelayProperties.Engine.SERVLET);
+    if (engine == RelayProperties.Engine.REACTIVE) {
+      environment
+          .getPropertySources()
+          .addLast(
+              new MapPropertySource("relayEngine", Map.of(WEB_APPLICATION_TYPE, "reactive")));
+    }
+  }
+}
@@ -0,0 +1,972 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.config;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+/**
+ * Relay server properties bound from the {@code relay.*} namespace. The context mapping itself
+ * stays in {@code relay.context.mapping}; per-context settings are keyed by the same context, e.g.
+ * {@code relay.routes.[/gh].upstream.read-timeout=30s}.
+ */
+@Data
+@ConfigurationProperties(prefix = "relay")
+public class RelayProperties {
+
+  private static final Route DEFAULT_ROUTE = new Route();
+
+  /** Engine relaying the requests, selected at startup. */
+  private Engine engine = Engine.SERVLET;
+
+  /** Whether to follow redirects returned by the upstream servers. */
+  private boolean followRedirects = false;
+
+  /** Default upstream connection settings, applied to every mapped context. */
+  private Upstream upstream = Upstream.defaults();
+
+  /** HTTP/2 settings of the connections to the upstream servers spoken to over HTTP/2. */
+  private Http2 http2 = new Http2();
+
+  /** Headers relayed between the clients and the upstream servers. */
+  private Headers headers = Headers.defaults();
+
+  /** Compression of response bodies the relay decodes to rewrite. */
+  private Compression compression = new Compression();
+
+  /** Rewriting of upstream URLs in response bodies. */
+  private RewriteUrls rewriteUrls = new RewriteUrls();
+
+  /** Caching of relayed responses. */
+  private Cache cache = new Cache();
+
+  /** Range requests for the response bodies URLs are rewritten in. */
+  private Ranges ranges = new Ranges();
+
+  /** Buffers holding whole bodies, in memory or in temporary files. */
+  private Buffering buffering = new Buffering();
+
+  /** Resolution of the upstream host names, and connects across their addresses. */
+  private Dns dns = new Dns();
+
+  /** Limits on the requests relayed concurrently for each context. */
+  private Concurrency concurrency = new Concurrency();
+
+  /** Coalescing of identical concurrent requests into a single upstream fetch. */
+  private Coalescing coalescing = new Coalescing();
+
+  /** Circuit breakers failing requests fast while an upstream server is failing. */
+  private CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+  /** Retries and hedging of idempotent requests, applied to every mapped context. */
+  private Retry retry = Retry.defaults();
+
+  /** File to load the context mapping from, reloaded when it changes. */
+  private MappingFile mappingFile = new MappingFile();
+
+  /** Per-context settings keyed by the {@code relay.context.mapping} context. */
+  private Map<String, Route> routes = new LinkedHashMap<>();
+
+  /**
+   * Gets the settings of a context.
+   *
+   * @param context the mapped context
+   * @return the settings of the context, with defaults if it has none
+   */
+  public Route routeFor(String context) {
+    return routes.getOrDefault(context, DEFAULT_ROUTE);
+  }
+
+  /**
+   * Gets the maximum number of requests relayed concurrently for a context.
+   *
+   * @param context the mapped context
+   * @return the limit of the context, or zero if it has none
+   */
+  public int maxConcurrentRequestsFor(String context) {
+    return Optional.ofNullable(routeFor(context).getMaxConcurrentRequests())
+        .orElse(concurrency.getMaxRequests());
+  }
+
+  /**
+   * Gets the algorithm setting the concurrency limit of a context.
+   *
+   * @param context the mapped context
+   * @return the algorithm of the context
+   */
+  public Concurrency.Algorithm concurrencyAlgorithmFor(String context) {
+    return Optional.ofNullable(routeFor(context).getConcurrencyAlgorithm())
+        .orElse(concurrency.getAlgorithm());
+  }
+
+  /**
+   * Gets the upstream settings for a context. Settings not overridden by the context fall back to
+   * the defaults.
+   *
+   * @param context the mapped context
+   * @return the effective upstream settings
+   */
+  public Upstream upstreamFor(String context) {
+    return Optional.ofNullable(routes.get(context))
+        .map(Route::getUpstream)
+        .map(overrides -> overrides.withDefaults(upstream))
+        .orElse(upstream);
+  }
+
+  /**
+   * Gets the header lists of a context. Lists not overridden by the context fall back to the
+   * defaults.
+   *
+   * @param context the mapped context
+   * @return the effective header lists
+   */
+  public Headers headersFor(String context) {
+    return Optional.ofNullable(routes.get(context))
+        .map(Route::getHeaders)
+        .map(overrides -> overrides.withDefaults(headers))
+        .orElse(headers);
+  }
+
+  /**
+   * Gets the retry settings of a context. Settings not overridden by the context fall back to the
+   * defaults.
+   *
+   * @param context the mapped context
+   * @return the effective retry settings
+   */
+  public Retry retryFor(String context) {
+    return Optional.ofNullable(routes.get(context))
+        .map(Route::getRetry)
+        .map(overrides -> overrides.withDefaults(retry))
+        .orElse(retry);
+  }
+
+  /**
+   * Gets the size over which the bodies buffered for a context move to temporary files.
+   *
+   * @param context the mapped context
+   * @return the spill threshold of the context
+   */
+  public DataSize spillThresholdFor(String context) {
+    return Optional.ofNullable(routeFor(context).getBufferSpillThreshold())
+        .orElse(buffering.getSpillThreshold());
+  }
+
+  /** Engines the relay can relay requests with. */
+  public enum Engine {
+    /** Blocking servlet engine on Undertow, with one thread per relayed request. */
+    SERVLET,
+    /** Non-blocking reactive engine on Undertow, relaying without holding a thread. */
+    REACTIVE
+  }
+
+  /**
+   * Lists of the headers relayed in each direction. Hop-by-hop headers, and the headers naming
+   * the downstream connection or framing the request body, are never relayed.
+   */
+  @Data
+  public static class Headers {
+
+    /** Downstream request headers relayed to the upstream server. */
+    private HeaderList request = new HeaderList();
+
+    /** Upstream response headers relayed to the client. */
+    private HeaderList response = new HeaderList();
+
+    /**
+     * Creates the default header lists. Every request header is relayed, and the response headers
+     * describing the body and its caching.
+     *
+     * @return the default header lists
+     */
+    static Headers defaults() {
+      Headers defaults = new Headers();
+      defaults.getRequest().setAllow(List.of(HeaderList.ALL));
+      defaults.getRequest().setDeny(List.of());
+      defaults
+          .getResponse()
+          .setAllow(
+              List.of(
+                  "Accept-Ranges",
+                  "Cache-Control",
+                  "Content-Disposition",
+                  "Content-Encoding",
+                  "Content-Type",
+                  "Content-Range",
+                  "Date",
+                  "ETag",
+                  "Expires",
+                  "Last-Modified",
+                  "Strict-Transport-Security",
+                  "Referrer-Policy"));
+      defaults.getResponse().setDeny(List.of());
+      return defaults;
+    }
+
+    /**
+     * Merges these lists with defaults. Unset lists are taken from the defaults.
+     *
+     * @param defaults the default lists
+     * @return the merged lists
+     */
+    Headers withDefaults(Headers defaults) {
+      Headers merged = new Headers();
+      merged.setRequest(request.withDefaults(defaults.getRequest()));
+      merged.setResponse(response.withDefaults(defaults.getResponse()));
+      return merged;
+    }
+  }
+
+  /** Headers relayed in one direction, matched case-insensitively. */
+  @Data
+  public static class HeaderList {
+
+    /** The entry of an allow list allowing every header. */
+    public static final String ALL = "*";
+
+    /** Headers relayed, or {@code *} for every header not denied. */
+    private List<String> allow;
+
+    /** Headers never relayed, even if allowed. */
+    private List<String> deny;
+
+    /**
+     * Merges this list with defaults. Unset lists are taken from the defaults.
+     *
+     * @param defaults the default lists
+     * @return the merged lists
+     */
+    HeaderList withDefaults(HeaderList defaults) {
+      HeaderList merged = new HeaderList();
+      merged.setAllow(Optional.ofNullable(allow).orElse(defaults.getAllow()));
+      merged.setDeny(Optional.ofNullable(deny).orElse(defaults.getDeny()));
+      return merged;
+    }
+  }
+
+  /** HTTP/2 settings shared by the connections to every upstream server. */
+  @Data
+  public static class Http2 {
+
+    /**
+     * Initial flow-control window of each stream, the response data an upstream server may send
+     * ahead of the relay reading it.
+     */
+    private DataSize initialWindowSize = DataSize.ofKilobytes(256);
+  }
+
+  /** Compression settings for response bodies re-encoded by the relay. */
+  @Data
+  public static class Compression {
+
+    /** Whether to compress rewritten response bodies when the client accepts it. */
+    private boolean enabled = true;
+
+    /** Supported encodings in order of preference. */
+    private List<String> encodings = new ArrayList<>(List.of("br", "gzip", "deflate"));
+
+    /** Minimum response size to compress, when the upstream response declares its length. */
+    private DataSize minResponseSize = DataSize.ofBytes(2048);
+
+    /** Compression level for gzip, from 1 (fastest) to 9 (smallest). */
+    private int gzipLevel = 6;
+
+    /** Compression level for deflate, from 1 (fastest) to 9 (smallest). */
+    private int deflateLevel = 6;
+
+    /** Compression quality for brotli, from 0 (fastest) to 11 (smallest). */
+    private int brotliQuality = 4;
+
+    /** Base 2 logarithm of the brotli sliding window size, from 10 to 24. */
+    private int brotliWindow = 22;
+  }
+
+  /** Settings for rewriting upstream URLs in response bodies. */
+  @Data
+  public static class RewriteUrls {
+
+    /**
+     * Maximum size of a compressed body to buffer while scanning it for URLs to rewrite. Bodies
+     * without any URL within the limit are sent as received, without decompressing and
+     * recompressing them. Zero disables the scan.
+     */
+    private DataSize passThroughScanLimit = DataSize.ofKilobytes(256);
+
+    /**
+     * Whether URLs are only rewritten where the structure of the body can hold a link: in the link
+     * attributes and style sheets of HTML, the {@code url()} and {@code @import} values of CSS and
+     * the string values of JSON. Other content types are rewritten anywhere in the body.
+     */
+    private boolean structural = true;
+  }
+
+  /** Settings for caching relayed responses. */
+  @Data
+  public static class Cache {
+
+    /** Whether to cache relayed responses, as a shared cache following RFC 9111. */
+    private boolean enabled = false;
+
+    /** Maximum total size of the cached response bodies. */
+    private DataSize maxSize = DataSize.ofMegabytes(256);
+
+    /** Maximum size of a single cached response body. */
+    private DataSize maxObjectSize = DataSize.ofMegabytes(8);
+
+    /** Storage of the cached response bodies. */
+    private Storage storage = Storage.OFF_HEAP;
+
+    /** Directory of the files backing the cached response bodies with the disk storage. */
+    private Path directory = Path.of(System.getProperty("java.io.tmpdir"), "wd-relay-cache");
+
+    /**
+     * Maximum freshness lifetime of responses without an explicit expiration time, which are
+     * otherwise fresh for a tenth of the time since they were last modified.
+     */
+    private Duration maxHeuristicLifetime = Duration.ofHours(1);
+
+    /** Storage of cached response bodies. */
+    public enum Storage {
+      /** On the Java heap. */
+      HEAP,
+      /** In direct buffers outside the Java heap. */
+      OFF_HEAP,
+      /** In memory-mapped files. */
+      DISK
+    }
+  }
+
+  /**
+   * Settings of range requests for the response bodies URLs are rewritten in. Ranges of other
+   * bodies are requested from the upstream servers as they are. A body URLs are rewritten in no
+   * longer has the byte offsets of the upstream body, so ranges of it are served from the whole
+   * rewritten representation, which is kept for the next ranges of the same resource while the
+   * upstream server validates it. Representations are held in the storage of the response cache.
+   */
+  @Data
+  public static class Ranges {
+
+    /** Whether to serve ranges of the response bodies URLs are rewritten in. */
+    private boolean enabled = true;
+
+    /** Maximum total size of the rewritten representations kept to serve ranges from. */
+    private DataSize maxSize = DataSize.ofMegabytes(256);
+
+    /**
+     * Maximum size of a single rewritten representation. Range requests for larger bodies are
+     * answered with the whole body.
+     */
+    private DataSize maxRepresentationSize = DataSize.ofMegabytes(64);
+  }
+
+  /**
+   * Settings of the buffers holding whole bodies: request bodies kept to be resent, response
+   * bodies captured for the cache, and rewritten representations ranges are cut from. A body is
+   * held in pooled chunks of memory up to the spill threshold of its context, and moves to a
+   * memory-mapped temporary file beyond it, or once the memory budget is used up. Writers wait for
+   * space once the budget of all buffered bytes is used up, which slows down the reading of the
+   * body.
+   */
+  @Data
+  public static class Buffering {
+
+    /** Size of the memory chunks bodies are held in. */
+    private DataSize chunkSize = DataSize.ofKilobytes(16);
+
+    /** Whether the memory chunks are direct buffers outside the Java heap. */
+    private boolean direct = true;
+
+    /** Maximum total size of the idle chunks kept for reuse. */
+    private DataSize maxPooled = DataSize.ofMegabytes(8);
+
+    /** Size over which a body moves to a temporary file, unless its context overrides it. */
+    private DataSize spillThreshold = DataSize.ofMegabytes(1);
+
+    /** Maximum total size of the bodies held in memory, beyond which bodies spill to files. */
+    private DataSize maxMemory = DataSize.ofMegabytes(64);
+
+    /** Maximum total size of the buffered bodies, in memory and in files. */
+    private DataSize maxBuffered = DataSize.ofGigabytes(1);
+
+    /** Maximum time a writer waits for buffer space before the body fails. */
+    private Duration maxWait = Duration.ofSeconds(10);
+
+    /** Directory of the temporary files bodies spill to. */
+    private Path directory = Path.of(System.getProperty("java.io.tmpdir"), "wd-relay-buffers");
+  }
+
+  /**
+   * Settings of the resolution of the upstream host names. Resolved addresses are cached for the
+   * DNS TTL of their upstream server, refreshed in the background while they are in use, and kept
+   * past their TTL when the name server fails. Connects to a host with several addresses race
+   * across them, as described in RFC 8305 (Happy Eyeballs).
+   */
+  @Data
+  public static class Dns {
+
+    /** Whether resolved addresses are cached, rather than looked up for each connection. */
+    private boolean enabled = true;
+
+    /**
+     * Name servers queried directly, as host or host:port, instead of the resolver of the system.
+     */
+    private List<String> servers = new ArrayList<>();
+
+    /** Timeout of a query to the name servers, before trying the next one. */
+    private Duration queryTimeout = Duration.ofSeconds(2);
+
+    /** Time a failed lookup is cached, before the name is looked up again. */
+    private Duration negativeTtl = Duration.ofSeconds(5);
+
+    /** Share of the TTL after which addresses in use are refreshed in the background. */
+    private double refreshAhead = 0.75;
+
+    /** Time past their TTL addresses are still used while the name servers fail. */
+    private Duration staleIfError = Duration.ofMinutes(5);
+
+    /** Maximum number of host names cached. */
+    private int maxEntries = 10_000;
+
+    /** Whether connects to a host with several addresses race across them. */
+    private boolean happyEyeballs = true;
+
+    /** Delay before the connect to the next address starts, while the previous ones are pending. */
+    private Duration connectionAttemptDelay = Duration.ofMillis(250);
+  }
+
+  /**
+   * Settings of the circuit breakers, one per upstream server. A breaker opens once too many of
+   * the recent requests to its server failed or were slow, fails the requests to the server fast
+   * while open, and lets a few probe requests through once it has been open for a while.
+   */
+  @Data
+  public static class CircuitBreaker {
+
+    /** Whether to break the circuit to failing upstream servers. */
+    private boolean enabled = false;
+
+    /** Rolling window the failure and slow-call rates are computed over. */
+    private Duration window = Duration.ofSeconds(10);
+
+    /** Minimum number of requests in the window before the rates can open the breaker. */
+    private int minimumCalls = 20;
+
+    /**
+     * Percentage of failed requests in the window opening the breaker. Requests fail when the
+     * server does not answer or answers with a 5xx status.
+     */
+    private int failureRateThreshold = 50;
+
+    /** Time to the head of the upstream response over which a request is slow. */
+    private Duration slowCallDuration = Duration.ofSeconds(5);
+
+    /** Percentage of slow requests in the window opening the breaker. */
+    private int slowCallRateThreshold = 80;
+
+    /** Time the breaker stays open before letting probe requests through. */
+    private Duration openDuration = Duration.ofSeconds(10);
+
+    /**
+     * Number of probe requests let through a half-open breaker. The breaker closes once they all
+     * succeed, and opens again as soon as one fails or is slow.
+     */
+    private int halfOpenCalls = 5;
+
+    /**
+     * Whether to answer requests failed fast with a stale response from the cache, when one is
+     * cached and its directives allow serving it stale.
+     */
+    private boolean serveStale = false;
+  }
+
+  /**
+   * Settings of the retries and hedged requests of a context. Only requests with an idempotent
+   * method are retried, and retries and hedged requests together are capped by a budget relative
+   * to the requests of the context, so that they cannot pile onto a struggling upstream server.
+   */
+  @Data
+  public static class Retry {
+
+    /** Maximum number of times a request is retried. Zero disables the retries. */
+    private Integer maxRetries;
+
+    /** Methods of the requests that may be retried. Methods that are not idempotent are ignored. */
+    private List<String> methods;
+
+    /**
+     * Upstream response statuses retried, on top of the requests that failed before any response
+     * arrived.
+     */
+    private List<Integer> statuses;
+
+    /** Base backoff before a retry, doubled on each retry and fully jittered. */
+    private Duration backoff;
+
+    /** Maximum backoff before a retry. */
+    private Duration maxBackoff;
+
+    /**
+     * Largest request body held in memory so that the request can be retried. Requests with a
+     * larger body are only failed over while none of it has been sent.
+     */
+    private DataSize maxBodySize;
+
+    /** Ratio of the requests of the context over the last 10 seconds that may be retried. */
+    private Double budgetRatio;
+
+    /** Retries per second allowed on top of the budget ratio, for contexts with little traffic. */
+    private Integer minRetriesPerSecond;
+
+    /**
+     * Whether GET and HEAD requests without a body are hedged: a second request is sent to another
+     * upstream server once the first has not been answered after the hedge delay, and the first
+     * response wins.
+     */
+    private Boolean hedge;
+
+    /** Percentile of the recent upstream latencies of the context used as the hedge delay. */
+    private Double hedgePercentile;
+
+    /** Minimum hedge delay, also used until enough upstream latencies have been recorded. */
+    private Duration hedgeMinDelay;
+
+    /**
+     * Creates the default retry settings.
+     *
+     * @return the default retry settings
+     */
+    static Retry defaults() {
+      Retry defaults = new Retry();
+      defaults.setMaxRetries(0);
+      defaults.setMethods(List.of("GET", "HEAD", "OPTIONS", "PUT", "DELETE"));
+      defaults.setStatuses(List.of(502, 503, 504));
+      defaults.setBackoff(Duration.ofMillis(25));
+      defaults.setMaxBackoff(Duration.ofMillis(250));
+      defaults.setMaxBodySize(DataSize.ofKilobytes(64));
+      defaults.setBudgetRatio(0.2);
+      defaults.setMinRetriesPerSecond(5);
+      defaults.setHedge(false);
+      defaults.setHedgePercentile(95.0);
+      defaults.setHedgeMinDelay(Duration.ofMillis(50));
+      return defaults;
+    }
+
+    /**
+     * Merges these settings with defaults. Unset values are taken from the defaults.
+     *
+     * @param defaults the default settings
+     * @return the merged settings
+     */
+    Retry withDefaults(Retry defaults) {
+      Retry merged = new Retry();
+      merged.setMaxRetries(Optional.ofNullable(maxRetries).orElse(defaults.getMaxRetries()));
+      merged.setMethods(Optional.ofNullable(methods).orElse(defaults.getMethods()));
+      merged.setStatuses(Optional.ofNullable(statuses).orElse(defaults.getStatuses()));
+      merged.setBackoff(Optional.ofNullable(backoff).orElse(defaults.getBackoff()));
+      merged.setMaxBackoff(Optional.ofNullable(maxBackoff).orElse(defaults.getMaxBackoff()));
+      merged.setMaxBodySize(Optional.ofNullable(maxBodySize).orElse(defaults.getMaxBodySize()));
+      merged.setBudgetRatio(Optional.ofNullable(budgetRatio).orElse(defaults.getBudgetRatio()));
+      merged.setMinRetriesPerSecond(
+          Optional.ofNullable(minRetriesPerSecond).orElse(defaults.getMinRetriesPerSecond()));
+      merged.setHedge(Optional.ofNullable(hedge).orElse(defaults.getHedge()));
+      merged.setHedgePercentile(
+          Optional.ofNullable(hedgePercentile).orElse(defaults.getHedgePercentile()));
+      merged.setHedgeMinDelay(
+          Optional.ofNullable(hedgeMinDelay).orElse(defaults.getHedgeMinDelay()));
+      return merged;
+    }
+  }
+
+  /** Settings limiting the requests relayed concurrently. */
+  @Data
+  public static class Concurrency {
+
+    /**
+     * Maximum number of requests relayed concurrently for each context, overridable per context
+     * with {@code relay.routes.[<context>].max-concurrent-requests}. Zero for no limit.
+     */
+    private int maxRequests = 0;
+
+    /**
+     * Maximum time a request over the limit of its context waits for a turn, before it is rejected
+     * with 503 Service Unavailable.
+     */
+    private Duration maxQueueTime = Duration.ofSeconds(1);
+
+    /**
+     * Maximum number of requests waiting for a turn in each context. Requests arriving to a full
+     * queue are rejected right away with 503 Service Unavailable.
+     */
+    private int maxQueueSize = 100;
+
+    /** Time the clients of rejected requests are told to wait before retrying them. */
+    private Duration retryAfter = Duration.ofSeconds(1);
+
+    /**
+     * Algorithm setting the limit of each context, overridable per context with {@code
+     * relay.routes.[<context>].concurrency-algorithm}.
+     */
+    private Algorithm algorithm = Algorithm.FIXED;
+
+    /** Settings of the adaptive limits. */
+    private Adaptive adaptive = new Adaptive();
+
+    /** Algorithms setting the limit of a context. */
+    public enum Algorithm {
+      /** The configured maximum number of requests. */
+      FIXED,
+      /**
+       * Additive increase, multiplicative decrease: the limit grows by one for each request the
+       * upstream server answers in time, and is cut for each request it answers too late or not
+       * at all.
+       */
+      AIMD,
+      /**
+       * The limit follows the ratio of the long-term to the recent upstream latency, shrinking as
+       * requests queue up at the upstream server and growing back as they stop to.
+       */
+      GRADIENT
+    }
+  }
+
+  /**
+   * Settings of the adaptive limits. The maximum number of requests of a context, when set, caps
+   * its adaptive limit.
+   */
+  @Data
+  public static class Adaptive {
+
+    /** Limit a context starts with. */
+    private int initialLimit = 20;
+
+    /** Lowest limit of a context. */
+    private int minLimit = 1;
+
+    /** Highest limit of a context. */
+    private int maxLimit = 1000;
+
+    /** Ratio the AIMD limit is multiplied by when a request is answered too late or not at all. */
+    private double backoffRatio = 0.9;
+
+    /** Time to the head of the upstream response over which AIMD takes a request as too late. */
+    private Duration latencyThreshold = Duration.ofSeconds(5);
+
+    /**
+     * Ratio the recent upstream latency may reach over the long-term one before the gradient limit
+     * shrinks.
+     */
+    private double tolerance = 1.5;
+  }
+
+  /** Settings for coalescing identical concurrent requests. */
+  @Data
+  public static class Coalescing {
+
+    /** Whether identical concurrent GET and HEAD requests share a single upstream fetch. */
+    private boolean enabled = false;
+
+    /**
+     * Maximum time a request waits for the response to the identical request in flight before
+     * relaying the request on its own. Also the time a shared response waits for slow clients.
+     */
+    private Duration maxWait = Duration.ofSeconds(5);
+
+    /**
+     * Size of the start of a shared response body kept for requests joining late. Requests no
+     * longer join once the body exceeds it, and clients lagging behind by more are dropped.
+     */
+    private DataSize maxBufferSize = DataSize.ofMegabytes(1);
+  }
+
+  /** Settings for loading the context mapping from a file. */
+  @Data
+  public static class MappingFile {
+
+    /**
+     * Path of a JSON file mapping each context to its upstream URL, in the same form as {@code
+     * relay.context.mapping}. When set, it replaces the mapping of the property.
+     */
+    private Path path;
+
+    /** Interval to check the file for changes. Zero disables watching it. */
+    private Duration pollInterval = Duration.ofSeconds(5);
+  }
+
+  /** Settings for a single mapped context. */
+  @Data
+  public static class Route {
+
+    /** Upstream connection settings overriding the defaults for this context. */
+    private Upstream upstream = new Upstream();
+
+    /** Weight of the upstream server the context is mapped to, relative to the other targets. */
+    private int weight = 1;
+
+    /** Additional upstream servers sharing the requests of the context with the mapped one. */
+    private List<Target> targets = new ArrayList<>();
+
+    /** Load balancing across the upstream servers of the context. */
+    private LoadBalancing loadBalancing = new LoadBalancing();
+
+    /** Maximum number of requests relayed concurrently for this context, zero for no limit. */
+    private Integer maxConcurrentRequests;
+
+    /** Algorithm setting the concurrency limit of this context. */
+    private Concurrency.Algorithm concurrencyAlgorithm;
+
+    /** Header lists overriding the defaults for this context. */
+    private Headers headers = new Headers();
+
+    /** Retry settings overriding the defaults for this context. */
+    private Retry retry = new Retry();
+
+    /**
+     * JSON pointers of the values URLs are rewritten in, for the JSON response bodies of this
+     * context. Strings at or within the values pointed to are rewritten, and a {@code *} segment
+     * matches any member or element. Empty rewrites every string value.
+     */
+    private List<String> rewriteJsonPointers = new ArrayList<>();
+
+    /** Size over which the bodies buffered for this context move to temporary files. */
+    private DataSize bufferSpillThreshold;
+  }
+
+  /** An additional upstream server of a mapped context. */
+  @Data
+  public static class Target {
+
+    /** URL of the upstream server. */
+    private String url;
+
+    /** Weight of the upstream server, relative to the other targets of the context. */
+    private int weight = 1;
+  }
+
+  /** Load balancing settings of a mapped context. */
+  @Data
+  public static class LoadBalancing {
+
+    /** Policy selecting the upstream server of each request. */
+    private Policy policy = Policy.ROUND_ROBIN;
+
+    /** Number of consecutive 5xx responses or connect failures that eject a server. */
+    private int consecutiveFailures = 5;
+
+    /** Duration of the first ejection of a server, multiplied on each consecutive ejection. */
+    private Duration baseEjectionTime = Duration.ofSeconds(30);
+
+    /** Maximum duration of an ejection. */
+    private Duration maxEjectionTime = Duration.ofMinutes(5);
+
+    /** Maximum percentage of the servers of the context that can be ejected at once. */
+    private int maxEjectionPercent = 50;
+
+    /** Window over which a server recovered from an ejection ramps up to its full weight. */
+    private Duration slowStart = Duration.ofSeconds(30);
+
+    /** Policies selecting the upstream server of a request. */
+    public enum Policy {
+      /** Weighted round-robin. */
+      ROUND_ROBIN,
+      /** The server with the fewest outstanding requests relative to its weight. */
+      LEAST_OUTSTANDING,
+      /** The less loaded of two servers picked at random by weight. */
+      POWER_OF_TWO_CHOICES
+    }
+  }
+
+  /** Upstream connection pool settings. */
+  @Data
+  public static class Upstream {
+
+    /** Maximum number of pooled connections across all upstream servers. */
+    private Integer maxConnectionsTotal;
+
+    /** Maximum number of pooled connections to a single upstream server. */
+    private Integer maxConnectionsPerRoute;
+
+    /** Timeout for establishing a connection to the upstream server. */
+    private Duration connectTimeout;
+
+    /** Timeout for waiting on upstream response data. */
+    private Duration readTimeout;
+
+    /** Timeout for leasing a connection from the pool. */
+    private Duration connectionRequestTimeout;
+
+    /** Maximum lifetime of a pooled connection, regardless of activity. */
+    private Duration timeToLive;
+
+    /** Idle time after which pooled connections are evicted. */
+    private Duration idleTimeout;
+
+    /** Inactivity period after which a pooled connection is validated before reuse. */
+    private Duration validateAfterInactivity;
+
+    /** Protocol spoken to the upstream server. */
+    private Protocol protocol;
+
+    /**
+     * Maximum number of requests multiplexed at once over the HTTP/2 connections to the upstream
+     * server. Requests over the limit wait for a stream as long as the lease timeout allows.
+     */
+    private Integer maxConcurrentStreams;
+
+    /** Time the resolved addresses of the upstream server are cached. */
+    private Duration dnsTtl;
+
+    /**
+     * TLS protocol versions offered to the upstream server, in order of preference. Versions the
+     * TLS provider does not support are left out.
+     */
+    private List<String> tlsProtocols;
+
+    /**
+     * TLS cipher suites offered to the upstream server, in order of preference. Suites the TLS
+     * provider does not support are left out. Empty to offer the provider defaults.
+     */
+    private List<String> tlsCipherSuites;
+
+    /**
+     * TLS provider of the upstream connections: {@code jdk}, {@code openssl} for an
+     * OpenSSL-backed provider found on the class path, or the name of a registered security
+     * provider. Providers that are not available fall back to the JDK one.
+     */
+    private String tlsProvider;
+
+    /**
+     * Maximum number of TLS sessions cached for resumption, shared by the upstream servers with
+     * the same TLS settings. 0 for no limit.
+     */
+    private Integer tlsSessionCacheSize;
+
+    /** Time a cached TLS session can be resumed. */
+    private Duration tlsSessionTimeout;
+
+    /** Revocation checking of the upstream server certificate. */
+    private Revocation tlsRevocation;
+
+    /**
+     * Creates the default upstream settings.
+     *
+     * @return the default upstream settings
+     */
+    static Upstream defaults() {
+      Upstream defaults = new Upstream();
+      defaults.setMaxConnectionsTotal(200);
+      defaults.setMaxConnectionsPerRoute(50);
+      defaults.setConnectTimeout(Duration.ofSeconds(10));
+      defaults.setReadTimeout(Duration.ofSeconds(10));
+      defaults.setConnectionRequestTimeout(Duration.ofSeconds(10));
+      defaults.setTimeToLive(Duration.ofMinutes(5));
+      defaults.setIdleTimeout(Duration.ofSeconds(30));
+      defaults.setValidateAfterInactivity(Duration.ofSeconds(2));
+      defaults.setProtocol(Protocol.HTTP_1_1);
+      defaults.setMaxConcurrentStreams(100);
+      defaults.setDnsTtl(Duration.ofSeconds(30));
+      defaults.setTlsProtocols(List.of("TLSv1.3", "TLSv1.2"));
+      defaults.setTlsCipherSuites(List.of());
+      defaults.setTlsProvider("jdk");
+      defaults.setTlsSessionCacheSize(1000);
+      defaults.setTlsSessionTimeout(Duration.ofHours(24));
+      defaults.setTlsRevocation(Revocation.NONE);
+      return defaults;
+    }
+
+    /**
+     * Merges these settings with defaults. Unset values are taken from the defaults.
+     *
+     * @param defaults the default settings
+     * @return the merged settings
+     */
+    Upstream withDefaults(Upstream defaults) {
+      Upstream merged = new Upstream();
+      merged.setMaxConnectionsTotal(
+          Optional.ofNullable(maxConnectionsTotal).orElse(defaults.getMaxConnectionsTotal()));
+      merged.setMaxConnectionsPerRoute(
+          Optional.ofNullable(maxConnectionsPerRoute)
+              .orElse(defaults.getMaxConnectionsPerRoute()));
+      merged.setConnectTimeout(
+          Optional.ofNullable(connectTimeout).orElse(defaults.getConnectTimeout()));
+      merged.setReadTimeout(Optional.ofNullable(readTimeout).orElse(defaults.getReadTimeout()));
+      merged.setConnectionRequestTimeout(
+          Optional.ofNullable(connectionRequestTimeout)
+              .orElse(defaults.getConnectionRequestTimeout()));
+      merged.setTimeToLive(Optional.ofNullable(timeToLive).orElse(defaults.getTimeToLive()));
+      merged.setIdleTimeout(Optional.ofNullable(idleTimeout).orElse(defaults.getIdleTimeout()));
+      merged.setValidateAfterInactivity(
+          Optional.ofNullable(validateAfterInactivity)
+              .orElse(defaults.getValidateAfterInactivity()));
+      merged.setProtocol(Optional.ofNullable(protocol).orElse(defaults.getProtocol()));
+      merged.setMaxConcurrentStreams(
+          Optional.ofNullable(maxConcurrentStreams).orElse(defaults.getMaxConcurrentStreams()));
+      merged.setDnsTtl(Optional.ofNullable(dnsTtl).orElse(defaults.getDnsTtl()));
+      merged.setTlsProtocols(Optional.ofNullable(tlsProtocols).orElse(defaults.getTlsProtocols()));
+      merged.setTlsCipherSuites(
+          Optional.ofNullable(tlsCipherSuites).orElse(defaults.getTlsCipherSuites()));
+      merged.setTlsProvider(Optional.ofNullable(tlsProvider).orElse(defaults.getTlsProvider()));
+      merged.setTlsSessionCacheSize(
+          Optional.ofNullable(tlsSessionCacheSize).orElse(defaults.getTlsSessionCacheSize()));
+      merged.setTlsSessionTimeout(
+          Optional.ofNullable(tlsSessionTimeout).orElse(defaults.getTlsSessionTimeout()));
+      merged.setTlsRevocation(
+          Optional.ofNullable(tlsRevocation).orElse(defaults.getTlsRevocation()));
+      return merged;
+    }
+
+    /** Protocols the relay can speak to an upstream server. */
+    public enum Protocol {
+      /** HTTP/1.1, with a pooled connection for each request in flight. */
+      HTTP_1_1,
+      /**
+       * HTTP/2, multiplexing the requests over a few connections. It is negotiated with ALPN over
+       * TLS, falling back to HTTP/1.1 when the server does not select it, and spoken with prior
+       * knowledge (h2c) in clear text.
+       */
+      HTTP_2
+    }
+
+    /** Revocation checking of the upstream server certificates. */
+    public enum Revocation {
+      /** The certificates are not checked for revocation. */
+      NONE,
+      /**
+       * The server certificate is checked with the OCSP response stapled by the server, or
+       * fetched from the OCSP responder, and accepted when its status cannot be determined.
+       */
+      SOFT_FAIL,
+      /**
+       * The server certificate is checked with the OCSP response stapled by the server, or
+       * fetched from the OCSP responder, falling back to the CRLs, and rejected when its status
+       * cannot be determined.
+       */
+      STRICT
+    }
+  }
+}
@@ -0,0 +1,466 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.config;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import javax.naming.Context;
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hc.client5.http.DnsResolver;
+import org.apache.hc.core5.http.HttpHost;
+
+/**
+ * Resolves the upstream host names, caching the addresses for the DNS TTL of the upstream server.
+ * Addresses in use are refreshed in the background before they expire, so that requests rarely
+ * wait for a lookup, and concurrent lookups of the same name are shared. When a lookup fails, the
+ * addresses resolved before are used for a while past their TTL. Names are looked up with the
+ * resolver of the system, or by querying the configured name servers directly.
+ */
+@Slf4j
+public class UpstreamDnsResolver implements DnsResolver {
+
+  // Literal IPv4 and IPv6 addresses, which are not looked up
+  private static final Pattern ADDRESS_LITERAL = Pattern.compile("[0-9.]+|.*:.*");
+
+  private static final int MAX_CNAME_HOPS = 8;
+
+  private final UpstreamRouteSettings routeSettings;
+  private final boolean enabled;
+  private final long negativeTtl;
+  private final double refreshAhead;
+  private final long staleIfError;
+  private final Lookup lookup;
+  private final Ticker ticker;
+  private final Cache<String, Entry> entries;
+  private final ConcurrentHashMap<String, CompletableFuture<Entry>> lookups =
+      new ConcurrentHashMap<>();
+  private final Executor refresher;
+  private final Counter hits;
+  private final Counter misses;
+  private final Counter stale;
+  private final Timer resolved;
+  private final Timer failed;
+
+  /**
+   * Constructor for the UpstreamDnsResolver.
+   *
+   * @param routeSettings the upstream settings, holding the DNS TTL of each upstream server
+   * @param settings the resolution settings
+   * @param meterRegistry the meter registry
+   */
+  public UpstreamDnsResolver(
+      UpstreamRouteSettings routeSettings,
+      RelayProperties.Dns settings,
+      MeterRegistry meterRegistry) {
+    this(routeSettings, settings, lookupOf(settings), meterRegistry);
+  }
+
+  /**
+   * Constructor for the UpstreamDnsResolver, looking up the host names with the given lookup
+   * rather than the one the settings select.
+   *
+   * @param routeSettings the upstream settings, holding the DNS TTL of each upstream server
+   * @param settings the resolution settings
+   * @param lookup the lookup of the addresses of a host name
+   * @param meterRegistry the meter registry
+   */
+  public UpstreamDnsResolver(
+      UpstreamRouteSettings routeSettings,
+      RelayProperties.Dns settings,
+      Lookup lookup,
+      MeterRegistry meterRegistry) {
+    this(routeSettings, settings, lookup, Ticker.systemTicker(), newRefresher(), meterRegistry);
+  }
+
+  /**
+   * Constructor for the UpstreamDnsResolver, reading the time from the given ticker and refreshing
+   * the addresses on the given executor.
+   *
+   * @param routeSettings the upstream settings, holding the DNS TTL of each upstream server
+   * @param settings the resolution settings
+   * @param lookup the lookup of the addresses of a host name
+   * @param ticker the source of the time, in nanoseconds
+   * @param refresher the executor of the refreshes in the background
+   * @param meterRegistry the meter registry
+   */
+  UpstreamDnsResolver(
+      UpstreamRouteSettings routeSettings,
+      RelayProperties.Dns settings,
+      Lookup lookup,
+      Ticker ticker,
+      Executor refresher,
+      MeterRegistry meterRegistry) {
+    this.routeSettings = routeSettings;
+    this.enabled = settings.isEnabled();
+    this.negativeTtl = settings.getNegativeTtl().toNanos();
+    this.refreshAhead = settings.getRefreshAhead();
+    this.staleIfError = settings.getStaleIfError().toNanos();
+    this.lookup = lookup;
+    this.ticker = ticker;
+    this.entries = Caffeine.newBuilder().maximumSize(settings.getMaxEntries()).build();
+    this.refresher = refresher;
+    this.hits = cacheCounter(meterRegistry, "hit");
+    this.misses = cacheCounter(meterRegistry, "miss");
+    this.stale = cacheCounter(meterRegistry, "stale");
+    this.resolved = lookupTimer(meterRegistry, "success");
+    this.failed = lookupTimer(meterRegistry, "failure");
+  }
+
+  /**
+   * Gets the lookup the settings select: the resolver of the system, or the configured name
+   * servers queried directly.
+   *
+   * @param settings the resolution settings
+   * @return the lookup
+   */
+  private static Lookup lookupOf(RelayProperties.Dns settings) {
+    if (settings.getServers().isEmpty()) {
+      return InetAddress::getAllByName;
+    }
+    log.info("Resolving upstream host names with name servers {}", settings.getServers());
+    return new NameServerLookup(settings.getServers(), settings.getQueryTimeout());
+  }
+
+  private static ExecutorService newRefresher() {
+    AtomicInteger threads = new AtomicInteger();
+    return Executors.newCachedThreadPool(
+        task -> {
+          Thread thread = new Thread(task, "relay-dns-" + threads.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  private static Counter cacheCounter(MeterRegistry meterRegistry, String result) {
+    return Counter.builder("relay.dns.cache")
+        .description("Upstream host names resolved from the cache, or not")
+        .tag("result", result)
+        .register(meterRegistry);
+  }
+
+  private static Timer lookupTimer(MeterRegistry meterRegistry, String result) {
+    return Timer.builder("relay.dns.lookups")
+        .description("Lookups of the upstream host names from the name servers")
+        .tag("result", result)
+        .publishPercentileHistogram()
+        .register(meterRegistry);
+  }
+
+  /**
+   * Resolves a host name to its addresses, from the cache if they are fresh.
+   *
+   * @param host the host name
+   * @return the addresses, in the order the name servers returned them
+   * @throws UnknownHostException if the name cannot be resolved
+   */
+  @Override
+  public InetAddress[] resolve(String host) throws UnknownHostException {
+    if (ADDRESS_LITERAL.matcher(host).matches()) {
+      return InetAddress.getAllByName(host);
+    }
+    if (!enabled) {
+      return lookup.resolve(host);
+    }
+    String name = host.toLowerCase(Locale.ROOT);
+    long now = ticker.read();
+    Entry entry = entries.getIfPresent(name);
+    if (entry == null || now - entry.expiresAt >= 0) {
+      misses.increment();
+      entry = lookUp(name, entry);
+    } else {
+      hits.increment();
+      if (entry.addresses != null
+          && now - entry.refreshAt >= 0
+          && entry.refreshing.compareAndSet(false, true)) {
+        Entry current = entry;
+        refresher.execute(() -> refresh(name, current));
+      }
+    }
+    if (entry.addresses == null) {
+      throw new UnknownHostException(entry.failure);
+    }
+    return entry.addresses.clone();
+  }
+
+  @Override
+  public String resolveCanonicalHostname(String host) throws UnknownHostException {
+    return host;
+  }
+
+  /** Stops the refreshes in the background. */
+  public void close() {
+    if (refresher instanceof ExecutorService executor) {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Looks up a name the cache has no fresh addresses of, sharing the lookup with the concurrent
+   * resolutions of the name.
+   *
+   * @param name the host name
+   * @param previous the expired entry of the name, may be null
+   * @return the new entry
+   */
+  private Entry lookUp(String name, Entry previous) {
+    CompletableFuture<Entry> mine = new CompletableFuture<>();
+    CompletableFuture<Entry> shared = lookups.putIfAbsent(name, mine);
+    if (shared != null) {
+      return shared.join();
+    }
+    try {
+      Entry entry = query(name, previous);
+      mine.complete(entry);
+      return entry;
+    } catch (RuntimeException e) {
+      mine.completeExceptionally(e);
+      throw e;
+    } finally {
+      lookups.remove(name, mine);
+    }
+  }
+
+  /**
+   * Refreshes the addresses of a name in the background. The addresses are kept as they are if the
+   * lookup fails, until they expire.
+   *
+   * @param name the host name
+   * @param current the entry being refreshed
+   */
+  private void refresh(String name, Entry current) {
+    long start = ticker.read();
+    try {
+      InetAddress[] addresses = lookup.resolve(name);
+      resolved.record(ticker.read() - start, TimeUnit.NANOSECONDS);
+      entries.put(name, Entry.resolved(addresses, ticker.read(), ttlOf(name), refreshAhead));
+      log.debug("Refreshed the addresses of {}: {}", name, List.of(addresses));
+    } catch (UnknownHostException | RuntimeException e) {
+      failed.record(ticker.read() - start, TimeUnit.NANOSECONDS);
+      log.warn("Failed to refresh the addresses of {}: {}", name, e.getMessage());
+    }
+  }
+
+  /**
+   * Queries the addresses of a name. When the query fails, the addresses resolved before are used
+   * again for the negative TTL, as long as they expired less than the stale-if-error time ago.
+   *
+   * @param name the host name
+   * @param previous the expired entry of the name, may be null
+   * @return the new entry
+   */
+  private Entry query(String name, Entry previous) {
+    long start = ticker.read();
+    try {
+      InetAddress[] addresses = lookup.resolve(name);
+      long now = ticker.read();
+      resolved.record(now - start, TimeUnit.NANOSECONDS);
+      Entry entry = Entry.resolved(addresses, now, ttlOf(name), refreshAhead);
+      entries.put(name, entry);
+      log.debug("Resolved {} to {}", name, List.of(addresses));
+      return entry;
+    } catch (UnknownHostException | RuntimeException e) {
+      long now = ticker.read();
+      failed.record(now - start, TimeUnit.NANOSECONDS);
+      Entry entry;
+      if (previous != null
+          && previous.addresses != null
+          && now - (previous.staleFrom + staleIfError) < 0) {
+        stale.increment();
+        log.warn("Failed to resolve {}, using its expired addresses: {}", name, e.getMessage());
+        entry = previous.retryAfter(now + negativeTtl);
+      } else {
+        log.warn("Failed to resolve {}: {}", name, e.getMessage());
+        entry = Entry.failed(e.getMessage(), now + negativeTtl);
+      }
+      entries.put(name, entry);
+      return entry;
+    }
+  }
+
+  /**
+   * Gets the DNS TTL of a host name, the shortest of the upstream servers on the host.
+   *
+   * @param name the host name
+   * @return the TTL, in nanoseconds
+   */
+  private long ttlOf(String name) {
+    Duration ttl = null;
+    for (var target : routeSettings.targets().entrySet()) {
+      HttpHost host = target.getKey();
+      Duration hostTtl = target.getValue().getDnsTtl();
+      if (host.getHostName().equals(name) && (ttl == null || hostTtl.compareTo(ttl) < 0)) {
+        ttl = hostTtl;
+      }
+    }
+    return (ttl != null ? ttl : routeSettings.defaults().getDnsTtl()).toNanos();
+  }
+
+  /** The addresses of a host name, or the failure to resolve it. */
+  private static final class Entry {
+    private final InetAddress[] addresses;
+    private final String failure;
+    private final long refreshAt;
+    private final long expiresAt;
+    private final long staleFrom;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+
+    private Entry(
+        InetAddress[] addresses, String failure, long refreshAt, long expiresAt, long staleFrom) {
+      this.addresses = addresses;
+      this.failure = failure;
+      this.refreshAt = refreshAt;
+      this.expiresAt = expiresAt;
+      this.staleFrom = staleFrom;
+    }
+
+    static Entry resolved(InetAddress[] addresses, long now, long ttl, double refreshAhead) {
+      long expiresAt = now + ttl;
+      return new Entry(addresses, null, now + (long) (ttl * refreshAhead), expiresAt, expiresAt);
+    }
+
+    static Entry failed(String failure, long expiresAt) {
+      return new Entry(null, failure, expiresAt, expiresAt, expiresAt);
+    }
+
+    Entry retryAfter(long expiresAt) {
+      return new Entry(addresses, null, expiresAt, expiresAt, staleFrom);
+    }
+  }
+
+  /** Looks up the addresses of a host name. */
+  @FunctionalInterface
+  public interface Lookup {
+
+    /**
+     * Looks up the addresses of a host name.
+     *
+     * @param host the host name
+     * @return the addresses
+     * @throws UnknownHostException if the name cannot be resolved
+     */
+    InetAddress[] resolve(String host) throws UnknownHostException;
+  }
+
+  /**
+   * Looks up A and AAAA records from the configured name servers, following CNAME records. The
+   * hosts file and the search domains of the system are not consulted.
+   */
+  static final class NameServerLookup implements Lookup {
+    private final Hashtable<String, String> environment = new Hashtable<>();
+
+    /**
+     * Constructor for the NameServerLookup.
+     *
+     * @param servers the name servers, as host or host:port
+     * @param queryTimeout the timeout of a query to a name server
+     */
+    NameServerLookup(List<String> servers, Duration queryTimeout) {
+      List<String> urls = new ArrayList<>(servers.size());
+      for (String server : servers) {
+        urls.add("dns://" + server);
+      }
+      environment.put(Context.INITIAL_CONTEXT_FACTORY, "com.sun.jndi.dns.DnsContextFactory");
+      environment.put(Context.PROVIDER_URL, String.join(" ", urls));
+      environment.put("com.sun.jndi.dns.timeout.initial", Long.toString(queryTimeout.toMillis()));
+      environment.put("com.sun.jndi.dns.timeout.retries", "1");
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+      String name = host;
+      try {
+        DirContext context = new InitialDirContext(environment);
+        try {
+          for (int hop = 0; hop <= MAX_CNAME_HOPS; hop++) {
+            // Queried one type at a time, as name servers may refuse queries for any type
+            List<InetAddress> addresses = new ArrayList<>();
+            addAddresses(host, query(context, name, "A"), addresses);
+            addAddresses(host, query(context, name, "AAAA"), addresses);
+            if (!addresses.isEmpty()) {
+              return addresses.toArray(new InetAddress[0]);
+            }
+            Attribute alias = query(context, name, "CNAME");
+            if (alias == null || alias.size() == 0) {
+              break;
+            }
+            name = alias.get(0).toString();
+          }
+        } finally {
+          context.close();
+        }
+      } catch (NamingException e) {
+        UnknownHostException failure = new UnknownHostException(host + ": " + e.getMessage());
+        failure.initCause(e);
+        throw failure;
+      }
+      throw new UnknownHostException(host + ": no address records");
+    }
+
+    private static Attribute query(DirContext context, String name, String type)
+        throws NamingException {
+      try {
+        return context.getAttributes(name, new String[] {type}).get(type);
+      } catch (NameNotFoundException e) {
+        return null;
+      }
+    }
+
+    private static void addAddresses(String host, Attribute records, List<InetAddress> addresses)
+        throws NamingException, UnknownHostException {
+      if (records == null) {
+        return;
+      }
+      NamingEnumeration<?> values = records.getAll();
+      while (values.hasMore()) {
+        // Literal addresses are parsed, not looked up
+        byte[] address = InetAddress.getByName(values.next().toString()).getAddress();
+        addresses.add(InetAddress.getByAddress(host, address));
+      }
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.config;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import org.apache.hc.client5.http.HttpRoute;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.URIScheme;
+
+/**
+ * Resolves the effective upstream settings for an upstream server. Settings are configured per
+ * mapped context and looked up by the upstream server the context is mapped to. They are resolved
+ * again whenever the context mapping is reloaded.
+ */
+public final class UpstreamRouteSettings {
+
+  private final RelayProperties relayProperties;
+  private final RelayProperties.Upstream defaults;
+  private volatile Map<HttpHost, RelayProperties.Upstream> settingsByTarget;
+
+  /**
+   * Constructor for the UpstreamRouteSettings.
+   *
+   * @param upstreamUrls the mapped context of each upstream URL
+   * @param relayProperties the relay properties
+   */
+  public UpstreamRouteSettings(Map<String, String> upstreamUrls, RelayProperties relayProperties) {
+    this.relayProperties = relayProperties;
+    this.defaults = relayProperties.getUpstream();
+    update(upstreamUrls);
+  }
+
+  /**
+   * Resolves the settings of the upstream servers of a context mapping, replacing the current
+   * ones.
+   *
+   * @param upstreamUrls the mapped context of each upstream URL
+   */
+  public void update(Map<String, String> upstreamUrls) {
+    Map<HttpHost, RelayProperties.Upstream> settings = new LinkedHashMap<>();
+    upstreamUrls.forEach(
+        (url, context) ->
+            settings.putIfAbsent(
+                targetOf(URI.create(url)), relayProperties.upstreamFor(context)));
+    this.settingsByTarget = Collections.unmodifiableMap(settings);
+  }
+
+  /**
+   * Gets the default upstream settings.
+   *
+   * @return the default upstream settings
+   */
+  public RelayProperties.Upstream defaults() {
+    return defaults;
+  }
+
+  /**
+   * Gets the upstream settings for an upstream server. Unmapped servers use the defaults.
+   *
+   * @param target the upstream server
+   * @return the upstream settings
+   */
+  public RelayProperties.Upstream forTarget(HttpHost target) {
+    return settingsByTarget.getOrDefault(target, defaults);
+  }
+
+  /**
+   * Gets the upstream settings for all mapped upstream servers.
+   *
+   * @return the upstream settings keyed by upstream server
+   */
+  public Map<HttpHost, RelayProperties.Upstream> targets() {
+    return settingsByTarget;
+  }
+
+  /**
+   * Gets the upstream server of a URI. The scheme and host are lower-cased and the default port
+   * of the scheme is filled in, the same way the connection pool keys its routes.
+   *
+   * @param uri the URI
+   * @return the upstream server
+   */
+  public static HttpHost targetOf(URI uri) {
+    String scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+    int port = uri.getPort();
+    if (port < 0) {
+      port = URIScheme.HTTPS.same(scheme) ? 443 : 80;
+    }
+    return new HttpHost(scheme, uri.getHost().toLowerCase(Locale.ROOT), port);
+  }
+
+  /**
+   * Gets the connection pool route of an upstream server.
+   *
+   * @param target the upstream server
+   * @return the route
+   */
+  public static HttpRoute routeOf(HttpHost target) {
+    return new HttpRoute(target, null, URIScheme.HTTPS.same(target.getSchemeName()));
+  }
+}
@@ -0,0 +1,508 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+
+package com.wilddiary.ws.config;
+
+import com.wilddiary.ws.config.RelayProperties.Upstream.Revocation;
+import com.wilddiary.ws.services.metrics.RelayMetrics;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Provider;
+import java.security.Security;
+import java.security.cert.CertPathValidator;
+import java.security.cert.PKIXBuilderParameters;
+import java.security.cert.PKIXRevocationChecker;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.net.ssl.CertPathTrustManagerParameters;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hc.client5.http.socket.LayeredConnectionSocketFactory;
+import org.apache.hc.client5.http.ssl.DefaultClientTlsStrategy;
+import org.apache.hc.client5.http.ssl.HttpsSupport;
+import org.apache.hc.client5.http.ssl.SSLConnectionSocketFactory;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.nio.ssl.TlsStrategy;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.net.NamedEndpoint;
+import org.apache.hc.core5.reactor.ssl.SSLBufferMode;
+import org.apache.hc.core5.reactor.ssl.TlsDetails;
+import org.apache.hc.core5.reactor.ssl.TransportSecurityLayer;
+import org.apache.hc.core5.ssl.SSLInitializationException;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+
+/**
+ * TLS of the upstream connections, with the settings of the context mapped to each upstream
+ * server. The upstream servers sharing the same TLS settings share a TLS context, whose session
+ * cache lets new connections resume the sessions of earlier ones with an abbreviated handshake.
+ * Each handshake is timed under the upstream server it is for, and tagged with whether it resumed
+ * a session.
+ */
+@Slf4j
+public class UpstreamTls {
+
+  private static final String STATUS_REQUEST_PROPERTY =
+      "jdk.tls.client.enableStatusRequestExtension";
+
+  // Security providers backed by OpenSSL, by class name, in order of preference
+  private static final List<String> OPENSSL_PROVIDERS =
+      List.of("org.conscrypt.OpenSSLProvider", "org.wildfly.openssl.OpenSSLProvider");
+
+  private final UpstreamRouteSettings routeSettings;
+  private final RelayMetrics relayMetrics;
+  private final Map<TlsSettings, TlsContext> contexts = new ConcurrentHashMap<>();
+  private final LayeredConnectionSocketFactory socketFactory = new RoutingSocketFactory();
+  private final TlsStrategy tlsStrategy = new RoutingTlsStrategy();
+
+  /**
+   * Constructor for the UpstreamTls. The TLS contexts of the default settings and of the mapped
+   * upstream servers are created upfront, so that invalid settings fail at startup. When
+   * revocation checking is configured, the JVM-wide OCSP status request extension is enabled, for
+   * the servers to staple the OCSP responses of their certificates, unless its system property is
+   * already set.
+   *
+   * @param routeSettings the upstream settings
+   * @param relayMetrics the relay metrics
+   */
+  public UpstreamTls(UpstreamRouteSettings routeSettings, RelayMetrics relayMetrics) {
+    this.routeSettings = routeSettings;
+    this.relayMetrics = relayMetrics;
+    Set<TlsSettings> configured = new HashSet<>();
+    configured.add(TlsSettings.of(routeSettings.defaults()));
+    routeSettings.targets().values().forEach(settings -> configured.add(TlsSettings.of(settings)));
+    if (configured.stream().anyMatch(settings -> settings.revocation() != Revocation.NONE)
+        && System.getProperty(STATUS_REQUEST_PROPERTY) == null) {
+      System.setProperty(STATUS_REQUEST_PROPERTY, "true");
+      log.info("Enabled the OCSP status request extension for upstream revocation checking");
+    }
+    configured.forEach(this::contextFor);
+  }
+
+  /**
+   * Gets the socket factory layering TLS over the upstream connections of the HTTP/1.1 client.
+   *
+   * @return the socket factory
+   */
+  public LayeredConnectionSocketFactory socketFactory() {
+    return socketFactory;
+  }
+
+  /**
+   * Gets the strategy upgrading the upstream connections of the HTTP/2 client to TLS.
+   *
+   * @return the TLS strategy
+   */
+  public TlsStrategy tlsStrategy() {
+    return tlsStrategy;
+  }
+
+  private TlsContext contextFor(String hostname, int port) {
+    return contextFor(TlsSettings.of(routeSettings.forTarget(targetOf(hostname, port))));
+  }
+
+  private TlsContext contextFor(TlsSettings settings) {
+    return contexts.computeIfAbsent(settings, TlsContext::new);
+  }
+
+  /**
+   * Gets the upstream server of a TLS connection, keyed the way the upstream settings are.
+   *
+   * @param hostname the upstream host
+   * @param port the upstream port, negative for the default one
+   * @return the upstream server
+   */
+  private static HttpHost targetOf(String hostname, int port) {
+    return new HttpHost(
+        URIScheme.HTTPS.id, hostname.toLowerCase(Locale.ROOT), port < 0 ? 443 : port);
+  }
+
+  /**
+   * Records a completed handshake. A session created before the handshake started was resumed
+   * from the session cache, the others were negotiated by the handshake.
+   *
+   * @param hostname the upstream host
+   * @param port the upstream port
+   * @param session the session of the handshake
+   * @param start the time the handshake started, in {@link System#nanoTime()} units
+   * @param startMillis the time the handshake started, in epoch milliseconds
+   */
+  private void recordHandshake(
+      String hostname, int port, SSLSession session, long start, long startMillis) {
+    HttpHost target = targetOf(hostname, port);
+    String upstream =
+        routeSettings.targets().containsKey(target) ? target.toURI() : RelayMetrics.OTHER;
+    boolean resumed = session.getCreationTime() < startMillis;
+    relayMetrics.recordHandshake(upstream, System.nanoTime() - start, resumed);
+    log.debug(
+        "{} TLS handshake with {} using {} {}",
+        resumed ? "Resumed" : "Full",
+        target,
+        session.getProtocol(),
+        session.getCipherSuite());
+  }
+
+  /**
+   * The TLS settings of an upstream server that TLS contexts are created for.
+   *
+   * @param protocols the protocol versions, in order of preference
+   * @param cipherSuites the cipher suites in order of preference, empty for the provider defaults
+   * @param provider the TLS provider
+   * @param sessionCacheSize the maximum number of cached sessions
+   * @param sessionTimeout the time a cached session can be resumed
+   * @param revocation the revocation checking of the server certificates
+   */
+  private record TlsSettings(
+      List<String> protocols,
+      List<String> cipherSuites,
+      String provider,
+      int sessionCacheSize,
+      Duration sessionTimeout,
+      Revocation revocation) {
+
+    private static TlsSettings of(RelayProperties.Upstream settings) {
+      return new TlsSettings(
+          List.copyOf(settings.getTlsProtocols()),
+          List.copyOf(settings.getTlsCipherSuites()),
+          settings.getTlsProvider(),
+          settings.getTlsSessionCacheSize(),
+          settings.getTlsSessionTimeout(),
+          settings.getTlsRevocation());
+    }
+  }
+
+  /** A TLS context, with the socket factory and TLS strategy of the clients using it. */
+  private final class TlsContext {
+
+    private final SSLConnectionSocketFactory socketFactory;
+    private final TlsStrategy tlsStrategy;
+
+    private TlsContext(TlsSettings settings) {
+      SSLContext sslContext;
+      try {
+        Provider provider = provider(settings.provider());
+        sslContext =
+            provider == null
+                ? SSLContext.getInstance("TLS")
+                : SSLContext.getInstance("TLS", provider);
+        sslContext.init(null, trustManagers(settings.revocation()), null);
+      } catch (GeneralSecurityException e) {
+        throw new SSLInitializationException("Cannot create the upstream TLS context", e);
+      }
+      SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+      sessionContext.setSessionCacheSize(settings.sessionCacheSize());
+      sessionContext.setSessionTimeout(
+          (int) Math.min(Integer.MAX_VALUE, settings.sessionTimeout().toSeconds()));
+      SSLParameters supported = sslContext.getSupportedSSLParameters();
+      String[] protocols = select(settings.protocols(), supported.getProtocols(), "protocol");
+      String[] cipherSuites =
+          select(settings.cipherSuites(), supported.getCipherSuites(), "cipher suite");
+      this.socketFactory =
+          new MeteredSocketFactory(
+              sslContext, protocols, cipherSuites, HttpsSupport.getDefaultHostnameVerifier());
+      this.tlsStrategy =
+          new DefaultClientTlsStrategy(
+              sslContext,
+              protocols,
+              cipherSuites,
+              SSLBufferMode.STATIC,
+              HttpsSupport.getDefaultHostnameVerifier());
+      log.info(
+          "Created upstream TLS context with provider {}, protocols {}",
+          sslContext.getProvider().getName(),
+          protocols == null ? "default" : Arrays.toString(protocols));
+    }
+
+    /**
+     * Gets the security provider of a provider setting.
+     *
+     * @param name the provider setting
+     * @return the provider, or null for the JDK one
+     */
+    private static Provider provider(String name) {
+      if (name == null || name.isBlank() || "jdk".equalsIgnoreCase(name)) {
+        return null;
+      }
+      if ("openssl".equalsIgnoreCase(name)) {
+        for (String className : OPENSSL_PROVIDERS) {
+          try {
+            return (Provider) Class.forName(className).getDeclaredConstructor().newInstance();
+          } catch (ReflectiveOperationException | LinkageError e) {
+            log.debug("OpenSSL provider {} is not available: {}", className, e.toString());
+          }
+        }
+        log.warn("No OpenSSL provider is available for upstream TLS, using the JDK provider");
+        return null;
+      }
+      Provider provider = Security.getProvider(name);
+      if (provider == null) {
+        log.warn("Security provider {} is not registered, using the JDK provider", name);
+      }
+      return provider;
+    }
+
+    /**
+     * Gets the trust managers checking the server certificates for revocation. They trust the
+     * same certificates as the default trust managers.
+     *
+     * @param revocation the revocation checking
+     * @return the trust managers, or null for the default ones
+     * @throws GeneralSecurityException if the trust managers cannot be created
+     */
+    private static TrustManager[] trustManagers(Revocation revocation)
+        throws GeneralSecurityException {
+      if (revocation == Revocation.NONE) {
+        return null;
+      }
+      TrustManagerFactory defaults =
+          TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+      defaults.init((KeyStore) null);
+      Set<TrustAnchor> anchors = new HashSet<>();
+      for (TrustManager trustManager : defaults.getTrustManagers()) {
+        if (trustManager instanceof X509TrustManager x509TrustManager) {
+          for (X509Certificate issuer : x509TrustManager.getAcceptedIssuers()) {
+            anchors.add(new TrustAnchor(issuer, null));
+          }
+        }
+      }
+      PKIXRevocationChecker checker =
+          (PKIXRevocationChecker) CertPathValidator.getInstance("PKIX").getRevocationChecker();
+      // Stapled responses only cover the server certificate
+      checker.setOptions(
+          revocation == Revocation.SOFT_FAIL
+              ? EnumSet.of(
+                  PKIXRevocationChecker.Option.ONLY_END_ENTITY,
+                  PKIXRevocationChecker.Option.SOFT_FAIL,
+                  PKIXRevocationChecker.Option.NO_FALLBACK)
+              : EnumSet.of(PKIXRevocationChecker.Option.ONLY_END_ENTITY));
+      PKIXBuilderParameters parameters =
+          new PKIXBuilderParameters(anchors, new X509CertSelector());
+      parameters.addCertPathChecker(checker);
+      TrustManagerFactory factory = TrustManagerFactory.getInstance("PKIX");
+      factory.init(new CertPathTrustManagerParameters(parameters));
+      return factory.getTrustManagers();
+    }
+
+    /**
+     * Selects the configured values the provider supports, keeping their order.
+     *
+     * @param configured the configured values
+     * @param supported the values the provider supports
+     * @param kind the kind of values, for logging
+     * @return the selected values, or null for the provider defaults
+     */
+    private static String[] select(List<String> configured, String[] supported, String kind) {
+      if (configured.isEmpty()) {
+        return null;
+      }
+      List<String> available = List.of(supported);
+      String[] selected = configured.stream().filter(available::contains).toArray(String[]::new);
+      if (selected.length < configured.size()) {
+        log.warn(
+            "Ignoring the upstream TLS {} settings not supported by the provider: {}",
+            kind,
+            configured.stream().filter(value -> !available.contains(value)).toList());
+      }
+      return selected.length == 0 ? null : selected;
+    }
+  }
+
+  /** Layers TLS over the upstream sockets and times the handshakes. */
+  private final class MeteredSocketFactory extends SSLConnectionSocketFactory {
+
+    private MeteredSocketFactory(
+        SSLContext sslContext,
+        String[] protocols,
+        String[] cipherSuites,
+        HostnameVerifier hostnameVerifier) {
+      super(sslContext, protocols, cipherSuites, hostnameVerifier);
+    }
+
+    @Override
+    public Socket createLayeredSocket(
+        Socket socket, String target, int port, Object attachment, HttpContext context)
+        throws IOException {
+      long start = System.nanoTime();
+      long startMillis = System.currentTimeMillis();
+      Socket layered = super.createLayeredSocket(socket, target, port, attachment, context);
+      if (layered instanceof SSLSocket sslSocket) {
+        recordHandshake(target, port, sslSocket.getSession(), start, startMillis);
+      }
+      return layered;
+    }
+  }
+
+  /** Layers TLS over the upstream sockets with the TLS context of each upstream server. */
+  private final class RoutingSocketFactory implements LayeredConnectionSocketFactory {
+
+    @Override
+    public Socket createSocket(HttpContext context) throws IOException {
+      return new Socket();
+    }
+
+    @Override
+    public Socket createSocket(Proxy proxy, HttpContext context) throws IOException {
+      return proxy != null ? new Socket(proxy) : new Socket();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public Socket connectSocket(
+        TimeValue connectTimeout,
+        Socket socket,
+        HttpHost host,
+        InetSocketAddress remoteAddress,
+        InetSocketAddress localAddress,
+        HttpContext context)
+        throws IOException {
+      return connectSocket(
+          socket,
+          host,
+          remoteAddress,
+          localAddress,
+          Timeout.of(connectTimeout.getDuration(), connectTimeout.getTimeUnit()),
+          null,
+          context);
+    }
+
+    @Override
+    public Socket connectSocket(
+        Socket socket,
+        HttpHost host,
+        InetSocketAddress remoteAddress,
+        InetSocketAddress localAddress,
+        Timeout connectTimeout,
+        Object attachment,
+        HttpContext context)
+        throws IOException {
+      return contextFor(host.getHostName(), remoteAddress.getPort())
+          .socketFactory
+          .connectSocket(
+              socket, host, remoteAddress, localAddress, connectTimeout, attachment, context);
+    }
+
+    @Override
+    public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context)
+        throws IOException {
+      return createLayeredSocket(socket, target, port, null, context);
+    }
+
+    @Override
+    public Socket createLayeredSocket(
+        Socket socket, String target, int port, Object attachment, HttpContext context)
+        throws IOException {
+      return contextFor(target, port)
+          .socketFactory
+          .createLayeredSocket(socket, target, port, attachment, context);
+    }
+  }
+
+  /** Upgrades the upstream connections to TLS with the TLS context of each upstream server. */
+  private final class RoutingTlsStrategy implements TlsStrategy {
+
+    @Override
+    @Deprecated
+    @SuppressWarnings("deprecation")
+    public boolean upgrade(
+        TransportSecurityLayer tlsSession,
+        HttpHost host,
+        SocketAddress localAddress,
+        SocketAddress remoteAddress,
+        Object attachment,
+        Timeout handshakeTimeout) {
+      return contextFor(host.getHostName(), host.getPort())
+          .tlsStrategy
+          .upgrade(tlsSession, host, localAddress, remoteAddress, attachment, handshakeTimeout);
+    }
+
+    @Override
+    public void upgrade(
+        TransportSecurityLayer tlsSession,
+        NamedEndpoint endpoint,
+        Object attachment,
+        Timeout handshakeTimeout,
+        FutureCallback<TransportSecurityLayer> callback) {
+      String hostname = endpoint.getHostName();
+      int port = endpoint.getPort();
+      long start = System.nanoTime();
+      long startMillis = System.currentTimeMillis();
+      contextFor(hostname, port)
+          .tlsStrategy
+          .upgrade(
+              tlsSession,
+              endpoint,
+              attachment,
+              handshakeTimeout,
+              new FutureCallback<>() {
+                @Override
+                public void completed(TransportSecurityLayer result) {
+                  TlsDetails details = result.getTlsDetails();
+                  if (details != null) {
+                    recordHandshake(hostname, port, details.getSSLSession(), start, startMillis);
+                  }
+                  if (callback != null) {
+                    callback.completed(result);
+                  }
+                }
+
+                @Override
+                public void failed(Exception ex) {
+                  if (callback != null) {
+                    callback.failed(ex);
+                  }
+                }
+
+                @Override
+                public void cancelled() {
+                  if (callback != null) {
+                    callback.cancelled();
+                  }
+                }
+              });
+    }
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.config;
+
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.URIScheme;
+import org.springframework.web.reactive.function.client.WebClient;
+
+/**
+ * The upstream web clients of the reactive engine, one for each way an upstream server is spoken
+ * to. Servers spoken to over HTTP/2 negotiate it with ALPN over TLS, falling back to HTTP/1.1 when
+ * they do not select it, and speak it with prior knowledge (h2c) in clear text.
+ */
+public class UpstreamWebClients {
+
+  private final UpstreamRouteSettings routeSettings;
+  private final WebClient http11Client;
+  private final WebClient http2Client;
+  private final WebClient h2cClient;
+
+  /**
+   * Constructor for the UpstreamWebClients.
+   *
+   * @param routeSettings the upstream settings
+   * @param http11Client the web client speaking HTTP/1.1
+   * @param http2Client the web client negotiating HTTP/2 over TLS
+   * @param h2cClient the web client speaking HTTP/2 in clear text
+   */
+  public UpstreamWebClients(
+      UpstreamRouteSettings routeSettings,
+      WebClient http11Client,
+      WebClient http2Client,
+      WebClient h2cClient) {
+    this.routeSettings = routeSettings;
+    this.http11Client = http11Client;
+    this.http2Client = http2Client;
+    this.h2cClient = h2cClient;
+  }
+
+  /**
+   * Gets the web client to relay requests to an upstream server with.
+   *
+   * @param target the upstream server
+   * @return the web client for the protocol of the server
+   */
+  public WebClient forTarget(HttpHost target) {
+    if (routeSettings.forTarget(target).getProtocol() != RelayProperties.Upstream.Protocol.HTTP_2) {
+      return http11Client;
+    }
+    return URIScheme.HTTPS.same(target.getSchemeName()) ? http2Client : h2cClient;
+  }
+}
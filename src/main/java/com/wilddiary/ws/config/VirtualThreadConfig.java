@@ -0,0 +1,55 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.config;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnThreading;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.boot.web.embedded.undertow.UndertowServletWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.VirtualThreadTaskExecutor;
+
+/**
+ * Configuration running the relay on virtual threads, enabled by {@code
+ * spring.threads.virtual.enabled} on Java 21 or later. Spring Boot runs Tomcat and Jetty requests
+ * on virtual threads by itself, but leaves Undertow on its worker pool; here every servlet request
+ * is dispatched to a virtual thread of its own instead. The whole relay then runs on it, from the
+ * controller through the blocking upstream client to the body copy, so a slow upstream server
+ * holds a cheap virtual thread rather than a worker.
+ */
+@Configuration
+@ConditionalOnThreading(Threading.VIRTUAL)
+public class VirtualThreadConfig {
+
+  /**
+   * Create the customizer dispatching servlet requests to virtual threads.
+   *
+   * @return the Undertow web server factory customizer
+   */
+  @Bean
+  public WebServerFactoryCustomizer<UndertowServletWebServerFactory> virtualThreadsCustomizer() {
+    VirtualThreadTaskExecutor executor = new VirtualThreadTaskExecutor("relay-");
+    return factory ->
+        factory.addDeploymentInfoCustomizers(
+            deploymentInfo -> deploymentInfo.setExecutor(executor).setAsyncExecutor(executor));
+  }
+}
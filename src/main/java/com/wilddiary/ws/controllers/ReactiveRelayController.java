@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.controllers;
+
+import static com.wilddiary.ws.controllers.RelayController.CONTROLLER_CONTEXT;
+
+import com.wilddiary.ws.services.ReactiveRelayService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Mono;
+
+/** Controller for relaying requests with the reactive engine. */
+@Controller
+@RequestMapping(CONTROLLER_CONTEXT)
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveRelayController {
+
+  private final ReactiveRelayService relayService;
+
+  /**
+   * Constructor for the ReactiveRelayController.
+   *
+   * @param relayService the reactive relay service
+   */
+  public ReactiveRelayController(ReactiveRelayService relayService) {
+    this.relayService = relayService;
+  }
+
+  /**
+   * Relays requests. The request body is streamed to the upstream server as it is received, and
+   * the response body to the client as it is received from the upstream server.
+   *
+   * @param exchange the downstream exchange
+   * @return completes once the response is relayed
+   */
+  @RequestMapping(value = "/**")
+  public Mono<Void> relayRequests(ServerWebExchange exchange) {
+    return relayService.relayRequest(exchange);
+  }
+}
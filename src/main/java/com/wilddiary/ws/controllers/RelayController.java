@@ -22,18 +22,21 @@ package com.wilddiary.ws.controllers;
 
 import static com.wilddiary.ws.controllers.RelayController.CONTROLLER_CONTEXT;
 
+import com.wilddiary.ws.services.RelayRequestBody;
 import com.wilddiary.ws.services.RelayService;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.http.HttpMethod;
 import org.springframework.stereotype.Controller;
-import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 
 /** Controller for relaying requests. */
 @Controller
 @RequestMapping(CONTROLLER_CONTEXT)
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 @Slf4j
 public class RelayController {
   public static final String CONTROLLER_CONTEXT = "/relay";
@@ -50,19 +53,21 @@ public class RelayController {
   }
 
   /**
-   * Relays requests.
+   * Relays requests. The request body is streamed to the upstream server as it is received.
    *
    * @param downstreamRequest the downstream request
    * @param downstreamResponse the downstream response
-   * @param downstreamRequestBody the downstream request body
+   * @throws IOException if the request body cannot be read
    */
   @RequestMapping(value = "/**")
   public void relayRequests(
-      HttpServletRequest downstreamRequest,
-      HttpServletResponse downstreamResponse,
-      @RequestBody(required = false) byte[] downstreamRequestBody) {
+      HttpServletRequest downstreamRequest, HttpServletResponse downstreamResponse)
+      throws IOException {
     HttpMethod downstreamRequestMethod = HttpMethod.valueOf(downstreamRequest.getMethod());
     this.relayService.relayRequest(
-        downstreamRequest, downstreamResponse, downstreamRequestMethod, downstreamRequestBody);
+        downstreamRequest,
+        downstreamResponse,
+        downstreamRequestMethod,
+        RelayRequestBody.of(downstreamRequest));
   }
 }
@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services;
+
+import io.undertow.io.BufferWritableOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Transfers response bodies relayed as received. Bodies are copied in large chunks through
+ * buffers pooled across requests, and written straight to the connection of the downstream
+ * response when it is an Undertow one, rather than through the buffer of the servlet stream.
+ * Whatever has arrived is flushed as soon as the upstream server has nothing more to read, so
+ * streamed responses reach the client without delay.
+ *
+ * <p>The upstream body can only be read into a heap array, so each chunk is copied once into a
+ * pooled direct buffer before it is written to the connection. That copy takes the place of the
+ * one the JDK would make into a temporary direct buffer of its own for a heap buffer, and keeps the
+ * direct memory used for it bounded by the pool rather than cached per thread. A body that is also
+ * captured for the cache or for coalesced requests is written through the stream that captures it
+ * instead, as those bytes are copied anyway.
+ */
+final class BodyTransfer {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final BlockingQueue<Chunk> CHUNKS = new ArrayBlockingQueue<>(256);
+
+  private BodyTransfer() {}
+
+  /**
+   * Transfers a body.
+   *
+   * @param in the upstream response body stream
+   * @param out the downstream response body stream
+   * @return the number of bytes transferred
+   * @throws IOException if an I/O error occurs
+   */
+  static long transfer(InputStream in, OutputStream out) throws IOException {
+    Chunk chunk = CHUNKS.poll();
+    if (chunk == null) {
+      chunk = new Chunk(new byte[BUFFER_SIZE], ByteBuffer.allocateDirect(BUFFER_SIZE));
+    }
+    byte[] buffer = chunk.array();
+    try {
+      // Chunks larger than the servlet stream buffer go out to the connection from a direct buffer
+      BufferWritableOutputStream channelOut =
+          out instanceof BufferWritableOutputStream bufferWritable ? bufferWritable : null;
+      long transferred = 0;
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        if (channelOut != null) {
+          ByteBuffer direct = chunk.direct().clear();
+          direct.put(buffer, 0, read).flip();
+          channelOut.write(direct);
+        } else {
+          out.write(buffer, 0, read);
+        }
+        transferred += read;
+        if (in.available() == 0) {
+          out.flush();
+        }
+      }
+      out.flush();
+      return transferred;
+    } finally {
+      CHUNKS.offer(chunk);
+    }
+  }
+
+  /**
+   * A pooled pair of buffers, the array the upstream body is read into and the direct buffer it is
+   * written to the connection from.
+   *
+   * @param array the heap array
+   * @param direct the direct buffer
+   */
+  private record Chunk(byte[] array, ByteBuffer direct) {}
+}
@@ -0,0 +1,242 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services;
+
+import com.wilddiary.ws.services.metrics.ExchangeMetrics;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.compression.Brotli;
+import io.netty.handler.codec.compression.BrotliDecoder;
+import io.netty.handler.codec.compression.ZlibCodecFactory;
+import io.netty.handler.codec.compression.ZlibWrapper;
+import io.netty.handler.codec.compression.Zstd;
+import io.netty.handler.codec.compression.ZstdDecoder;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferFactory;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.util.FastByteArrayOutputStream;
+import org.springframework.util.StreamUtils;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Rewrites a response body of the reactive engine as its buffers arrive. Each buffer is decoded,
+ * pushed through the same rewriting and encoding streams the servlet engine writes to, and what
+ * they produced is emitted downstream, one buffer out for each buffer in. Nothing blocks, and
+ * demand from the downstream connection still paces the upstream one. Everything here runs on the
+ * CPU, so the time spent decoding and rewriting is measured around the calls doing it.
+ */
+final class ReactiveBodyRewriter {
+
+  private final FastByteArrayOutputStream produced = new FastByteArrayOutputStream();
+  private final EmbeddedChannel decoding;
+  private final OutputStream rewriting;
+  private final ExchangeMetrics metrics;
+
+  private ReactiveBodyRewriter(ChannelHandler decoder, BodyWriter writer, ExchangeMetrics metrics)
+      throws IOException {
+    this.decoding = decoder == null ? null : new EmbeddedChannel(decoder);
+    this.rewriting = writer.wrap(StreamUtils.nonClosing(produced));
+    this.metrics = metrics;
+  }
+
+  /**
+   * Whether bodies with a content encoding can be decoded to be rewritten.
+   *
+   * @param contentEncoding the content encoding, may be null
+   * @return true if the body can be decoded
+   */
+  static boolean canDecode(String contentEncoding) {
+    if (contentEncoding == null) {
+      return true;
+    }
+    return switch (contentEncoding.toLowerCase(Locale.ROOT)) {
+      case "identity", "gzip", "x-gzip", "deflate" -> true;
+      case "br" -> Brotli.isAvailable();
+      case "zstd" -> Zstd.isAvailable();
+      default -> false;
+    };
+  }
+
+  /**
+   * Rewrites a body.
+   *
+   * @param body the upstream response body
+   * @param contentEncoding the content encoding of the body, may be null
+   * @param writer wraps the stream the rewritten body is produced to with the rewriting streams
+   * @param bufferFactory the factory of the buffers emitted downstream
+   * @param metrics the metrics of the exchange
+   * @return the rewritten body
+   */
+  static Flux<DataBuffer> rewrite(
+      Flux<DataBuffer> body,
+      String contentEncoding,
+      BodyWriter writer,
+      DataBufferFactory bufferFactory,
+      ExchangeMetrics metrics) {
+    return Flux.using(
+        () -> new ReactiveBodyRewriter(decoderFor(contentEncoding), writer, metrics),
+        rewriter ->
+            body.<DataBuffer>handle(
+                    (buffer, sink) -> {
+                      try {
+                        rewriter.write(buffer);
+                      } catch (IOException | RuntimeException e) {
+                        sink.error(e);
+                        return;
+                      } finally {
+                        DataBufferUtils.release(buffer);
+                      }
+                      DataBuffer rewritten = rewriter.drain(bufferFactory);
+                      if (rewritten != null) {
+                        sink.next(rewritten);
+                      }
+                    })
+                .concatWith(
+                    Mono.defer(
+                        () -> {
+                          try {
+                            rewriter.finish();
+                          } catch (IOException e) {
+                            return Mono.error(e);
+                          }
+                          return Mono.justOrEmpty(rewriter.drain(bufferFactory));
+                        })),
+        ReactiveBodyRewriter::release);
+  }
+
+  /**
+   * Creates the decoder of a content encoding.
+   *
+   * @param contentEncoding the content encoding, may be null
+   * @return the decoder, or null if the body is not encoded
+   */
+  private static ChannelHandler decoderFor(String contentEncoding) {
+    if (contentEncoding == null) {
+      return null;
+    }
+    return switch (contentEncoding.toLowerCase(Locale.ROOT)) {
+      case "gzip", "x-gzip" -> ZlibCodecFactory.newZlibDecoder(ZlibWrapper.GZIP);
+      // Some servers send raw deflate data instead of the zlib format
+      case "deflate" -> ZlibCodecFactory.newZlibDecoder(ZlibWrapper.ZLIB_OR_NONE);
+      case "br" -> new BrotliDecoder();
+      case "zstd" -> new ZstdDecoder();
+      default -> null;
+    };
+  }
+
+  /**
+   * Writes a buffer of the upstream body through the decoder and the rewriting streams.
+   *
+   * @param buffer the buffer
+   * @throws IOException if the buffer cannot be rewritten
+   */
+  private void write(DataBuffer buffer) throws IOException {
+    byte[] bytes = new byte[buffer.readableByteCount()];
+    buffer.read(bytes);
+    long start = System.nanoTime();
+    if (decoding == null) {
+      rewriting.write(bytes);
+      metrics.addRewriteNanos(System.nanoTime() - start);
+    } else {
+      decoding.writeInbound(Unpooled.wrappedBuffer(bytes));
+      metrics.addDecompressionNanos(System.nanoTime() - start);
+      writeDecoded();
+    }
+  }
+
+  /**
+   * Writes what the decoder has decoded to the rewriting streams.
+   *
+   * @throws IOException if the decoded bytes cannot be rewritten
+   */
+  private void writeDecoded() throws IOException {
+    long start = System.nanoTime();
+    ByteBuf decoded;
+    while ((decoded = decoding.readInbound()) != null) {
+      try {
+        decoded.readBytes(rewriting, decoded.readableBytes());
+      } finally {
+        decoded.release();
+      }
+    }
+    metrics.addRewriteNanos(System.nanoTime() - start);
+  }
+
+  /**
+   * Finishes the body once the upstream body is complete, writing out what the rewriting and
+   * encoding streams still hold.
+   *
+   * @throws IOException if the body cannot be finished
+   */
+  private void finish() throws IOException {
+    if (decoding != null) {
+      long start = System.nanoTime();
+      decoding.finish();
+      metrics.addDecompressionNanos(System.nanoTime() - start);
+      writeDecoded();
+    }
+    long start = System.nanoTime();
+    rewriting.close();
+    metrics.addRewriteNanos(System.nanoTime() - start);
+  }
+
+  /**
+   * Takes the bytes produced since the last drain.
+   *
+   * @param bufferFactory the buffer factory
+   * @return the buffer of the produced bytes, or null if none were produced
+   */
+  private DataBuffer drain(DataBufferFactory bufferFactory) {
+    if (produced.size() == 0) {
+      return null;
+    }
+    DataBuffer buffer = bufferFactory.wrap(produced.toByteArray());
+    produced.reset();
+    return buffer;
+  }
+
+  /** Releases the decoder, whether the body completed or not. */
+  private void release() {
+    if (decoding != null) {
+      decoding.finishAndReleaseAll();
+    }
+  }
+
+  /** Wraps the stream a rewritten body is produced to with the rewriting streams. */
+  @FunctionalInterface
+  interface BodyWriter {
+
+    /**
+     * Wraps a stream.
+     *
+     * @param out the stream the rewritten body is produced to
+     * @return the stream to write the decoded body to
+     * @throws IOException if the stream cannot be wrapped
+     */
+    OutputStream wrap(OutputStream out) throws IOException;
+  }
+}
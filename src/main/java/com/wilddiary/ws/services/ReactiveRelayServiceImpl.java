@@ -0,0 +1,586 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services;
+
+import com.wilddiary.ws.config.RelayProperties;
+import com.wilddiary.ws.config.UpstreamRouteSettings;
+import com.wilddiary.ws.config.UpstreamWebClients;
+import com.wilddiary.ws.controllers.RelayController;
+import com.wilddiary.ws.services.breaker.CircuitBreaker;
+import com.wilddiary.ws.services.breaker.CircuitBreakers;
+import com.wilddiary.ws.services.encoding.ResponseEncoder;
+import com.wilddiary.ws.services.headers.HeaderRules;
+import com.wilddiary.ws.services.limits.ConcurrencyLimiter;
+import com.wilddiary.ws.services.metrics.ExchangeMetrics;
+import com.wilddiary.ws.services.metrics.RelayMetrics;
+import com.wilddiary.ws.services.retry.Retries;
+import com.wilddiary.ws.services.retry.RetryPolicy;
+import com.wilddiary.ws.services.rewrite.RewriteScope;
+import com.wilddiary.ws.services.rewrite.UrlRewritingOutputStream;
+import com.wilddiary.ws.services.routing.RouteMatch;
+import com.wilddiary.ws.services.routing.RouteRegistry;
+import com.wilddiary.ws.services.routing.RouteSnapshot;
+import com.wilddiary.ws.services.routing.UpstreamPool;
+import com.wilddiary.ws.services.routing.UpstreamTarget;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.hc.core5.http.HttpHost;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.server.reactive.ServerHttpResponse;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientRequestException;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.server.ServerWebExchange;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.SignalType;
+import reactor.netty.http.client.HttpClientRequest;
+
+/**
+ * Service implementation for the reactive engine of the relay server. Requests are relayed on
+ * the event loops of the server and the upstream client without blocking a thread, with the same
+ * routing, header and rewriting rules as the servlet engine.
+ */
+@Service
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+@Slf4j
+class ReactiveRelayServiceImpl implements ReactiveRelayService {
+
+  private final String pathPrefix = RelayController.CONTROLLER_CONTEXT;
+  private final RouteRegistry routeRegistry;
+  private final RelaySupport relaySupport;
+  private final ConcurrencyLimiter concurrencyLimiter;
+  private final CircuitBreakers circuitBreakers;
+  private final Retries retries;
+  private final ResponseEncoder responseEncoder;
+  private final UpstreamRouteSettings routeSettings;
+  private final RelayMetrics relayMetrics;
+  private final UpstreamWebClients webClients;
+
+  /**
+   * Constructor for the ReactiveRelayServiceImpl.
+   *
+   * @param routeRegistry the route registry
+   * @param relaySupport the relay rules
+   * @param relayProperties the relay properties
+   * @param concurrencyLimiter the concurrency limiter
+   * @param circuitBreakers the circuit breakers of the upstream servers
+   * @param retries the retry policies of the contexts
+   * @param routeSettings the upstream settings
+   * @param relayMetrics the relay metrics
+   * @param upstreamWebClients the upstream web clients
+   */
+  public ReactiveRelayServiceImpl(
+      RouteRegistry routeRegistry,
+      RelaySupport relaySupport,
+      RelayProperties relayProperties,
+      ConcurrencyLimiter concurrencyLimiter,
+      CircuitBreakers circuitBreakers,
+      Retries retries,
+      UpstreamRouteSettings routeSettings,
+      RelayMetrics relayMetrics,
+      UpstreamWebClients upstreamWebClients) {
+    this.routeRegistry = routeRegistry;
+    this.relaySupport = relaySupport;
+    this.concurrencyLimiter = concurrencyLimiter;
+    this.circuitBreakers = circuitBreakers;
+    this.retries = retries;
+    this.responseEncoder = new ResponseEncoder(relayProperties.getCompression());
+    this.routeSettings = routeSettings;
+    this.relayMetrics = relayMetrics;
+    this.webClients = upstreamWebClients;
+  }
+
+  /**
+   * Relays a request. The request is relayed to an upstream server of the route matching its path.
+   * If the server cannot be connected to and the request has no body, the request fails over to
+   * the other servers of the route, and servers whose circuit is open are skipped. Idempotent
+   * requests without a body are retried as the route allows. Requests over the concurrency limit
+   * of their context wait for a turn without holding up the event loop. The exchange is recorded
+   * in the relay metrics once it ends.
+   *
+   * @param exchange the downstream exchange
+   * @return completes once the response is relayed
+   */
+  @Override
+  public Mono<Void> relayRequest(ServerWebExchange exchange) {
+    ExchangeMetrics metrics = relayMetrics.start();
+    return relayExchange(exchange, metrics)
+        .doOnSuccess(
+            done -> {
+              HttpStatusCode status = exchange.getResponse().getStatusCode();
+              metrics.complete(status == null ? HttpStatus.OK.value() : status.value());
+            })
+        .doOnError(metrics::fail)
+        // The error handler renders rejections without the headers they carry
+        .doOnError(
+            ResponseStatusException.class,
+            e -> exchange.getResponse().getHeaders().addAll(e.getHeaders()));
+  }
+
+  /**
+   * Relays a request to the upstream servers of the route matching its path.
+   *
+   * @param exchange the downstream exchange
+   * @param metrics the metrics of the exchange
+   * @return completes once the response is relayed
+   */
+  private Mono<Void> relayExchange(ServerWebExchange exchange, ExchangeMetrics metrics) {
+    ServerHttpRequest request = exchange.getRequest();
+    log.debug("Received downstream request: {} {}", request.getMethod(), request.getPath());
+
+    // Use the same routes for the whole exchange, even if they are reloaded meanwhile
+    RouteSnapshot routes = routeRegistry.current();
+
+    // Match the request to a route
+    String contextPath = request.getPath().contextPath().value();
+    String path = request.getPath().value();
+    Optional<RouteMatch> match =
+        routes.routeTable().match(path, RelaySupport.relayPathStart(path, contextPath, pathPrefix));
+    if (match.isEmpty()) {
+      log.debug("No mapping found for path {}", path);
+      return Mono.error(new ResponseStatusException(HttpStatus.NOT_FOUND));
+    }
+    log.debug("Found mapping for path {}: {}", path, match.get().route());
+    metrics.route(match.get().route().context());
+
+    // Wait for a turn if the context is at its limit of concurrent requests
+    UpstreamPool pool = match.get().route().pool();
+    RetryPolicy retryPolicy = retries.policyFor(match.get().route().context());
+    return concurrencyLimiter
+        .acquireLater(match.get().route().context())
+        .flatMap(
+            permit -> {
+              retryPolicy.onRequest();
+              return relayUpstream(
+                      routes,
+                      match.get(),
+                      pool,
+                      pool.choose(),
+                      new ArrayList<>(1),
+                      retryPolicy,
+                      0,
+                      exchange,
+                      metrics)
+                  .doFinally(signal -> release(permit, signal, metrics));
+            });
+  }
+
+  /**
+   * Releases the concurrency permit of a relayed request. Requests cancelled by the client before
+   * any upstream server answered leave the limit of their context as it is.
+   *
+   * @param permit the permit
+   * @param signal the signal the relay ended with
+   * @param metrics the metrics of the exchange
+   */
+  private static void release(
+      ConcurrencyLimiter.Permit permit, SignalType signal, ExchangeMetrics metrics) {
+    long latencyNanos = metrics.upstreamLatencyNanos();
+    if (signal == SignalType.CANCEL && latencyNanos < 0) {
+      permit.cancel();
+    } else {
+      permit.release(latencyNanos);
+    }
+  }
+
+  /**
+   * Relays a request to an upstream server of its route, failing over to the next server if the
+   * server cannot be connected to and the request has no body, or if its circuit is open.
+   * Idempotent requests without a body are retried after a jittered backoff when no response
+   * arrived or the response has a retried status, as long as the retry budget of the context
+   * allows it.
+   *
+   * @param routes the routes
+   * @param match the route match of the request
+   * @param pool the upstream servers of the route
+   * @param target the upstream server to relay the request to
+   * @param triedTargets the upstream servers tried before
+   * @param retryPolicy the retry policy of the context
+   * @param retry the number of retries of the request so far
+   * @param exchange the downstream exchange
+   * @param metrics the metrics of the exchange
+   * @return completes once the response is relayed
+   */
+  private Mono<Void> relayUpstream(
+      RouteSnapshot routes,
+      RouteMatch match,
+      UpstreamPool pool,
+      UpstreamTarget target,
+      List<UpstreamTarget> triedTargets,
+      RetryPolicy retryPolicy,
+      int retry,
+      ServerWebExchange exchange,
+      ExchangeMetrics metrics) {
+    // Skip the server if its circuit is open, failing fast once no server is left
+    Optional<CircuitBreaker.Call> call = circuitBreakers.tryCall(target);
+    if (call.isEmpty()) {
+      pool.cancel(target);
+      triedTargets.add(target);
+      UpstreamTarget next = pool.choose(triedTargets);
+      return next == null
+          ? Mono.error(circuitBreakers.rejection(target))
+          : relayUpstream(
+              routes, match, pool, next, triedTargets, retryPolicy, retry, exchange, metrics);
+    }
+
+    ServerHttpRequest request = exchange.getRequest();
+    URI upstreamUrl = match.upstreamUri(target, request.getURI().getRawQuery());
+    HttpHost upstreamServer = UpstreamRouteSettings.targetOf(upstreamUrl);
+    Duration readTimeout = routeSettings.forTarget(upstreamServer).getReadTimeout();
+    boolean hasBody = hasBody(request.getHeaders());
+    boolean retryable = !hasBody && retryPolicy.isRetryable(request.getMethod());
+    HeaderRules headerRules = relaySupport.headerRules(match.route().context());
+    boolean[] failed = new boolean[1];
+    log.debug("Relaying downstream request to {}", upstreamUrl);
+    metrics.upstream(target);
+
+    WebClient.RequestBodySpec upstreamRequest =
+        webClients
+            .forTarget(upstreamServer)
+            .method(request.getMethod())
+            .uri(upstreamUrl)
+            .headers(headers -> copyRequestHeaders(request.getHeaders(), headerRules, headers))
+            .httpRequest(
+                httpRequest ->
+                    ((HttpClientRequest) httpRequest.getNativeRequest())
+                        .responseTimeout(readTimeout));
+    if (hasBody) {
+      upstreamRequest.body(BodyInserters.fromDataBuffers(request.getBody()));
+    }
+    return upstreamRequest
+        .exchangeToMono(
+            upstreamResponse -> {
+              metrics.firstByte();
+              failed[0] = upstreamResponse.statusCode().is5xxServerError();
+              int status = upstreamResponse.statusCode().value();
+              if (retryable && retryPolicy.isRetryableStatus(status)) {
+                triedTargets.add(target);
+                UpstreamTarget next = retryPolicy.retryTarget(pool, triedTargets, retry + 1);
+                if (next != null) {
+                  log.warn("Upstream {} answered {}, retrying on {}", target, status, next);
+                  return upstreamResponse
+                      .releaseBody()
+                      .then(Mono.error(new NextUpstream(next, retry + 1, retryPolicy)));
+                }
+              }
+              return relayResponse(
+                  routes,
+                  headerRules,
+                  relaySupport.rewriteScope(match.route().context()),
+                  exchange,
+                  upstreamResponse,
+                  metrics);
+            })
+        .onErrorResume(
+            WebClientRequestException.class,
+            e -> {
+              failed[0] = isConnectFailure(e);
+              triedTargets.add(target);
+              UpstreamTarget next = failed[0] && !hasBody ? pool.choose(triedTargets) : null;
+              if (next != null) {
+                log.warn("Failed to connect to upstream {}, failing over to {}", target, next);
+                return Mono.error(new NextUpstream(next, retry, null));
+              }
+              next = retryable ? retryPolicy.retryTarget(pool, triedTargets, retry + 1) : null;
+              if (next == null) {
+                return Mono.error(e);
+              }
+              log.warn(
+                  "Failed to relay to upstream {}, retrying on {}: {}",
+                  target,
+                  next,
+                  e.getMessage());
+              return Mono.error(new NextUpstream(next, retry + 1, retryPolicy));
+            })
+        .doFinally(
+            signal -> {
+              retryPolicy.onResponse(metrics.upstreamLatencyNanos());
+              pool.complete(target, failed[0]);
+              complete(call.get(), signal, failed[0], metrics);
+            })
+        // Move on once the outcome of this server is recorded
+        .onErrorResume(
+            NextUpstream.class,
+            next ->
+                Mono.delay(next.backoff)
+                    .then(
+                        Mono.defer(
+                            () ->
+                                relayUpstream(
+                                    routes,
+                                    match,
+                                    pool,
+                                    next.target,
+                                    triedTargets,
+                                    retryPolicy,
+                                    next.retry,
+                                    exchange,
+                                    metrics))));
+  }
+
+  /**
+   * Records the outcome of a request in the circuit breaker of its upstream server. Requests
+   * cancelled by the client before the server answered do not count.
+   *
+   * @param call the call let through the breaker
+   * @param signal the signal the request ended with
+   * @param failed whether the request could not connect or was answered with a 5xx status
+   * @param metrics the metrics of the exchange
+   */
+  private static void complete(
+      CircuitBreaker.Call call, SignalType signal, boolean failed, ExchangeMetrics metrics) {
+    long latencyNanos = metrics.upstreamLatencyNanos();
+    if (signal == SignalType.CANCEL && latencyNanos < 0) {
+      call.cancel();
+    } else {
+      call.complete(latencyNanos, failed || latencyNanos < 0);
+    }
+  }
+
+  /**
+   * Whether a request has a body. Requests have one when they declare a length or a transfer
+   * coding.
+   *
+   * @param headers the downstream request headers
+   * @return true if the request has a body
+   */
+  private static boolean hasBody(HttpHeaders headers) {
+    return headers.getContentLength() > 0 || headers.containsKey(HttpHeaders.TRANSFER_ENCODING);
+  }
+
+  /**
+   * Whether an upstream request failed to connect to the upstream server. Nothing of the request
+   * has been sent in that case.
+   *
+   * @param e the exception of the request
+   * @return true if the connection failed
+   */
+  private static boolean isConnectFailure(WebClientRequestException e) {
+    Throwable cause = e.getCause();
+    return cause instanceof ConnectException
+        || cause instanceof NoRouteToHostException
+        || cause instanceof UnknownHostException;
+  }
+
+  /**
+   * Copies request headers. The request headers are copied from the downstream request, except for
+   * the headers the rules of the route do not relay. The length of a body is carried over so that
+   * it is not sent chunked.
+   *
+   * @param downstreamHeaders the downstream request headers
+   * @param headerRules the rules of the headers relayed
+   * @param upstreamHeaders the upstream request headers
+   */
+  private void copyRequestHeaders(
+      HttpHeaders downstreamHeaders, HeaderRules headerRules, HttpHeaders upstreamHeaders) {
+    String connection = downstreamHeaders.getFirst(HttpHeaders.CONNECTION);
+    downstreamHeaders.forEach(
+        (name, values) -> {
+          if (headerRules.isRelayedRequestHeader(name, connection)) {
+            upstreamHeaders.addAll(name, values);
+          }
+        });
+    if (downstreamHeaders.getContentLength() > 0) {
+      upstreamHeaders.setContentLength(downstreamHeaders.getContentLength());
+    }
+  }
+
+  /**
+   * Relays the upstream response to the downstream client. The body passes through buffer by
+   * buffer, and is rewritten on the way if it has URLs to rewrite.
+   *
+   * @param routes the routes
+   * @param headerRules the rules of the headers relayed
+   * @param rewriteScope the parts of the response body URLs are rewritten in
+   * @param exchange the downstream exchange
+   * @param upstreamResponse the upstream response
+   * @param metrics the metrics of the exchange
+   * @return completes once the response is relayed
+   */
+  private Mono<Void> relayResponse(
+      RouteSnapshot routes,
+      HeaderRules headerRules,
+      RewriteScope rewriteScope,
+      ServerWebExchange exchange,
+      ClientResponse upstreamResponse,
+      ExchangeMetrics metrics) {
+    log.debug("Received upstream response with status {}", upstreamResponse.statusCode().value());
+    ServerHttpRequest request = exchange.getRequest();
+    ServerHttpResponse response = exchange.getResponse();
+    HttpHeaders upstreamHeaders = upstreamResponse.headers().asHttpHeaders();
+    response.setStatusCode(upstreamResponse.statusCode());
+
+    // Filter headers
+    HttpHeaders downstreamHeaders = headerRules.filterResponseHeaders(upstreamHeaders);
+
+    // rewrite redirection url, if mapped
+    String relayUrl = getRelayUrl(request);
+    if (upstreamResponse.statusCode().is3xxRedirection() && upstreamHeaders.getLocation() != null) {
+      downstreamHeaders.put(
+          HttpHeaders.LOCATION,
+          List.of(
+              relaySupport.getRelayUrlForUrl(
+                  routes, relayUrl, upstreamHeaders.getLocation().toString())));
+    }
+
+    // Rewrite URLs in the response body if it has any, encoding it as negotiated
+    Flux<DataBuffer> body =
+        upstreamResponse
+            .bodyToFlux(DataBuffer.class)
+            .doOnNext(buffer -> metrics.addUpstreamBytes(buffer.readableByteCount()));
+    Optional<MediaType> rewritableContentType =
+        getRewritableContentType(routes, request, upstreamResponse.statusCode(), upstreamHeaders);
+    String upstreamEncoding = upstreamHeaders.getFirst(HttpHeaders.CONTENT_ENCODING);
+    if (rewritableContentType.isPresent() && ReactiveBodyRewriter.canDecode(upstreamEncoding)) {
+      String responseEncoding =
+          responseEncoder.negotiate(
+              request.getHeaders().getFirst(HttpHeaders.ACCEPT_ENCODING),
+              upstreamHeaders,
+              downstreamHeaders);
+      // Ranges of rewritten bodies are only cut from the whole body by the servlet engine
+      downstreamHeaders.remove(HttpHeaders.ACCEPT_RANGES);
+      MediaType contentType = rewritableContentType.get();
+      Charset charset =
+          Optional.ofNullable(contentType.getCharset()).orElse(StandardCharsets.UTF_8);
+      body =
+          ReactiveBodyRewriter.rewrite(
+              body,
+              upstreamEncoding,
+              out -> {
+                UrlRewritingOutputStream rewriting =
+                    routes
+                        .rewriteDictionary()
+                        .rewrite(
+                            responseEncoder.encode(out, responseEncoding),
+                            charset,
+                            relayUrl,
+                            rewriteScope.newScanner(contentType, charset));
+                metrics.rewriting(rewriting);
+                return rewriting;
+              },
+              response.bufferFactory(),
+              metrics);
+    } else {
+      relaySupport.carryOverContentLength(request.getMethod(), upstreamHeaders, downstreamHeaders);
+    }
+
+    response.getHeaders().putAll(downstreamHeaders);
+    log.debug("Relaying to downstream with headers {}", downstreamHeaders);
+    return response.writeWith(
+        body.doOnNext(buffer -> metrics.addResponseBytes(buffer.readableByteCount())));
+  }
+
+  /**
+   * Gets the URL of the relay, up to the mapped contexts.
+   *
+   * @param request the downstream request
+   * @return the relay URL
+   */
+  private String getRelayUrl(ServerHttpRequest request) {
+    URI uri = request.getURI();
+    int port = uri.getPort();
+    if (port < 0) {
+      port = "https".equalsIgnoreCase(uri.getScheme()) ? 443 : 80;
+    }
+    return uri.getScheme()
+        + "://"
+        + uri.getHost()
+        + ":"
+        + port
+        + request.getPath().contextPath().value()
+        + pathPrefix;
+  }
+
+  /**
+   * Gets the content type of the upstream response if its body is to be rewritten. A range of a
+   * body passes through as received, as it would have other offsets once rewritten.
+   *
+   * @param routes the routes
+   * @param request the downstream request
+   * @param status the upstream response status
+   * @param upstreamHeaders the upstream response headers
+   * @return the content type, or empty if the body passes through as received
+   */
+  private Optional<MediaType> getRewritableContentType(
+      RouteSnapshot routes,
+      ServerHttpRequest request,
+      HttpStatusCode status,
+      HttpHeaders upstreamHeaders) {
+    if (routes.rewriteDictionary().isEmpty()
+        || HttpMethod.HEAD.equals(request.getMethod())
+        || status.is1xxInformational()
+        || status.isSameCodeAs(HttpStatus.NO_CONTENT)
+        || status.isSameCodeAs(HttpStatus.PARTIAL_CONTENT)
+        || status.isSameCodeAs(HttpStatus.NOT_MODIFIED)) {
+      return Optional.empty();
+    }
+    return Optional.ofNullable(upstreamHeaders.getContentType())
+        .filter(relaySupport::isRewritable);
+  }
+
+  /**
+   * Signals that a request moves on to another upstream server, failing over right away or
+   * retrying after a backoff. Never leaves the relay.
+   */
+  private static final class NextUpstream extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final transient UpstreamTarget target;
+    private final int retry;
+    private final Duration backoff;
+
+    /**
+     * Constructor for the NextUpstream.
+     *
+     * @param target the upstream server to relay the request to
+     * @param retry the number of retries of the request, this one included
+     * @param retryPolicy the retry policy to take the backoff from, or null to fail over right
+     *     away
+     */
+    NextUpstream(UpstreamTarget target, int retry, RetryPolicy retryPolicy) {
+      super(null, null, false, false);
+      this.target = target;
+      this.retry = retry;
+      this.backoff = retryPolicy == null ? Duration.ZERO : retryPolicy.backoff(retry);
+    }
+  }
+}
@@ -0,0 +1,272 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services;
+
+import com.wilddiary.ws.services.buffer.BodyBuffer;
+import jakarta.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.StreamingHttpOutputMessage;
+import org.springframework.util.StreamUtils;
+
+/**
+ * Body of a relayed request. A streaming body is piped to the upstream request as it is read from
+ * the downstream request and can be written only once. A buffered body is held in memory, or in a
+ * {@link BodyBuffer}, and can be written any number of times, which callers opt into when the
+ * request may have to be resent.
+ */
+public abstract class RelayRequestBody implements StreamingHttpOutputMessage.Body {
+
+  /** A request without a body. */
+  public static final RelayRequestBody EMPTY = new Buffered(new byte[0]);
+
+  /**
+   * Gets the body of a downstream request. The body is streamed from the request input stream.
+   *
+   * @param request the downstream request
+   * @return the request body
+   * @throws IOException if an I/O error occurs
+   */
+  public static RelayRequestBody of(HttpServletRequest request) throws IOException {
+    long contentLength = request.getContentLengthLong();
+    if (contentLength == 0
+        || (contentLength < 0 && request.getHeader(HttpHeaders.TRANSFER_ENCODING) == null)) {
+      return EMPTY;
+    }
+    return streaming(request.getInputStream(), contentLength);
+  }
+
+  /**
+   * Creates a streaming body.
+   *
+   * @param inputStream the body input stream
+   * @param contentLength the body length, or -1 if unknown
+   * @return the request body
+   */
+  public static RelayRequestBody streaming(InputStream inputStream, long contentLength) {
+    return new Streaming(inputStream, contentLength);
+  }
+
+  /**
+   * Creates a buffered body.
+   *
+   * @param body the body bytes, may be null
+   * @return the request body
+   */
+  public static RelayRequestBody buffered(byte[] body) {
+    return body == null || body.length == 0 ? EMPTY : new Buffered(body);
+  }
+
+  /**
+   * Gets the body length.
+   *
+   * @return the body length, or -1 if unknown
+   */
+  public abstract long contentLength();
+
+  /**
+   * Whether the body can be written more than once.
+   *
+   * @return true if the body is repeatable
+   */
+  public abstract boolean isRepeatable();
+
+  /**
+   * Whether the body has been read, so that it cannot be written again.
+   *
+   * @return true if the body has been consumed
+   */
+  public abstract boolean isConsumed();
+
+  /**
+   * Whether the request has no body.
+   *
+   * @return true if the request has no body
+   */
+  public boolean isEmpty() {
+    return contentLength() == 0;
+  }
+
+  /**
+   * Writes the body to an output stream.
+   *
+   * @param outputStream the output stream
+   * @throws IOException if an I/O error occurs
+   */
+  @Override
+  public abstract void writeTo(OutputStream outputStream) throws IOException;
+
+  /**
+   * Whether the body can be written more than once.
+   *
+   * @return true if the body is repeatable
+   */
+  @Override
+  public boolean repeatable() {
+    return isRepeatable();
+  }
+
+  /**
+   * Gets a repeatable copy of the body. A streaming body is read fully into a buffer, which is
+   * released along with the copy; a repeatable body releases the buffer at once and is returned
+   * as it is.
+   *
+   * @param buffer the buffer to read the body into
+   * @return the repeatable body
+   * @throws IOException if an I/O error occurs, or the buffer has no space for the body
+   */
+  public abstract RelayRequestBody buffer(BodyBuffer buffer) throws IOException;
+
+  /** Releases the storage of the body once the request has been relayed. */
+  public void release() {
+    // Nothing held by default
+  }
+
+  /** A body streamed from an input stream. */
+  private static final class Streaming extends RelayRequestBody {
+    private final InputStream inputStream;
+    private final long contentLength;
+    private boolean consumed;
+
+    private Streaming(InputStream inputStream, long contentLength) {
+      this.inputStream = inputStream;
+      this.contentLength = contentLength;
+    }
+
+    @Override
+    public long contentLength() {
+      return contentLength;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+      return false;
+    }
+
+    @Override
+    public boolean isConsumed() {
+      return consumed;
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+      if (consumed) {
+        throw new IllegalStateException("Streaming request body has already been consumed");
+      }
+      consumed = true;
+      StreamUtils.copy(inputStream, outputStream);
+    }
+
+    @Override
+    public RelayRequestBody buffer(BodyBuffer buffer) throws IOException {
+      if (consumed) {
+        buffer.release();
+        throw new IllegalStateException("Streaming request body has already been consumed");
+      }
+      consumed = true;
+      try {
+        StreamUtils.copy(inputStream, buffer);
+        buffer.close();
+      } catch (IOException | RuntimeException e) {
+        buffer.release();
+        throw e;
+      }
+      return new Spooled(buffer);
+    }
+  }
+
+  /** A body read into a body buffer. */
+  private static final class Spooled extends RelayRequestBody {
+    private final BodyBuffer buffer;
+
+    private Spooled(BodyBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public long contentLength() {
+      return buffer.length();
+    }
+
+    @Override
+    public boolean isRepeatable() {
+      return true;
+    }
+
+    @Override
+    public boolean isConsumed() {
+      return false;
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+      buffer.writeTo(outputStream);
+    }
+
+    @Override
+    public RelayRequestBody buffer(BodyBuffer buffer) {
+      buffer.release();
+      return this;
+    }
+
+    @Override
+    public void release() {
+      buffer.release();
+    }
+  }
+
+  /** A body held in memory. */
+  private static final class Buffered extends RelayRequestBody {
+    private final byte[] body;
+
+    private Buffered(byte[] body) {
+      this.body = body;
+    }
+
+    @Override
+    public long contentLength() {
+      return body.length;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+      return true;
+    }
+
+    @Override
+    public boolean isConsumed() {
+      return false;
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+      outputStream.write(body);
+    }
+
+    @Override
+    public RelayRequestBody buffer(BodyBuffer buffer) {
+      buffer.release();
+      return this;
+    }
+  }
+}
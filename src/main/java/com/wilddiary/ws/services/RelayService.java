@@ -22,6 +22,7 @@ package com.wilddiary.ws.services;
 
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import org.springframework.http.HttpMethod;
 
 /** Service interface for relay server. */
@@ -33,11 +34,13 @@ public interface RelayService {
    * @param downstreamRequest the downstream request
    * @param downstreamResponse the downstream response
    * @param method the HTTP method
-   * @param body the request body
+   * @param body the request body, streamed to the upstream server unless buffered by the caller
+   * @throws IOException if the response cannot be written
    */
   void relayRequest(
       HttpServletRequest downstreamRequest,
       HttpServletResponse downstreamResponse,
       HttpMethod method,
-      byte[] body);
+      RelayRequestBody body)
+      throws IOException;
 }
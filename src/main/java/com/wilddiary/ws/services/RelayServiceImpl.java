@@ -20,201 +20,675 @@
 
 package com.wilddiary.ws.services;
 
+import com.wilddiary.ws.config.RelayProperties;
+import com.wilddiary.ws.services.breaker.CircuitBreaker;
+import com.wilddiary.ws.services.breaker.CircuitBreakers;
+import com.wilddiary.ws.services.buffer.BodyBuffers;
+import com.wilddiary.ws.services.buffer.BufferSpaceException;
+import com.wilddiary.ws.services.cache.CacheLookup;
+import com.wilddiary.ws.services.cache.CacheWriter;
+import com.wilddiary.ws.services.cache.CachedResponse;
+import com.wilddiary.ws.services.cache.ResponseCache;
+import com.wilddiary.ws.services.coalescing.Coalescing;
+import com.wilddiary.ws.services.coalescing.RequestCoalescer;
+import com.wilddiary.ws.services.encoding.ResponseEncoder;
+import com.wilddiary.ws.services.headers.HeaderRules;
+import com.wilddiary.ws.services.limits.ConcurrencyLimiter;
+import com.wilddiary.ws.services.limits.OverloadedException;
+import com.wilddiary.ws.services.metrics.ExchangeMetrics;
+import com.wilddiary.ws.services.metrics.MeteredInputStream;
+import com.wilddiary.ws.services.metrics.MeteredOutputStream;
+import com.wilddiary.ws.services.metrics.RelayMetrics;
+import com.wilddiary.ws.services.range.RangeLookup;
+import com.wilddiary.ws.services.range.RangeRepresentations;
+import com.wilddiary.ws.services.range.RepresentationWriter;
+import com.wilddiary.ws.services.retry.Retries;
+import com.wilddiary.ws.services.retry.RetryPolicy;
+import com.wilddiary.ws.services.rewrite.CompressedBodyScan;
+import com.wilddiary.ws.services.rewrite.RewriteScope;
+import com.wilddiary.ws.services.rewrite.UrlRewritingOutputStream;
+import com.wilddiary.ws.services.routing.RouteMatch;
+import com.wilddiary.ws.services.routing.RouteRegistry;
+import com.wilddiary.ws.services.routing.RouteSnapshot;
+import com.wilddiary.ws.services.routing.UpstreamPool;
+import com.wilddiary.ws.services.routing.UpstreamTarget;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.URI;
+import java.net.UnknownHostException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Enumeration;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Objects;
 import java.util.Optional;
-import java.util.Set;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.compress.compressors.CompressorException;
-import org.apache.commons.compress.compressors.CompressorInputStream;
 import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.apache.commons.compress.compressors.zstandard.ZstdUtils;
+import org.apache.hc.client5.http.ConnectTimeoutException;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.http.HttpEntity;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.StreamingHttpOutputMessage;
 import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StreamUtils;
 import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
 import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.ResponseExtractor;
 import org.springframework.web.client.RestTemplate;
-import org.springframework.web.util.UriComponentsBuilder;
 
 /** Service implementation for relay server. */
 @Service
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 @Slf4j
 class RelayServiceImpl implements RelayService {
 
+  // Compressed bytes a decoder may read while it is set up, before the body can no longer pass
+  // through unchanged
+  private static final int DECODER_MARK_LIMIT = 64 * 1024;
+
   private final String contextPath;
   private final String pathPrefix;
-  private final Map<String, String> contextMap;
-  private final Map<String, String> invertedContextMap;
-
-  // Set of mime types to rewrite URLs in the response body
-  private final Set<MediaType> mimeTypes =
-      new HashSet<>(
-          Set.of(
-              MediaType.parseMediaType("text/html"),
-              MediaType.parseMediaType("text/xml"),
-              MediaType.parseMediaType("application/xml"),
-              MediaType.parseMediaType("application/xhtml+xml"),
-              MediaType.parseMediaType("text/plain"),
-              MediaType.parseMediaType("text/css"),
-              MediaType.parseMediaType("application/javascript"),
-              MediaType.parseMediaType("application/json"),
-              MediaType.parseMediaType("application/rss+xml"),
-              MediaType.parseMediaType("application/atom+xml"),
-              MediaType.parseMediaType("application/rdf+xml"),
-              MediaType.parseMediaType("application/xml+rss"),
-              MediaType.parseMediaType("application/xml+atom"),
-              MediaType.parseMediaType("application/xml+rdf"),
-              MediaType.parseMediaType("application/xml+xml"),
-              MediaType.parseMediaType("application/xslt+xml")));
-
-  // Set of headers to carry over from the upstream response to the downstream response
-  private static final Set<String> CARRY_OVER_RESPONSE_HEADERS =
-      Set.of(
-          HttpHeaders.ACCEPT_RANGES.toLowerCase(),
-          HttpHeaders.CACHE_CONTROL.toLowerCase(),
-          HttpHeaders.CONTENT_DISPOSITION.toLowerCase(),
-          HttpHeaders.CONTENT_ENCODING.toLowerCase(),
-          HttpHeaders.CONTENT_TYPE.toLowerCase(),
-          HttpHeaders.CONTENT_RANGE.toLowerCase(),
-          HttpHeaders.DATE.toLowerCase(),
-          HttpHeaders.ETAG.toLowerCase(),
-          HttpHeaders.EXPIRES.toLowerCase(),
-          HttpHeaders.LAST_MODIFIED.toLowerCase(),
-          "Strict-Transport-Security".toLowerCase(),
-          "Referrer-Policy".toLowerCase());
+  private final RelaySupport relaySupport;
+  private final RouteRegistry routeRegistry;
+  private final ResponseCache responseCache;
+  private final RangeRepresentations rangeRepresentations;
+  private final BodyBuffers bodyBuffers;
+  private final RequestCoalescer requestCoalescer;
+  private final ConcurrencyLimiter concurrencyLimiter;
+  private final CircuitBreakers circuitBreakers;
+  private final Retries retries;
+  private final RequestHedger requestHedger;
+  private final ResponseEncoder responseEncoder;
+  private final RelayMetrics relayMetrics;
+  private final int passThroughScanLimit;
 
   private final RestTemplate restTemplate;
 
   /**
    * Constructor for the RelayServiceImpl.
    *
-   * @param contextMap the context mapping
+   * @param routeRegistry the route registry
    * @param contextPath the context path
    * @param strippablePathPrefix the strippable path prefix
-   * @param excludeMimeTypes the exclude mime types
+   * @param relaySupport the relay rules
+   * @param relayProperties the relay properties
+   * @param responseCache the response cache
+   * @param rangeRepresentations the rewritten representations serving range requests
+   * @param bodyBuffers the buffers holding request bodies to resend
+   * @param requestCoalescer the request coalescer
+   * @param concurrencyLimiter the concurrency limiter
+   * @param circuitBreakers the circuit breakers of the upstream servers
+   * @param retries the retry policies of the contexts
+   * @param requestHedger the request hedger
+   * @param relayMetrics the relay metrics
    * @param restTemplate the rest template
    */
   public RelayServiceImpl(
-      @Value("#{${relay.context.mapping}}") Map<String, String> contextMap,
+      RouteRegistry routeRegistry,
       @Value("#{servletContext.contextPath}") String contextPath,
       @Value("#{T(com.wilddiary.ws.controllers.RelayController).CONTROLLER_CONTEXT}")
           String strippablePathPrefix,
-      @Value(
-              "#{'${relay.rewrite-urls.exclude.mime-types:}'.trim().isEmpty() ? new String[] {} : "
-                  + "'${relay.rewrite-urls.exclude.mime-types:}'.split(',')}")
-          Set<MediaType> excludeMimeTypes,
+      RelaySupport relaySupport,
+      RelayProperties relayProperties,
+      ResponseCache responseCache,
+      RangeRepresentations rangeRepresentations,
+      BodyBuffers bodyBuffers,
+      RequestCoalescer requestCoalescer,
+      ConcurrencyLimiter concurrencyLimiter,
+      CircuitBreakers circuitBreakers,
+      Retries retries,
+      RequestHedger requestHedger,
+      RelayMetrics relayMetrics,
       RestTemplate restTemplate) {
-    this.contextMap = contextMap;
+    this.routeRegistry = routeRegistry;
+    this.responseCache = responseCache;
+    this.rangeRepresentations = rangeRepresentations;
+    this.bodyBuffers = bodyBuffers;
+    this.requestCoalescer = requestCoalescer;
+    this.concurrencyLimiter = concurrencyLimiter;
+    this.circuitBreakers = circuitBreakers;
+    this.retries = retries;
+    this.requestHedger = requestHedger;
+    this.relayMetrics = relayMetrics;
     this.pathPrefix = strippablePathPrefix;
+    this.relaySupport = relaySupport;
     this.restTemplate = restTemplate;
-    this.invertedContextMap = invertMap(contextMap);
+    this.responseEncoder = new ResponseEncoder(relayProperties.getCompression());
+    this.passThroughScanLimit =
+        (int) relayProperties.getRewriteUrls().getPassThroughScanLimit().toBytes();
     this.contextPath = contextPath;
-    this.mimeTypes.removeAll(excludeMimeTypes);
   }
 
   /**
-   * Relays a request. The request is relayed to the upstream server.
+   * Relays a request. The request is relayed to an upstream server of the route matching its path.
+   * If the server cannot be connected to before any of the body is sent, the request fails over
+   * to the other servers of the route, and idempotent requests are retried or hedged as the route
+   * allows. A request identical to one in flight is answered with the response to that one
+   * instead, and requests over the concurrency limit of their context wait
+   * for a turn or are shed. The exchange is recorded in the relay metrics once it ends.
    *
    * @param downstreamRequest the downstream request
    * @param downstreamResponse the downstream response
    * @param downstreamRequestMethod the downstream request method
    * @param downstreamBody the downstream body
+   * @throws IOException if the response cannot be written
    */
   @Override
   public void relayRequest(
       HttpServletRequest downstreamRequest,
       HttpServletResponse downstreamResponse,
       HttpMethod downstreamRequestMethod,
-      byte[] downstreamBody) {
+      RelayRequestBody downstreamBody)
+      throws IOException {
+    ExchangeMetrics metrics = relayMetrics.start();
+    try {
+      relayExchange(
+          metrics,
+          downstreamRequest,
+          downstreamResponse,
+          downstreamRequestMethod,
+          downstreamBody);
+      metrics.complete(downstreamResponse.getStatus());
+    } catch (IOException | RuntimeException e) {
+      metrics.fail(e);
+      throw e;
+    }
+  }
+
+  /**
+   * Relays a request, from the cache, the response to an identical request in flight, or the
+   * upstream servers of its route.
+   *
+   * @param metrics the metrics of the exchange
+   * @param downstreamRequest the downstream request
+   * @param downstreamResponse the downstream response
+   * @param downstreamRequestMethod the downstream request method
+   * @param downstreamBody the downstream body
+   * @throws IOException if the response cannot be written
+   */
+  private void relayExchange(
+      ExchangeMetrics metrics,
+      HttpServletRequest downstreamRequest,
+      HttpServletResponse downstreamResponse,
+      HttpMethod downstreamRequestMethod,
+      RelayRequestBody downstreamBody)
+      throws IOException {
     log.debug(
         "Received downstream request: {} {}",
         downstreamRequestMethod,
         downstreamRequest.getRequestURI());
 
-    // Build the upstream URL
-    String upstreamUrl =
-        buildUpstreamUrl(downstreamRequest)
+    // Use the same routes for the whole exchange, even if they are reloaded meanwhile
+    RouteSnapshot routes = routeRegistry.current();
+
+    // Match the request to a route
+    RouteMatch match =
+        matchRoute(routes, downstreamRequest)
             .orElseThrow(() -> new HttpClientErrorException(HttpStatus.NOT_FOUND));
+    metrics.route(match.route().context());
 
-    // Relay the request to the upstream server
-    log.debug("Relaying downstream request to {}", upstreamUrl);
-    restTemplate.execute(
-        upstreamUrl,
-        downstreamRequestMethod,
-        requestCallback(buildUpstreamRequest(downstreamRequest, downstreamBody)),
-        responseExtractor(downstreamRequest, downstreamResponse));
+    // Serve fresh responses from the cache
+    CacheLookup cacheLookup = responseCache.lookup(routes.version(), downstreamRequest);
+    Optional<CachedResponse> cachedResponse = cacheLookup.fresh();
+    if (cachedResponse.isPresent()) {
+      log.debug("Serving downstream request from the cache");
+      responseCache.serve(cachedResponse.get(), downstreamRequest, downstreamResponse);
+      return;
+    }
+
+    // Cut ranges of bodies URLs are rewritten in from the whole rewritten body
+    RangeLookup rangeLookup = rangeRepresentations.lookup(routes.version(), downstreamRequest);
+
+    // Share the response to an identical request in flight
+    Coalescing coalescing =
+        requestCoalescer.coalesce(routes.version(), downstreamRequest, !downstreamBody.isEmpty());
+    if (coalescing.isFollower()) {
+      if (coalescing.follow(downstreamRequest, downstreamResponse, responseCache)) {
+        log.debug("Served downstream request with the response to the identical one in flight");
+        return;
+      }
+      log.debug("Response to the identical request in flight not shared, relaying on its own");
+      coalescing = Coalescing.NONE;
+    }
+
+    // Wait for a turn if the context is at its limit of concurrent requests
+    ConcurrencyLimiter.Permit permit = ConcurrencyLimiter.Permit.NONE;
+    try {
+      permit = concurrencyLimiter.acquire(match.route().context());
+      relayUpstream(
+          metrics,
+          routes,
+          match,
+          cacheLookup,
+          rangeLookup,
+          coalescing,
+          downstreamRequest,
+          downstreamResponse,
+          downstreamRequestMethod,
+          downstreamBody);
+    } finally {
+      permit.release(metrics.upstreamLatencyNanos());
+      coalescing.end();
+    }
+  }
+
+  /**
+   * Relays a request to the upstream servers of its route, failing over to the next server while
+   * none of the request body has been sent. Servers whose circuit is open are skipped. Requests
+   * with an idempotent method are retried after a jittered backoff when no response arrived or the
+   * response has a retried status, as long as their body can be sent again and the retry budget
+   * of the context allows it; small bodies are buffered for that, and the request is shed if no
+   * buffer space is released in time. GET and HEAD requests are hedged if the route enables it. A
+   * range request answered with a range of a body URLs are rewritten in, or with a range not
+   * satisfiable, is sent again for the whole body.
+   *
+   * @param metrics the metrics of the exchange
+   * @param routes the routes
+   * @param match the route match of the request
+   * @param cacheLookup the cache lookup of the request
+   * @param rangeLookup the range lookup of the request
+   * @param coalescing the part the request takes in a shared upstream fetch
+   * @param downstreamRequest the downstream request
+   * @param downstreamResponse the downstream response
+   * @param downstreamRequestMethod the downstream request method
+   * @param downstreamBody the downstream body
+   * @throws IOException if a stale response cannot be written, or the body cannot be read
+   */
+  private void relayUpstream(
+      ExchangeMetrics metrics,
+      RouteSnapshot routes,
+      RouteMatch match,
+      CacheLookup cacheLookup,
+      RangeLookup rangeLookup,
+      Coalescing coalescing,
+      HttpServletRequest downstreamRequest,
+      HttpServletResponse downstreamResponse,
+      HttpMethod downstreamRequestMethod,
+      RelayRequestBody downstreamBody)
+      throws IOException {
+    HeaderRules headerRules = relaySupport.headerRules(match.route().context());
+    RetryPolicy retryPolicy = retries.policyFor(match.route().context());
+    retryPolicy.onRequest();
+    boolean retryable = retryPolicy.isRetryable(downstreamRequestMethod);
+    RelayRequestBody body = downstreamBody;
+    if (retryable
+        && !body.isRepeatable()
+        && body.contentLength() >= 0
+        && body.contentLength() <= retryPolicy.maxBodySize()) {
+      // Hold a small body so that the request can be sent again, shedding it if there is no space
+      try {
+        body = body.buffer(bodyBuffers.allocate(match.route().context(), true));
+      } catch (BufferSpaceException e) {
+        throw new OverloadedException(e.getMessage(), bodyBuffers.maxWait());
+      }
+    }
+    try {
+      relayToTargets(
+          metrics,
+          routes,
+          match,
+          cacheLookup,
+          rangeLookup,
+          coalescing,
+          downstreamRequest,
+          downstreamResponse,
+          downstreamRequestMethod,
+          retryPolicy,
+          retryable,
+          headerRules,
+          body);
+    } finally {
+      body.release();
+    }
+  }
+
+  /**
+   * Relays a request to the upstream servers of its route, as described for {@link
+   * #relayUpstream}.
+   *
+   * @param metrics the metrics of the exchange
+   * @param routes the routes
+   * @param match the route match of the request
+   * @param cacheLookup the cache lookup of the request
+   * @param rangeLookup the range lookup of the request
+   * @param coalescing the part the request takes in a shared upstream fetch
+   * @param downstreamRequest the downstream request
+   * @param downstreamResponse the downstream response
+   * @param downstreamRequestMethod the downstream request method
+   * @param retryPolicy the retry policy of the context
+   * @param retryable whether the request may be retried
+   * @param headerRules the rules of the headers relayed
+   * @param body the request body, repeatable if it was buffered
+   * @throws IOException if a stale response cannot be written
+   */
+  private void relayToTargets(
+      ExchangeMetrics metrics,
+      RouteSnapshot routes,
+      RouteMatch match,
+      CacheLookup cacheLookup,
+      RangeLookup rangeLookup,
+      Coalescing coalescing,
+      HttpServletRequest downstreamRequest,
+      HttpServletResponse downstreamResponse,
+      HttpMethod downstreamRequestMethod,
+      RetryPolicy retryPolicy,
+      boolean retryable,
+      HeaderRules headerRules,
+      RelayRequestBody body)
+      throws IOException {
+    RequestCallback requestCallback =
+        requestCallback(downstreamRequest, body, cacheLookup, rangeLookup, headerRules);
+    ResponseExtractor<Void> responseExtractor =
+        responseExtractor(
+            metrics,
+            routes,
+            match.route().context(),
+            headerRules,
+            relaySupport.rewriteScope(match.route().context()),
+            cacheLookup,
+            rangeLookup,
+            coalescing,
+            downstreamRequest,
+            downstreamResponse);
+    UpstreamPool pool = match.route().pool();
+    List<UpstreamTarget> triedTargets = new ArrayList<>(1);
+    int retry = 0;
+    Duration backoff = Duration.ZERO;
+    UpstreamTarget target = pool.choose();
+    while (target != null) {
+      UpstreamTarget currentTarget = target;
+      sleep(backoff);
+      backoff = Duration.ZERO;
+
+      // Skip the servers whose circuit is open, failing fast once none is left
+      Optional<CircuitBreaker.Call> call = circuitBreakers.tryCall(currentTarget);
+      if (call.isEmpty()) {
+        pool.cancel(currentTarget);
+        triedTargets.add(currentTarget);
+        target = pool.choose(triedTargets);
+        if (target == null) {
+          failFast(currentTarget, cacheLookup, downstreamRequest, downstreamResponse);
+        }
+        continue;
+      }
+      boolean hedged = retryPolicy.isHedged(downstreamRequestMethod) && body.isEmpty();
+      boolean failed = false;
+      try {
+        // Relay the request to the upstream server
+        URI upstreamUrl = match.upstreamUri(currentTarget, downstreamRequest.getQueryString());
+        log.debug("Relaying downstream request to {}", upstreamUrl);
+        metrics.upstream(currentTarget);
+        if (hedged) {
+          relayHedged(
+              metrics,
+              retryPolicy,
+              match,
+              pool,
+              triedTargets,
+              currentTarget,
+              call.get(),
+              downstreamRequest,
+              downstreamRequestMethod,
+              requestCallback,
+              responseExtractor);
+        } else {
+          restTemplate.execute(
+              upstreamUrl, downstreamRequestMethod, requestCallback, responseExtractor);
+        }
+        return;
+      } catch (WholeBodyRequired e) {
+        log.debug(
+            "Upstream {} answered a range of a body to rewrite, fetching it whole", currentTarget);
+        target = pool.choose();
+      } catch (HttpClientErrorException e) {
+        // The range may be past the end of the upstream body, but not of the rewritten one
+        if (!e.getStatusCode().isSameCodeAs(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+            || !rangeLookup.fetchWhole()) {
+          throw e;
+        }
+        log.debug(
+            "Upstream {} could not satisfy the range, fetching the body whole", currentTarget);
+        target = pool.choose();
+      } catch (HttpServerErrorException e) {
+        failed = true;
+        triedTargets.add(currentTarget);
+        target =
+            retryable
+                    && isResendable(body)
+                    && retryPolicy.isRetryableStatus(e.getStatusCode().value())
+                ? retryPolicy.retryTarget(pool, triedTargets, ++retry)
+                : null;
+        if (target == null) {
+          throw e;
+        }
+        backoff = retryPolicy.backoff(retry);
+        log.warn(
+            "Upstream {} answered {}, retrying on {}", currentTarget, e.getStatusCode(), target);
+      } catch (ResourceAccessException e) {
+        failed = isConnectFailure(e);
+        triedTargets.add(currentTarget);
+        target = failed && !body.isConsumed() ? pool.choose(triedTargets) : null;
+        if (target != null) {
+          log.warn("Failed to connect to upstream {}, failing over to {}", currentTarget, target);
+          continue;
+        }
+        // Retry the requests no response arrived for
+        target =
+            retryable && isResendable(body) && metrics.upstreamLatencyNanos() < 0
+                ? retryPolicy.retryTarget(pool, triedTargets, ++retry)
+                : null;
+        if (target == null) {
+          throw e;
+        }
+        backoff = retryPolicy.backoff(retry);
+        log.warn(
+            "Failed to relay to upstream {}, retrying on {}: {}",
+            currentTarget,
+            target,
+            e.getMessage());
+      } finally {
+        long latencyNanos = metrics.upstreamLatencyNanos();
+        retryPolicy.onResponse(latencyNanos);
+        if (!hedged) {
+          pool.complete(currentTarget, failed);
+          call.get().complete(latencyNanos, failed || latencyNanos < 0);
+        }
+      }
+    }
   }
 
   /**
-   * Builds the upstream request. The upstream request is the request that is relayed to the
-   * upstream server.
+   * Relays a hedged request, sent to a second upstream server if the first has not answered within
+   * the hedge delay. The first response to arrive is relayed.
    *
+   * @param metrics the metrics of the exchange
+   * @param retryPolicy the retry policy of the context
+   * @param match the route match of the request
+   * @param pool the upstream servers of the route
+   * @param triedTargets the upstream servers tried before
+   * @param target the upstream server to relay the request to first
+   * @param call the call let through the breaker of that server
    * @param downstreamRequest the downstream request
-   * @param downstreamRequestBody the downstream request body
-   * @return the upstream request
+   * @param downstreamRequestMethod the downstream request method
+   * @param requestCallback the callback writing the upstream request
+   * @param responseExtractor the extractor relaying the upstream response
+   */
+  private void relayHedged(
+      ExchangeMetrics metrics,
+      RetryPolicy retryPolicy,
+      RouteMatch match,
+      UpstreamPool pool,
+      List<UpstreamTarget> triedTargets,
+      UpstreamTarget target,
+      CircuitBreaker.Call call,
+      HttpServletRequest downstreamRequest,
+      HttpMethod downstreamRequestMethod,
+      RequestCallback requestCallback,
+      ResponseExtractor<Void> responseExtractor) {
+    RequestHedger.Attempt winner =
+        requestHedger.send(
+            retryPolicy,
+            pool,
+            triedTargets,
+            target,
+            call,
+            upstream -> match.upstreamUri(upstream, downstreamRequest.getQueryString()),
+            downstreamRequestMethod,
+            requestCallback);
+    metrics.upstream(winner.target(), winner.startNanos());
+    try (ClientHttpResponse upstreamResponse = winner.response()) {
+      responseExtractor.extractData(upstreamResponse);
+    } catch (IOException e) {
+      throw new ResourceAccessException(
+          "I/O error relaying the response of " + winner.target() + ": " + e.getMessage(), e);
+    } finally {
+      winner.complete(false, metrics.upstreamLatencyNanos());
+    }
+  }
+
+  /**
+   * Whether a request body can be sent again.
+   *
+   * @param body the request body
+   * @return true if the body is repeatable or has not been read yet
    */
-  private HttpEntity<byte[]> buildUpstreamRequest(
-      HttpServletRequest downstreamRequest, byte[] downstreamRequestBody) {
+  private static boolean isResendable(RelayRequestBody body) {
+    return body.isRepeatable() || !body.isConsumed();
+  }
 
-    // Copy headers from the downstream request
-    HttpHeaders headers = copyRequestHeaders(downstreamRequest);
-    return new HttpEntity<>(downstreamRequestBody, headers);
+  /**
+   * Waits out the backoff before a retry.
+   *
+   * @param backoff the backoff
+   */
+  private static void sleep(Duration backoff) {
+    if (backoff.isZero()) {
+      return;
+    }
+    try {
+      TimeUnit.NANOSECONDS.sleep(backoff.toNanos());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
   }
 
   /**
-   * Builds the upstream URL. The upstream URL is the URL of the upstream server.
+   * Answers a request whose upstream servers all have an open circuit, with a stale response from
+   * the cache if allowed, and with 503 Service Unavailable otherwise.
    *
+   * @param target the last upstream server rejecting the request
+   * @param cacheLookup the cache lookup of the request
    * @param downstreamRequest the downstream request
-   * @return the upstream URL
+   * @param downstreamResponse the downstream response
+   * @throws IOException if the stale response cannot be written
    */
-  private Optional<String> buildUpstreamUrl(HttpServletRequest downstreamRequest) {
-    String mappedContext = getContextPath(downstreamRequest);
-    Optional<String> mappedUrl = Optional.ofNullable(contextMap.get(mappedContext));
+  private void failFast(
+      UpstreamTarget target,
+      CacheLookup cacheLookup,
+      HttpServletRequest downstreamRequest,
+      HttpServletResponse downstreamResponse)
+      throws IOException {
+    Optional<CachedResponse> staleResponse =
+        circuitBreakers.isServeStale() ? cacheLookup.stale() : Optional.empty();
+    if (staleResponse.isEmpty()) {
+      throw circuitBreakers.rejection(target);
+    }
+    log.debug("Serving downstream request from the cache while the circuit to {} is open", target);
+    responseCache.serve(staleResponse.get(), downstreamRequest, downstreamResponse);
+  }
 
-    if (mappedUrl.isEmpty()) {
-      log.debug("No mapping found for context {}", mappedContext);
+  /**
+   * Whether an upstream request failed to connect to the upstream server. Nothing of the request
+   * has been sent in that case.
+   *
+   * @param e the exception of the request
+   * @return true if the connection failed
+   */
+  static boolean isConnectFailure(ResourceAccessException e) {
+    Throwable cause = e.getCause();
+    return cause instanceof ConnectException
+        || cause instanceof ConnectTimeoutException
+        || cause instanceof NoRouteToHostException
+        || cause instanceof UnknownHostException;
+  }
+
+  /**
+   * Matches the request to a route. The route is the one with the longest context matching the
+   * request path.
+   *
+   * @param routes the routes
+   * @param downstreamRequest the downstream request
+   * @return the route match, or empty if no context matches
+   */
+  private Optional<RouteMatch> matchRoute(
+      RouteSnapshot routes, HttpServletRequest downstreamRequest) {
+    String path = downstreamRequest.getRequestURI();
+    Optional<RouteMatch> match =
+        routes.routeTable().match(path, RelaySupport.relayPathStart(path, contextPath, pathPrefix));
+
+    if (match.isEmpty()) {
+      log.debug("No mapping found for path {}", path);
       return Optional.empty();
     }
 
-    log.debug("Found mapping for context {}: {}", mappedContext, mappedUrl.get());
-
-    return Optional.of(
-        UriComponentsBuilder.fromHttpUrl(mappedUrl.get() + stripMappedContext(downstreamRequest))
-            .query(downstreamRequest.getQueryString())
-            .build()
-            .toUriString());
+    log.debug("Found mapping for path {}: {}", path, match.get().route());
+    return match;
   }
 
   /**
    * Creates a request callback. The request callback relays the request to the upstream server.
+   * The headers are copied straight from the downstream request to the upstream one. The body is
+   * piped to the upstream request with a known length when the downstream request declared one,
+   * and chunked otherwise.
    *
-   * @param requestEntity the request entity
+   * @param downstreamRequest the downstream request
+   * @param body the downstream request body
+   * @param cacheLookup the cache lookup of the request
+   * @param rangeLookup the range lookup of the request
+   * @param headerRules the rules of the headers relayed
    * @return the request callback
    */
-  private RequestCallback requestCallback(HttpEntity<byte[]> requestEntity) {
+  private RequestCallback requestCallback(
+      HttpServletRequest downstreamRequest,
+      RelayRequestBody body,
+      CacheLookup cacheLookup,
+      RangeLookup rangeLookup,
+      HeaderRules headerRules) {
     return clientHttpRequest -> {
-      clientHttpRequest.getHeaders().putAll(requestEntity.getHeaders());
-      if (requestEntity.getBody() != null) {
-        StreamUtils.copy(requestEntity.getBody(), clientHttpRequest.getBody());
+      HttpHeaders headers = clientHttpRequest.getHeaders();
+      copyRequestHeaders(downstreamRequest, headerRules, headers);
+
+      // Revalidate a stale cached response
+      cacheLookup.addValidators(headers);
+
+      // Ask for the whole body to cut a range of the rewritten body from
+      rangeLookup.addValidators(headers);
+      if (!body.isEmpty()) {
+        if (body.contentLength() > 0) {
+          clientHttpRequest.getHeaders().setContentLength(body.contentLength());
+        }
+        if (clientHttpRequest instanceof StreamingHttpOutputMessage streamingRequest) {
+          // Written once connected, so the body is still unread if the connection fails
+          streamingRequest.setBody(body);
+        } else {
+          body.writeTo(clientHttpRequest.getBody());
+        }
       }
     };
   }
@@ -223,35 +697,235 @@ class RelayServiceImpl implements RelayService {
    * Creates a response extractor. The response extractor relays the response to the downstream
    * server.
    *
+   * @param metrics the metrics of the exchange
+   * @param routes the routes
+   * @param context the mapped context
+   * @param headerRules the rules of the headers relayed
+   * @param rewriteScope the parts of the response body URLs are rewritten in
+   * @param cacheLookup the cache lookup of the request
+   * @param rangeLookup the range lookup of the request
+   * @param coalescing the part the request takes in a shared upstream fetch
    * @param downstreamRequest the downstream request
    * @param downstreamResponse the downstream response
    * @return the response extractor
    */
   private ResponseExtractor<Void> responseExtractor(
-      HttpServletRequest downstreamRequest, HttpServletResponse downstreamResponse) {
+      ExchangeMetrics metrics,
+      RouteSnapshot routes,
+      String context,
+      HeaderRules headerRules,
+      RewriteScope rewriteScope,
+      CacheLookup cacheLookup,
+      RangeLookup rangeLookup,
+      Coalescing coalescing,
+      HttpServletRequest downstreamRequest,
+      HttpServletResponse downstreamResponse) {
     return upstreamResponse -> {
+      metrics.firstByte();
       log.debug(
           "Received upstream response with status {}", upstreamResponse.getStatusCode().value());
+
+      // Serve the cached response if the upstream server validated it
+      if (cacheLookup.isRevalidating()
+          && upstreamResponse.getStatusCode().isSameCodeAs(HttpStatus.NOT_MODIFIED)) {
+        log.debug("Cached response revalidated, serving it from the cache");
+        CachedResponse revalidated =
+            responseCache.revalidate(
+                cacheLookup,
+                upstreamResponse.getHeaders(),
+                headerRules.filterResponseHeaders(upstreamResponse.getHeaders()));
+        coalescing.share(revalidated);
+        coalescing.complete();
+        responseCache.serve(revalidated, downstreamRequest, downstreamResponse);
+        return null;
+      }
+
+      // Serve the range from the kept representation if the upstream server validated it
+      if (rangeLookup.isRevalidating()
+          && upstreamResponse.getStatusCode().isSameCodeAs(HttpStatus.NOT_MODIFIED)) {
+        log.debug("Rewritten representation revalidated, serving the range from it");
+        rangeRepresentations.serve(rangeLookup.stored(), rangeLookup, downstreamResponse);
+        return null;
+      }
       downstreamResponse.setStatus(upstreamResponse.getStatusCode().value());
 
       // Filter headers
-      HttpHeaders downstreamResponseHeaders = filterResponseHeaders(upstreamResponse.getHeaders());
+      HttpHeaders downstreamResponseHeaders =
+          headerRules.filterResponseHeaders(upstreamResponse.getHeaders());
 
       // rewrite redirection url, if mapped
-      handleRedirection(downstreamRequest, upstreamResponse, downstreamResponseHeaders);
+      handleRedirection(routes, downstreamRequest, upstreamResponse, downstreamResponseHeaders);
+
+      // Invalidate the cached responses the successful unsafe request may have changed
+      if (cacheLookup.isInvalidating()) {
+        responseCache.invalidate(
+            cacheLookup,
+            upstreamResponse.getStatusCode().value(),
+            getInvalidatedUrls(routes, downstreamRequest, upstreamResponse.getHeaders()));
+      }
 
-      // Apply headers to the downstream response
-      applyHeaders(downstreamResponseHeaders, downstreamResponse);
+      // Pass compressed bodies without any URL to rewrite through untouched
+      InputStream upstreamResponseBody = upstreamResponse.getBody();
+      String upstreamEncoding =
+          upstreamResponse.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING);
+      Optional<MediaType> rewritableContentType =
+          getRewritableContentType(routes, downstreamRequest, upstreamResponse);
+      if (rewritableContentType.isPresent()
+          && upstreamResponse.getStatusCode().isSameCodeAs(HttpStatus.PARTIAL_CONTENT)) {
+        // A range of the upstream body has other offsets once rewritten, fetch the whole body
+        if (rangeLookup.fetchWhole()) {
+          throw new WholeBodyRequired();
+        }
+        log.debug("Passing the range of the upstream body through without rewriting it");
+        rewritableContentType = Optional.empty();
+      }
+      if (rewritableContentType.isEmpty()
+          && rangeLookup.isFetchedWhole()
+          && upstreamResponse.getStatusCode().isSameCodeAs(HttpStatus.OK)) {
+        // The range the upstream server could not satisfy is past the end of the body as received
+        long length = upstreamResponse.getHeaders().getContentLength();
+        downstreamResponse.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+        if (length >= 0) {
+          downstreamResponse.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+        }
+        downstreamResponse.setContentLength(0);
+        return null;
+      }
+      if (rewritableContentType.isPresent()
+          && relaySupport.isCompressed(upstreamEncoding)
+          && passThroughScanLimit > 0) {
+        CompressedBodyScan scan =
+            scanCompressedResponseBody(
+                routes, upstreamResponseBody, upstreamEncoding, rewritableContentType.get());
+        upstreamResponseBody = scan.replay();
+        if (!scan.isDecodable()) {
+          log.warn("Cannot decode {} response body, passing it through.", upstreamEncoding);
+          rewritableContentType = Optional.empty();
+        } else if (scan.isMatchFree()) {
+          log.debug("No URLs to rewrite in compressed response body, passing it through.");
+          metrics.rewriteSkipped();
+          rewritableContentType = Optional.empty();
+        }
+      }
+
+      // Decode the response body if URLs are to be rewritten in it
+      MeteredInputStream meteredResponseBody = null;
+      Optional<InputStream> decodedResponseBody = Optional.empty();
+      if (rewritableContentType.isPresent()) {
+        meteredResponseBody = new MeteredInputStream(upstreamResponseBody);
+        upstreamResponseBody = meteredResponseBody;
+        BufferedInputStream markedResponseBody = null;
+        if (relaySupport.isCompressed(upstreamEncoding)) {
+          // Marked so that the body passes through unchanged if its decoder cannot be set up
+          markedResponseBody = new BufferedInputStream(meteredResponseBody);
+          markedResponseBody.mark(DECODER_MARK_LIMIT);
+          upstreamResponseBody = markedResponseBody;
+        }
+        decodedResponseBody = decodeResponseBody(upstreamResponseBody, upstreamEncoding);
+        if (decodedResponseBody.isEmpty() && markedResponseBody != null) {
+          markedResponseBody.reset();
+        }
+      }
+
+      // Negotiate the encoding of the rewritten response body, and tag it
+      String responseEncoding = ResponseEncoder.IDENTITY;
+      String relayUrl = getBaseUrl(downstreamRequest) + contextPath + pathPrefix;
+      Optional<RepresentationWriter> representationWriter = Optional.empty();
+      if (decodedResponseBody.isPresent()) {
+        responseEncoding =
+            responseEncoder.negotiate(
+                downstreamRequest.getHeader(HttpHeaders.ACCEPT_ENCODING),
+                upstreamResponse.getHeaders(),
+                downstreamResponseHeaders);
+        rangeRepresentations.tagRewritten(
+            upstreamResponse.getHeaders(),
+            downstreamResponseHeaders,
+            Long.toString(routes.version()),
+            relayUrl,
+            rewriteScope.toString(),
+            responseEncoding);
+        representationWriter =
+            rangeRepresentations.writer(
+                rangeLookup,
+                upstreamResponse.getStatusCode().value(),
+                upstreamResponse.getHeaders(),
+                downstreamResponseHeaders,
+                context);
+      } else {
+        relaySupport.carryOverContentLength(
+            HttpMethod.valueOf(downstreamRequest.getMethod()),
+            upstreamResponse.getHeaders(),
+            downstreamResponseHeaders);
+      }
+
+      // Apply headers to the downstream response, unless a range is cut from the body
+      if (representationWriter.isEmpty()) {
+        applyHeaders(downstreamResponseHeaders, downstreamResponse);
+      }
 
       log.debug("Relaying to downstream with headers {}", downstreamResponseHeaders);
 
-      // Rewrite URLs in the response body
-      InputStream upstreamResponseBodyInputStream =
-          rewriteUrlsInResponseBody(downstreamRequest, upstreamResponse);
+      // Share the response with identical requests in flight
+      coalescing.share(
+          upstreamResponse.getStatusCode().value(),
+          upstreamResponse.getHeaders(),
+          downstreamResponseHeaders);
 
-      // Stream the response
-      streamResponse(downstreamResponse, upstreamResponseBodyInputStream);
+      // Capture the body as sent downstream to serve it from the cache
+      Optional<CacheWriter> cacheWriter =
+          responseCache.writer(
+              cacheLookup,
+              upstreamResponse.getStatusCode().value(),
+              upstreamResponse.getHeaders(),
+              downstreamResponseHeaders,
+              context);
+      try {
+        OutputStream downstreamResponseBody = coalescing.tee(downstreamResponse.getOutputStream());
+        if (cacheWriter.isPresent()) {
+          downstreamResponseBody = cacheWriter.get().tee(downstreamResponseBody);
+        }
+        if (representationWriter.isPresent()) {
+          // Hold the whole rewritten body, or send it whole if it is too large to hold
+          OutputStream wholeResponseBody = downstreamResponseBody;
+          downstreamResponseBody =
+              representationWriter
+                  .get()
+                  .capture(
+                      () -> {
+                        applyHeaders(downstreamResponseHeaders, downstreamResponse);
+                        return wholeResponseBody;
+                      });
+        }
 
+        if (decodedResponseBody.isPresent()) {
+          // Rewrite URLs in the response body and encode it as negotiated
+          MeteredOutputStream meteredDownstreamBody =
+              new MeteredOutputStream(downstreamResponseBody);
+          OutputStream encodedResponseBody =
+              responseEncoder.encode(
+                  StreamUtils.nonClosing(meteredDownstreamBody), responseEncoding);
+          streamRewrittenResponse(
+              metrics,
+              meteredResponseBody,
+              decodedResponseBody.get(),
+              rewriteUrlsInResponseBody(
+                  routes, relayUrl, rewritableContentType.get(), rewriteScope, encodedResponseBody),
+              meteredDownstreamBody);
+        } else {
+          // Stream the response
+          streamResponse(metrics, upstreamResponseBody, downstreamResponseBody);
+        }
+
+        cacheWriter.ifPresent(CacheWriter::commit);
+        coalescing.complete();
+        if (representationWriter.isPresent()) {
+          representationWriter.get().complete(downstreamResponse);
+        }
+      } finally {
+        // Release the buffers of a body not written to the end
+        cacheWriter.ifPresent(CacheWriter::discard);
+        representationWriter.ifPresent(RepresentationWriter::discard);
+      }
       return null;
     };
   }
@@ -272,74 +946,23 @@ class RelayServiceImpl implements RelayService {
   }
 
   /**
-   * Strips the path prefixes. The path prefixes are the context path and the controller context.
-   *
-   * @param request the request
-   * @return the stripped path prefixes
-   */
-  private String stripPathPrefixes(HttpServletRequest request) {
-    String path = request.getServletPath();
-
-    // If the path is empty or just "/", return an empty string
-    if (path == null || path.isEmpty() || path.equals("/")) {
-      return "";
-    }
-
-    // strip the controller context from the path
-    return path.substring(path.indexOf(pathPrefix) + pathPrefix.length());
-  }
-
-  /**
-   * Gets the context path. The context path is the first segment of the path.
-   *
-   * @param request the request
-   * @return the context path
-   */
-  private String getContextPath(HttpServletRequest request) {
-
-    String path = stripPathPrefixes(request);
-
-    // Split the path into segments
-    String[] segments = path.split("/");
-
-    // The context path is typically the first segment
-    if (segments.length > 1) {
-      return "/" + segments[1];
-    } else {
-      return "";
-    }
-  }
-
-  /**
-   * Strips the mapped context. The mapped context is the context path that is mapped to the
-   * upstream server.
-   *
-   * @param request the request
-   * @return the stripped mapped context
-   */
-  private String stripMappedContext(HttpServletRequest request) {
-    String path = stripPathPrefixes(request);
-
-    String[] segments = path.split("/");
-    if (segments.length > 1) {
-      return path.substring(segments[1].length() + 1);
-    } else {
-      return path;
-    }
-  }
-
-  /**
-   * Copies request headers. The request headers are copied from the downstream request.
+   * Copies request headers. The request headers are copied from the downstream request, except for
+   * the headers the rules of the route do not relay.
    *
    * @param request the request
-   * @return the headers
+   * @param headerRules the rules of the headers relayed
+   * @param headers the headers of the upstream request
    */
-  private HttpHeaders copyRequestHeaders(HttpServletRequest request) {
-    HttpHeaders headers = new HttpHeaders();
+  private void copyRequestHeaders(
+      HttpServletRequest request, HeaderRules headerRules, HttpHeaders headers) {
+    String connection = request.getHeader(HttpHeaders.CONNECTION);
     Enumeration<String> headerNames = request.getHeaderNames();
 
     while (headerNames.hasMoreElements()) {
       String headerName = headerNames.nextElement();
+      if (!headerRules.isRelayedRequestHeader(headerName, connection)) {
+        continue;
+      }
       Enumeration<String> headerValues = request.getHeaders(headerName);
 
       while (headerValues.hasMoreElements()) {
@@ -347,73 +970,19 @@ class RelayServiceImpl implements RelayService {
         headers.add(headerName, headerValue);
       }
     }
-
-    return headers;
-  }
-
-  /**
-   * Filters response headers. The response headers are filtered to include only the headers that
-   * are to be carried over.
-   *
-   * @param headers the headers
-   * @return the filtered headers
-   */
-  private HttpHeaders filterResponseHeaders(HttpHeaders headers) {
-    HttpHeaders filteredHeaders = new HttpHeaders();
-
-    headers.forEach(
-        (key, values) -> {
-          if (CARRY_OVER_RESPONSE_HEADERS.contains(key.toLowerCase())) {
-            filteredHeaders.put(key, values);
-          }
-        });
-
-    return filteredHeaders;
-  }
-
-  /**
-   * Gets the relay URL for a URL. The relay URL is the URL that is relayed to the downstream
-   * server.
-   *
-   * @param baseUrl the base URL
-   * @param location the location
-   * @return the relay URL
-   */
-  private String getRelayUrlForUrl(String baseUrl, String location) {
-    for (Map.Entry<String, String> entry : invertedContextMap.entrySet()) {
-      if (location.startsWith(entry.getKey())) {
-        String strippedUrl = location.substring(entry.getKey().length());
-        return baseUrl + contextPath + pathPrefix + entry.getValue() + strippedUrl;
-      }
-    }
-    return location;
-  }
-
-  /**
-   * Inverts a map. The map is inverted such that the keys become the values and the values become
-   * the keys.
-   *
-   * @param sourceMap the source map
-   * @param <K> the key type
-   * @param <V> the value type
-   * @return the inverted map
-   */
-  private static <K, V> Map<V, K> invertMap(Map<K, V> sourceMap) {
-    return sourceMap.entrySet().stream()
-        .collect(
-            Collectors.toMap(
-                Map.Entry::getValue, Map.Entry::getKey, (oldValue, newValue) -> oldValue));
   }
 
   /**
    * Handles redirection. The redirection is handled by rewriting the URL.
    *
+   * @param routes the routes
    * @param downstreamRequest the downstream request
    * @param upstreamHttpResponse the upstream HTTP response
    * @param downstreamResponseHeaders the downstream response headers
    * @throws IOException if an I/O error occurs
    */
   private void handleRedirection(
+      RouteSnapshot routes,
       HttpServletRequest downstreamRequest,
       ClientHttpResponse upstreamHttpResponse,
       HttpHeaders downstreamResponseHeaders)
@@ -423,12 +992,52 @@ class RelayServiceImpl implements RelayService {
           .ifPresent(
               location -> {
                 String relayLocation =
-                    getRelayUrlForUrl(getBaseUrl(downstreamRequest), location.toString());
+                    relaySupport.getRelayUrlForUrl(
+                        routes,
+                        getBaseUrl(downstreamRequest) + contextPath + pathPrefix,
+                        location.toString());
                 downstreamResponseHeaders.put(HttpHeaders.LOCATION, List.of(relayLocation));
               });
     }
   }
 
+  /**
+   * Gets the relay URLs of the {@code Location} and {@code Content-Location} headers of an upstream
+   * response. Relative references resolve against the downstream request URL, as the relay paths
+   * mirror the upstream paths.
+   *
+   * @param routes the routes
+   * @param downstreamRequest the downstream request
+   * @param upstreamResponseHeaders the upstream response headers
+   * @return the relay URLs
+   */
+  private List<URI> getInvalidatedUrls(
+      RouteSnapshot routes,
+      HttpServletRequest downstreamRequest,
+      HttpHeaders upstreamResponseHeaders) {
+    List<URI> urls = new ArrayList<>(2);
+    for (String header : List.of(HttpHeaders.LOCATION, HttpHeaders.CONTENT_LOCATION)) {
+      String value = upstreamResponseHeaders.getFirst(header);
+      if (value == null) {
+        continue;
+      }
+      try {
+        URI url = URI.create(value.trim());
+        urls.add(
+            url.isAbsolute()
+                ? URI.create(
+                    relaySupport.getRelayUrlForUrl(
+                        routes,
+                        getBaseUrl(downstreamRequest) + contextPath + pathPrefix,
+                        url.toString()))
+                : URI.create(downstreamRequest.getRequestURL().toString()).resolve(url));
+      } catch (IllegalArgumentException e) {
+        log.debug("Not invalidating the cached responses of {} {}", header, value, e);
+      }
+    }
+    return urls;
+  }
+
   /**
    * Gets the base URL. The base URL is the URL of the server.
    *
@@ -440,51 +1049,107 @@ class RelayServiceImpl implements RelayService {
   }
 
   /**
-   * Rewrites URLs in the response body. The URLs are rewritten to point to the relay server.
+   * Gets the content type of the upstream response if its body is to be rewritten.
    *
+   * @param routes the routes
    * @param downstreamRequest the downstream request
    * @param upstreamResponse the upstream response
-   * @return the response body
+   * @return the content type, or empty if the body passes through as received
    * @throws IOException if an I/O error occurs
    */
-  private InputStream rewriteUrlsInResponseBody(
-      HttpServletRequest downstreamRequest, ClientHttpResponse upstreamResponse)
+  private Optional<MediaType> getRewritableContentType(
+      RouteSnapshot routes,
+      HttpServletRequest downstreamRequest,
+      ClientHttpResponse upstreamResponse)
       throws IOException {
-    Optional<MediaType> contentType =
-        Optional.ofNullable(upstreamResponse.getHeaders().getContentType());
-    if (contentType.isEmpty()) {
-      return upstreamResponse.getBody();
-    } else if (!contentType.get().isPresentIn(mimeTypes)) {
-      return upstreamResponse.getBody();
+    if (routes.rewriteDictionary().isEmpty()
+        || HttpMethod.HEAD.matches(downstreamRequest.getMethod())
+        || upstreamResponse.getStatusCode().is1xxInformational()
+        || upstreamResponse.getStatusCode().isSameCodeAs(HttpStatus.NO_CONTENT)
+        || upstreamResponse.getStatusCode().isSameCodeAs(HttpStatus.NOT_MODIFIED)) {
+      return Optional.empty();
     }
+    return Optional.ofNullable(upstreamResponse.getHeaders().getContentType())
+        .filter(relaySupport::isRewritable);
+  }
+
+  /**
+   * Scans a compressed upstream response body for URLs to rewrite.
+   *
+   * @param routes the routes
+   * @param responseBodyStream the compressed response body stream
+   * @param contentEncoding the content encoding
+   * @param contentType the content type of the response body
+   * @return the result of the scan
+   * @throws IOException if an I/O error occurs
+   */
+  private CompressedBodyScan scanCompressedResponseBody(
+      RouteSnapshot routes,
+      InputStream responseBodyStream,
+      String contentEncoding,
+      MediaType contentType)
+      throws IOException {
+    Charset charset = Optional.ofNullable(contentType.getCharset()).orElse(StandardCharsets.UTF_8);
+    return CompressedBodyScan.scan(
+        responseBodyStream,
+        compressedBody -> {
+          try {
+            return decompressResponseBody(compressedBody, contentEncoding)
+                .orElseThrow(() -> new IOException("Unsupported encoding " + contentEncoding));
+          } catch (CompressorException e) {
+            throw new IOException("Failed to decompress response body", e);
+          }
+        },
+        routes.rewriteDictionary().matcher(charset),
+        passThroughScanLimit);
+  }
 
-    // Read the response body
-    Charset charset =
-        Optional.ofNullable(contentType.get().getCharset()).orElse(StandardCharsets.UTF_8);
-    AtomicReference<InputStream> responseBodyStream =
-        new AtomicReference<>(upstreamResponse.getBody());
-    Optional.ofNullable(upstreamResponse.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING))
-        .ifPresent(
-            encoding -> {
-              try {
-                responseBodyStream.set(
-                    decompressResponseBody(upstreamResponse.getBody(), encoding));
-              } catch (CompressorException | IOException e) {
-                log.error("Failed to decompress response body", e);
-              }
-            });
-
-    String responseBody =
-        StreamUtils.copyToString(responseBodyStream.get(), Objects.requireNonNull(charset));
-
-    String relayUrl = getBaseUrl(downstreamRequest) + contextPath + pathPrefix;
-
-    for (Map.Entry<String, String> entry : invertedContextMap.entrySet()) {
-      responseBody = responseBody.replace(entry.getKey(), relayUrl + entry.getValue());
+  /**
+   * Decodes the upstream response body. The body is decompressed if it is compressed.
+   *
+   * @param responseBodyStream the response body stream
+   * @param contentEncoding the content encoding, may be null
+   * @return the decoded response body, or empty if the body cannot be decoded
+   */
+  private Optional<InputStream> decodeResponseBody(
+      InputStream responseBodyStream, String contentEncoding) {
+    if (contentEncoding == null || contentEncoding.equalsIgnoreCase(ResponseEncoder.IDENTITY)) {
+      return Optional.of(responseBodyStream);
+    }
+    try {
+      return decompressResponseBody(responseBodyStream, contentEncoding);
+    } catch (CompressorException e) {
+      log.error("Failed to decompress response body, passing it through as received", e);
+      return Optional.empty();
     }
+  }
 
-    // Replace all occurrences of the external host URL with the context path
-    return new ByteArrayInputStream(responseBody.getBytes(charset));
+  /**
+   * Rewrites URLs in the response body. The URLs are rewritten to point to the relay server as the
+   * body is streamed, matching all mapped upstream URLs in a single pass over the parts of the body
+   * in the rewrite scope.
+   *
+   * @param routes the routes
+   * @param relayUrl the URL of the relay, up to the mapped contexts
+   * @param contentType the content type of the response body
+   * @param rewriteScope the parts of the response body URLs are rewritten in
+   * @param downstreamResponseBody the downstream response body stream
+   * @return the stream to write the response body to
+   */
+  private UrlRewritingOutputStream rewriteUrlsInResponseBody(
+      RouteSnapshot routes,
+      String relayUrl,
+      MediaType contentType,
+      RewriteScope rewriteScope,
+      OutputStream downstreamResponseBody) {
+    Charset charset = Optional.ofNullable(contentType.getCharset()).orElse(StandardCharsets.UTF_8);
+    return routes
+        .rewriteDictionary()
+        .rewrite(
+            downstreamResponseBody,
+            charset,
+            relayUrl,
+            rewriteScope.newScanner(contentType, charset));
   }
 
   /**
@@ -492,43 +1157,110 @@ class RelayServiceImpl implements RelayService {
    *
    * @param responseBodyStream the response body stream
    * @param contentEncoding the content encoding
-   * @return the decompressed response body
+   * @return the decompressed response body, or empty if the encoding is not supported
    * @throws CompressorException if a compressor exception occurs
-   * @throws IOException if an I/O error occurs
    */
-  private InputStream decompressResponseBody(InputStream responseBodyStream, String contentEncoding)
-      throws CompressorException, IOException {
-    CompressorInputStream decompressedStream;
+  static Optional<InputStream> decompressResponseBody(
+      InputStream responseBodyStream, String contentEncoding) throws CompressorException {
     switch (contentEncoding.toLowerCase()) {
       case "gzip":
+      case "x-gzip":
+        return Optional.of(
+            new CompressorStreamFactory()
+                .createCompressorInputStream(CompressorStreamFactory.GZIP, responseBodyStream));
+      case "zstd":
+        if (!ZstdUtils.isZstdCompressionAvailable()) {
+          log.warn(
+              "Upstream response encoding <zstd> cannot be decoded without zstd-jni."
+                  + " Response content will pass through as received.");
+          return Optional.empty();
+        }
+        return Optional.of(
+            new CompressorStreamFactory()
+                .createCompressorInputStream(
+                    CompressorStreamFactory.ZSTANDARD, responseBodyStream));
       case "br":
       case "deflate":
-      case "zstd":
-        decompressedStream =
+        return Optional.of(
             new CompressorStreamFactory()
-                .createCompressorInputStream(contentEncoding, responseBodyStream);
-        break;
+                .createCompressorInputStream(
+                    contentEncoding.toLowerCase(), responseBodyStream));
       default:
-        // If the encoding is not supported, return the original stream
+        // If the encoding is not supported, the original stream passes through
         log.warn(
             "Upstream response encoding <{}> is not supported."
                 + " Response content will pass through as received.",
             contentEncoding);
-        return responseBodyStream;
+        return Optional.empty();
     }
-    return decompressedStream;
   }
 
   /**
-   * Streams the response. The response is streamed to the downstream server.
+   * Streams the response. The response is streamed to the downstream server as received.
    *
-   * @param servletResponse the servlet response
+   * @param metrics the metrics of the exchange
    * @param responseBodyStream the response body stream
+   * @param downstreamResponseBody the downstream response body stream
    * @throws IOException if an I/O error occurs
    */
-  private void streamResponse(HttpServletResponse servletResponse, InputStream responseBodyStream)
+  private void streamResponse(
+      ExchangeMetrics metrics, InputStream responseBodyStream, OutputStream downstreamResponseBody)
       throws IOException {
-    StreamUtils.copy(responseBodyStream, servletResponse.getOutputStream());
-    log.debug("Response streamed successfully.");
+    long transferred = BodyTransfer.transfer(responseBodyStream, downstreamResponseBody);
+    metrics.addUpstreamBytes(transferred);
+    metrics.addResponseBytes(transferred);
+    log.debug("Response streamed successfully, {} bytes.", transferred);
+  }
+
+  /**
+   * Streams a rewritten response. The rewriting stream is closed once the body is streamed, which
+   * writes the remaining rewritten bytes and finishes the response encoding. The time spent
+   * decompressing, and rewriting and encoding the body, is told apart from the time spent waiting
+   * on the upstream server and the client by the time spent reading and writing them.
+   *
+   * @param metrics the metrics of the exchange
+   * @param upstreamResponseBody the upstream response body stream, as received
+   * @param responseBodyStream the decoded response body stream
+   * @param rewritingOutputStream the rewriting output stream
+   * @param downstreamResponseBody the downstream response body stream, written once encoded
+   * @throws IOException if an I/O error occurs
+   */
+  private void streamRewrittenResponse(
+      ExchangeMetrics metrics,
+      MeteredInputStream upstreamResponseBody,
+      InputStream responseBodyStream,
+      UrlRewritingOutputStream rewritingOutputStream,
+      MeteredOutputStream downstreamResponseBody)
+      throws IOException {
+    metrics.rewriting(rewritingOutputStream);
+    MeteredInputStream decodedInput = new MeteredInputStream(responseBodyStream);
+    MeteredOutputStream rewritingOutput = new MeteredOutputStream(rewritingOutputStream);
+    try (rewritingOutput) {
+      StreamUtils.copy(decodedInput, rewritingOutput);
+    } finally {
+      metrics.addUpstreamBytes(upstreamResponseBody.getBytes());
+      metrics.addResponseBytes(downstreamResponseBody.getBytes());
+      if (responseBodyStream != upstreamResponseBody) {
+        metrics.addDecompressionNanos(decodedInput.getNanos() - upstreamResponseBody.getNanos());
+      }
+      metrics.addRewriteNanos(rewritingOutput.getNanos() - downstreamResponseBody.getNanos());
+    }
+    log.debug(
+        "Response streamed successfully with {} URLs rewritten.",
+        rewritingOutputStream.getReplacementCount());
+  }
+
+  /**
+   * Signals that the upstream server answered a range of a body URLs are rewritten in, which is
+   * fetched whole instead. Never leaves the relay.
+   */
+  private static final class WholeBodyRequired extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    /** Constructor for the WholeBodyRequired. */
+    WholeBodyRequired() {
+      super(null, null, false, false);
+    }
   }
 }
@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services;
+
+import com.wilddiary.ws.config.RelayProperties;
+import com.wilddiary.ws.services.headers.HeaderRules;
+import com.wilddiary.ws.services.rewrite.RewriteScope;
+import com.wilddiary.ws.services.routing.RouteSnapshot;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.compress.compressors.zstandard.ZstdUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+
+/**
+ * Rules of the relay shared by the servlet and reactive engines: which headers are relayed, which
+ * response bodies have their URLs rewritten, and how upstream URLs map back to relay URLs.
+ */
+@Component
+class RelaySupport {
+
+  // Set of upstream content encodings the relay can decode, zstd only with zstd-jni present
+  private static final Set<String> DECODABLE_ENCODINGS =
+      ZstdUtils.isZstdCompressionAvailable()
+          ? Set.of("gzip", "x-gzip", "br", "deflate", "zstd")
+          : Set.of("gzip", "x-gzip", "br", "deflate");
+
+  // Set of mime types to rewrite URLs in the response body
+  private final Set<MediaType> mimeTypes =
+      new HashSet<>(
+          Set.of(
+              MediaType.parseMediaType("text/html"),
+              MediaType.parseMediaType("text/xml"),
+              MediaType.parseMediaType("application/xml"),
+              MediaType.parseMediaType("application/xhtml+xml"),
+              MediaType.parseMediaType("text/plain"),
+              MediaType.parseMediaType("text/css"),
+              MediaType.parseMediaType("application/javascript"),
+              MediaType.parseMediaType("application/json"),
+              MediaType.parseMediaType("application/rss+xml"),
+              MediaType.parseMediaType("application/atom+xml"),
+              MediaType.parseMediaType("application/rdf+xml"),
+              MediaType.parseMediaType("application/xml+rss"),
+              MediaType.parseMediaType("application/xml+atom"),
+              MediaType.parseMediaType("application/xml+rdf"),
+              MediaType.parseMediaType("application/xml+xml"),
+              MediaType.parseMediaType("application/xslt+xml")));
+
+  private final RelayProperties relayProperties;
+
+  // Header rules and rewrite scope of each context, resolved on first use
+  private final Map<String, HeaderRules> headerRules = new ConcurrentHashMap<>();
+  private final Map<String, RewriteScope> rewriteScopes = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor for the RelaySupport.
+   *
+   * @param relayProperties the relay properties
+   * @param excludeMimeTypes the mime types not to rewrite URLs in
+   */
+  RelaySupport(
+      RelayProperties relayProperties,
+      @Value(
+              "#{'${relay.rewrite-urls.exclude.mime-types:}'.trim().isEmpty() ? new String[] {} : "
+                  + "'${relay.rewrite-urls.exclude.mime-types:}'.split(',')}")
+          Set<MediaType> excludeMimeTypes) {
+    this.relayProperties = relayProperties;
+    this.mimeTypes.removeAll(excludeMimeTypes);
+  }
+
+  /**
+   * Gets the rules of the headers relayed for a context.
+   *
+   * @param context the mapped context
+   * @return the header rules
+   */
+  HeaderRules headerRules(String context) {
+    return headerRules.computeIfAbsent(
+        context, key -> new HeaderRules(relayProperties.headersFor(key)));
+  }
+
+  /**
+   * Gets the parts of the response bodies of a context in which URLs are rewritten.
+   *
+   * @param context the mapped context
+   * @return the rewrite scope
+   */
+  RewriteScope rewriteScope(String context) {
+    return rewriteScopes.computeIfAbsent(
+        context,
+        key ->
+            relayProperties.getRewriteUrls().isStructural()
+                ? RewriteScope.structural(relayProperties.routeFor(key).getRewriteJsonPointers())
+                : RewriteScope.WHOLE_BODY);
+  }
+
+  /**
+   * Carries the length of an upstream response body over to the downstream response, for bodies
+   * relayed as received. Such bodies are then sent with a fixed length rather than chunked.
+   *
+   * @param method the downstream request method
+   * @param upstreamHeaders the upstream response headers
+   * @param downstreamHeaders the downstream response headers
+   */
+  void carryOverContentLength(
+      HttpMethod method, HttpHeaders upstreamHeaders, HttpHeaders downstreamHeaders) {
+    if (HttpMethod.HEAD.equals(method) && isRewritable(upstreamHeaders.getContentType())) {
+      // The body of the same request with GET may be rewritten to another length
+      return;
+    }
+    long contentLength = upstreamHeaders.getContentLength();
+    if (contentLength >= 0 && !upstreamHeaders.containsKey(HttpHeaders.TRANSFER_ENCODING)) {
+      downstreamHeaders.setContentLength(contentLength);
+    }
+  }
+
+  /**
+   * Whether URLs are rewritten in response bodies of a content type.
+   *
+   * @param contentType the content type, may be null
+   * @return true if the body is rewritten
+   */
+  boolean isRewritable(MediaType contentType) {
+    return contentType != null && contentType.isPresentIn(mimeTypes);
+  }
+
+  /**
+   * Whether an upstream response body is compressed with a supported encoding.
+   *
+   * @param contentEncoding the content encoding of the upstream response
+   * @return true if the body is compressed
+   */
+  boolean isCompressed(String contentEncoding) {
+    return contentEncoding != null && DECODABLE_ENCODINGS.contains(contentEncoding.toLowerCase());
+  }
+
+  /**
+   * Gets the relay URL for a URL. The relay URL is the URL that is relayed to the downstream
+   * server.
+   *
+   * @param routes the routes
+   * @param relayUrl the URL of the relay, up to the mapped contexts
+   * @param location the location
+   * @return the relay URL
+   */
+  String getRelayUrlForUrl(RouteSnapshot routes, String relayUrl, String location) {
+    for (Map.Entry<String, String> entry : routes.invertedContextMap().entrySet()) {
+      if (location.startsWith(entry.getKey())) {
+        String strippedUrl = location.substring(entry.getKey().length());
+        return relayUrl + entry.getValue() + strippedUrl;
+      }
+    }
+    return location;
+  }
+
+  /**
+   * Gets the start of the path relative to the relay. The path starts after the context path and
+   * the controller context.
+   *
+   * @param path the raw request path
+   * @param contextPath the context path
+   * @param pathPrefix the controller context
+   * @return the start of the path relative to the relay
+   */
+  static int relayPathStart(String path, String contextPath, String pathPrefix) {
+    int from = path.startsWith(contextPath) ? contextPath.length() : 0;
+    int prefixAt = path.indexOf(pathPrefix, from);
+    return prefixAt < 0 ? from : prefixAt + pathPrefix.length();
+  }
+}
@@ -0,0 +1,449 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services;
+
+import com.wilddiary.ws.config.AbortableClientHttpRequest;
+import com.wilddiary.ws.config.RelayProperties;
+import com.wilddiary.ws.services.breaker.CircuitBreaker;
+import com.wilddiary.ws.services.breaker.CircuitBreakers;
+import com.wilddiary.ws.services.retry.RetryPolicy;
+import com.wilddiary.ws.services.routing.UpstreamPool;
+import com.wilddiary.ws.services.routing.UpstreamTarget;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
+import org.springframework.boot.autoconfigure.thread.Threading;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.stereotype.Component;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.ResponseErrorHandler;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * Hedges upstream requests of the servlet engine. A request is sent to a second upstream server
+ * once the first has not answered within the hedge delay, and the first response to arrive is
+ * relayed. The attempts are sent on threads of their own so that the request thread can wait for
+ * both: virtual threads of the shared task executor when the relay runs on virtual threads, and
+ * otherwise a pool of at most as many threads as upstream connections. The request losing the race
+ * is aborted, closing its connection or resetting its stream rather than reading its response.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@Slf4j
+class RequestHedger {
+
+  private final RestTemplate restTemplate;
+  private final CircuitBreakers circuitBreakers;
+  private final Executor executor;
+  private final ExecutorService pool;
+
+  /**
+   * Constructor for the RequestHedger.
+   *
+   * @param restTemplate the rest template
+   * @param circuitBreakers the circuit breakers of the upstream servers
+   * @param relayProperties the relay properties
+   * @param environment the environment, telling whether the relay runs on virtual threads
+   * @param applicationTaskExecutor the shared task executor
+   */
+  RequestHedger(
+      RestTemplate restTemplate,
+      CircuitBreakers circuitBreakers,
+      RelayProperties relayProperties,
+      Environment environment,
+      @Qualifier(TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME)
+          ObjectProvider<Executor> applicationTaskExecutor) {
+    this.restTemplate = restTemplate;
+    this.circuitBreakers = circuitBreakers;
+    Executor virtualThreads =
+        Threading.VIRTUAL.isActive(environment) ? applicationTaskExecutor.getIfAvailable() : null;
+    if (virtualThreads != null) {
+      this.executor = virtualThreads;
+      this.pool = null;
+      return;
+    }
+    int maxThreads = relayProperties.getUpstream().getMaxConnectionsTotal();
+    AtomicInteger threads = new AtomicInteger();
+    ThreadPoolExecutor threadPool =
+        new ThreadPoolExecutor(
+            maxThreads,
+            maxThreads,
+            60,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            runnable -> {
+              Thread thread = new Thread(runnable, "relay-hedge-" + threads.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+    threadPool.allowCoreThreadTimeOut(true);
+    this.executor = threadPool;
+    this.pool = threadPool;
+  }
+
+  /** Stops the attempts in flight. */
+  @PreDestroy
+  void shutdown() {
+    if (pool != null) {
+      pool.shutdownNow();
+    }
+  }
+
+  /**
+   * Sends a request to an upstream server, hedging it to another server if the first has not
+   * answered within the hedge delay of its context. Attempts failing with a 5xx response or an I/O
+   * error leave the race to the other one. The outcome of every attempt but the winning one is
+   * recorded here; the caller records the winning one once it has relayed its response.
+   *
+   * @param retryPolicy the retry policy of the context
+   * @param pool the upstream servers of the route
+   * @param triedTargets the upstream servers tried before, to which the servers of the attempts are
+   *     added
+   * @param target the upstream server to send the request to first
+   * @param call the call let through the breaker of that server
+   * @param upstreamUri the upstream URI of the request on a server
+   * @param method the request method
+   * @param requestCallback the callback writing the request
+   * @return the winning attempt, with the response to relay
+   * @throws HttpServerErrorException if all attempts were answered with a 5xx status, or another
+   *     {@link org.springframework.web.client.RestClientException} if the last one failed with it
+   */
+  Attempt send(
+      RetryPolicy retryPolicy,
+      UpstreamPool pool,
+      List<UpstreamTarget> triedTargets,
+      UpstreamTarget target,
+      CircuitBreaker.Call call,
+      Function<UpstreamTarget, URI> upstreamUri,
+      HttpMethod method,
+      RequestCallback requestCallback) {
+    List<Attempt> pending = new ArrayList<>(2);
+    triedTargets.add(target);
+    pending.add(start(pool, target, call, upstreamUri.apply(target), method, requestCallback));
+    long hedgeDelay = retryPolicy.hedgeDelayNanos();
+    boolean hedged = false;
+    RuntimeException failure = null;
+    while (!pending.isEmpty()) {
+      // Wait for the first attempt to end, or for the hedge delay
+      boolean timedOut = !awaitAny(pending, hedged ? -1 : hedgeDelay);
+      if (timedOut) {
+        hedged = true;
+        hedge(retryPolicy, pool, triedTargets, upstreamUri, method, requestCallback)
+            .ifPresent(pending::add);
+        continue;
+      }
+      for (Attempt attempt : List.copyOf(pending)) {
+        if (!attempt.response.isDone()) {
+          continue;
+        }
+        pending.remove(attempt);
+        Optional<RuntimeException> attemptFailure = attempt.failure();
+        if (attemptFailure.isEmpty() || !isRetryable(attemptFailure.get())) {
+          // The winner, whose response or final error is relayed
+          pending.forEach(Attempt::discard);
+          if (attemptFailure.isPresent()) {
+            attempt.complete(false, attempt.latencyNanos);
+            throw attemptFailure.get();
+          }
+          return attempt;
+        }
+        failure = attemptFailure.get();
+        attempt.fail(failure);
+      }
+    }
+    throw failure;
+  }
+
+  /**
+   * Starts the hedged attempt of a request, on a server other than the first one if the route has
+   * any, if the retry budget of the context and the breaker of the server allow it.
+   *
+   * @param retryPolicy the retry policy of the context
+   * @param pool the upstream servers of the route
+   * @param triedTargets the upstream servers tried before
+   * @param upstreamUri the upstream URI of the request on a server
+   * @param method the request method
+   * @param requestCallback the callback writing the request
+   * @return the hedged attempt, or empty if none is sent
+   */
+  private Optional<Attempt> hedge(
+      RetryPolicy retryPolicy,
+      UpstreamPool pool,
+      List<UpstreamTarget> triedTargets,
+      Function<UpstreamTarget, URI> upstreamUri,
+      HttpMethod method,
+      RequestCallback requestCallback) {
+    if (!retryPolicy.tryHedge()) {
+      return Optional.empty();
+    }
+    UpstreamTarget target = pool.choose(triedTargets);
+    if (target == null) {
+      target = pool.choose();
+    }
+    Optional<CircuitBreaker.Call> call = circuitBreakers.tryCall(target);
+    if (call.isEmpty()) {
+      pool.cancel(target);
+      return Optional.empty();
+    }
+    log.debug("Hedging downstream request to {}", target);
+    triedTargets.add(target);
+    return Optional.of(
+        start(pool, target, call.get(), upstreamUri.apply(target), method, requestCallback));
+  }
+
+  /**
+   * Sends an attempt on a thread of its own.
+   *
+   * @param pool the upstream servers of the route
+   * @param target the upstream server
+   * @param call the call let through the breaker of the server
+   * @param uri the upstream URI
+   * @param method the request method
+   * @param requestCallback the callback writing the request
+   * @return the attempt
+   */
+  private Attempt start(
+      UpstreamPool pool,
+      UpstreamTarget target,
+      CircuitBreaker.Call call,
+      URI uri,
+      HttpMethod method,
+      RequestCallback requestCallback) {
+    Attempt attempt = new Attempt(pool, target, call);
+    try {
+      attempt.response.completeAsync(() -> fetch(attempt, uri, method, requestCallback), executor);
+    } catch (RuntimeException e) {
+      attempt.response.completeExceptionally(e);
+    }
+    return attempt;
+  }
+
+  /**
+   * Sends a request and receives the head of its response, handling error statuses the way the
+   * {@link RestTemplate} does.
+   *
+   * @param attempt the attempt
+   * @param uri the upstream URI
+   * @param method the request method
+   * @param requestCallback the callback writing the request
+   * @return the response
+   */
+  private ClientHttpResponse fetch(
+      Attempt attempt, URI uri, HttpMethod method, RequestCallback requestCallback) {
+    try {
+      ClientHttpRequest request = restTemplate.getRequestFactory().createRequest(uri, method);
+      attempt.request = request;
+      if (attempt.aborted) {
+        attempt.abort();
+      }
+      requestCallback.doWithRequest(request);
+      ClientHttpResponse response = request.execute();
+      attempt.latencyNanos = System.nanoTime() - attempt.startNanos;
+      ResponseErrorHandler errorHandler = restTemplate.getErrorHandler();
+      if (errorHandler.hasError(response)) {
+        try (response) {
+          errorHandler.handleError(uri, method, response);
+        }
+      }
+      return response;
+    } catch (IOException e) {
+      throw new ResourceAccessException(
+          "I/O error on " + method.name() + " request for \"" + uri + "\": " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Waits for any of the attempts to end.
+   *
+   * @param attempts the attempts
+   * @param timeoutNanos the time to wait at most in nanoseconds, or -1 to wait until one ends
+   * @return true if an attempt ended, false if the time ran out
+   */
+  private static boolean awaitAny(List<Attempt> attempts, long timeoutNanos) {
+    CompletableFuture<?> any =
+        CompletableFuture.anyOf(
+            attempts.stream().map(attempt -> attempt.response).toArray(CompletableFuture[]::new));
+    try {
+      if (timeoutNanos < 0) {
+        any.get();
+      } else {
+        any.get(timeoutNanos, TimeUnit.NANOSECONDS);
+      }
+      return true;
+    } catch (ExecutionException e) {
+      return true;
+    } catch (TimeoutException e) {
+      return false;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      attempts.forEach(Attempt::discard);
+      throw new ResourceAccessException(
+          "Interrupted while waiting for the upstream response", new InterruptedIOException());
+    }
+  }
+
+  /**
+   * Whether an attempt failed in a way the other attempt may still make up for.
+   *
+   * @param failure the failure of the attempt
+   * @return true if the failure is a 5xx response or an I/O error
+   */
+  private static boolean isRetryable(RuntimeException failure) {
+    return failure instanceof HttpServerErrorException
+        || failure instanceof ResourceAccessException;
+  }
+
+  /** An attempt of a hedged request, sent to one upstream server. */
+  static final class Attempt {
+
+    private final UpstreamPool pool;
+    private final UpstreamTarget target;
+    private final CircuitBreaker.Call call;
+    private final long startNanos = System.nanoTime();
+    private final CompletableFuture<ClientHttpResponse> response = new CompletableFuture<>();
+    private volatile long latencyNanos = -1;
+    private volatile ClientHttpRequest request;
+    private volatile boolean aborted;
+
+    private Attempt(UpstreamPool pool, UpstreamTarget target, CircuitBreaker.Call call) {
+      this.pool = pool;
+      this.target = target;
+      this.call = call;
+    }
+
+    /**
+     * Gets the upstream server of the attempt.
+     *
+     * @return the upstream server
+     */
+    UpstreamTarget target() {
+      return target;
+    }
+
+    /**
+     * Gets the time the attempt was sent.
+     *
+     * @return the time, in {@link System#nanoTime()} units
+     */
+    long startNanos() {
+      return startNanos;
+    }
+
+    /**
+     * Gets the response of a successful attempt.
+     *
+     * @return the response
+     */
+    ClientHttpResponse response() {
+      return response.join();
+    }
+
+    /**
+     * Records the outcome of the attempt in its pool and breaker.
+     *
+     * @param failed whether the attempt failed with a 5xx response or could not connect
+     * @param latencyNanos the time to the head of the response in nanoseconds, or -1 if the
+     *     server did not answer
+     */
+    void complete(boolean failed, long latencyNanos) {
+      pool.complete(target, failed);
+      call.complete(latencyNanos, failed || latencyNanos < 0);
+    }
+
+    private Optional<RuntimeException> failure() {
+      try {
+        response.join();
+        return Optional.empty();
+      } catch (CompletionException e) {
+        return Optional.of(unwrap(e));
+      }
+    }
+
+    private void fail(RuntimeException failure) {
+      boolean failed =
+          failure instanceof HttpServerErrorException
+              || failure instanceof ResourceAccessException resourceAccess
+                  && RelayServiceImpl.isConnectFailure(resourceAccess);
+      complete(failed, -1);
+    }
+
+    /**
+     * Aborts the attempt, recording its outcome once it ends. An attempt aborted before its
+     * response arrived leaves no outcome, as the server was not given the time to answer.
+     */
+    private void discard() {
+      aborted = true;
+      abort();
+      response.whenComplete(
+          (discarded, failure) -> {
+            if (discarded != null) {
+              discarded.close();
+              complete(false, latencyNanos);
+            } else if (latencyNanos < 0) {
+              pool.cancel(target);
+              call.cancel();
+            } else {
+              fail(unwrap(failure));
+            }
+          });
+    }
+
+    /** Aborts the request of the attempt if it was created and can be aborted. */
+    private void abort() {
+      if (request instanceof AbortableClientHttpRequest abortable) {
+        abortable.abort();
+      }
+    }
+
+    private static RuntimeException unwrap(Throwable failure) {
+      Throwable cause = failure instanceof CompletionException ? failure.getCause() : failure;
+      return cause instanceof RuntimeException runtime
+          ? runtime
+          : new IllegalStateException(cause);
+    }
+  }
+}
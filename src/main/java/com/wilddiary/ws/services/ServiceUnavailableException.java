@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services;
+
+import java.time.Duration;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * Rejection of a request answered with 503 Service Unavailable and a {@code Retry-After} header
+ * telling the client when to try again, in whole seconds rounded up.
+ */
+public class ServiceUnavailableException extends ResponseStatusException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final HttpHeaders headers;
+
+  /**
+   * Constructor for the ServiceUnavailableException.
+   *
+   * @param reason the reason the request is rejected
+   * @param retryAfter the time the client should wait before retrying the request
+   */
+  public ServiceUnavailableException(String reason, Duration retryAfter) {
+    super(HttpStatus.SERVICE_UNAVAILABLE, reason);
+    HttpHeaders retryHeaders = new HttpHeaders();
+    long seconds = Math.max(1, retryAfter.plusNanos(999_999_999).toSeconds());
+    retryHeaders.set(HttpHeaders.RETRY_AFTER, Long.toString(seconds));
+    this.headers = HttpHeaders.readOnlyHttpHeaders(retryHeaders);
+  }
+
+  @Override
+  public HttpHeaders getHeaders() {
+    return headers;
+  }
+}
@@ -0,0 +1,362 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.breaker;
+
+import com.wilddiary.ws.config.RelayProperties;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Optional;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The circuit breaker of an upstream server. The outcomes of the requests relayed to the server
+ * are counted in a rolling window of buckets; once the failure or slow-call rate of the window
+ * reaches its threshold, the breaker opens and rejects requests until the open duration has
+ * passed. It then half-opens and lets a few probe requests through, closing again once they all
+ * succeed and opening again as soon as one does not.
+ *
+ * <p>Outcomes of requests let through before the last transition are ignored, so requests in
+ * flight when the breaker opens do not count against the probes.
+ */
+@Slf4j
+public final class CircuitBreaker {
+
+  private static final int BUCKETS = 10;
+  private static final int TRANSITIONS = 10;
+
+  private final String upstream;
+  private final long bucketNanos;
+  private final int minimumCalls;
+  private final int failureRateThreshold;
+  private final long slowCallNanos;
+  private final int slowCallRateThreshold;
+  private final long openNanos;
+  private final int halfOpenCalls;
+
+  // Rolling window, as ring buffers indexed by the bucket number
+  private final long[] bucketNumbers = new long[BUCKETS];
+  private final int[] calls = new int[BUCKETS];
+  private final int[] failures = new int[BUCKETS];
+  private final int[] slowCalls = new int[BUCKETS];
+
+  private final Deque<Transition> transitions = new ArrayDeque<>(TRANSITIONS);
+  private State state = State.CLOSED;
+  private long generation;
+  private long openedAt;
+  private int probes;
+  private int probeSuccesses;
+
+  /**
+   * Constructor for the CircuitBreaker.
+   *
+   * @param upstream the upstream server, its scheme, host and port
+   * @param settings the circuit breaker settings
+   */
+  CircuitBreaker(String upstream, RelayProperties.CircuitBreaker settings) {
+    this.upstream = upstream;
+    this.bucketNanos = Math.max(1, settings.getWindow().toNanos() / BUCKETS);
+    this.minimumCalls = Math.max(1, settings.getMinimumCalls());
+    this.failureRateThreshold = settings.getFailureRateThreshold();
+    this.slowCallNanos = settings.getSlowCallDuration().toNanos();
+    this.slowCallRateThreshold = settings.getSlowCallRateThreshold();
+    this.openNanos = settings.getOpenDuration().toNanos();
+    this.halfOpenCalls = Math.max(1, settings.getHalfOpenCalls());
+  }
+
+  /**
+   * Lets a request through to the upstream server, if the breaker allows it.
+   *
+   * @return the call, to be completed with its outcome, or empty if the breaker rejects it
+   */
+  public synchronized Optional<Call> tryCall() {
+    long now = System.nanoTime();
+    if (state == State.OPEN) {
+      if (now - openedAt < openNanos) {
+        return Optional.empty();
+      }
+      transition(State.HALF_OPEN, "open for " + Duration.ofNanos(openNanos), now);
+    }
+    if (state == State.HALF_OPEN) {
+      if (probes >= halfOpenCalls) {
+        return Optional.empty();
+      }
+      probes++;
+    }
+    return Optional.of(new BreakerCall(generation));
+  }
+
+  /**
+   * Gets the time left before the breaker lets probe requests through.
+   *
+   * @return the time left, zero if the breaker is not open
+   */
+  public synchronized Duration remainingOpen() {
+    if (state != State.OPEN) {
+      return Duration.ZERO;
+    }
+    return Duration.ofNanos(Math.max(0, openNanos - (System.nanoTime() - openedAt)));
+  }
+
+  /**
+   * Gets the state of the breaker, with the rates of its window and its last transitions.
+   *
+   * @return the state
+   */
+  public synchronized Snapshot snapshot() {
+    long now = System.nanoTime();
+    int[] totals = totals(now);
+    return new Snapshot(
+        state,
+        totals[0],
+        rate(totals[1], totals[0]),
+        rate(totals[2], totals[0]),
+        List.copyOf(transitions));
+  }
+
+  /**
+   * Gets the state of the breaker.
+   *
+   * @return the state
+   */
+  public synchronized State state() {
+    return state;
+  }
+
+  /**
+   * Records the outcome of a call.
+   *
+   * @param call the call
+   * @param latencyNanos the time to the head of the upstream response, negative if none arrived
+   * @param failed whether the call failed
+   */
+  private synchronized void complete(BreakerCall call, long latencyNanos, boolean failed) {
+    if (call.generation != generation) {
+      return;
+    }
+    long now = System.nanoTime();
+    boolean slow = latencyNanos > slowCallNanos;
+    if (state == State.HALF_OPEN) {
+      if (failed || slow) {
+        transition(State.OPEN, failed ? "probe failed" : "probe slow", now);
+      } else if (++probeSuccesses >= halfOpenCalls) {
+        transition(State.CLOSED, probeSuccesses + " probes succeeded", now);
+      }
+      return;
+    }
+    int bucket = bucket(now);
+    calls[bucket]++;
+    if (failed) {
+      failures[bucket]++;
+    }
+    if (slow) {
+      slowCalls[bucket]++;
+    }
+    int[] totals = totals(now);
+    if (totals[0] < minimumCalls) {
+      return;
+    }
+    if (rate(totals[1], totals[0]) >= failureRateThreshold) {
+      transition(State.OPEN, "failure rate " + rate(totals[1], totals[0]) + "%", now);
+    } else if (rate(totals[2], totals[0]) >= slowCallRateThreshold) {
+      transition(State.OPEN, "slow-call rate " + rate(totals[2], totals[0]) + "%", now);
+    }
+  }
+
+  /**
+   * Gives up a call that was not relayed, freeing its probe slot if it was a probe.
+   *
+   * @param call the call
+   */
+  private synchronized void cancel(BreakerCall call) {
+    if (call.generation == generation && state == State.HALF_OPEN) {
+      probes--;
+    }
+  }
+
+  /**
+   * Moves the breaker to a state, under the lock.
+   *
+   * @param to the new state
+   * @param reason the reason of the transition
+   * @param now the time, in {@link System#nanoTime()} units
+   */
+  private void transition(State to, String reason, long now) {
+    if (to == State.OPEN) {
+      log.warn("Opened the circuit to upstream {}: {}", upstream, reason);
+      openedAt = now;
+    } else {
+      log.info("Moved the circuit to upstream {} to {}: {}", upstream, to, reason);
+    }
+    if (to != State.OPEN) {
+      clearWindow();
+    }
+    if (transitions.size() == TRANSITIONS) {
+      transitions.removeFirst();
+    }
+    transitions.addLast(new Transition(state, to, Instant.now(), reason));
+    state = to;
+    generation++;
+    probes = 0;
+    probeSuccesses = 0;
+  }
+
+  /**
+   * Gets the bucket of a time, clearing it if it last held an earlier time.
+   *
+   * @param now the time, in {@link System#nanoTime()} units
+   * @return the index of the bucket
+   */
+  private int bucket(long now) {
+    long number = now / bucketNanos;
+    int index = (int) Math.floorMod(number, (long) BUCKETS);
+    if (bucketNumbers[index] != number) {
+      bucketNumbers[index] = number;
+      calls[index] = 0;
+      failures[index] = 0;
+      slowCalls[index] = 0;
+    }
+    return index;
+  }
+
+  /**
+   * Sums the buckets within the window.
+   *
+   * @param now the time, in {@link System#nanoTime()} units
+   * @return the calls, failures and slow calls of the window
+   */
+  private int[] totals(long now) {
+    long current = now / bucketNanos;
+    int[] totals = new int[3];
+    for (int i = 0; i < BUCKETS; i++) {
+      if (current - bucketNumbers[i] < BUCKETS) {
+        totals[0] += calls[i];
+        totals[1] += failures[i];
+        totals[2] += slowCalls[i];
+      }
+    }
+    return totals;
+  }
+
+  private void clearWindow() {
+    for (int i = 0; i < BUCKETS; i++) {
+      calls[i] = 0;
+      failures[i] = 0;
+      slowCalls[i] = 0;
+    }
+  }
+
+  private static int rate(int count, int total) {
+    return total == 0 ? 0 : count * 100 / total;
+  }
+
+  /** States of a circuit breaker. */
+  public enum State {
+    /** Requests go through, and their outcomes are counted. */
+    CLOSED,
+    /** Requests are rejected. */
+    OPEN,
+    /** A few probe requests go through, deciding whether the breaker closes or opens again. */
+    HALF_OPEN
+  }
+
+  /** A request let through a breaker, completed once with its outcome. */
+  public interface Call {
+
+    /** A call to an upstream server without a breaker. */
+    Call NONE =
+        new Call() {
+          @Override
+          public void complete(long latencyNanos, boolean failed) {}
+
+          @Override
+          public void cancel() {}
+        };
+
+    /**
+     * Records the outcome of the call.
+     *
+     * @param latencyNanos the time to the head of the upstream response, negative if none arrived
+     * @param failed whether the call failed, without an answer or with a 5xx status
+     */
+    void complete(long latencyNanos, boolean failed);
+
+    /** Gives up the call without relaying it, so it does not count as an outcome. */
+    void cancel();
+  }
+
+  /** A call let through this breaker. */
+  private final class BreakerCall implements Call {
+
+    private final long generation;
+    private boolean done;
+
+    /**
+     * Constructor for the BreakerCall.
+     *
+     * @param generation the transition count of the breaker when the call was let through
+     */
+    private BreakerCall(long generation) {
+      this.generation = generation;
+    }
+
+    @Override
+    public void complete(long latencyNanos, boolean failed) {
+      if (!done) {
+        done = true;
+        CircuitBreaker.this.complete(this, latencyNanos, failed);
+      }
+    }
+
+    @Override
+    public void cancel() {
+      if (!done) {
+        done = true;
+        CircuitBreaker.this.cancel(this);
+      }
+    }
+  }
+
+  /**
+   * A transition of a circuit breaker.
+   *
+   * @param from the state left
+   * @param to the state entered
+   * @param at the time of the transition
+   * @param reason the reason of the transition
+   */
+  public record Transition(State from, State to, Instant at, String reason) {}
+
+  /**
+   * The state of a circuit breaker.
+   *
+   * @param state the current state
+   * @param calls the calls counted in the window
+   * @param failureRate the percentage of failed calls in the window
+   * @param slowCallRate the percentage of slow calls in the window
+   * @param transitions the last transitions, oldest first
+   */
+  public record Snapshot(
+      State state, int calls, int failureRate, int slowCallRate, List<Transition> transitions) {}
+}
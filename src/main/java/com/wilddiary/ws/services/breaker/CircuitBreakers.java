@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.breaker;
+
+import com.wilddiary.ws.config.RelayProperties;
+import com.wilddiary.ws.config.UpstreamRouteSettings;
+import com.wilddiary.ws.services.routing.UpstreamTarget;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import org.springframework.stereotype.Component;
+
+/**
+ * The circuit breakers of the upstream servers, one per scheme, host and port whichever contexts
+ * relay to it. Breakers are created on the first request to their server and kept across reloads
+ * of the context mapping.
+ */
+@Component
+public class CircuitBreakers {
+
+  private final RelayProperties.CircuitBreaker settings;
+  private final MeterRegistry meterRegistry;
+  private final Map<String, Breaker> breakers = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor for the CircuitBreakers.
+   *
+   * @param relayProperties the relay properties
+   * @param meterRegistry the meter registry
+   */
+  public CircuitBreakers(RelayProperties relayProperties, MeterRegistry meterRegistry) {
+    this.settings = relayProperties.getCircuitBreaker();
+    this.meterRegistry = meterRegistry;
+  }
+
+  /**
+   * Whether stale cached responses answer the requests rejected by the breakers.
+   *
+   * @return true if stale responses are served
+   */
+  public boolean isServeStale() {
+    return settings.isEnabled() && settings.isServeStale();
+  }
+
+  /**
+   * Lets a request through to an upstream server, if its breaker allows it.
+   *
+   * @param target the upstream server
+   * @return the call, to be completed with its outcome, or empty if the breaker rejects it
+   */
+  public Optional<CircuitBreaker.Call> tryCall(UpstreamTarget target) {
+    if (!settings.isEnabled()) {
+      return Optional.of(CircuitBreaker.Call.NONE);
+    }
+    Breaker breaker = breakers.computeIfAbsent(upstream(target), this::newBreaker);
+    Optional<CircuitBreaker.Call> call = breaker.circuitBreaker().tryCall();
+    if (call.isEmpty()) {
+      breaker.rejected().increment();
+    }
+    return call;
+  }
+
+  /**
+   * Creates the exception failing a request fast as the breakers of all its upstream servers are
+   * open.
+   *
+   * @param target the last upstream server rejecting the request
+   * @return the exception
+   */
+  public CircuitOpenException rejection(UpstreamTarget target) {
+    Breaker breaker = breakers.get(upstream(target));
+    Duration retryAfter =
+        breaker == null ? settings.getOpenDuration() : breaker.circuitBreaker().remainingOpen();
+    return new CircuitOpenException(target.toString(), retryAfter);
+  }
+
+  /**
+   * Gets the state of the breakers.
+   *
+   * @return the state of each breaker, keyed by upstream server
+   */
+  public Map<String, CircuitBreaker.Snapshot> snapshots() {
+    Map<String, CircuitBreaker.Snapshot> snapshots = new TreeMap<>();
+    breakers.forEach(
+        (upstream, breaker) -> snapshots.put(upstream, breaker.circuitBreaker().snapshot()));
+    return Collections.unmodifiableMap(snapshots);
+  }
+
+  /**
+   * Creates the breaker of an upstream server and registers its meters.
+   *
+   * @param upstream the upstream server
+   * @return the breaker
+   */
+  private Breaker newBreaker(String upstream) {
+    CircuitBreaker circuitBreaker = new CircuitBreaker(upstream, settings);
+    Gauge.builder("relay.circuit.state", circuitBreaker, b -> b.state().ordinal())
+        .description("State of the circuit breaker: 0 closed, 1 open, 2 half-open")
+        .tag("upstream", upstream)
+        .register(meterRegistry);
+    Counter rejected =
+        Counter.builder("relay.circuit.rejected")
+            .description("Requests failed fast by the circuit breaker")
+            .tag("upstream", upstream)
+            .register(meterRegistry);
+    return new Breaker(circuitBreaker, rejected);
+  }
+
+  private static String upstream(UpstreamTarget target) {
+    return UpstreamRouteSettings.targetOf(target.getTarget()).toURI();
+  }
+
+  /**
+   * The breaker of an upstream server, with its counter of rejected requests.
+   *
+   * @param circuitBreaker the breaker
+   * @param rejected the counter of rejected requests
+   */
+  private record Breaker(CircuitBreaker circuitBreaker, Counter rejected) {}
+}
@@ -0,0 +1,44 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.breaker;
+
+import com.wilddiary.ws.services.ServiceUnavailableException;
+import java.time.Duration;
+
+/**
+ * Rejection of a request failed fast as the circuit to its upstream servers is open, answered with
+ * 503 Service Unavailable and a {@code Retry-After} header telling when the circuit half-opens.
+ */
+public class CircuitOpenException extends ServiceUnavailableException {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Constructor for the CircuitOpenException.
+   *
+   * @param upstream the upstream server whose circuit is open
+   * @param retryAfter the time left before the circuit lets requests through again
+   */
+  public CircuitOpenException(String upstream, Duration retryAfter) {
+    super("Circuit to " + upstream + " is open", retryAfter);
+  }
+}
@@ -0,0 +1,363 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.buffer;
+
+import com.wilddiary.ws.services.cache.CachedBody;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A whole body written once and read any number of times. The body is written to chunks of memory
+ * until it exceeds the spill threshold or no more memory is available, then moved to a temporary
+ * file which is mapped into memory once the body is complete. The buffer must be released once the
+ * body is no longer needed, which returns its chunks to the pool and deletes its file.
+ *
+ * <p>The lock of the buffer only guards its state changes. A write or the completion of the body
+ * claims the buffer, then waits for space, spills and writes to the file without holding the lock.
+ * A release arriving meanwhile is finished by the claiming thread once it is done.
+ */
+@Slf4j
+public final class BodyBuffer extends OutputStream implements CachedBody {
+
+  // Files are mapped in segments, as a single mapping is limited to 2 GB
+  private static final int SEGMENT_SIZE = 1 << 30;
+
+  private static final int WRITE_CHUNK_SIZE = 8192;
+
+  private final BodyBuffers buffers;
+  private final long spillThreshold;
+  private final boolean wait;
+  private final List<ByteBuffer> chunks = new ArrayList<>();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition idle = lock.newCondition();
+  private volatile long length;
+  private long reserved;
+  private volatile Path file;
+  private FileChannel channel;
+  private volatile List<ByteBuffer> segments;
+  private boolean released;
+  private boolean claimed;
+
+  /**
+   * Constructor for the BodyBuffer.
+   *
+   * @param buffers the buffers the body is allocated from
+   * @param spillThreshold the length above which the body is moved to a file
+   * @param wait whether writes wait for buffer space
+   */
+  BodyBuffer(BodyBuffers buffers, long spillThreshold, boolean wait) {
+    this.buffers = buffers;
+    this.spillThreshold = spillThreshold;
+    this.wait = wait;
+  }
+
+  @Override
+  public long length() {
+    return length;
+  }
+
+  /**
+   * Whether the body has been moved to a file.
+   *
+   * @return true if the body is held in a file
+   */
+  public boolean isSpilled() {
+    return file != null;
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    claim(true);
+    try {
+      if (len == 0) {
+        return;
+      }
+      // Reserve buffer space in whole chunks, waiting here slows down the reading of the body
+      long required = length + len - reserved;
+      if (required > 0) {
+        long chunkSize = buffers.chunkSize();
+        long reservation = (required + chunkSize - 1) / chunkSize * chunkSize;
+        buffers.reserve(reservation, wait);
+        reserved += reservation;
+      }
+      if (file == null && length + len > spillThreshold) {
+        spill();
+      }
+      int written = file == null ? writeToChunks(b, off, len) : 0;
+      if (written < len) {
+        writeToFile(b, off + written, len - written);
+      }
+      length += len;
+    } finally {
+      unclaim(null);
+    }
+  }
+
+  /**
+   * Completes the body. Writing to the buffer fails from then on, reading it does not any more.
+   *
+   * @throws IOException if the file of the body cannot be mapped
+   */
+  @Override
+  public void close() throws IOException {
+    if (!claim(false)) {
+      return;
+    }
+    List<ByteBuffer> views = null;
+    try {
+      if (file == null) {
+        views = new ArrayList<>(chunks.size());
+        for (ByteBuffer chunk : chunks) {
+          views.add(chunk.duplicate().flip().asReadOnlyBuffer());
+        }
+        return;
+      }
+      // The mappings stay valid after the channel is closed
+      try (FileChannel mapped = channel) {
+        List<ByteBuffer> mappings = new ArrayList<>();
+        for (long position = 0; position < length; position += SEGMENT_SIZE) {
+          long size = Math.min(SEGMENT_SIZE, length - position);
+          mappings.add(mapped.map(FileChannel.MapMode.READ_ONLY, position, size));
+        }
+        views = mappings;
+      } finally {
+        channel = null;
+      }
+    } finally {
+      unclaim(views);
+    }
+  }
+
+  @Override
+  public void writeTo(OutputStream outputStream) throws IOException {
+    writeTo(outputStream, 0, length);
+  }
+
+  @Override
+  public void writeTo(OutputStream outputStream, long offset, long length) throws IOException {
+    close();
+    List<ByteBuffer> views = segments;
+    if (views == null) {
+      throw new IOException("Body buffer is released");
+    }
+    byte[] chunk = null;
+    long start = 0;
+    long remaining = length;
+    for (int i = 0; i < views.size() && remaining > 0; i++) {
+      // Each writer reads through its own view of the shared segments
+      ByteBuffer view = views.get(i).duplicate();
+      long end = start + view.limit();
+      if (offset < end) {
+        view.position((int) Math.max(0, offset - start));
+        view.limit((int) Math.min(view.limit(), view.position() + remaining));
+        remaining -= view.remaining();
+        if (chunk == null) {
+          chunk = new byte[(int) Math.min(WRITE_CHUNK_SIZE, length)];
+        }
+        while (view.hasRemaining()) {
+          int count = Math.min(chunk.length, view.remaining());
+          view.get(chunk, 0, count);
+          outputStream.write(chunk, 0, count);
+        }
+      }
+      start = end;
+    }
+  }
+
+  /**
+   * Releases the buffer, returning its chunks to the pool and deleting its file. While the buffer
+   * is being written or completed, the thread doing so finishes the release.
+   */
+  @Override
+  public void release() {
+    lock.lock();
+    try {
+      if (released) {
+        return;
+      }
+      released = true;
+      segments = null;
+      if (claimed) {
+        return;
+      }
+    } finally {
+      lock.unlock();
+    }
+    free();
+  }
+
+  /**
+   * Claims the buffer to write to it or complete it, waiting for the thread doing so to be done.
+   *
+   * @param write whether the buffer is claimed to write to it, rather than to complete it
+   * @return true if claimed, false if the buffer is released or complete
+   * @throws IOException if the buffer is claimed to write to it but is released or complete, or
+   *     if interrupted while waiting
+   */
+  private boolean claim(boolean write) throws IOException {
+    lock.lock();
+    try {
+      while (claimed && !released) {
+        idle.await();
+      }
+      if (released || segments != null) {
+        if (write) {
+          throw new IOException("Body buffer is " + (released ? "released" : "complete"));
+        }
+        return false;
+      }
+      claimed = true;
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the body to be written");
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Gives up the claim on the buffer, finishing a release that arrived meanwhile.
+   *
+   * @param views the segments of the completed body, or null if not completed
+   */
+  private void unclaim(List<ByteBuffer> views) {
+    boolean releasedMeanwhile;
+    lock.lock();
+    try {
+      claimed = false;
+      releasedMeanwhile = released;
+      if (!released && views != null) {
+        segments = views;
+      }
+      idle.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    if (releasedMeanwhile) {
+      free();
+    }
+  }
+
+  /** Returns the chunks of the buffer to the pool and deletes its file, once released. */
+  private void free() {
+    releaseChunks();
+    if (file != null) {
+      try {
+        if (channel != null) {
+          channel.close();
+        }
+        Files.deleteIfExists(file);
+      } catch (IOException e) {
+        log.warn("Failed to delete buffered body {}: {}", file, e.toString());
+      }
+      buffers.addFileBytes(-length);
+    }
+    buffers.unreserve(reserved);
+  }
+
+  /**
+   * Writes bytes to the chunks of memory, taking more chunks as needed.
+   *
+   * @return the number of bytes written, less than requested if no more chunks are available
+   */
+  private int writeToChunks(byte[] b, int off, int len) {
+    int written = 0;
+    while (written < len) {
+      ByteBuffer chunk = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+      if (chunk == null || !chunk.hasRemaining()) {
+        chunk = buffers.acquireChunk();
+        if (chunk == null) {
+          return written;
+        }
+        chunks.add(chunk);
+      }
+      int count = Math.min(chunk.remaining(), len - written);
+      chunk.put(b, off + written, count);
+      written += count;
+    }
+    return written;
+  }
+
+  private void writeToFile(byte[] b, int off, int len) throws IOException {
+    if (file == null) {
+      spill();
+    }
+    ByteBuffer source = ByteBuffer.wrap(b, off, len);
+    while (source.hasRemaining()) {
+      channel.write(source);
+    }
+    buffers.addFileBytes(len);
+  }
+
+  /** Moves the bytes written so far from the chunks of memory to a temporary file. */
+  private void spill() throws IOException {
+    long written = 0;
+    for (ByteBuffer chunk : chunks) {
+      written += chunk.position();
+    }
+    Path spilled = buffers.spill(written);
+    log.debug("Moving buffered body of {} bytes to {}", written, spilled);
+    try {
+      channel = FileChannel.open(spilled, StandardOpenOption.READ, StandardOpenOption.WRITE);
+      for (ByteBuffer chunk : chunks) {
+        ByteBuffer source = chunk.duplicate().flip();
+        while (source.hasRemaining()) {
+          channel.write(source);
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      buffers.addFileBytes(-written);
+      if (channel != null) {
+        channel.close();
+        channel = null;
+      }
+      Files.deleteIfExists(spilled);
+      throw e;
+    }
+    file = spilled;
+    releaseChunks();
+  }
+
+  private void releaseChunks() {
+    for (ByteBuffer chunk : chunks) {
+      buffers.releaseChunk(chunk);
+    }
+    chunks.clear();
+  }
+}
@@ -0,0 +1,264 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.buffer;
+
+import com.wilddiary.ws.config.RelayProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Component;
+
+/**
+ * Allocates the buffers holding whole bodies, and enforces the budgets they share. Bodies are held
+ * in chunks of memory taken from a pool, up to the spill threshold of their context or until the
+ * memory budget is used up, and in memory-mapped temporary files beyond. Writers exceeding the
+ * budget of all buffered bytes wait for other bodies to be released, which slows down the reading
+ * of the body they buffer, and fail once they have waited for too long.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@Slf4j
+public class BodyBuffers {
+
+  private final RelayProperties relayProperties;
+  private final int chunkSize;
+  private final boolean direct;
+  private final int maxPooledChunks;
+  private final long maxMemory;
+  private final long maxBuffered;
+  private final Duration maxWait;
+  private final Path directory;
+  private final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pooledChunks = new AtomicInteger();
+  private final AtomicLong memoryBytes = new AtomicLong();
+  private final AtomicLong fileBytes = new AtomicLong();
+  private final Counter spills;
+  private final Counter waits;
+  private final Counter rejections;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition spaceReleased = lock.newCondition();
+  private long bufferedBytes;
+
+  /**
+   * Constructor for the BodyBuffers.
+   *
+   * @param relayProperties the relay properties
+   * @param meterRegistry the meter registry
+   * @throws IOException if the directory of the temporary files cannot be prepared
+   */
+  public BodyBuffers(RelayProperties relayProperties, MeterRegistry meterRegistry)
+      throws IOException {
+    RelayProperties.Buffering settings = relayProperties.getBuffering();
+    this.relayProperties = relayProperties;
+    this.chunkSize = (int) Math.min(Integer.MAX_VALUE, settings.getChunkSize().toBytes());
+    this.direct = settings.isDirect();
+    this.maxPooledChunks =
+        (int) Math.min(Integer.MAX_VALUE, settings.getMaxPooled().toBytes() / chunkSize);
+    this.maxMemory = settings.getMaxMemory().toBytes();
+    this.maxBuffered = settings.getMaxBuffered().toBytes();
+    this.maxWait = settings.getMaxWait();
+    this.directory = Files.createDirectories(settings.getDirectory());
+    // Files left over by a previous run are not referenced any more
+    try (Stream<Path> files = Files.list(directory)) {
+      for (Path file : (Iterable<Path>) files::iterator) {
+        if (file.getFileName().toString().endsWith(".buffer")) {
+          Files.deleteIfExists(file);
+        }
+      }
+    }
+    Gauge.builder("relay.buffers.memory", memoryBytes, AtomicLong::get)
+        .description("Bytes of the buffered bodies held in memory")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+    Gauge.builder("relay.buffers.files", fileBytes, AtomicLong::get)
+        .description("Bytes of the buffered bodies spilled to temporary files")
+        .baseUnit("bytes")
+        .register(meterRegistry);
+    this.spills =
+        Counter.builder("relay.buffers.spills")
+            .description("Buffered bodies moved from memory to temporary files")
+            .register(meterRegistry);
+    this.waits =
+        Counter.builder("relay.buffers.waits")
+            .description("Writes waiting for buffer space")
+            .register(meterRegistry);
+    this.rejections =
+        Counter.builder("relay.buffers.rejected")
+            .description("Writes failed after waiting for buffer space for too long")
+            .register(meterRegistry);
+  }
+
+  /**
+   * Allocates a buffer for a body of a context. The buffer must be released once the body is no
+   * longer needed.
+   *
+   * @param context the mapped context
+   * @param wait whether writes wait for buffer space while the budget is used up, rather than
+   *     failing at once
+   * @return the empty buffer
+   */
+  public BodyBuffer allocate(String context, boolean wait) {
+    return new BodyBuffer(this, relayProperties.spillThresholdFor(context).toBytes(), wait);
+  }
+
+  /**
+   * Gets the maximum time a writer waits for buffer space.
+   *
+   * @return the maximum wait
+   */
+  public Duration maxWait() {
+    return maxWait;
+  }
+
+  /**
+   * Gets the size of the memory chunks.
+   *
+   * @return the chunk size
+   */
+  int chunkSize() {
+    return chunkSize;
+  }
+
+  /**
+   * Takes a chunk of memory, from the pool if one is idle.
+   *
+   * @return the empty chunk, or null if the memory budget is used up
+   */
+  ByteBuffer acquireChunk() {
+    if (memoryBytes.addAndGet(chunkSize) > maxMemory) {
+      memoryBytes.addAndGet(-chunkSize);
+      return null;
+    }
+    ByteBuffer chunk = pool.poll();
+    if (chunk != null) {
+      pooledChunks.decrementAndGet();
+      return chunk;
+    }
+    return direct ? ByteBuffer.allocateDirect(chunkSize) : ByteBuffer.allocate(chunkSize);
+  }
+
+  /**
+   * Returns a chunk of memory, to the pool unless it is full.
+   *
+   * @param chunk the chunk
+   */
+  void releaseChunk(ByteBuffer chunk) {
+    memoryBytes.addAndGet(-chunkSize);
+    if (pooledChunks.incrementAndGet() <= maxPooledChunks) {
+      pool.offer(chunk.clear());
+    } else {
+      pooledChunks.decrementAndGet();
+    }
+  }
+
+  /**
+   * Creates the temporary file a body spills to.
+   *
+   * @param length the length of the body moved to the file
+   * @return the file
+   * @throws IOException if the file cannot be created
+   */
+  Path spill(long length) throws IOException {
+    spills.increment();
+    fileBytes.addAndGet(length);
+    return Files.createTempFile(directory, "body-", ".buffer");
+  }
+
+  /**
+   * Records bytes written to or released from temporary files.
+   *
+   * @param length the number of bytes, negative when released
+   */
+  void addFileBytes(long length) {
+    fileBytes.addAndGet(length);
+  }
+
+  /**
+   * Reserves space for buffered bytes, optionally waiting for other bodies to be released while
+   * the budget is used up.
+   *
+   * @param length the number of bytes
+   * @param wait whether to wait for space
+   * @throws BufferSpaceException if no space is released in time
+   */
+  void reserve(long length, boolean wait) throws BufferSpaceException {
+    long inUse;
+    lock.lock();
+    try {
+      if (bufferedBytes + length <= maxBuffered) {
+        bufferedBytes += length;
+        return;
+      }
+      if (!wait) {
+        throw new BufferSpaceException("No space for " + length + " more buffered bytes");
+      }
+      waits.increment();
+      long remaining = maxWait.toNanos();
+      while (bufferedBytes + length > maxBuffered && remaining > 0) {
+        remaining = spaceReleased.awaitNanos(remaining);
+      }
+      if (bufferedBytes + length <= maxBuffered) {
+        bufferedBytes += length;
+        return;
+      }
+      inUse = bufferedBytes;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new BufferSpaceException("Interrupted while waiting for buffer space");
+    } finally {
+      lock.unlock();
+    }
+    rejections.increment();
+    log.warn("No space for buffered bodies, {} of {} bytes in use", inUse, maxBuffered);
+    throw new BufferSpaceException(
+        "No space for " + length + " more buffered bytes within " + maxWait);
+  }
+
+  /**
+   * Releases space reserved for buffered bytes, waking up the writers waiting for space.
+   *
+   * @param length the number of bytes
+   */
+  void unreserve(long length) {
+    lock.lock();
+    try {
+      bufferedBytes -= length;
+      spaceReleased.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+}
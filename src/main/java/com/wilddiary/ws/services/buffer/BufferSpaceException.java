@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.buffer;
+
+import java.io.IOException;
+
+/**
+ * Failure to buffer a body as the budget of buffered bytes stayed used up for longer than writers
+ * wait for space.
+ */
+public class BufferSpaceException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Constructor for the BufferSpaceException.
+   *
+   * @param message the detail message
+   */
+  public BufferSpaceException(String message) {
+    super(message);
+  }
+}
@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services.cache;
+
+import com.wilddiary.ws.config.RelayProperties;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.stream.Stream;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Storage of cached response bodies. Bodies are kept on the heap, in direct buffers outside the
+ * heap, or in memory-mapped files, so that large caches do not weigh on the garbage collector.
+ */
+@Slf4j
+public abstract class BodyStore {
+
+  private static final int WRITE_CHUNK_SIZE = 8192;
+
+  /**
+   * Creates the body store configured for the cache.
+   *
+   * @param settings the cache settings
+   * @return the body store
+   * @throws IOException if the directory of the disk storage cannot be prepared
+   */
+  public static BodyStore create(RelayProperties.Cache settings) throws IOException {
+    return switch (settings.getStorage()) {
+      case HEAP -> new Heap();
+      case OFF_HEAP -> new OffHeap();
+      case DISK -> new MappedFile(settings.getDirectory());
+    };
+  }
+
+  /**
+   * Stores a copy of a body.
+   *
+   * @param source the body, such as a buffer it was captured to
+   * @return the stored body
+   * @throws IOException if the body cannot be stored
+   */
+  public abstract CachedBody store(CachedBody source) throws IOException;
+
+  /** Stores bodies as byte arrays on the heap. */
+  private static final class Heap extends BodyStore {
+
+    @Override
+    public CachedBody store(CachedBody source) throws IOException {
+      byte[] copy = new byte[(int) source.length()];
+      source.writeTo(new ByteBufferOutputStream(ByteBuffer.wrap(copy)));
+      return new CachedBody() {
+        @Override
+        public long length() {
+          return copy.length;
+        }
+
+        @Override
+        public void writeTo(OutputStream outputStream) throws IOException {
+          outputStream.write(copy);
+        }
+
+        @Override
+        public void writeTo(OutputStream outputStream, long offset, long length)
+            throws IOException {
+          outputStream.write(copy, (int) offset, (int) length);
+        }
+
+        @Override
+        public void release() {
+          // Reclaimed by the garbage collector
+        }
+      };
+    }
+  }
+
+  /** Stores bodies in direct buffers. */
+  private static final class OffHeap extends BodyStore {
+
+    @Override
+    public CachedBody store(CachedBody source) throws IOException {
+      ByteBuffer buffer = ByteBuffer.allocateDirect((int) source.length());
+      source.writeTo(new ByteBufferOutputStream(buffer));
+      return new BufferBody(buffer.flip().asReadOnlyBuffer(), null);
+    }
+  }
+
+  /** Stores bodies in files mapped into memory, deleting each file when its body is released. */
+  private static final class MappedFile extends BodyStore {
+    private final Path directory;
+
+    private MappedFile(Path directory) throws IOException {
+      this.directory = Files.createDirectories(directory);
+      // Files left over by a previous run are not referenced any more
+      try (Stream<Path> files = Files.list(directory)) {
+        for (Path file : (Iterable<Path>) files::iterator) {
+          if (file.getFileName().toString().endsWith(".body")) {
+            Files.deleteIfExists(file);
+          }
+        }
+      }
+    }
+
+    @Override
+    public CachedBody store(CachedBody source) throws IOException {
+      Path file = Files.createTempFile(directory, "response-", ".body");
+      try (FileChannel channel =
+          FileChannel.open(
+              file,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE,
+              StandardOpenOption.TRUNCATE_EXISTING)) {
+        source.writeTo(Channels.newOutputStream(channel));
+        // The mapping stays valid after the channel is closed
+        return new BufferBody(
+            channel.map(FileChannel.MapMode.READ_ONLY, 0, source.length()), file);
+      } catch (IOException | RuntimeException e) {
+        Files.deleteIfExists(file);
+        throw e;
+      }
+    }
+  }
+
+  /** Writes to a byte buffer with enough room for all the bytes written. */
+  private static final class ByteBufferOutputStream extends OutputStream {
+    private final ByteBuffer buffer;
+
+    private ByteBufferOutputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public void write(int b) {
+      buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      buffer.put(b, off, len);
+    }
+  }
+
+  /** A body held in a byte buffer, optionally backed by a file. */
+  private static final class BufferBody implements CachedBody {
+    private final ByteBuffer buffer;
+    private final Path file;
+
+    private BufferBody(ByteBuffer buffer, Path file) {
+      this.buffer = buffer;
+      this.file = file;
+    }
+
+    @Override
+    public long length() {
+      return buffer.limit();
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+      writeTo(outputStream, 0, buffer.limit());
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream, long offset, long length) throws IOException {
+      // Each writer reads through its own view of the shared buffer
+      ByteBuffer view = buffer.duplicate().position((int) offset).limit((int) (offset + length));
+      byte[] chunk = new byte[Math.min(WRITE_CHUNK_SIZE, view.remaining())];
+      while (view.hasRemaining()) {
+        int count = Math.min(chunk.length, view.remaining());
+        view.get(chunk, 0, count);
+        outputStream.write(chunk, 0, count);
+      }
+    }
+
+    @Override
+    public void release() {
+      if (file != null) {
+        try {
+          Files.deleteIfExists(file);
+        } catch (IOException e) {
+          log.warn("Failed to delete cached response body {}: {}", file, e.toString());
+        }
+      }
+    }
+  }
+}
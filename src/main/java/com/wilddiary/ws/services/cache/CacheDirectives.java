@@ -0,0 +1,117 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services.cache;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.OptionalLong;
+
+/** Directives of a {@code Cache-Control} header, as defined by RFC 9111 section 5.2. */
+public final class CacheDirectives {
+
+  private final Map<String, String> directives;
+
+  private CacheDirectives(Map<String, String> directives) {
+    this.directives = directives;
+  }
+
+  /**
+   * Parses the directives of {@code Cache-Control} header values.
+   *
+   * @param values the header values, may be null
+   * @return the directives
+   */
+  public static CacheDirectives parse(List<String> values) {
+    Map<String, String> directives = new HashMap<>();
+    if (values != null) {
+      for (String value : values) {
+        parse(value, directives);
+      }
+    }
+    return new CacheDirectives(directives);
+  }
+
+  private static void parse(String value, Map<String, String> directives) {
+    int length = value.length();
+    int position = 0;
+    while (position < length) {
+      int end = position;
+      boolean quoted = false;
+      while (end < length && (quoted || value.charAt(end) != ',')) {
+        if (value.charAt(end) == '"') {
+          quoted = !quoted;
+        }
+        end++;
+      }
+      String directive = value.substring(position, end).trim();
+      if (!directive.isEmpty()) {
+        int equals = directive.indexOf('=');
+        String name = equals < 0 ? directive : directive.substring(0, equals).trim();
+        String argument = equals < 0 ? null : unquote(directive.substring(equals + 1).trim());
+        // The first occurrence of a duplicated directive wins
+        directives.putIfAbsent(name.toLowerCase(Locale.ROOT), argument);
+      }
+      position = end + 1;
+    }
+  }
+
+  private static String unquote(String argument) {
+    return argument.length() >= 2 && argument.startsWith("\"") && argument.endsWith("\"")
+        ? argument.substring(1, argument.length() - 1)
+        : argument;
+  }
+
+  /**
+   * Whether a directive is present.
+   *
+   * @param name the lower-case directive name
+   * @return true if the directive is present
+   */
+  public boolean has(String name) {
+    return directives.containsKey(name);
+  }
+
+  /**
+   * Gets the delta-seconds argument of a directive.
+   *
+   * @param name the lower-case directive name
+   * @return the seconds, or empty if the directive is absent or its argument is invalid
+   */
+  public OptionalLong seconds(String name) {
+    String argument = directives.get(name);
+    if (argument == null || argument.isEmpty()) {
+      return OptionalLong.empty();
+    }
+    for (int i = 0; i < argument.length(); i++) {
+      if (!Character.isDigit(argument.charAt(i))) {
+        return OptionalLong.empty();
+      }
+    }
+    try {
+      return OptionalLong.of(Long.parseLong(argument));
+    } catch (NumberFormatException e) {
+      // Larger than any sensible value, as allowed by RFC 9111 section 1.2.2
+      return OptionalLong.of(Integer.MAX_VALUE);
+    }
+  }
+}
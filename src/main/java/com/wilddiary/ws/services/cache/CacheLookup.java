@@ -0,0 +1,205 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services.cache;
+
+import jakarta.servlet.http.HttpServletRequest;
+import java.util.Optional;
+import org.springframework.http.HttpHeaders;
+
+/**
+ * The outcome of looking up a request in the response cache. A fresh response is served from the
+ * cache. A stale response is revalidated with the upstream server by making the upstream request
+ * conditional, and the response is stored again once the upstream response arrives.
+ */
+public final class CacheLookup {
+
+  /** A lookup of a request the cache does not take part in. */
+  public static final CacheLookup BYPASS = new CacheLookup(null, null, null, false, false);
+
+  private final String resourceKey;
+  private final HttpServletRequest request;
+  private final CachedResponse cached;
+  private final boolean fresh;
+  private final boolean storable;
+  private final boolean invalidating;
+  private final long requestTime = System.currentTimeMillis();
+  private boolean revalidating;
+
+  /**
+   * Constructor for the CacheLookup.
+   *
+   * @param resourceKey the cache key of the requested resource
+   * @param request the downstream request
+   * @param cached the cached response found, may be null
+   * @param fresh whether the cached response can be served without revalidation
+   * @param storable whether the response to the request may be stored
+   */
+  CacheLookup(
+      String resourceKey,
+      HttpServletRequest request,
+      CachedResponse cached,
+      boolean fresh,
+      boolean storable) {
+    this(resourceKey, request, cached, fresh, storable, false);
+  }
+
+  private CacheLookup(
+      String resourceKey,
+      HttpServletRequest request,
+      CachedResponse cached,
+      boolean fresh,
+      boolean storable,
+      boolean invalidating) {
+    this.resourceKey = resourceKey;
+    this.request = request;
+    this.cached = cached;
+    this.fresh = fresh;
+    this.storable = storable;
+    this.invalidating = invalidating;
+  }
+
+  /**
+   * Creates the lookup of a request with an unsafe method, which invalidates the responses stored
+   * for its resource once it succeeds.
+   *
+   * @param resourceKey the cache key of the requested resource
+   * @param request the downstream request
+   * @return the lookup
+   */
+  static CacheLookup invalidating(String resourceKey, HttpServletRequest request) {
+    return new CacheLookup(resourceKey, request, null, false, false, true);
+  }
+
+  /**
+   * Gets the cached response, if it can be served without contacting the upstream server.
+   *
+   * @return the fresh cached response, or empty if the request has to be relayed
+   */
+  public Optional<CachedResponse> fresh() {
+    return fresh ? Optional.of(cached) : Optional.empty();
+  }
+
+  /**
+   * Gets the stale cached response, if its directives allow serving it stale when the upstream
+   * server cannot be reached.
+   *
+   * @return the stale cached response, or empty if there is none to serve
+   */
+  public Optional<CachedResponse> stale() {
+    if (cached == null || fresh) {
+      return Optional.empty();
+    }
+    CacheDirectives directives =
+        CacheDirectives.parse(cached.headers().get(HttpHeaders.CACHE_CONTROL));
+    if (directives.has("must-revalidate")
+        || directives.has("proxy-revalidate")
+        || directives.has("no-cache")) {
+      return Optional.empty();
+    }
+    return Optional.of(cached);
+  }
+
+  /**
+   * Adds the validators of a stale cached response to the upstream request, unless the downstream
+   * request is already conditional.
+   *
+   * @param upstreamRequestHeaders the upstream request headers
+   */
+  public void addValidators(HttpHeaders upstreamRequestHeaders) {
+    if (cached == null
+        || fresh
+        || !cached.hasValidator()
+        || upstreamRequestHeaders.containsKey(HttpHeaders.IF_NONE_MATCH)
+        || upstreamRequestHeaders.containsKey(HttpHeaders.IF_MODIFIED_SINCE)) {
+      return;
+    }
+    if (cached.upstreamETag() != null) {
+      upstreamRequestHeaders.set(HttpHeaders.IF_NONE_MATCH, cached.upstreamETag());
+    }
+    if (cached.upstreamLastModified() != null) {
+      upstreamRequestHeaders.set(HttpHeaders.IF_MODIFIED_SINCE, cached.upstreamLastModified());
+    }
+    revalidating = true;
+  }
+
+  /**
+   * Whether the upstream request revalidates the cached response.
+   *
+   * @return true if the upstream request was made conditional by the cache
+   */
+  public boolean isRevalidating() {
+    return revalidating;
+  }
+
+  /**
+   * Whether the response to the request may be stored.
+   *
+   * @return true if the response may be stored
+   */
+  boolean isStorable() {
+    return storable;
+  }
+
+  /**
+   * Whether the request invalidates the responses stored for its resource once it succeeds.
+   *
+   * @return true if the request has an unsafe method
+   */
+  public boolean isInvalidating() {
+    return invalidating;
+  }
+
+  /**
+   * Gets the cache key of the requested resource.
+   *
+   * @return the resource key
+   */
+  String resourceKey() {
+    return resourceKey;
+  }
+
+  /**
+   * Gets the downstream request.
+   *
+   * @return the downstream request
+   */
+  HttpServletRequest request() {
+    return request;
+  }
+
+  /**
+   * Gets the cached response found.
+   *
+   * @return the cached response, or null if none was found
+   */
+  CachedResponse cached() {
+    return cached;
+  }
+
+  /**
+   * Gets the time of the request, used to correct the age of the response to it.
+   *
+   * @return the request time, in milliseconds since the epoch
+   */
+  long requestTime() {
+    return requestTime;
+  }
+}
@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services.cache;
+
+import com.wilddiary.ws.services.buffer.BodyBuffer;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Captures a response body as it is streamed downstream, to store the response in the cache once
+ * the body is complete. Bodies exceeding the maximum object size, or the space left for buffered
+ * bodies, are not captured any further; the capture never holds up the downstream response.
+ */
+@Slf4j
+public final class CacheWriter {
+
+  private final int maxObjectSize;
+  private final Function<CachedBody, CachedResponse> response;
+  private final ResponseCache cache;
+  private BodyBuffer captured;
+
+  /**
+   * Constructor for the CacheWriter.
+   *
+   * @param cache the response cache
+   * @param maxObjectSize the maximum size of the body to capture
+   * @param captured the buffer capturing the body
+   * @param response creates the cached response of the stored body
+   */
+  CacheWriter(
+      ResponseCache cache,
+      int maxObjectSize,
+      BodyBuffer captured,
+      Function<CachedBody, CachedResponse> response) {
+    this.cache = cache;
+    this.maxObjectSize = maxObjectSize;
+    this.captured = captured;
+    this.response = response;
+  }
+
+  /**
+   * Wraps the downstream response body stream to capture what is written to it.
+   *
+   * @param downstreamResponseBody the downstream response body stream
+   * @return the capturing stream
+   */
+  public OutputStream tee(OutputStream downstreamResponseBody) {
+    return new FilterOutputStream(downstreamResponseBody) {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        if (capture(1)) {
+          try {
+            captured.write(b);
+          } catch (IOException e) {
+            drop(e);
+          }
+        }
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        if (capture(len)) {
+          try {
+            captured.write(b, off, len);
+          } catch (IOException e) {
+            drop(e);
+          }
+        }
+      }
+    };
+  }
+
+  /**
+   * Whether to capture more of the body. The capture is dropped once the body exceeds the maximum
+   * object size.
+   *
+   * @param length the length of the bytes written
+   * @return true if the bytes are to be captured
+   */
+  private boolean capture(int length) {
+    if (captured != null && captured.length() + length > maxObjectSize) {
+      log.debug("Response body exceeds {} bytes, not caching it", maxObjectSize);
+      discard();
+    }
+    return captured != null;
+  }
+
+  private void drop(IOException e) {
+    log.debug("Response body cannot be buffered, not caching it: {}", e.toString());
+    discard();
+  }
+
+  /**
+   * Stores the response in the cache once the body has been fully written. Failing to store the
+   * response does not fail the relayed request.
+   */
+  public void commit() {
+    if (captured == null) {
+      return;
+    }
+    try {
+      captured.close();
+      CachedBody body = cache.bodyStore().store(captured);
+      cache.store(response.apply(body));
+    } catch (IOException | RuntimeException e) {
+      log.warn("Failed to cache response: {}", e.toString());
+    } finally {
+      discard();
+    }
+  }
+
+  /**
+   * Drops the captured body without storing the response, as when the body could not be fully
+   * written. Does nothing once the response is stored.
+   */
+  public void discard() {
+    if (captured != null) {
+      captured.release();
+      captured = null;
+    }
+  }
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services.cache;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** Body of a cached response, held by a {@link BodyStore}. */
+public interface CachedBody {
+
+  /**
+   * Gets the body length.
+   *
+   * @return the body length
+   */
+  long length();
+
+  /**
+   * Writes the body to an output stream. The body can be written any number of times, also
+   * concurrently.
+   *
+   * @param outputStream the output stream
+   * @throws IOException if an I/O error occurs
+   */
+  void writeTo(OutputStream outputStream) throws IOException;
+
+  /**
+   * Writes a range of the body to an output stream, like {@link #writeTo(OutputStream)}.
+   *
+   * @param outputStream the output stream
+   * @param offset the offset of the first byte written
+   * @param length the number of bytes written
+   * @throws IOException if an I/O error occurs
+   */
+  void writeTo(OutputStream outputStream, long offset, long length) throws IOException;
+
+  /** Releases the storage of the body once it is evicted from the cache. */
+  void release();
+}
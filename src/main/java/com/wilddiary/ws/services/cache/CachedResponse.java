@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services.cache;
+
+import org.springframework.http.HttpHeaders;
+
+/**
+ * A response held in the cache, as it was sent downstream. The body is stored after URLs were
+ * rewritten and the body was encoded, so a cache hit is sent as is. The validators of the upstream
+ * response are kept to revalidate the response with the upstream server once it is stale.
+ *
+ * @param status the response status
+ * @param headers the downstream response headers
+ * @param body the downstream response body
+ * @param upstreamETag the entity tag of the upstream response, may be null
+ * @param upstreamLastModified the last modification date of the upstream response, may be null
+ * @param responseTime the time the response was received, in milliseconds since the epoch
+ * @param initialAge the age of the response when it was received, in milliseconds
+ * @param freshnessLifetime the time the response stays fresh, in milliseconds
+ * @param variantKey the cache key of the response
+ */
+public record CachedResponse(
+    int status,
+    HttpHeaders headers,
+    CachedBody body,
+    String upstreamETag,
+    String upstreamLastModified,
+    long responseTime,
+    long initialAge,
+    long freshnessLifetime,
+    String variantKey) {
+
+  /**
+   * Gets the current age of the response.
+   *
+   * @param now the current time, in milliseconds since the epoch
+   * @return the age, in milliseconds
+   */
+  public long currentAge(long now) {
+    return initialAge + Math.max(0, now - responseTime);
+  }
+
+  /**
+   * Whether the response is fresh.
+   *
+   * @param now the current time, in milliseconds since the epoch
+   * @return true if the response is fresh
+   */
+  public boolean isFresh(long now) {
+    return freshnessLifetime > currentAge(now);
+  }
+
+  /**
+   * Whether the response can be revalidated with the upstream server.
+   *
+   * @return true if the upstream response had a validator
+   */
+  public boolean hasValidator() {
+    return upstreamETag != null || upstreamLastModified != null;
+  }
+}
@@ -0,0 +1,650 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services.cache;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.wilddiary.ws.config.RelayProperties;
+import com.wilddiary.ws.services.buffer.BodyBuffers;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+/**
+ * Shared in-process cache of relayed responses, following the caching rules of RFC 9111.
+ * Responses are stored as they were sent downstream, after URLs were rewritten, so rewriting runs
+ * once per stored response. Entries are keyed by the downstream URL and the request headers the
+ * response varies on, and are evicted by the W-TinyLFU policy once the bodies exceed the maximum
+ * size. Stale responses with validators are revalidated with conditional upstream requests.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@Slf4j
+public class ResponseCache implements MeterBinder {
+
+  // Status codes cacheable by default, for which a freshness lifetime can be derived heuristically.
+  // The cacheable error statuses are left out, as error responses are relayed by the error handler
+  // of the upstream client and never reach the cache.
+  private static final Set<Integer> HEURISTICALLY_CACHEABLE =
+      Set.of(200, 203, 204, 300, 301, 308);
+
+  // Accounted for the headers of each cached response, on top of its body
+  private static final int ENTRY_OVERHEAD = 1024;
+
+  private final boolean enabled;
+  private final int maxObjectSize;
+  private final long maxHeuristicLifetime;
+  private final BodyStore bodyStore;
+  private final BodyBuffers bodyBuffers;
+  private final Cache<String, CachedResponse> responses;
+  private final Cache<String, Variants> variants;
+
+  /**
+   * Constructor for the ResponseCache.
+   *
+   * @param relayProperties the relay properties
+   * @param bodyBuffers the buffers capturing the bodies to store
+   * @throws IOException if the body storage cannot be prepared
+   */
+  public ResponseCache(RelayProperties relayProperties, BodyBuffers bodyBuffers)
+      throws IOException {
+    RelayProperties.Cache settings = relayProperties.getCache();
+    this.bodyBuffers = bodyBuffers;
+    this.enabled = settings.isEnabled();
+    this.maxObjectSize = (int) Math.min(Integer.MAX_VALUE, settings.getMaxObjectSize().toBytes());
+    this.maxHeuristicLifetime = settings.getMaxHeuristicLifetime().toMillis();
+    if (!enabled) {
+      this.bodyStore = null;
+      this.responses = null;
+      this.variants = null;
+      return;
+    }
+    this.bodyStore = BodyStore.create(settings);
+    this.responses =
+        Caffeine.newBuilder()
+            .maximumWeight(settings.getMaxSize().toBytes())
+            .weigher(
+                (String key, CachedResponse response) ->
+                    (int) Math.min(Integer.MAX_VALUE, response.body().length() + ENTRY_OVERHEAD))
+            .removalListener(
+                (String key, CachedResponse response, RemovalCause cause) -> {
+                  // Replaced bodies are released when they are replaced, see store
+                  if (response != null && cause != RemovalCause.REPLACED) {
+                    response.body().release();
+                  }
+                })
+            .recordStats()
+            .build();
+    this.variants = Caffeine.newBuilder().maximumSize(100_000).build();
+    log.info(
+        "Caching responses up to {} in {} storage", settings.getMaxSize(), settings.getStorage());
+  }
+
+  /**
+   * Whether responses are cached.
+   *
+   * @return true if the cache is enabled
+   */
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * Looks up the cached response to a request. Requests with unsafe methods bypass the cache, and
+   * invalidate the responses cached for their URL once they succeed, see {@link
+   * #invalidate(CacheLookup, int, List)}.
+   *
+   * @param routesVersion the version of the routes the request is relayed with
+   * @param request the downstream request
+   * @return the lookup
+   */
+  public CacheLookup lookup(long routesVersion, HttpServletRequest request) {
+    if (!enabled) {
+      return CacheLookup.BYPASS;
+    }
+    HttpMethod method = HttpMethod.valueOf(request.getMethod());
+    if (!HttpMethod.GET.equals(method) && !HttpMethod.HEAD.equals(method)) {
+      return HttpMethod.OPTIONS.equals(method) || HttpMethod.TRACE.equals(method)
+          ? CacheLookup.BYPASS
+          : CacheLookup.invalidating(resourceKey(routesVersion, request), request);
+    }
+    if (request.getHeader(HttpHeaders.RANGE) != null) {
+      return CacheLookup.BYPASS;
+    }
+    String resourceKey = resourceKey(routesVersion, request);
+
+    CacheDirectives directives = requestDirectives(request);
+    if (directives.has("no-store")) {
+      return CacheLookup.BYPASS;
+    }
+    boolean storable = HttpMethod.GET.equals(method);
+
+    Variants stored = variants.getIfPresent(resourceKey);
+    if (stored == null) {
+      return new CacheLookup(resourceKey, request, null, false, storable);
+    }
+    String variantKey = variantKey(resourceKey, stored.fields(), request);
+    CachedResponse cached = responses.getIfPresent(variantKey);
+    if (cached == null) {
+      return new CacheLookup(resourceKey, request, null, false, storable);
+    }
+
+    long now = System.currentTimeMillis();
+    OptionalLong maxAge = directives.seconds("max-age");
+    boolean fresh =
+        cached.isFresh(now)
+            && !directives.has("no-cache")
+            && (maxAge.isEmpty() || cached.currentAge(now) <= maxAge.getAsLong() * 1000);
+    return new CacheLookup(resourceKey, request, cached, fresh, storable);
+  }
+
+  /**
+   * Creates a writer storing the response to a request, if the response may be stored.
+   *
+   * @param lookup the cache lookup of the request
+   * @param status the response status
+   * @param upstreamHeaders the upstream response headers
+   * @param downstreamHeaders the downstream response headers
+   * @param context the mapped context, whose settings the body is buffered with
+   * @return the cache writer, or empty if the response is not to be stored
+   */
+  public Optional<CacheWriter> writer(
+      CacheLookup lookup,
+      int status,
+      HttpHeaders upstreamHeaders,
+      HttpHeaders downstreamHeaders,
+      String context) {
+    if (!lookup.isStorable()
+        || !HEURISTICALLY_CACHEABLE.contains(status)
+        || upstreamHeaders.containsKey(HttpHeaders.CONTENT_RANGE)
+        || upstreamHeaders.getContentLength() > maxObjectSize) {
+      return Optional.empty();
+    }
+    CacheDirectives directives =
+        CacheDirectives.parse(upstreamHeaders.get(HttpHeaders.CACHE_CONTROL));
+    if (directives.has("no-store")
+        || directives.has("private")
+        || (lookup.request().getHeader(HttpHeaders.AUTHORIZATION) != null
+            && !directives.has("public")
+            && !directives.has("s-maxage")
+            && !directives.has("must-revalidate"))) {
+      return Optional.empty();
+    }
+    List<String> fields = varyFields(upstreamHeaders, downstreamHeaders);
+    if (fields == null) {
+      return Optional.empty();
+    }
+
+    long responseTime = System.currentTimeMillis();
+    long freshnessLifetime = freshnessLifetime(status, downstreamHeaders, directives);
+    String eTag = upstreamHeaders.getETag();
+    String lastModified = upstreamHeaders.getFirst(HttpHeaders.LAST_MODIFIED);
+    if (freshnessLifetime <= 0 && eTag == null && lastModified == null) {
+      return Optional.empty();
+    }
+    long initialAge = initialAge(lookup, upstreamHeaders, downstreamHeaders, responseTime);
+    HttpHeaders headers = HttpHeaders.readOnlyHttpHeaders(copyOf(downstreamHeaders));
+    String variantKey = variantKey(lookup.resourceKey(), fields, lookup.request());
+    return Optional.of(
+        new CacheWriter(
+            this,
+            maxObjectSize,
+            bodyBuffers.allocate(context, false),
+            body -> {
+              addVariant(lookup.resourceKey(), fields, variantKey);
+              return new CachedResponse(
+                  status,
+                  headers,
+                  body,
+                  eTag,
+                  lastModified,
+                  responseTime,
+                  initialAge,
+                  freshnessLifetime,
+                  variantKey);
+            }));
+  }
+
+  /**
+   * Invalidates the responses stored for the resource of a request with an unsafe method once the
+   * request succeeded, as described in RFC 9111 section 4.4. The resources the {@code Location}
+   * and {@code Content-Location} headers of the response point to are invalidated too, when they
+   * are on the origin of the relay.
+   *
+   * @param lookup the cache lookup of the request
+   * @param status the response status
+   * @param locations the relay URLs of the {@code Location} and {@code Content-Location} headers
+   */
+  public void invalidate(CacheLookup lookup, int status, List<URI> locations) {
+    if (!lookup.isInvalidating() || status < 200 || status >= 400) {
+      return;
+    }
+    invalidateResource(lookup.resourceKey());
+    HttpServletRequest request = lookup.request();
+    String requestUrl = request.getRequestURL().toString();
+    String origin = requestUrl.substring(0, requestUrl.length() - request.getRequestURI().length());
+    URI originUri = URI.create(origin);
+    String versionPrefix =
+        lookup.resourceKey().substring(0, lookup.resourceKey().indexOf(' ') + 1);
+    for (URI location : locations) {
+      if (isSameOrigin(originUri, location) && location.getRawPath() != null) {
+        String query = location.getRawQuery() == null ? "" : "?" + location.getRawQuery();
+        invalidateResource(versionPrefix + origin + location.getRawPath() + query);
+      }
+    }
+  }
+
+  /**
+   * Updates a cached response revalidated by the upstream server, as described in RFC 9111
+   * section 4.3.4.
+   *
+   * @param lookup the cache lookup of the request
+   * @param upstreamHeaders the headers of the upstream 304 response
+   * @param notModifiedHeaders the headers of the 304 response, filtered to the relayed ones
+   * @return the updated cached response
+   */
+  public CachedResponse revalidate(
+      CacheLookup lookup, HttpHeaders upstreamHeaders, HttpHeaders notModifiedHeaders) {
+    CachedResponse cached = lookup.cached();
+    HttpHeaders headers = copyOf(cached.headers());
+    notModifiedHeaders.forEach(
+        (name, values) -> {
+          String lowerCaseName = name.toLowerCase(Locale.ROOT);
+          // The representation and its possibly weakened entity tag are unchanged
+          if (!lowerCaseName.startsWith("content-") && !lowerCaseName.equals("etag")) {
+            headers.put(name, values);
+          }
+        });
+    CacheDirectives directives = CacheDirectives.parse(headers.get(HttpHeaders.CACHE_CONTROL));
+    long responseTime = System.currentTimeMillis();
+    CachedResponse revalidated =
+        new CachedResponse(
+            cached.status(),
+            HttpHeaders.readOnlyHttpHeaders(headers),
+            cached.body(),
+            Optional.ofNullable(upstreamHeaders.getETag()).orElse(cached.upstreamETag()),
+            Optional.ofNullable(upstreamHeaders.getFirst(HttpHeaders.LAST_MODIFIED))
+                .orElse(cached.upstreamLastModified()),
+            responseTime,
+            initialAge(lookup, upstreamHeaders, headers, responseTime),
+            freshnessLifetime(cached.status(), headers, directives),
+            cached.variantKey());
+    store(revalidated);
+    return revalidated;
+  }
+
+  /**
+   * Sends a cached response downstream. A conditional request matching the cached response is
+   * answered with 304 Not Modified.
+   *
+   * @param response the cached response
+   * @param request the downstream request
+   * @param servletResponse the downstream response
+   * @throws IOException if an I/O error occurs
+   */
+  public void serve(
+      CachedResponse response, HttpServletRequest request, HttpServletResponse servletResponse)
+      throws IOException {
+    boolean notModified =
+        response.status() == HttpStatus.OK.value() && isNotModified(request, response.headers());
+    servletResponse.setStatus(notModified ? HttpStatus.NOT_MODIFIED.value() : response.status());
+    response
+        .headers()
+        .forEach(
+            (name, values) -> {
+              if (!notModified || !name.toLowerCase(Locale.ROOT).startsWith("content-")) {
+                values.forEach(value -> servletResponse.addHeader(name, value));
+              }
+            });
+    long age = response.currentAge(System.currentTimeMillis()) / 1000;
+    servletResponse.setHeader(HttpHeaders.AGE, Long.toString(age));
+    if (notModified) {
+      return;
+    }
+    servletResponse.setContentLengthLong(response.body().length());
+    if (!HttpMethod.HEAD.matches(request.getMethod())) {
+      response.body().writeTo(servletResponse.getOutputStream());
+    }
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    if (enabled) {
+      CaffeineCacheMetrics.monitor(registry, responses, "relay.responses");
+    }
+  }
+
+  /**
+   * Gets the storage of the cached bodies.
+   *
+   * @return the body store
+   */
+  BodyStore bodyStore() {
+    return bodyStore;
+  }
+
+  /**
+   * Stores a response, releasing the body of the response it replaces.
+   *
+   * @param response the response to store
+   */
+  void store(CachedResponse response) {
+    responses
+        .asMap()
+        .compute(
+            response.variantKey(),
+            (key, replaced) -> {
+              if (replaced != null && replaced.body() != response.body()) {
+                replaced.body().release();
+              }
+              return response;
+            });
+  }
+
+  /**
+   * Records a stored variant of a resource. Variants stored under other request headers the
+   * responses varied on can no longer be looked up, and are invalidated.
+   *
+   * @param resourceKey the resource key
+   * @param fields the lower-case names of the request headers the response varies on
+   * @param variantKey the variant key
+   */
+  private void addVariant(String resourceKey, List<String> fields, String variantKey) {
+    variants
+        .asMap()
+        .compute(
+            resourceKey,
+            (key, current) -> {
+              Variants updated = current;
+              if (current == null || !current.fields().equals(fields)) {
+                if (current != null) {
+                  responses.invalidateAll(current.keys());
+                }
+                updated = new Variants(fields, ConcurrentHashMap.newKeySet());
+              }
+              updated.keys().add(variantKey);
+              return updated;
+            });
+  }
+
+  /**
+   * Invalidates the stored variants of a resource.
+   *
+   * @param resourceKey the resource key
+   */
+  private void invalidateResource(String resourceKey) {
+    Variants removed = variants.asMap().remove(resourceKey);
+    if (removed != null) {
+      log.debug("Invalidated {} cached responses of {}", removed.keys().size(), resourceKey);
+      responses.invalidateAll(removed.keys());
+    }
+  }
+
+  /**
+   * Whether a URL is on an origin.
+   *
+   * @param origin the origin
+   * @param url the URL
+   * @return true if the URL has the scheme, host and port of the origin
+   */
+  private static boolean isSameOrigin(URI origin, URI url) {
+    return url.isAbsolute()
+        && origin.getScheme().equalsIgnoreCase(url.getScheme())
+        && origin.getHost() != null
+        && origin.getHost().equalsIgnoreCase(url.getHost())
+        && port(origin) == port(url);
+  }
+
+  /**
+   * Gets the port of a URL, the default port of its scheme if it has none.
+   *
+   * @param url the URL
+   * @return the port
+   */
+  private static int port(URI url) {
+    if (url.getPort() >= 0) {
+      return url.getPort();
+    }
+    return "https".equalsIgnoreCase(url.getScheme()) ? 443 : 80;
+  }
+
+  /**
+   * Copies headers. Unlike the copy constructor of {@link HttpHeaders}, the copy does not share
+   * the values of the original.
+   *
+   * @param headers the headers to copy
+   * @return the copy
+   */
+  private static HttpHeaders copyOf(HttpHeaders headers) {
+    HttpHeaders copy = new HttpHeaders();
+    headers.forEach((name, values) -> copy.put(name, List.copyOf(values)));
+    return copy;
+  }
+
+  /**
+   * Gets the cache key of the resource a request is for. The key is the downstream URL, which
+   * also determines the URLs rewritten in the response body.
+   *
+   * @param routesVersion the version of the routes the request is relayed with
+   * @param request the downstream request
+   * @return the resource key
+   */
+  private static String resourceKey(long routesVersion, HttpServletRequest request) {
+    StringBuilder key = new StringBuilder(128).append(routesVersion).append(' ');
+    key.append(request.getRequestURL());
+    if (request.getQueryString() != null) {
+      key.append('?').append(request.getQueryString());
+    }
+    return key.toString();
+  }
+
+  /**
+   * Gets the cache key of the variant of a resource selected by the request headers a response
+   * varies on.
+   *
+   * @param resourceKey the resource key
+   * @param fields the lower-case names of the request headers the response varies on
+   * @param request the downstream request
+   * @return the variant key
+   */
+  private static String variantKey(
+      String resourceKey, List<String> fields, HttpServletRequest request) {
+    StringBuilder key = new StringBuilder(resourceKey);
+    for (String field : fields) {
+      key.append('\n').append(field).append(':');
+      for (String value : Collections.list(request.getHeaders(field))) {
+        for (int i = 0; i < value.length(); i++) {
+          char c = value.charAt(i);
+          if (!Character.isWhitespace(c)) {
+            key.append(Character.toLowerCase(c));
+          }
+        }
+        key.append(',');
+      }
+    }
+    return key.toString();
+  }
+
+  /**
+   * Gets the request headers a response varies on. The encoding of the relayed body always
+   * depends on the accepted encodings, even if the upstream server does not say so.
+   *
+   * @param upstreamHeaders the upstream response headers
+   * @param downstreamHeaders the downstream response headers
+   * @return the lower-case header names, or null if the response varies on anything
+   */
+  private static List<String> varyFields(
+      HttpHeaders upstreamHeaders, HttpHeaders downstreamHeaders) {
+    Set<String> fields = new TreeSet<>();
+    fields.add("accept-encoding");
+    for (HttpHeaders headers : List.of(upstreamHeaders, downstreamHeaders)) {
+      for (String field : headers.getVary()) {
+        String lowerCaseField = field.trim().toLowerCase(Locale.ROOT);
+        if (lowerCaseField.equals("*")) {
+          return null;
+        }
+        if (!lowerCaseField.isEmpty()) {
+          fields.add(lowerCaseField);
+        }
+      }
+    }
+    return List.copyOf(fields);
+  }
+
+  /**
+   * The request headers the responses to a resource vary on, and the keys of its stored variants.
+   *
+   * @param fields the lower-case names of the request headers the responses vary on
+   * @param keys the variant keys of the stored responses
+   */
+  private record Variants(List<String> fields, Set<String> keys) {}
+
+  /**
+   * Gets the freshness lifetime of a response, as described in RFC 9111 section 4.2.1. Without an
+   * explicit expiration time, a response last modified a while ago is assumed fresh for a tenth
+   * of that while, up to the maximum heuristic lifetime.
+   *
+   * @param status the response status
+   * @param headers the response headers
+   * @param directives the response cache directives
+   * @return the freshness lifetime, in milliseconds
+   */
+  private long freshnessLifetime(int status, HttpHeaders headers, CacheDirectives directives) {
+    if (directives.has("no-cache")) {
+      return 0;
+    }
+    OptionalLong maxAge = directives.seconds("s-maxage");
+    if (maxAge.isEmpty()) {
+      maxAge = directives.seconds("max-age");
+    }
+    if (maxAge.isPresent()) {
+      return maxAge.getAsLong() * 1000;
+    }
+    long date = headers.getDate() < 0 ? System.currentTimeMillis() : headers.getDate();
+    if (headers.containsKey(HttpHeaders.EXPIRES)) {
+      // An invalid date represents a time in the past
+      return Math.max(0, headers.getExpires() - date);
+    }
+    long lastModified = headers.getLastModified();
+    if (lastModified >= 0 && HEURISTICALLY_CACHEABLE.contains(status)) {
+      return Math.min(Math.max(0, date - lastModified) / 10, maxHeuristicLifetime);
+    }
+    return 0;
+  }
+
+  /**
+   * Gets the age of a response when it was received, as described in RFC 9111 section 4.2.3.
+   *
+   * @param lookup the cache lookup of the request
+   * @param upstreamHeaders the upstream response headers
+   * @param headers the response headers
+   * @param responseTime the time the response was received, in milliseconds since the epoch
+   * @return the initial age, in milliseconds
+   */
+  private static long initialAge(
+      CacheLookup lookup, HttpHeaders upstreamHeaders, HttpHeaders headers, long responseTime) {
+    long apparentAge = headers.getDate() < 0 ? 0 : Math.max(0, responseTime - headers.getDate());
+    long ageValue = 0;
+    String age = upstreamHeaders.getFirst(HttpHeaders.AGE);
+    if (age != null) {
+      try {
+        ageValue = Long.parseLong(age.trim()) * 1000;
+      } catch (NumberFormatException e) {
+        log.debug("Ignoring invalid Age header {}", age);
+      }
+    }
+    long correctedAgeValue = ageValue + Math.max(0, responseTime - lookup.requestTime());
+    return Math.max(apparentAge, correctedAgeValue);
+  }
+
+  /**
+   * Gets the cache directives of a request. A {@code Pragma: no-cache} header is honoured when the
+   * request has no {@code Cache-Control} header.
+   *
+   * @param request the downstream request
+   * @return the request cache directives
+   */
+  private static CacheDirectives requestDirectives(HttpServletRequest request) {
+    List<String> cacheControl = Collections.list(request.getHeaders(HttpHeaders.CACHE_CONTROL));
+    if (cacheControl.isEmpty() && "no-cache".equalsIgnoreCase(request.getHeader("Pragma"))) {
+      cacheControl = List.of("no-cache");
+    }
+    return CacheDirectives.parse(cacheControl);
+  }
+
+  /**
+   * Whether a conditional request matches a cached response, as evaluated by RFC 9110 section
+   * 13.2.2 for {@code If-None-Match} and {@code If-Modified-Since}.
+   *
+   * @param request the downstream request
+   * @param headers the cached response headers
+   * @return true if the request is answered with 304 Not Modified
+   */
+  private static boolean isNotModified(HttpServletRequest request, HttpHeaders headers) {
+    List<String> ifNoneMatch = Collections.list(request.getHeaders(HttpHeaders.IF_NONE_MATCH));
+    if (!ifNoneMatch.isEmpty()) {
+      String eTag = headers.getETag();
+      if (eTag == null) {
+        return false;
+      }
+      String opaqueTag = eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+      for (String value : ifNoneMatch) {
+        for (String tag : value.split(",")) {
+          String trimmed = tag.trim();
+          if (trimmed.equals("*")
+              || (trimmed.startsWith("W/") ? trimmed.substring(2) : trimmed).equals(opaqueTag)) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+    long lastModified = headers.getLastModified();
+    if (lastModified < 0) {
+      return false;
+    }
+    try {
+      long ifModifiedSince = request.getDateHeader(HttpHeaders.IF_MODIFIED_SINCE);
+      return ifModifiedSince >= 0 && lastModified <= ifModifiedSince;
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+  }
+}
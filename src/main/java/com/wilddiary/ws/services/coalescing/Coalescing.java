@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services.coalescing;
+
+import com.wilddiary.ws.services.cache.CachedResponse;
+import com.wilddiary.ws.services.cache.ResponseCache;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+
+/**
+ * The part a request takes in a shared upstream fetch. The leader relays the request and shares
+ * its response; a follower waits for the response of the leader and sends it to its own client.
+ * Requests that are not coalesced take no part, and calls on them do nothing.
+ */
+@Slf4j
+public final class Coalescing {
+
+  /** The part of a request that is not coalesced. */
+  public static final Coalescing NONE = new Coalescing(null, null, null, null);
+
+  private final RequestCoalescer coalescer;
+  private final String key;
+  private final Flight flight;
+  private final Flight.Reader reader;
+  private boolean completed;
+
+  /**
+   * Constructor for the Coalescing.
+   *
+   * @param coalescer the request coalescer
+   * @param key the key of the flight
+   * @param flight the flight, may be null
+   * @param reader the reader of a follower, or null for the leader
+   */
+  Coalescing(RequestCoalescer coalescer, String key, Flight flight, Flight.Reader reader) {
+    this.coalescer = coalescer;
+    this.key = key;
+    this.flight = flight;
+    this.reader = reader;
+  }
+
+  /**
+   * Whether the request follows the fetch of another request.
+   *
+   * @return true if the request is a follower
+   */
+  public boolean isFollower() {
+    return reader != null;
+  }
+
+  /**
+   * Sends the response of the leader to the client of a follower. The response is not sent when
+   * the leader fails or does not share its response in time, in which case the follower has to
+   * relay the request on its own.
+   *
+   * @param request the downstream request
+   * @param response the downstream response
+   * @param responseCache the response cache, to serve a response the leader revalidated
+   * @return true if the response was sent
+   * @throws IOException if the response cannot be sent, or the leader fails midway
+   */
+  public boolean follow(
+      HttpServletRequest request, HttpServletResponse response, ResponseCache responseCache)
+      throws IOException {
+    try {
+      Flight.Head head = reader.awaitHead();
+      if (head == null) {
+        coalescer.record("fallback");
+        return false;
+      }
+      coalescer.record("follower");
+      if (head.cachedResponse() != null) {
+        responseCache.serve(head.cachedResponse(), request, response);
+        return true;
+      }
+      response.setStatus(head.status());
+      head.headers().forEach((name, values) -> values.forEach(v -> response.addHeader(name, v)));
+      reader.transferTo(response.getOutputStream());
+      return true;
+    } finally {
+      reader.leave();
+    }
+  }
+
+  /**
+   * Shares the head of the response of the leader.
+   *
+   * @param status the downstream response status
+   * @param upstreamHeaders the upstream response headers
+   * @param downstreamHeaders the downstream response headers
+   */
+  public void share(int status, HttpHeaders upstreamHeaders, HttpHeaders downstreamHeaders) {
+    if (flight == null) {
+      return;
+    }
+    if (!coalescer.isShareable(upstreamHeaders)) {
+      log.debug("Response to coalesced request is not shareable");
+      flight.publish(null);
+      return;
+    }
+    HttpHeaders headers = new HttpHeaders();
+    downstreamHeaders.forEach((name, values) -> headers.put(name, values.stream().toList()));
+    flight.publish(new Flight.Head(status, headers, null));
+  }
+
+  /**
+   * Shares a cached response the leader revalidated with the upstream server. Followers serve it
+   * from the cache, evaluating their own conditional headers.
+   *
+   * @param cachedResponse the revalidated cached response
+   */
+  public void share(CachedResponse cachedResponse) {
+    if (flight != null) {
+      flight.publish(new Flight.Head(cachedResponse.status(), null, cachedResponse));
+    }
+  }
+
+  /**
+   * Wraps the downstream response body stream of the leader to share what is written to it. If
+   * the client of the leader goes away, the body is still read for the followers.
+   *
+   * @param downstreamResponseBody the downstream response body stream
+   * @return the sharing stream
+   */
+  public OutputStream tee(OutputStream downstreamResponseBody) {
+    if (flight == null) {
+      return downstreamResponseBody;
+    }
+    return new FilterOutputStream(downstreamResponseBody) {
+      private IOException downstreamFailure;
+
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        flight.append(b, off, len);
+        if (downstreamFailure == null) {
+          try {
+            out.write(b, off, len);
+          } catch (IOException e) {
+            keepReading(e);
+          }
+        }
+      }
+
+      @Override
+      public void flush() throws IOException {
+        if (downstreamFailure == null) {
+          try {
+            out.flush();
+          } catch (IOException e) {
+            keepReading(e);
+          }
+        }
+      }
+
+      private void keepReading(IOException e) throws IOException {
+        if (!flight.hasReaders()) {
+          throw e;
+        }
+        log.debug("Client of coalesced request went away, reading on for the followers");
+        downstreamFailure = e;
+      }
+    };
+  }
+
+  /** Completes the shared response of the leader once its body has been fully written. */
+  public void complete() {
+    if (flight != null && !completed) {
+      completed = true;
+      flight.complete();
+      coalescer.land(key, flight);
+    }
+  }
+
+  /**
+   * Ends the part of the leader in the fetch. A fetch that has not completed fails, and its
+   * followers that have not sent anything yet relay their requests on their own.
+   */
+  public void end() {
+    if (flight != null && !completed) {
+      completed = true;
+      flight.fail();
+      coalescer.land(key, flight);
+    }
+  }
+}
@@ -0,0 +1,328 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services.coalescing;
+
+import com.wilddiary.ws.services.cache.CachedResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import org.springframework.http.HttpHeaders;
+
+/**
+ * An upstream fetch shared by identical concurrent requests. The leading request publishes the
+ * head of its downstream response and appends its body as it is written; following requests read
+ * them back to send the same response to their own clients.
+ *
+ * <p>The body is kept from its start while it fits the buffer, so that requests can join the
+ * flight until then. Past that, only the part not yet read by every follower is kept, and the
+ * leader waits for followers lagging by more than the buffer before detaching them.
+ */
+final class Flight {
+
+  private final int maxBufferSize;
+  private final long maxWaitNanos;
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  private final List<Reader> readers = new ArrayList<>();
+  private Chunk first = new Chunk(new byte[0]);
+  private Chunk last = first;
+  private long written;
+  private boolean joinable = true;
+  private Head head;
+  private boolean done;
+  private boolean failed;
+  private boolean awaitingReaders;
+
+  /**
+   * Constructor for the Flight.
+   *
+   * @param maxBufferSize the size of the body kept for followers to join
+   * @param maxWaitNanos the maximum time to wait for the head, or for lagging followers
+   */
+  Flight(int maxBufferSize, long maxWaitNanos) {
+    this.maxBufferSize = maxBufferSize;
+    this.maxWaitNanos = maxWaitNanos;
+  }
+
+  /**
+   * Joins the flight as a follower.
+   *
+   * @return the reader of the flight, or null if the flight cannot be joined anymore
+   */
+  Reader join() {
+    lock.lock();
+    try {
+      if (!joinable) {
+        return null;
+      }
+      Reader reader = new Reader(first);
+      readers.add(reader);
+      return reader;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Publishes the head of the response. Followers of a response that is not shareable fall back
+   * to fetching it on their own.
+   *
+   * @param head the head of the response, or null if the response is not shareable
+   */
+  void publish(Head head) {
+    lock.lock();
+    try {
+      if (head == null) {
+        fail();
+        return;
+      }
+      this.head = head;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Appends to the body of the response.
+   *
+   * @param bytes the bytes
+   * @param offset the offset of the bytes to append
+   * @param length the length of the bytes to append
+   */
+  void append(byte[] bytes, int offset, int length) {
+    if (length == 0) {
+      return;
+    }
+    lock.lock();
+    try {
+      if (failed || (!joinable && readers.isEmpty())) {
+        return;
+      }
+      byte[] copy = new byte[length];
+      System.arraycopy(bytes, offset, copy, 0, length);
+      last.next = new Chunk(copy);
+      last = last.next;
+      written += length;
+      if (joinable && written > maxBufferSize) {
+        // Let the chunks read by every follower go
+        joinable = false;
+        first = null;
+      }
+      changed.signalAll();
+      if (!joinable) {
+        awaitLaggingReaders();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Waits for followers lagging by more than the buffer to catch up, and detaches those that do
+   * not in time.
+   */
+  private void awaitLaggingReaders() {
+    long remaining = maxWaitNanos;
+    awaitingReaders = true;
+    try {
+      while (remaining > 0 && hasLaggingReader()) {
+        remaining = changed.awaitNanos(remaining);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      awaitingReaders = false;
+    }
+    readers.removeIf(
+        reader -> {
+          if (written - reader.position > maxBufferSize) {
+            reader.detached = true;
+            return true;
+          }
+          return false;
+        });
+    changed.signalAll();
+  }
+
+  /**
+   * Whether a follower lags by more than the buffer.
+   *
+   * @return true if a follower is lagging
+   */
+  private boolean hasLaggingReader() {
+    for (Reader reader : readers) {
+      if (written - reader.position > maxBufferSize) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Whether any follower is still reading the response.
+   *
+   * @return true if the response has followers
+   */
+  boolean hasReaders() {
+    lock.lock();
+    try {
+      return !readers.isEmpty();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Completes the response. Followers read the rest of the body and finish their responses. */
+  void complete() {
+    lock.lock();
+    try {
+      joinable = false;
+      first = null;
+      done = true;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Fails the response. Followers that have not sent anything yet fall back to fetching the
+   * response on their own, the others abort their responses. Does nothing once the response is
+   * complete.
+   */
+  void fail() {
+    lock.lock();
+    try {
+      if (done) {
+        return;
+      }
+      joinable = false;
+      first = null;
+      done = true;
+      failed = true;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** The status and headers of a shared response, or the cached response it was served from. */
+  record Head(int status, HttpHeaders headers, CachedResponse cachedResponse) {}
+
+  /** A chunk of the body, linked to the next one. */
+  private static final class Chunk {
+
+    private final byte[] bytes;
+    private Chunk next;
+
+    private Chunk(byte[] bytes) {
+      this.bytes = bytes;
+    }
+  }
+
+  /** Reads the response of the flight back for a follower. */
+  final class Reader {
+
+    private Chunk current;
+    private long position;
+    private boolean detached;
+
+    private Reader(Chunk start) {
+      this.current = start;
+    }
+
+    /**
+     * Waits for the head of the response.
+     *
+     * @return the head, or null if the response is not shared in time
+     */
+    Head awaitHead() {
+      lock.lock();
+      try {
+        long remaining = maxWaitNanos;
+        while (head == null && !failed && remaining > 0) {
+          remaining = changed.awaitNanos(remaining);
+        }
+        return failed ? null : head;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * Writes the body of the response as the leader appends to it, until it is complete.
+     *
+     * @param out the stream to write the body to
+     * @throws IOException if the body cannot be written, or the flight fails before it is complete
+     */
+    void transferTo(OutputStream out) throws IOException {
+      while (true) {
+        Chunk next;
+        lock.lock();
+        try {
+          while ((next = current.next) == null && !done && !detached) {
+            changed.await();
+          }
+          if (detached || (next == null && failed)) {
+            throw new IOException("Shared response aborted");
+          }
+          if (next == null) {
+            return;
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while waiting for the shared response", e);
+        } finally {
+          lock.unlock();
+        }
+        out.write(next.bytes);
+        lock.lock();
+        try {
+          current = next;
+          position += next.bytes.length;
+          if (awaitingReaders) {
+            changed.signalAll();
+          }
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+
+    /** Leaves the flight, so that the leader does not wait for this follower anymore. */
+    void leave() {
+      lock.lock();
+      try {
+        readers.remove(this);
+        changed.signalAll();
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+}
@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services.coalescing;
+
+import com.wilddiary.ws.config.RelayProperties;
+import com.wilddiary.ws.services.cache.CacheDirectives;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.servlet.http.HttpServletRequest;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.stereotype.Component;
+
+/**
+ * Collapses identical concurrent GET and HEAD requests into a single upstream fetch. The first
+ * request leads the fetch and streams its response to the followers as it is relayed, so a burst
+ * of requests for a popular URL reaches the upstream server once.
+ *
+ * <p>Requests are identical when they are for the same URL with the same request headers a
+ * response may vary on. Requests with credentials are never coalesced, and followers fall back to
+ * fetching the response on their own when it turns out to be private or to vary on other headers.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@Slf4j
+public class RequestCoalescer {
+
+  // Request headers distinguishing coalesced requests, which responses may vary on
+  private static final List<String> KEY_HEADERS =
+      List.of(
+          HttpHeaders.ACCEPT,
+          HttpHeaders.ACCEPT_ENCODING,
+          HttpHeaders.ACCEPT_LANGUAGE,
+          HttpHeaders.IF_MODIFIED_SINCE,
+          HttpHeaders.IF_NONE_MATCH);
+
+  private static final Set<String> VARY_FIELDS =
+      Set.of("accept", "accept-encoding", "accept-language");
+
+  private final boolean enabled;
+  private final int maxBufferSize;
+  private final long maxWaitNanos;
+  private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+  private final Map<String, Counter> requests;
+
+  /**
+   * Constructor for the RequestCoalescer.
+   *
+   * @param relayProperties the relay properties
+   * @param meterRegistry the meter registry
+   */
+  public RequestCoalescer(RelayProperties relayProperties, MeterRegistry meterRegistry) {
+    RelayProperties.Coalescing settings = relayProperties.getCoalescing();
+    this.enabled = settings.isEnabled();
+    this.maxBufferSize =
+        (int) Math.min(Integer.MAX_VALUE, settings.getMaxBufferSize().toBytes());
+    this.maxWaitNanos = settings.getMaxWait().toNanos();
+    this.requests =
+        Map.of(
+            "leader", counter(meterRegistry, "leader"),
+            "follower", counter(meterRegistry, "follower"),
+            "fallback", counter(meterRegistry, "fallback"));
+  }
+
+  /**
+   * Creates the counter of the coalesced requests taking a part.
+   *
+   * @param meterRegistry the meter registry
+   * @param role the part the requests take
+   * @return the counter
+   */
+  private static Counter counter(MeterRegistry meterRegistry, String role) {
+    return Counter.builder("relay.coalesced.requests")
+        .description("Requests taking part in shared upstream fetches")
+        .tag("role", role)
+        .register(meterRegistry);
+  }
+
+  /**
+   * Coalesces a request with an identical one in flight, or leads a new flight for it.
+   *
+   * @param routesVersion the version of the routes the request is relayed with
+   * @param request the downstream request
+   * @param hasBody whether the request has a body
+   * @return the part the request takes, {@link Coalescing#NONE} if it is not coalesced
+   */
+  public Coalescing coalesce(long routesVersion, HttpServletRequest request, boolean hasBody) {
+    if (!enabled || hasBody || !isCoalescable(request)) {
+      return Coalescing.NONE;
+    }
+    String key = key(routesVersion, request);
+    Flight.Reader[] reader = new Flight.Reader[1];
+    Flight flight =
+        flights.compute(
+            key,
+            (k, inFlight) -> {
+              reader[0] = inFlight == null ? null : inFlight.join();
+              return reader[0] == null ? new Flight(maxBufferSize, maxWaitNanos) : inFlight;
+            });
+    if (reader[0] != null) {
+      log.debug("Coalescing request with the one in flight for {}", key);
+      return new Coalescing(this, key, flight, reader[0]);
+    }
+    record("leader");
+    return new Coalescing(this, key, flight, null);
+  }
+
+  /**
+   * Whether a request may share the response to an identical request. Only requests without a
+   * body, credentials or byte ranges are.
+   *
+   * @param request the downstream request
+   * @return true if the request may be coalesced
+   */
+  private static boolean isCoalescable(HttpServletRequest request) {
+    return (HttpMethod.GET.matches(request.getMethod())
+            || HttpMethod.HEAD.matches(request.getMethod()))
+        && request.getHeader(HttpHeaders.AUTHORIZATION) == null
+        && request.getHeader(HttpHeaders.COOKIE) == null
+        && request.getHeader(HttpHeaders.RANGE) == null;
+  }
+
+  /**
+   * Whether a response may be shared with the followers of a flight. Responses that are private
+   * to a user or vary on request headers other than the ones the flight is keyed by are not.
+   *
+   * @param upstreamHeaders the upstream response headers
+   * @return true if the response may be shared
+   */
+  boolean isShareable(HttpHeaders upstreamHeaders) {
+    CacheDirectives directives =
+        CacheDirectives.parse(upstreamHeaders.get(HttpHeaders.CACHE_CONTROL));
+    if (directives.has("private")
+        || directives.has("no-store")
+        || upstreamHeaders.containsKey(HttpHeaders.SET_COOKIE)) {
+      return false;
+    }
+    for (String field : upstreamHeaders.getVary()) {
+      if (!VARY_FIELDS.contains(field.trim().toLowerCase(Locale.ROOT))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Removes a flight that has landed, so that later requests start a new one.
+   *
+   * @param key the key of the flight
+   * @param flight the flight
+   */
+  void land(String key, Flight flight) {
+    flights.remove(key, flight);
+  }
+
+  /**
+   * Records a request taking part in a flight.
+   *
+   * @param role the part the request takes
+   */
+  void record(String role) {
+    requests.get(role).increment();
+  }
+
+  /**
+   * Gets the key of the flight of a request. The key is the downstream URL, which also determines
+   * the URLs rewritten in the response body, and the request headers responses may vary on.
+   *
+   * @param routesVersion the version of the routes the request is relayed with
+   * @param request the downstream request
+   * @return the flight key
+   */
+  private static String key(long routesVersion, HttpServletRequest request) {
+    StringBuilder key = new StringBuilder(128).append(routesVersion).append(' ');
+    key.append(request.getMethod()).append(' ').append(request.getRequestURL());
+    if (request.getQueryString() != null) {
+      key.append('?').append(request.getQueryString());
+    }
+    for (String header : KEY_HEADERS) {
+      key.append('\n');
+      Enumeration<String> values = request.getHeaders(header);
+      while (values.hasMoreElements()) {
+        key.append(values.nextElement()).append(',');
+      }
+    }
+    return key.toString();
+  }
+}
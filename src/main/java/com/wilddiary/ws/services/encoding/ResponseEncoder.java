@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.encoding;
+
+import com.aayushatharva.brotli4j.Brotli4jLoader;
+import com.aayushatharva.brotli4j.encoder.BrotliOutputStream;
+import com.aayushatharva.brotli4j.encoder.Encoder;
+import com.wilddiary.ws.config.RelayProperties;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+
+/**
+ * Encodes response bodies the relay had to decode, such as bodies with rewritten URLs. The encoding
+ * is negotiated from the downstream {@code Accept-Encoding} header against the configured
+ * encodings, and the body is compressed as it is streamed.
+ */
+@Slf4j
+public class ResponseEncoder {
+
+  /** The encoding of an uncompressed body. */
+  public static final String IDENTITY = "identity";
+
+  private static final String GZIP = "gzip";
+  private static final String DEFLATE = "deflate";
+  private static final String BROTLI = "br";
+  private static final int BUFFER_SIZE = 8192;
+
+  private final RelayProperties.Compression compression;
+  private final List<String> encodings = new ArrayList<>();
+
+  /**
+   * Constructor for the ResponseEncoder.
+   *
+   * @param compression the compression settings
+   */
+  public ResponseEncoder(RelayProperties.Compression compression) {
+    this.compression = compression;
+    for (String encoding : compression.getEncodings()) {
+      String normalized = encoding.trim().toLowerCase(Locale.ROOT);
+      switch (normalized) {
+        case GZIP, DEFLATE -> encodings.add(normalized);
+        case BROTLI -> {
+          if (Brotli4jLoader.isAvailable()) {
+            encodings.add(normalized);
+          } else {
+            log.warn(
+                "Brotli encoding is not available on this platform: {}",
+                Brotli4jLoader.getUnavailabilityCause().getMessage());
+          }
+        }
+        default -> log.warn("Response encoding <{}> is not supported and is ignored.", encoding);
+      }
+    }
+  }
+
+  /**
+   * Negotiates the encoding of a response body. The encoding with the highest quality value in the
+   * {@code Accept-Encoding} header is chosen, ties going to the configured order of encodings.
+   *
+   * @param acceptEncoding the {@code Accept-Encoding} header of the downstream request
+   * @param contentLength the length of the body, or -1 if unknown
+   * @return the negotiated encoding, or {@link #IDENTITY} if the body is sent uncompressed
+   */
+  public String negotiate(String acceptEncoding, long contentLength) {
+    if (!compression.isEnabled()
+        || acceptEncoding == null
+        || (contentLength >= 0 && contentLength < compression.getMinResponseSize().toBytes())) {
+      return IDENTITY;
+    }
+    String best = IDENTITY;
+    double bestQuality = 0;
+    for (String encoding : encodings) {
+      double quality = qualityOf(acceptEncoding, encoding);
+      if (quality > bestQuality) {
+        best = encoding;
+        bestQuality = quality;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Negotiates the encoding of a decoded upstream response body and corrects the downstream
+   * response headers to match it. A strong entity tag is weakened as the body no longer matches
+   * the bytes the upstream server tagged.
+   *
+   * @param acceptEncoding the {@code Accept-Encoding} header of the downstream request
+   * @param upstreamHeaders the upstream response headers
+   * @param downstreamHeaders the downstream response headers
+   * @return the negotiated encoding
+   */
+  public String negotiate(
+      String acceptEncoding, HttpHeaders upstreamHeaders, HttpHeaders downstreamHeaders) {
+    // The declared length is only the decoded length if the upstream body was not compressed
+    long decodedContentLength =
+        upstreamHeaders.containsKey(HttpHeaders.CONTENT_ENCODING)
+            ? -1
+            : upstreamHeaders.getContentLength();
+    String encoding = negotiate(acceptEncoding, decodedContentLength);
+    downstreamHeaders.remove(HttpHeaders.CONTENT_ENCODING);
+    if (!IDENTITY.equals(encoding)) {
+      downstreamHeaders.set(HttpHeaders.CONTENT_ENCODING, encoding);
+    }
+    downstreamHeaders.add(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+    Optional.ofNullable(downstreamHeaders.getETag())
+        .filter(eTag -> !eTag.startsWith("W/"))
+        .ifPresent(eTag -> downstreamHeaders.setETag("W/" + eTag));
+    return encoding;
+  }
+
+  /**
+   * Wraps an output stream to encode the body written to it. Closing the returned stream finishes
+   * the encoding and closes the given stream.
+   *
+   * @param out the output stream
+   * @param encoding the negotiated encoding
+   * @return the encoding output stream
+   * @throws IOException if an I/O error occurs
+   */
+  public OutputStream encode(OutputStream out, String encoding) throws IOException {
+    return switch (encoding) {
+      case GZIP -> new LevelledGzipOutputStream(out, compression.getGzipLevel());
+      case DEFLATE -> new LevelledDeflaterOutputStream(out, compression.getDeflateLevel());
+      case BROTLI ->
+          new BrotliOutputStream(
+              out,
+              new Encoder.Parameters()
+                  .setQuality(compression.getBrotliQuality())
+                  .setWindow(compression.getBrotliWindow()),
+              BUFFER_SIZE);
+      default -> out;
+    };
+  }
+
+  /**
+   * Gets the quality value of an encoding in an {@code Accept-Encoding} header.
+   *
+   * @param acceptEncoding the {@code Accept-Encoding} header
+   * @param encoding the encoding
+   * @return the quality value, 0 if the encoding is not acceptable
+   */
+  static double qualityOf(String acceptEncoding, String encoding) {
+    Optional<Double> wildcard = Optional.empty();
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim();
+      double quality = 1;
+      for (int i = 1; i < parts.length; i++) {
+        String parameter = parts[i].trim();
+        if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+          try {
+            quality = Double.parseDouble(parameter.substring(2).trim());
+          } catch (NumberFormatException e) {
+            quality = 0;
+          }
+        }
+      }
+      if (name.equalsIgnoreCase(encoding)) {
+        return quality;
+      } else if (name.equals("*")) {
+        wildcard = Optional.of(quality);
+      }
+    }
+    return wildcard.orElse(0d);
+  }
+
+  /** A {@link GZIPOutputStream} with a configurable compression level that flushes on demand. */
+  private static final class LevelledGzipOutputStream extends GZIPOutputStream {
+    LevelledGzipOutputStream(OutputStream out, int level) throws IOException {
+      super(out, BUFFER_SIZE, true);
+      def.setLevel(level);
+    }
+  }
+
+  /** A zlib {@link DeflaterOutputStream} with a configurable level that flushes on demand. */
+  private static final class LevelledDeflaterOutputStream extends DeflaterOutputStream {
+    LevelledDeflaterOutputStream(OutputStream out, int level) {
+      super(out, true);
+      def.setLevel(level);
+    }
+  }
+}
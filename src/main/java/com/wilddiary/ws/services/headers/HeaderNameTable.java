@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services.headers;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import org.springframework.http.HttpHeaders;
+
+/**
+ * An immutable set of header names, looked up case-insensitively without allocating. Names are
+ * held in an open-addressing table hashed on their ASCII lower case, and each one is interned in
+ * its canonical spelling, the one of {@link HttpHeaders} for the standard headers, so that the
+ * relayed headers can be keyed by it exactly.
+ */
+public final class HeaderNameTable {
+
+  /** A table without any name. */
+  public static final HeaderNameTable EMPTY = new HeaderNameTable(Set.of());
+
+  private static final HeaderNameTable STANDARD_NAMES = new HeaderNameTable(standardNames());
+
+  private final String[] names;
+  private final int mask;
+  private final int size;
+
+  private HeaderNameTable(Collection<String> names) {
+    int capacity = Integer.highestOneBit(Math.max(names.size(), 1) * 4 - 1) << 1;
+    this.names = new String[capacity];
+    this.mask = capacity - 1;
+    int added = 0;
+    for (String name : names) {
+      if (!contains(name)) {
+        int i = hash(name) & mask;
+        while (this.names[i] != null) {
+          i = (i + 1) & mask;
+        }
+        this.names[i] = name;
+        added++;
+      }
+    }
+    this.size = added;
+  }
+
+  /**
+   * Creates a table of header names, in their canonical spelling.
+   *
+   * @param names the header names
+   * @return the table
+   */
+  public static HeaderNameTable of(Collection<String> names) {
+    Set<String> canonicalNames = new LinkedHashSet<>();
+    for (String name : names) {
+      String trimmed = name.trim();
+      if (!trimmed.isEmpty()) {
+        String standard = STANDARD_NAMES.canonical(trimmed);
+        canonicalNames.add(standard != null ? standard : trimmed);
+      }
+    }
+    return canonicalNames.isEmpty() ? EMPTY : new HeaderNameTable(canonicalNames);
+  }
+
+  /**
+   * Gets the names of the standard headers declared by {@link HttpHeaders}.
+   *
+   * @return the standard header names
+   */
+  private static Set<String> standardNames() {
+    Set<String> names = new LinkedHashSet<>();
+    for (Field field : HttpHeaders.class.getFields()) {
+      if (Modifier.isStatic(field.getModifiers()) && field.getType() == String.class) {
+        try {
+          names.add((String) field.get(null));
+        } catch (IllegalAccessException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+    }
+    return names;
+  }
+
+  /**
+   * Whether the table has a name, in any case.
+   *
+   * @param name the header name
+   * @return true if the table has the name
+   */
+  public boolean contains(String name) {
+    return canonical(name) != null;
+  }
+
+  /**
+   * Gets the canonical spelling of a name in the table.
+   *
+   * @param name the header name, in any case
+   * @return the interned name, or null if the table does not have it
+   */
+  public String canonical(String name) {
+    int i = hash(name) & mask;
+    String candidate;
+    while ((candidate = names[i]) != null) {
+      if (candidate.equalsIgnoreCase(name)) {
+        return candidate;
+      }
+      i = (i + 1) & mask;
+    }
+    return null;
+  }
+
+  /**
+   * Whether the table has no name.
+   *
+   * @return true if the table is empty
+   */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Gets the names of the table.
+   *
+   * @return the header names
+   */
+  public Set<String> names() {
+    Set<String> result = new LinkedHashSet<>();
+    for (String name : names) {
+      if (name != null) {
+        result.add(name);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Hashes a header name on its ASCII lower case, as header names are ASCII tokens.
+   *
+   * @param name the header name
+   * @return the hash
+   */
+  private static int hash(String name) {
+    int h = 0;
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      if (c >= 'A' && c <= 'Z') {
+        c += 'a' - 'A';
+      }
+      h = 31 * h + c;
+    }
+    return h ^ (h >>> 16);
+  }
+}
@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services.headers;
+
+import com.wilddiary.ws.config.RelayProperties;
+import java.util.ArrayList;
+import java.util.List;
+import org.springframework.http.HttpHeaders;
+import org.springframework.util.LinkedMultiValueMap;
+
+/**
+ * The headers relayed for a context, resolved once from its allow and deny lists into tables
+ * looked up without allocating. Hop-by-hop headers, including those a request names in its
+ * {@code Connection} header, are never relayed, and neither are the request headers naming the
+ * downstream connection or framing the request body, which the upstream client sets itself.
+ */
+public final class HeaderRules {
+
+  // Headers that apply to a single connection, RFC 9110 section 7.6.1
+  private static final List<String> HOP_BY_HOP_HEADERS =
+      List.of(
+          HttpHeaders.CONNECTION,
+          HttpHeaders.PROXY_AUTHENTICATE,
+          HttpHeaders.PROXY_AUTHORIZATION,
+          HttpHeaders.TE,
+          HttpHeaders.TRAILER,
+          HttpHeaders.TRANSFER_ENCODING,
+          HttpHeaders.UPGRADE,
+          "Keep-Alive",
+          "Proxy-Connection");
+
+  // Request headers set by the upstream client for the upstream connection and request body
+  private static final List<String> UPSTREAM_REQUEST_HEADERS =
+      List.of(HttpHeaders.HOST, HttpHeaders.CONTENT_LENGTH, HttpHeaders.EXPECT);
+
+  private final boolean requestAllowAll;
+  private final HeaderNameTable requestAllowed;
+  private final HeaderNameTable requestBlocked;
+  private final boolean responseAllowAll;
+  private final HeaderNameTable responseAllowed;
+  private final HeaderNameTable responseBlocked;
+
+  /**
+   * Constructor for the HeaderRules.
+   *
+   * @param headers the header lists
+   */
+  public HeaderRules(RelayProperties.Headers headers) {
+    List<String> requestBlocked = new ArrayList<>(HOP_BY_HOP_HEADERS);
+    requestBlocked.addAll(UPSTREAM_REQUEST_HEADERS);
+    requestBlocked.addAll(headers.getRequest().getDeny());
+    this.requestBlocked = HeaderNameTable.of(requestBlocked);
+    List<String> requestAllow = headers.getRequest().getAllow();
+    this.requestAllowAll = requestAllow.contains(RelayProperties.HeaderList.ALL);
+    this.requestAllowed = allowed(requestAllow, this.requestBlocked);
+
+    List<String> responseBlocked = new ArrayList<>(HOP_BY_HOP_HEADERS);
+    responseBlocked.addAll(headers.getResponse().getDeny());
+    this.responseBlocked = HeaderNameTable.of(responseBlocked);
+    List<String> responseAllow = headers.getResponse().getAllow();
+    this.responseAllowAll = responseAllow.contains(RelayProperties.HeaderList.ALL);
+    this.responseAllowed = allowed(responseAllow, this.responseBlocked);
+  }
+
+  /**
+   * Gets the table of the allowed headers that are not blocked.
+   *
+   * @param allow the allowed headers
+   * @param blocked the blocked headers
+   * @return the table of the headers relayed
+   */
+  private static HeaderNameTable allowed(List<String> allow, HeaderNameTable blocked) {
+    return HeaderNameTable.of(allow.stream().filter(name -> !blocked.contains(name)).toList());
+  }
+
+  /**
+   * Whether a downstream request header is relayed upstream.
+   *
+   * @param name the header name
+   * @param connection the value of the {@code Connection} header of the request, may be null
+   * @return true if the header is relayed
+   */
+  public boolean isRelayedRequestHeader(String name, String connection) {
+    boolean allowed =
+        requestAllowAll ? !requestBlocked.contains(name) : requestAllowed.contains(name);
+    return allowed && (connection == null || !isConnectionOption(connection, name));
+  }
+
+  /**
+   * Filters the upstream response headers relayed to the client. The filtered headers are keyed
+   * by the canonical spelling of their names, so they are held in a plain map rather than a
+   * case-insensitive one that lower-cases every name it is given. Only when every header is allowed
+   * are they keyed by their names as received, in a case-insensitive map.
+   *
+   * @param upstreamHeaders the upstream response headers
+   * @return the headers relayed to the client
+   */
+  public HttpHeaders filterResponseHeaders(HttpHeaders upstreamHeaders) {
+    if (responseAllowAll) {
+      HttpHeaders filteredHeaders = new HttpHeaders();
+      upstreamHeaders.forEach(
+          (name, values) -> {
+            if (!responseBlocked.contains(name)) {
+              filteredHeaders.put(name, values);
+            }
+          });
+      return filteredHeaders;
+    }
+    HttpHeaders filteredHeaders = new HttpHeaders(new LinkedMultiValueMap<>(16));
+    upstreamHeaders.forEach(
+        (name, values) -> {
+          String canonicalName = responseAllowed.canonical(name);
+          if (canonicalName != null) {
+            filteredHeaders.put(canonicalName, values);
+          }
+        });
+    return filteredHeaders;
+  }
+
+  /**
+   * Whether a header is named as a connection option by the {@code Connection} header, which
+   * makes it hop-by-hop.
+   *
+   * @param connection the value of the {@code Connection} header
+   * @param name the header name
+   * @return true if the header is a connection option
+   */
+  private static boolean isConnectionOption(String connection, String name) {
+    int length = connection.length();
+    int start = 0;
+    while (start < length) {
+      int end = connection.indexOf(',', start);
+      if (end < 0) {
+        end = length;
+      }
+      int from = start;
+      int to = end;
+      while (from < to && Character.isWhitespace(connection.charAt(from))) {
+        from++;
+      }
+      while (to > from && Character.isWhitespace(connection.charAt(to - 1))) {
+        to--;
+      }
+      if (to - from == name.length() && connection.regionMatches(true, from, name, 0, to - from)) {
+        return true;
+      }
+      start = end + 1;
+    }
+    return false;
+  }
+}
@@ -0,0 +1,58 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.limits;
+
+import java.time.Duration;
+
+/**
+ * Additive increase, multiplicative decrease. The limit grows by one for each request answered in
+ * time while the limit is in use, and is multiplied by the backoff ratio for each request answered
+ * too late or not at all.
+ */
+final class AimdLimit implements LimitAlgorithm {
+
+  private final double backoffRatio;
+  private final long latencyThresholdNanos;
+
+  /**
+   * Constructor for the AimdLimit.
+   *
+   * @param backoffRatio the ratio the limit is multiplied by on late or failed requests
+   * @param latencyThreshold the time to the head of the response over which a request is late
+   */
+  AimdLimit(double backoffRatio, Duration latencyThreshold) {
+    this.backoffRatio = backoffRatio;
+    this.latencyThresholdNanos = latencyThreshold.toNanos();
+  }
+
+  @Override
+  public double update(double limit, long latencyNanos, int inFlight) {
+    if (latencyNanos < 0 || latencyNanos > latencyThresholdNanos) {
+      return limit * backoffRatio;
+    }
+    // Only grow a limit the requests come close to, or it would grow without bound when idle
+    if (inFlight * 2 >= limit) {
+      return limit + 1;
+    }
+    return limit;
+  }
+}
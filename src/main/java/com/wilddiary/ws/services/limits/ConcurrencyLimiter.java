@@ -0,0 +1,284 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.limits;
+
+import com.wilddiary.ws.config.RelayProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+
+/**
+ * Limits the requests relayed concurrently for each mapped context. Requests over the limit of
+ * their context queue in arrival order, and are shed with 503 Service Unavailable and a {@code
+ * Retry-After} header once they have waited for too long or when too many are waiting already. A
+ * slow or failing upstream server thus holds up a bounded number of requests, without starving
+ * the other contexts. The limits are kept across reloads of the context mapping.
+ *
+ * <p>Limits are fixed, or adapt to the upstream latency of the requests released under them: they
+ * shrink as the upstream servers of the context slow down or fail, shedding the excess load at the
+ * relay, and grow back as the servers recover.
+ */
+@Component
+@Slf4j
+public class ConcurrencyLimiter {
+
+  private static final String QUEUE_FULL = "queue-full";
+  private static final String QUEUE_TIMEOUT = "queue-timeout";
+
+  private final RelayProperties relayProperties;
+  private final MeterRegistry meterRegistry;
+  private final Duration maxQueueTime;
+  private final Duration retryAfter;
+  private final Map<String, RouteLimit> limits = new ConcurrentHashMap<>();
+  private final Map<RejectionKey, Counter> rejections = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor for the ConcurrencyLimiter.
+   *
+   * @param relayProperties the relay properties
+   * @param meterRegistry the meter registry
+   */
+  public ConcurrencyLimiter(RelayProperties relayProperties, MeterRegistry meterRegistry) {
+    this.relayProperties = relayProperties;
+    this.meterRegistry = meterRegistry;
+    this.maxQueueTime = relayProperties.getConcurrency().getMaxQueueTime();
+    this.retryAfter = relayProperties.getConcurrency().getRetryAfter();
+  }
+
+  /**
+   * Acquires a permit to relay a request for a context, waiting for one if the context is at its
+   * limit.
+   *
+   * @param context the mapped context
+   * @return the permit, to be released once the request is relayed
+   * @throws OverloadedException if no permit is acquired in time
+   */
+  public Permit acquire(String context) {
+    RouteLimit limit = limitFor(context);
+    if (limit == null) {
+      return Permit.NONE;
+    }
+    CompletableFuture<Permit> turn = limit.acquire();
+    if (turn == null) {
+      throw shed(context, limit, QUEUE_FULL);
+    }
+    try {
+      return turn.get(maxQueueTime.toNanos(), TimeUnit.NANOSECONDS);
+    } catch (TimeoutException e) {
+      if (limit.cancel(turn)) {
+        throw shed(context, limit, QUEUE_TIMEOUT);
+      }
+      return turn.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      if (!limit.cancel(turn)) {
+        turn.join().cancel();
+      }
+      throw shed(context, limit, QUEUE_TIMEOUT);
+    } catch (ExecutionException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Acquires a permit to relay a request for a context without blocking, for callers that must
+   * not block. The permit is emitted once a turn comes if the context is at its limit.
+   *
+   * @param context the mapped context
+   * @return emits the permit, to be released once the request is relayed, or fails with an {@link
+   *     OverloadedException} if no permit is acquired in time
+   */
+  public Mono<Permit> acquireLater(String context) {
+    RouteLimit limit = limitFor(context);
+    if (limit == null) {
+      return Mono.just(Permit.NONE);
+    }
+    CompletableFuture<Permit> turn = limit.acquire();
+    if (turn == null) {
+      return Mono.error(shed(context, limit, QUEUE_FULL));
+    }
+    if (turn.isDone()) {
+      return Mono.just(turn.join());
+    }
+    AtomicBoolean emitted = new AtomicBoolean();
+    return Mono.fromFuture(turn, true)
+        .timeout(
+            maxQueueTime,
+            Mono.defer(
+                () ->
+                    limit.cancel(turn)
+                        ? Mono.error(shed(context, limit, QUEUE_TIMEOUT))
+                        : Mono.just(turn.join())))
+        .doOnNext(permit -> emitted.set(true))
+        .doOnCancel(
+            () -> {
+              // The client went away while waiting, give the turn up or back
+              if (!emitted.get() && !limit.cancel(turn)) {
+                turn.join().cancel();
+              }
+            });
+  }
+
+  /**
+   * Gets the limit of a context, created on first use with its meters.
+   *
+   * @param context the mapped context
+   * @return the limit, or null if the context has none
+   */
+  private RouteLimit limitFor(String context) {
+    RouteLimit limit = limits.get(context);
+    if (limit != null) {
+      return limit;
+    }
+    int maxRequests = relayProperties.maxConcurrentRequestsFor(context);
+    RelayProperties.Concurrency.Algorithm algorithm =
+        relayProperties.concurrencyAlgorithmFor(context);
+    if (algorithm == RelayProperties.Concurrency.Algorithm.FIXED && maxRequests <= 0) {
+      return null;
+    }
+    return limits.computeIfAbsent(context, c -> newLimit(c, algorithm, maxRequests));
+  }
+
+  /**
+   * Creates the limit of a context and registers its meters.
+   *
+   * @param context the mapped context
+   * @param algorithm the algorithm setting the limit
+   * @param maxRequests the maximum number of requests of the context, zero for none
+   * @return the limit
+   */
+  private RouteLimit newLimit(
+      String context, RelayProperties.Concurrency.Algorithm algorithm, int maxRequests) {
+    RelayProperties.Concurrency settings = relayProperties.getConcurrency();
+    RelayProperties.Adaptive adaptive = settings.getAdaptive();
+    RouteLimit limit =
+        switch (algorithm) {
+          case FIXED -> new RouteLimit(
+              null, maxRequests, maxRequests, maxRequests, settings.getMaxQueueSize());
+          case AIMD -> adaptiveLimit(
+              new AimdLimit(adaptive.getBackoffRatio(), adaptive.getLatencyThreshold()),
+              maxRequests);
+          case GRADIENT -> adaptiveLimit(new GradientLimit(adaptive.getTolerance()), maxRequests);
+        };
+    log.info("Limiting concurrent requests for {} with the {} algorithm", context, algorithm);
+    Gauge.builder("relay.concurrency.limit", limit, RouteLimit::limit)
+        .description("Concurrency limit of the context")
+        .tag("context", context)
+        .register(meterRegistry);
+    Gauge.builder("relay.concurrency.inflight", limit, RouteLimit::inFlight)
+        .description("Requests of the context in flight under its limit")
+        .tag("context", context)
+        .register(meterRegistry);
+    Gauge.builder("relay.concurrency.queued", limit, RouteLimit::queued)
+        .description("Requests of the context waiting for a turn")
+        .tag("context", context)
+        .register(meterRegistry);
+    return limit;
+  }
+
+  /**
+   * Creates an adaptive limit, capped by the maximum number of requests of its context.
+   *
+   * @param algorithm the algorithm adapting the limit
+   * @param maxRequests the maximum number of requests of the context, zero for none
+   * @return the limit
+   */
+  private RouteLimit adaptiveLimit(LimitAlgorithm algorithm, int maxRequests) {
+    RelayProperties.Concurrency settings = relayProperties.getConcurrency();
+    RelayProperties.Adaptive adaptive = settings.getAdaptive();
+    int maxLimit =
+        maxRequests > 0 ? Math.min(maxRequests, adaptive.getMaxLimit()) : adaptive.getMaxLimit();
+    return new RouteLimit(
+        algorithm,
+        adaptive.getInitialLimit(),
+        Math.min(adaptive.getMinLimit(), maxLimit),
+        maxLimit,
+        settings.getMaxQueueSize());
+  }
+
+  /**
+   * Sheds a request of an overloaded context.
+   *
+   * @param context the mapped context
+   * @param limit the limit of the context
+   * @param reason the reason the request is shed
+   * @return the rejection to fail the request with
+   */
+  private OverloadedException shed(String context, RouteLimit limit, String reason) {
+    log.warn(
+        "Rejecting request for {}, over the limit of {} concurrent requests ({})",
+        context,
+        limit.limit(),
+        reason);
+    rejections
+        .computeIfAbsent(
+            new RejectionKey(context, reason),
+            key ->
+                Counter.builder("relay.concurrency.rejected")
+                    .description("Requests shed as their context is overloaded")
+                    .tag("context", key.context())
+                    .tag("reason", key.reason())
+                    .register(meterRegistry))
+        .increment();
+    return new OverloadedException("Too many concurrent requests for " + context, retryAfter);
+  }
+
+  /** The context and reason tagging the counter of shed requests. */
+  private record RejectionKey(String context, String reason) {}
+
+  /** A permit to relay a request, released once. */
+  public interface Permit {
+
+    /** A permit of a context without a limit. */
+    Permit NONE =
+        new Permit() {
+          @Override
+          public void release(long latencyNanos) {}
+
+          @Override
+          public void cancel() {}
+        };
+
+    /**
+     * Releases the permit once the request is relayed, adapting the limit of the context to the
+     * upstream latency of the request.
+     *
+     * @param latencyNanos the time the upstream server took to answer the request, or a negative
+     *     value if no upstream server answered
+     */
+    void release(long latencyNanos);
+
+    /** Releases the permit of a request that was not relayed, leaving the limit as it is. */
+    void cancel();
+  }
+}
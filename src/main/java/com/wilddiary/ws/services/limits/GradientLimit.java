@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.limits;
+
+/**
+ * Gradient of the upstream latency. The limit follows the ratio of the long-term to the recent
+ * latency, which drops as requests start queueing at the upstream server, and is given a headroom
+ * of its square root so that it keeps probing for more. Failed requests halve the limit.
+ */
+final class GradientLimit implements LimitAlgorithm {
+
+  // Samples the recent and the long-term latencies are averaged over
+  private static final double SHORT_WINDOW = 10;
+  private static final double LONG_WINDOW = 600;
+
+  // Weight of the new limit against the current one, to damp the swings of single samples
+  private static final double SMOOTHING = 0.2;
+
+  private final double tolerance;
+  private double shortLatency;
+  private double longLatency;
+
+  /**
+   * Constructor for the GradientLimit.
+   *
+   * @param tolerance the ratio the recent latency may reach over the long-term one before the
+   *     limit shrinks
+   */
+  GradientLimit(double tolerance) {
+    this.tolerance = tolerance;
+  }
+
+  @Override
+  public double update(double limit, long latencyNanos, int inFlight) {
+    if (latencyNanos < 0) {
+      return limit / 2;
+    }
+    if (longLatency == 0) {
+      shortLatency = latencyNanos;
+      longLatency = latencyNanos;
+    } else {
+      shortLatency += (latencyNanos - shortLatency) / SHORT_WINDOW;
+      longLatency += (latencyNanos - longLatency) / LONG_WINDOW;
+    }
+    // Let the long-term latency recover quickly once the upstream server is fast again
+    if (longLatency > shortLatency * 2) {
+      longLatency *= 0.95;
+    }
+    // A limit the requests are far from says nothing about the latency under load
+    if (inFlight * 2 < limit) {
+      return limit;
+    }
+    double gradient = Math.max(0.5, Math.min(1.0, tolerance * longLatency / shortLatency));
+    double newLimit = limit * gradient + Math.sqrt(limit);
+    return limit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+  }
+}
@@ -0,0 +1,41 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.limits;
+
+/**
+ * Adapts the concurrency limit of a context to how the upstream servers answer the requests
+ * relayed under it. An instance serves a single context and is only called under its lock, so it
+ * may keep state of its own.
+ */
+interface LimitAlgorithm {
+
+  /**
+   * Adapts a limit to a request relayed under it.
+   *
+   * @param limit the current limit
+   * @param latencyNanos the time the upstream server took to answer the request, or a negative
+   *     value if it did not answer
+   * @param inFlight the number of requests in flight when the request was relayed
+   * @return the new limit, bounded by the caller
+   */
+  double update(double limit, long latencyNanos, int inFlight);
+}
@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.limits;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The concurrency limit of a context, with its requests in flight and its requests waiting for a
+ * turn. Turns are given in arrival order, and the limit adapts to each request released when the
+ * context has an adaptive algorithm.
+ */
+final class RouteLimit {
+
+  private final LimitAlgorithm algorithm;
+  private final int minLimit;
+  private final int maxLimit;
+  private final int maxQueueSize;
+  private final Deque<CompletableFuture<ConcurrencyLimiter.Permit>> queue = new ArrayDeque<>();
+  private double limit;
+  private int inFlight;
+
+  /**
+   * Constructor for the RouteLimit.
+   *
+   * @param algorithm the algorithm adapting the limit, or null to keep it fixed
+   * @param initialLimit the limit to start with
+   * @param minLimit the lowest limit
+   * @param maxLimit the highest limit
+   * @param maxQueueSize the maximum number of requests waiting for a turn
+   */
+  RouteLimit(
+      LimitAlgorithm algorithm, int initialLimit, int minLimit, int maxLimit, int maxQueueSize) {
+    this.algorithm = algorithm;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.maxQueueSize = maxQueueSize;
+    this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+  }
+
+  /**
+   * Requests a turn to relay a request.
+   *
+   * @return the permit, completed right away if the context is under its limit and later when a
+   *     turn comes otherwise, or null if too many requests are waiting already
+   */
+  synchronized CompletableFuture<ConcurrencyLimiter.Permit> acquire() {
+    if (queue.isEmpty() && inFlight < (int) limit) {
+      return CompletableFuture.completedFuture(grant());
+    }
+    if (queue.size() >= maxQueueSize) {
+      return null;
+    }
+    CompletableFuture<ConcurrencyLimiter.Permit> turn = new CompletableFuture<>();
+    queue.add(turn);
+    return turn;
+  }
+
+  /**
+   * Gives up waiting for a turn.
+   *
+   * @param turn the turn requested
+   * @return true if the turn is given up, false if it came meanwhile
+   */
+  synchronized boolean cancel(CompletableFuture<ConcurrencyLimiter.Permit> turn) {
+    if (!turn.cancel(false)) {
+      return false;
+    }
+    queue.remove(turn);
+    return true;
+  }
+
+  /**
+   * Gets the current limit.
+   *
+   * @return the limit
+   */
+  synchronized int limit() {
+    return (int) limit;
+  }
+
+  /**
+   * Gets the number of requests in flight.
+   *
+   * @return the requests in flight
+   */
+  synchronized int inFlight() {
+    return inFlight;
+  }
+
+  /**
+   * Gets the number of requests waiting for a turn.
+   *
+   * @return the waiting requests
+   */
+  synchronized int queued() {
+    return queue.size();
+  }
+
+  /**
+   * Grants a permit, under the lock.
+   *
+   * @return the permit
+   */
+  private Permit grant() {
+    inFlight++;
+    return new Permit(inFlight);
+  }
+
+  /**
+   * Releases a permit and gives its turn, and any the limit has grown by, to the waiting requests.
+   *
+   * @param permit the permit
+   * @param latencyNanos the time the upstream server took to answer, negative if it did not
+   * @param sample whether to adapt the limit to the request
+   */
+  private void release(Permit permit, long latencyNanos, boolean sample) {
+    List<CompletableFuture<ConcurrencyLimiter.Permit>> turns = new ArrayList<>(1);
+    List<Permit> permits = new ArrayList<>(1);
+    synchronized (this) {
+      if (permit.released) {
+        return;
+      }
+      permit.released = true;
+      inFlight--;
+      if (sample && algorithm != null) {
+        double updated = algorithm.update(limit, latencyNanos, permit.inFlight);
+        limit = Math.max(minLimit, Math.min(maxLimit, updated));
+      }
+      while (!queue.isEmpty() && inFlight < (int) limit) {
+        turns.add(queue.poll());
+        permits.add(grant());
+      }
+    }
+    // Complete the turns outside the lock, as waiters may go on relaying on this thread
+    for (int i = 0; i < turns.size(); i++) {
+      if (!turns.get(i).complete(permits.get(i))) {
+        // Given up meanwhile
+        permits.get(i).cancel();
+      }
+    }
+  }
+
+  /** A permit of the context, released once. */
+  private final class Permit implements ConcurrencyLimiter.Permit {
+
+    private final int inFlight;
+    private boolean released;
+
+    /**
+     * Constructor for the Permit.
+     *
+     * @param inFlight the requests in flight with this one
+     */
+    private Permit(int inFlight) {
+      this.inFlight = inFlight;
+    }
+
+    @Override
+    public void release(long latencyNanos) {
+      RouteLimit.this.release(this, latencyNanos, true);
+    }
+
+    @Override
+    public void cancel() {
+      RouteLimit.this.release(this, -1, false);
+    }
+  }
+}
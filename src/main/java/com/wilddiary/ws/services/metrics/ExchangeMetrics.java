@@ -0,0 +1,217 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services.metrics;
+
+import com.wilddiary.ws.services.rewrite.UrlRewritingOutputStream;
+import com.wilddiary.ws.services.routing.UpstreamTarget;
+import java.util.concurrent.TimeUnit;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.web.ErrorResponse;
+import org.springframework.web.client.RestClientResponseException;
+
+/**
+ * Metrics of a single relayed exchange. They are gathered as the exchange goes and recorded once
+ * it ends, under the context and the last upstream server it was relayed to. An exchange is
+ * handled by one thread at a time, so nothing here is synchronized.
+ */
+public final class ExchangeMetrics {
+
+  private final RelayMetrics relayMetrics;
+  private final long startNanos = System.nanoTime();
+  private String context = RelayMetrics.NONE;
+  private String upstream = RelayMetrics.NONE;
+  private long upstreamStartNanos;
+  private long firstByteNanos = -1;
+  private long upstreamBytes;
+  private long responseBytes;
+  private long decompressionNanos = -1;
+  private long rewriteNanos;
+  private UrlRewritingOutputStream rewriting;
+  private boolean rewriteSkipped;
+  private boolean ended;
+
+  /**
+   * Constructor for the ExchangeMetrics.
+   *
+   * @param relayMetrics the relay metrics
+   */
+  ExchangeMetrics(RelayMetrics relayMetrics) {
+    this.relayMetrics = relayMetrics;
+  }
+
+  /**
+   * Sets the context the request was matched to.
+   *
+   * @param context the context
+   */
+  public void route(String context) {
+    this.context = context;
+  }
+
+  /**
+   * Marks the request being relayed to an upstream server. Called again when the request fails
+   * over to another server.
+   *
+   * @param target the upstream server
+   */
+  public void upstream(UpstreamTarget target) {
+    upstream(target, System.nanoTime());
+  }
+
+  /**
+   * Marks the request being relayed to an upstream server since an earlier time, as for a hedged
+   * request answered by a server other than the one it was relayed to first.
+   *
+   * @param target the upstream server
+   * @param startNanos the time the request was sent, in {@link System#nanoTime()} units
+   */
+  public void upstream(UpstreamTarget target, long startNanos) {
+    this.upstream = RelayMetrics.upstreamTag(target);
+    this.upstreamStartNanos = startNanos;
+    this.firstByteNanos = -1;
+  }
+
+  /** Marks the head of the upstream response being received. */
+  public void firstByte() {
+    firstByteNanos = System.nanoTime() - upstreamStartNanos;
+  }
+
+  /**
+   * Gets the time the upstream server took to answer, from sending the request to receiving the
+   * head of the response.
+   *
+   * @return the time in nanoseconds, or -1 if no upstream server answered
+   */
+  public long upstreamLatencyNanos() {
+    return firstByteNanos;
+  }
+
+  /**
+   * Adds to the bytes of the response body received from the upstream server.
+   *
+   * @param bytes the number of bytes
+   */
+  public void addUpstreamBytes(long bytes) {
+    upstreamBytes += bytes;
+  }
+
+  /**
+   * Adds to the bytes of the response body sent to the client.
+   *
+   * @param bytes the number of bytes
+   */
+  public void addResponseBytes(long bytes) {
+    responseBytes += bytes;
+  }
+
+  /**
+   * Adds to the time spent decompressing the response body.
+   *
+   * @param nanos the time in nanoseconds
+   */
+  public void addDecompressionNanos(long nanos) {
+    decompressionNanos = Math.max(decompressionNanos, 0) + nanos;
+  }
+
+  /**
+   * Adds to the time spent rewriting and encoding the response body.
+   *
+   * @param nanos the time in nanoseconds
+   */
+  public void addRewriteNanos(long nanos) {
+    rewriteNanos += nanos;
+  }
+
+  /**
+   * Sets the stream rewriting the response body, whose replacements tell whether the body had any
+   * URL to rewrite.
+   *
+   * @param rewriting the rewriting stream
+   */
+  public void rewriting(UrlRewritingOutputStream rewriting) {
+    this.rewriting = rewriting;
+  }
+
+  /** Marks a response body passed through as it was found to have no URL to rewrite. */
+  public void rewriteSkipped() {
+    this.rewriteSkipped = true;
+  }
+
+  /**
+   * Records the exchange as completed with a response.
+   *
+   * @param status the downstream response status
+   */
+  public void complete(int status) {
+    end((status / 100) + "xx");
+  }
+
+  /**
+   * Records the exchange as failed. Failures answered with an error status are tagged with the
+   * class of that status.
+   *
+   * @param failure the failure
+   */
+  public void fail(Throwable failure) {
+    HttpStatusCode status = null;
+    if (failure instanceof RestClientResponseException responseException) {
+      status = responseException.getStatusCode();
+    } else if (failure instanceof ErrorResponse errorResponse) {
+      status = errorResponse.getStatusCode();
+    }
+    if (status != null) {
+      complete(status.value());
+    } else {
+      end("error");
+    }
+  }
+
+  /**
+   * Records the exchange, once.
+   *
+   * @param status the status tag value
+   */
+  private void end(String status) {
+    if (ended) {
+      return;
+    }
+    ended = true;
+    relayMetrics
+        .requests(context, upstream, status)
+        .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    if (firstByteNanos < 0) {
+      return;
+    }
+    RelayMetrics.RouteMeters meters = relayMetrics.meters(context, upstream);
+    meters.firstByte().record(firstByteNanos, TimeUnit.NANOSECONDS);
+    meters.upstreamBytes().record(upstreamBytes);
+    meters.responseBytes().record(responseBytes);
+    if (decompressionNanos >= 0) {
+      meters.decompression().record(decompressionNanos, TimeUnit.NANOSECONDS);
+    }
+    if (rewriting != null) {
+      meters.rewrite().record(rewriteNanos, TimeUnit.NANOSECONDS);
+      meters.rewriteResult(rewriting.getReplacementCount() > 0).increment();
+    } else if (rewriteSkipped) {
+      meters.rewriteResult(false).increment();
+    }
+  }
+}
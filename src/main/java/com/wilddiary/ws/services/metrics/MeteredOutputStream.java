@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services.metrics;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** An output stream counting the bytes written to it, and the time spent writing them. */
+public final class MeteredOutputStream extends FilterOutputStream {
+
+  private long bytes;
+  private long nanos;
+
+  /**
+   * Constructor for the MeteredOutputStream.
+   *
+   * @param out the stream to write to
+   */
+  public MeteredOutputStream(OutputStream out) {
+    super(out);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    long start = System.nanoTime();
+    out.write(b);
+    nanos += System.nanoTime() - start;
+    bytes++;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    long start = System.nanoTime();
+    out.write(b, off, len);
+    nanos += System.nanoTime() - start;
+    bytes += len;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    long start = System.nanoTime();
+    out.flush();
+    nanos += System.nanoTime() - start;
+  }
+
+  @Override
+  public void close() throws IOException {
+    long start = System.nanoTime();
+    try (OutputStream target = out) {
+      target.flush();
+    } finally {
+      nanos += System.nanoTime() - start;
+    }
+  }
+
+  /**
+   * Gets the number of bytes written.
+   *
+   * @return the number of bytes
+   */
+  public long getBytes() {
+    return bytes;
+  }
+
+  /**
+   * Gets the time spent writing.
+   *
+   * @return the time in nanoseconds
+   */
+  public long getNanos() {
+    return nanos;
+  }
+}
@@ -0,0 +1,275 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+package com.wilddiary.ws.services.metrics;
+
+import com.wilddiary.ws.config.UpstreamRouteSettings;
+import com.wilddiary.ws.services.routing.UpstreamTarget;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.springframework.stereotype.Component;
+
+/**
+ * Metrics of the relayed exchanges, per context and upstream server. Latencies are published as
+ * percentile histograms, so that they can be aggregated across instances. The tags only take the
+ * values of the configured contexts and upstream servers, which keeps the number of series bounded
+ * however many URLs are relayed.
+ */
+@Component
+public class RelayMetrics {
+
+  /** The tag value of requests not matched to a context, or not relayed to an upstream server. */
+  public static final String NONE = "none";
+
+  /** The tag value of upstream servers that are not configured, reached by following redirects. */
+  public static final String OTHER = "other";
+
+  private final MeterRegistry meterRegistry;
+  private final Map<RequestKey, Timer> requests = new ConcurrentHashMap<>();
+  private final Map<RouteKey, RouteMeters> routes = new ConcurrentHashMap<>();
+  private final Map<String, Timer> connects = new ConcurrentHashMap<>();
+  private final Map<String, HandshakeMeters> handshakes = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor for the RelayMetrics.
+   *
+   * @param meterRegistry the meter registry
+   */
+  public RelayMetrics(MeterRegistry meterRegistry) {
+    this.meterRegistry = meterRegistry;
+  }
+
+  /**
+   * Starts the metrics of a relayed exchange.
+   *
+   * @return the metrics of the exchange
+   */
+  public ExchangeMetrics start() {
+    return new ExchangeMetrics(this);
+  }
+
+  /**
+   * Gets the tag value of an upstream server, its scheme, host and port.
+   *
+   * @param target the upstream server, may be null
+   * @return the tag value
+   */
+  public static String upstreamTag(UpstreamTarget target) {
+    if (target == null) {
+      return NONE;
+    }
+    return UpstreamRouteSettings.targetOf(target.getTarget()).toURI();
+  }
+
+  /**
+   * Gets the timer of the connections established to an upstream server.
+   *
+   * @param upstream the upstream server tag value
+   * @return the timer
+   */
+  public Timer connectTimer(String upstream) {
+    return connects.computeIfAbsent(
+        upstream,
+        tag ->
+            Timer.builder("relay.upstream.connect")
+                .description("Time to connect to the upstream server, TLS handshake included")
+                .tag("upstream", tag)
+                .publishPercentileHistogram()
+                .register(meterRegistry));
+  }
+
+  /**
+   * Records a TLS handshake with an upstream server.
+   *
+   * @param upstream the upstream server tag value
+   * @param nanos the duration of the handshake, in nanoseconds
+   * @param resumed whether the handshake resumed a cached session
+   */
+  public void recordHandshake(String upstream, long nanos, boolean resumed) {
+    handshakes
+        .computeIfAbsent(upstream, tag -> new HandshakeMeters(meterRegistry, tag))
+        .timer(resumed)
+        .record(nanos, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Gets the timer of the exchanges of a context with an upstream server ending with a status.
+   *
+   * @param context the context
+   * @param upstream the upstream server tag value
+   * @param status the status class, or the error tag value
+   * @return the timer
+   */
+  Timer requests(String context, String upstream, String status) {
+    return requests.computeIfAbsent(
+        new RequestKey(context, upstream, status),
+        key ->
+            Timer.builder("relay.requests")
+                .description("Relayed requests, from receiving them to completing the response")
+                .tag("context", key.context())
+                .tag("upstream", key.upstream())
+                .tag("status", key.status())
+                .publishPercentileHistogram()
+                .register(meterRegistry));
+  }
+
+  /**
+   * Gets the meters of the exchanges of a context relayed to an upstream server.
+   *
+   * @param context the context
+   * @param upstream the upstream server tag value
+   * @return the meters
+   */
+  RouteMeters meters(String context, String upstream) {
+    return routes.computeIfAbsent(
+        new RouteKey(context, upstream), key -> new RouteMeters(meterRegistry, key));
+  }
+
+  /** The context, upstream server and status tagging the timer of an exchange. */
+  private record RequestKey(String context, String upstream, String status) {}
+
+  /** The context and upstream server tagging the meters of an exchange. */
+  private record RouteKey(String context, String upstream) {}
+
+  /** The meters of the TLS handshakes with an upstream server. */
+  private static final class HandshakeMeters {
+
+    private final Timer full;
+    private final Timer resumed;
+
+    private HandshakeMeters(MeterRegistry meterRegistry, String upstream) {
+      this.full = handshakeTimer(meterRegistry, upstream, false);
+      this.resumed = handshakeTimer(meterRegistry, upstream, true);
+      Gauge.builder("relay.upstream.tls.resumption", this, HandshakeMeters::resumptionRatio)
+          .description("Share of the TLS handshakes with the upstream server resuming a session")
+          .tag("upstream", upstream)
+          .register(meterRegistry);
+    }
+
+    private static Timer handshakeTimer(
+        MeterRegistry meterRegistry, String upstream, boolean resumed) {
+      return Timer.builder("relay.upstream.tls.handshake")
+          .description("TLS handshakes with the upstream server, by whether a session was resumed")
+          .tag("upstream", upstream)
+          .tag("resumed", String.valueOf(resumed))
+          .publishPercentileHistogram()
+          .register(meterRegistry);
+    }
+
+    private Timer timer(boolean resumed) {
+      return resumed ? this.resumed : full;
+    }
+
+    private double resumptionRatio() {
+      long total = full.count() + resumed.count();
+      return total == 0 ? 0 : (double) resumed.count() / total;
+    }
+  }
+
+  /** The meters of the exchanges of a context relayed to an upstream server. */
+  static final class RouteMeters {
+
+    private final MeterRegistry meterRegistry;
+    private final Tags tags;
+    private final Timer firstByte;
+    private final DistributionSummary upstreamBytes;
+    private final DistributionSummary responseBytes;
+    private final Timer decompression;
+    private final Timer rewrite;
+    private final Counter rewriteHits;
+    private final Counter rewriteMisses;
+
+    private RouteMeters(MeterRegistry meterRegistry, RouteKey key) {
+      this.meterRegistry = meterRegistry;
+      this.tags = Tags.of("context", key.context(), "upstream", key.upstream());
+      this.firstByte =
+          Timer.builder("relay.upstream.ttfb")
+              .description("Time from sending the upstream request to receiving the response head")
+              .tags(tags)
+              .publishPercentileHistogram()
+              .register(meterRegistry);
+      this.upstreamBytes =
+          DistributionSummary.builder("relay.upstream.response.size")
+              .description("Bytes of the response bodies received from the upstream server")
+              .baseUnit("bytes")
+              .tags(tags)
+              .register(meterRegistry);
+      this.responseBytes =
+          DistributionSummary.builder("relay.response.size")
+              .description("Bytes of the response bodies sent to the client")
+              .baseUnit("bytes")
+              .tags(tags)
+              .register(meterRegistry);
+      this.decompression =
+          Timer.builder("relay.decompression")
+              .description("Time spent decompressing response bodies to rewrite them")
+              .tags(tags)
+              .publishPercentileHistogram()
+              .register(meterRegistry);
+      this.rewrite =
+          Timer.builder("relay.rewrite")
+              .description("Time spent rewriting URLs in response bodies and encoding them")
+              .tags(tags)
+              .publishPercentileHistogram()
+              .register(meterRegistry);
+      this.rewriteHits = rewriteCounter("hit");
+      this.rewriteMisses = rewriteCounter("miss");
+    }
+
+    private Counter rewriteCounter(String result) {
+      return Counter.builder("relay.rewrite.responses")
+          .description("Response bodies scanned for URLs to rewrite, by whether they had any")
+          .tags(tags)
+          .tag("result", result)
+          .register(meterRegistry);
+    }
+
+    Timer firstByte() {
+      return firstByte;
+    }
+
+    DistributionSummary upstreamBytes() {
+      return upstreamBytes;
+    }
+
+    DistributionSummary responseBytes() {
+      return responseBytes;
+    }
+
+    Timer decompression() {
+      return decompression;
+    }
+
+    Timer rewrite() {
+      return rewrite;
+    }
+
+    Counter rewriteResult(boolean hit) {
+      return hit ? rewriteHits : rewriteMisses;
+    }
+  }
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.range;
+
+import java.util.Optional;
+
+/**
+ * A single byte range of a {@code Range} header, as defined by RFC 9110 section 14.1.2. The range
+ * is either from a first position, up to a last position or the end of the body, or a suffix of
+ * the body of a given length.
+ */
+public final class ByteRange {
+
+  private static final String BYTES_UNIT = "bytes=";
+
+  private final long first;
+  private final long last;
+  private final long suffixLength;
+
+  private ByteRange(long first, long last, long suffixLength) {
+    this.first = first;
+    this.last = last;
+    this.suffixLength = suffixLength;
+  }
+
+  /**
+   * Parses a {@code Range} header. Headers with several ranges, another unit or an invalid range
+   * are not parsed, as the whole body may be sent instead of the ranges asked for.
+   *
+   * @param header the {@code Range} header, may be null
+   * @return the byte range, or empty if the header is not a single valid byte range
+   */
+  public static Optional<ByteRange> parse(String header) {
+    if (header == null
+        || !header.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length())
+        || header.indexOf(',') >= 0) {
+      return Optional.empty();
+    }
+    String spec = header.substring(BYTES_UNIT.length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0) {
+      return Optional.empty();
+    }
+    try {
+      String firstPosition = spec.substring(0, dash).trim();
+      String lastPosition = spec.substring(dash + 1).trim();
+      if (firstPosition.isEmpty()) {
+        long suffixLength = Long.parseLong(lastPosition);
+        return suffixLength > 0
+            ? Optional.of(new ByteRange(-1, -1, suffixLength))
+            : Optional.empty();
+      }
+      long first = Long.parseLong(firstPosition);
+      long last = lastPosition.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastPosition);
+      return first >= 0 && last >= first
+          ? Optional.of(new ByteRange(first, last, -1))
+          : Optional.empty();
+    } catch (NumberFormatException e) {
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * Whether the range overlaps a body.
+   *
+   * @param length the body length
+   * @return true if the range has at least one byte of the body
+   */
+  public boolean isSatisfiable(long length) {
+    return suffixLength > 0 ? length > 0 : first < length;
+  }
+
+  /**
+   * Gets the position of the first byte of the range in a body.
+   *
+   * @param length the body length
+   * @return the first position
+   */
+  public long first(long length) {
+    return suffixLength > 0 ? Math.max(0, length - suffixLength) : first;
+  }
+
+  /**
+   * Gets the position of the last byte of the range in a body.
+   *
+   * @param length the body length
+   * @return the last position, included in the range
+   */
+  public long last(long length) {
+    return suffixLength > 0 ? length - 1 : Math.min(last, length - 1);
+  }
+
+  /**
+   * Gets the {@code Content-Range} header of the range of a body.
+   *
+   * @param length the body length
+   * @return the header value
+   */
+  public String contentRange(long length) {
+    return "bytes " + first(length) + "-" + last(length) + "/" + length;
+  }
+
+  @Override
+  public String toString() {
+    return suffixLength > 0
+        ? "-" + suffixLength
+        : first + "-" + (last == Long.MAX_VALUE ? "" : Long.toString(last));
+  }
+}
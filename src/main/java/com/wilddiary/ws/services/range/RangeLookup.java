@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.range;
+
+import org.springframework.http.HttpHeaders;
+
+/**
+ * The outcome of looking up a range request in the rewritten representations. A representation
+ * kept for the resource is checked with the upstream server by asking for the whole body with the
+ * upstream validators, and the range is served from it if the upstream server validates it.
+ * Otherwise the range is asked for as is, and the whole body is fetched instead if the upstream
+ * response turns out to be one URLs are rewritten in.
+ */
+public final class RangeLookup {
+
+  /** A lookup of a request that is not a range request. */
+  public static final RangeLookup NONE = new RangeLookup(null, null, null, null, false);
+
+  private final String key;
+  private final ByteRange range;
+  private final String ifRange;
+  private final Representation stored;
+  private final boolean storable;
+  private boolean whole;
+  private boolean revalidating;
+
+  /**
+   * Constructor for the RangeLookup.
+   *
+   * @param key the key of the requested representation
+   * @param range the requested range
+   * @param ifRange the {@code If-Range} header of the request, may be null
+   * @param stored the representation found, may be null
+   * @param storable whether the representation of the response to the request may be kept
+   */
+  RangeLookup(
+      String key, ByteRange range, String ifRange, Representation stored, boolean storable) {
+    this.key = key;
+    this.range = range;
+    this.ifRange = ifRange;
+    this.stored = stored;
+    this.storable = storable;
+    this.whole = stored != null;
+  }
+
+  /**
+   * Whether the request asks for a range whose body may be rewritten.
+   *
+   * @return true if the request is a range request
+   */
+  public boolean isRanged() {
+    return range != null;
+  }
+
+  /**
+   * Asks the upstream server for the whole body, instead of the range, when the range is cut from
+   * the rewritten body. The validators of a representation kept for the resource are added so that
+   * the upstream server can validate it.
+   *
+   * @param upstreamRequestHeaders the upstream request headers
+   */
+  public void addValidators(HttpHeaders upstreamRequestHeaders) {
+    revalidating = false;
+    if (!whole) {
+      return;
+    }
+    upstreamRequestHeaders.remove(HttpHeaders.RANGE);
+    upstreamRequestHeaders.remove(HttpHeaders.IF_RANGE);
+    if (stored == null) {
+      return;
+    }
+    upstreamRequestHeaders.remove(HttpHeaders.IF_NONE_MATCH);
+    upstreamRequestHeaders.remove(HttpHeaders.IF_MODIFIED_SINCE);
+    if (stored.upstreamETag() != null) {
+      upstreamRequestHeaders.set(HttpHeaders.IF_NONE_MATCH, stored.upstreamETag());
+    } else {
+      upstreamRequestHeaders.set(HttpHeaders.IF_MODIFIED_SINCE, stored.upstreamLastModified());
+    }
+    revalidating = true;
+  }
+
+  /**
+   * Whether the upstream request checks the representation kept for the resource.
+   *
+   * @return true if the upstream request was made conditional
+   */
+  public boolean isRevalidating() {
+    return revalidating;
+  }
+
+  /**
+   * Switches to asking for the whole body, once the upstream server answered the range of a body
+   * URLs may be rewritten in.
+   *
+   * @return true if the whole body is to be fetched, false if it already was
+   */
+  public boolean fetchWhole() {
+    if (range == null || whole) {
+      return false;
+    }
+    whole = true;
+    return true;
+  }
+
+  /**
+   * Whether the whole body is fetched after the upstream server answered the range itself.
+   *
+   * @return true if the range was asked for first
+   */
+  public boolean isFetchedWhole() {
+    return whole && stored == null;
+  }
+
+  /**
+   * Gets the representation kept for the resource.
+   *
+   * @return the representation, or null if none was found
+   */
+  public Representation stored() {
+    return stored;
+  }
+
+  /**
+   * Gets the key of the requested representation.
+   *
+   * @return the key
+   */
+  String key() {
+    return key;
+  }
+
+  /**
+   * Gets the requested range.
+   *
+   * @return the range
+   */
+  ByteRange range() {
+    return range;
+  }
+
+  /**
+   * Gets the {@code If-Range} header of the request.
+   *
+   * @return the header value, or null if the request has none
+   */
+  String ifRange() {
+    return ifRange;
+  }
+
+  /**
+   * Whether the representation of the response to the request may be kept.
+   *
+   * @return true if the request has no credentials
+   */
+  boolean isStorable() {
+    return storable;
+  }
+}
@@ -0,0 +1,415 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.range;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.wilddiary.ws.config.RelayProperties;
+import com.wilddiary.ws.services.buffer.BodyBuffers;
+import com.wilddiary.ws.services.cache.BodyStore;
+import com.wilddiary.ws.services.cache.CacheDirectives;
+import com.wilddiary.ws.services.cache.CachedBody;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.Set;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+
+/**
+ * Serves range requests for the response bodies URLs are rewritten in. Rewriting moves the byte
+ * offsets of the upstream body, so a range cannot be asked from the upstream server; it is cut
+ * from the whole rewritten body instead. Rewritten bodies carry strong entity tags, so that
+ * clients can resume a download with {@code If-Range}, and the rewritten representations are kept
+ * for the next ranges of the same resource while the upstream server validates them.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@Slf4j
+public class RangeRepresentations implements MeterBinder {
+
+  // Accounted for the headers of each representation, on top of its body
+  private static final int ENTRY_OVERHEAD = 1024;
+
+  // Length of the digests making up the entity tags, in bytes
+  private static final int TAG_LENGTH = 18;
+
+  // Headers framing a body, set for each response served from a representation
+  private static final Set<String> FRAMING_HEADERS =
+      Set.of("content-length", "content-range", "transfer-encoding");
+
+  private final boolean enabled;
+  private final int maxRepresentationSize;
+  private final BodyStore bodyStore;
+  private final BodyBuffers bodyBuffers;
+  private final Cache<String, Representation> representations;
+
+  /**
+   * Constructor for the RangeRepresentations.
+   *
+   * @param relayProperties the relay properties
+   * @param bodyBuffers the buffers capturing the rewritten bodies
+   * @throws IOException if the body storage cannot be prepared
+   */
+  public RangeRepresentations(RelayProperties relayProperties, BodyBuffers bodyBuffers)
+      throws IOException {
+    RelayProperties.Ranges settings = relayProperties.getRanges();
+    this.bodyBuffers = bodyBuffers;
+    this.enabled = settings.isEnabled();
+    this.maxRepresentationSize =
+        (int) Math.min(Integer.MAX_VALUE - 8, settings.getMaxRepresentationSize().toBytes());
+    if (!enabled) {
+      this.bodyStore = null;
+      this.representations = null;
+      return;
+    }
+    this.bodyStore = BodyStore.create(relayProperties.getCache());
+    this.representations =
+        Caffeine.newBuilder()
+            .maximumWeight(settings.getMaxSize().toBytes())
+            .weigher(
+                (String key, Representation representation) ->
+                    (int)
+                        Math.min(
+                            Integer.MAX_VALUE, representation.body().length() + ENTRY_OVERHEAD))
+            .removalListener(
+                (String key, Representation representation, RemovalCause cause) -> {
+                  // Replaced bodies are released when they are replaced, see store
+                  if (representation != null && cause != RemovalCause.REPLACED) {
+                    representation.body().release();
+                  }
+                })
+            .recordStats()
+            .build();
+  }
+
+  /**
+   * Looks up the representation a range request is for. Requests other than GET requests with a
+   * single byte range are not range requests to the relay.
+   *
+   * @param routesVersion the version of the routes the request is relayed with
+   * @param request the downstream request
+   * @return the lookup
+   */
+  public RangeLookup lookup(long routesVersion, HttpServletRequest request) {
+    if (!enabled || !HttpMethod.GET.matches(request.getMethod())) {
+      return RangeLookup.NONE;
+    }
+    Optional<ByteRange> range = ByteRange.parse(request.getHeader(HttpHeaders.RANGE));
+    if (range.isEmpty()) {
+      return RangeLookup.NONE;
+    }
+    String key = key(routesVersion, request);
+    Representation stored = representations.getIfPresent(key);
+    log.debug("Range {} requested, representation kept: {}", range.get(), stored != null);
+    return new RangeLookup(
+        key,
+        range.get(),
+        request.getHeader(HttpHeaders.IF_RANGE),
+        stored,
+        request.getHeader(HttpHeaders.AUTHORIZATION) == null);
+  }
+
+  /**
+   * Tags a body URLs are rewritten in strongly, and advertises ranges of it. The entity tag is a
+   * digest of the strong entity tag of the upstream body and of everything else the rewritten
+   * bytes depend on, so that it is known before the body is rewritten and only matches the same
+   * bytes. Bodies without a strong upstream entity tag keep the weak one.
+   *
+   * @param upstreamHeaders the upstream response headers
+   * @param downstreamHeaders the downstream response headers
+   * @param rewriteInputs what the rewritten bytes depend on besides the upstream body
+   */
+  public void tagRewritten(
+      HttpHeaders upstreamHeaders, HttpHeaders downstreamHeaders, String... rewriteInputs) {
+    if (!enabled) {
+      downstreamHeaders.remove(HttpHeaders.ACCEPT_RANGES);
+      return;
+    }
+    downstreamHeaders.set(HttpHeaders.ACCEPT_RANGES, "bytes");
+    String upstreamETag = upstreamHeaders.getETag();
+    if (upstreamETag != null
+        && !upstreamETag.startsWith("W/")
+        && downstreamHeaders.containsKey(HttpHeaders.ETAG)) {
+      MessageDigest digest = sha256();
+      digest.update(upstreamETag.getBytes(StandardCharsets.UTF_8));
+      for (String input : rewriteInputs) {
+        digest.update((byte) '\n');
+        digest.update(input.getBytes(StandardCharsets.UTF_8));
+      }
+      downstreamHeaders.setETag(tag(digest));
+    }
+  }
+
+  /**
+   * Creates a writer capturing the rewritten body of the response to a range request, to serve
+   * the range from it.
+   *
+   * @param lookup the range lookup of the request
+   * @param status the response status
+   * @param upstreamHeaders the upstream response headers
+   * @param downstreamHeaders the downstream response headers
+   * @param context the mapped context, whose settings the body is buffered with
+   * @return the representation writer, or empty if the response is sent as is
+   */
+  public Optional<RepresentationWriter> writer(
+      RangeLookup lookup,
+      int status,
+      HttpHeaders upstreamHeaders,
+      HttpHeaders downstreamHeaders,
+      String context) {
+    if (!lookup.isRanged()
+        || status != HttpStatus.OK.value()
+        || upstreamHeaders.getContentLength() > maxRepresentationSize) {
+      return Optional.empty();
+    }
+    HttpHeaders headers = new HttpHeaders();
+    downstreamHeaders.forEach(
+        (name, values) -> {
+          if (!FRAMING_HEADERS.contains(name.toLowerCase(Locale.ROOT))) {
+            headers.put(name, List.copyOf(values));
+          }
+        });
+    String upstreamETag = upstreamHeaders.getETag();
+    String upstreamLastModified = upstreamHeaders.getFirst(HttpHeaders.LAST_MODIFIED);
+    return Optional.of(
+        new RepresentationWriter(
+            this,
+            lookup,
+            maxRepresentationSize,
+            bodyBuffers.allocate(context, true),
+            lookup.isStorable()
+                && isStorable(upstreamHeaders)
+                && (upstreamETag != null || upstreamLastModified != null),
+            headers,
+            upstreamETag,
+            upstreamLastModified));
+  }
+
+  /**
+   * Serves a range request from a representation. The range is served if the {@code If-Range}
+   * condition of the request holds, and the whole body otherwise. A range past the end of the
+   * body is answered with 416 Range Not Satisfiable.
+   *
+   * @param representation the representation
+   * @param lookup the range lookup of the request
+   * @param response the downstream response
+   * @throws IOException if an I/O error occurs
+   */
+  public void serve(
+      Representation representation, RangeLookup lookup, HttpServletResponse response)
+      throws IOException {
+    representation
+        .headers()
+        .forEach((name, values) -> values.forEach(value -> response.addHeader(name, value)));
+    long length = representation.body().length();
+    ByteRange range = lookup.range();
+    if (!isIfRangeMet(lookup.ifRange(), representation)) {
+      log.debug("If-Range condition not met, serving the whole representation");
+      response.setStatus(HttpStatus.OK.value());
+      response.setContentLengthLong(length);
+      representation.body().writeTo(response.getOutputStream());
+    } else if (!range.isSatisfiable(length)) {
+      response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+      response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + length);
+      response.setContentLengthLong(0);
+    } else {
+      long first = range.first(length);
+      long count = range.last(length) - first + 1;
+      response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+      response.setHeader(HttpHeaders.CONTENT_RANGE, range.contentRange(length));
+      response.setContentLengthLong(count);
+      representation.body().writeTo(response.getOutputStream(), first, count);
+    }
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    if (enabled) {
+      CaffeineCacheMetrics.monitor(registry, representations, "relay.representations");
+    }
+  }
+
+  /**
+   * Gets the storage of the representation bodies.
+   *
+   * @return the body store
+   */
+  BodyStore bodyStore() {
+    return bodyStore;
+  }
+
+  /**
+   * Keeps a representation, releasing the body of the representation it replaces.
+   *
+   * @param key the key of the representation
+   * @param representation the representation
+   */
+  void store(String key, Representation representation) {
+    representations
+        .asMap()
+        .compute(
+            key,
+            (ignored, replaced) -> {
+              if (replaced != null && replaced.body() != representation.body()) {
+                replaced.body().release();
+              }
+              return representation;
+            });
+  }
+
+  /**
+   * Whether the representation of an upstream response may be kept. Responses the upstream server
+   * forbids storing in a shared cache, or varying on request headers other than the accepted
+   * encodings the key holds, are not kept.
+   *
+   * @param upstreamHeaders the upstream response headers
+   * @return true if the representation may be kept
+   */
+  private static boolean isStorable(HttpHeaders upstreamHeaders) {
+    CacheDirectives directives =
+        CacheDirectives.parse(upstreamHeaders.get(HttpHeaders.CACHE_CONTROL));
+    if (directives.has("no-store") || directives.has("private")) {
+      return false;
+    }
+    for (String field : upstreamHeaders.getVary()) {
+      if (!field.isBlank() && !field.trim().equalsIgnoreCase(HttpHeaders.ACCEPT_ENCODING)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether the {@code If-Range} condition of a request holds for a representation, as evaluated
+   * by RFC 9110 section 13.1.5. An entity tag must match the strong tag of the representation, and
+   * a date its last modification date.
+   *
+   * @param ifRange the {@code If-Range} header, may be null
+   * @param representation the representation
+   * @return true if the range is to be served
+   */
+  private static boolean isIfRangeMet(String ifRange, Representation representation) {
+    if (ifRange == null) {
+      return true;
+    }
+    String condition = ifRange.trim();
+    if (condition.startsWith("\"") || condition.startsWith("W/")) {
+      return condition.equals(representation.eTag());
+    }
+    long lastModified = representation.headers().getLastModified();
+    try {
+      return lastModified >= 0
+          && ZonedDateTime.parse(condition, DateTimeFormatter.RFC_1123_DATE_TIME)
+                  .toInstant()
+                  .toEpochMilli()
+              == lastModified;
+    } catch (DateTimeParseException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Gets the key of the representation a request is for. The key is the downstream URL, which
+   * determines the URLs rewritten in the body, and the accepted encodings, which determine the
+   * encoding of the body.
+   *
+   * @param routesVersion the version of the routes the request is relayed with
+   * @param request the downstream request
+   * @return the key
+   */
+  private static String key(long routesVersion, HttpServletRequest request) {
+    StringBuilder key = new StringBuilder(128).append(routesVersion).append(' ');
+    key.append(request.getRequestURL());
+    if (request.getQueryString() != null) {
+      key.append('?').append(request.getQueryString());
+    }
+    key.append('\n');
+    String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+    if (acceptEncoding != null) {
+      for (int i = 0; i < acceptEncoding.length(); i++) {
+        char c = acceptEncoding.charAt(i);
+        if (!Character.isWhitespace(c)) {
+          key.append(Character.toLowerCase(c));
+        }
+      }
+    }
+    return key.toString();
+  }
+
+  /**
+   * Gets the entity tag of a body, a digest of its bytes.
+   *
+   * @param body the body
+   * @return the strong entity tag
+   * @throws IOException if the body cannot be read
+   */
+  static String tag(CachedBody body) throws IOException {
+    MessageDigest digest = sha256();
+    body.writeTo(
+        new OutputStream() {
+          @Override
+          public void write(int b) {
+            digest.update((byte) b);
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) {
+            digest.update(b, off, len);
+          }
+        });
+    return tag(digest);
+  }
+
+  private static String tag(MessageDigest digest) {
+    byte[] hash = Arrays.copyOf(digest.digest(), TAG_LENGTH);
+    return '"' + Base64.getUrlEncoder().withoutPadding().encodeToString(hash) + '"';
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+}
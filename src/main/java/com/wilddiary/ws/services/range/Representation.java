@@ -0,0 +1,43 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.range;
+
+import com.wilddiary.ws.services.cache.CachedBody;
+import org.springframework.http.HttpHeaders;
+
+/**
+ * The whole body of a response URLs were rewritten in, as sent downstream, kept to serve ranges
+ * of it. The validators of the upstream response are kept to check with the upstream server that
+ * the representation is still current.
+ *
+ * @param headers the downstream response headers, without the framing headers
+ * @param body the rewritten and encoded body
+ * @param eTag the strong entity tag of the representation
+ * @param upstreamETag the entity tag of the upstream response, may be null
+ * @param upstreamLastModified the last modification date of the upstream response, may be null
+ */
+public record Representation(
+    HttpHeaders headers,
+    CachedBody body,
+    String eTag,
+    String upstreamETag,
+    String upstreamLastModified) {}
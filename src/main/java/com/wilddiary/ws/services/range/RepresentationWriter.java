@@ -0,0 +1,193 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.range;
+
+import com.wilddiary.ws.services.buffer.BodyBuffer;
+import com.wilddiary.ws.services.buffer.BufferSpaceException;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
+
+/**
+ * Captures the whole body of a response URLs are rewritten in, to serve the requested range from
+ * it once the body is complete. A body exceeding the maximum representation size, or the space
+ * left for buffered bodies, is sent whole instead, starting with the bytes captured so far.
+ */
+@Slf4j
+public final class RepresentationWriter {
+
+  private final RangeRepresentations representations;
+  private final RangeLookup lookup;
+  private final int maxRepresentationSize;
+  private final boolean storable;
+  private final HttpHeaders headers;
+  private final String upstreamETag;
+  private final String upstreamLastModified;
+  private BodyBuffer captured;
+
+  /**
+   * Constructor for the RepresentationWriter.
+   *
+   * @param representations the rewritten representations
+   * @param lookup the range lookup of the request
+   * @param maxRepresentationSize the maximum size of the body to capture
+   * @param captured the buffer capturing the body
+   * @param storable whether the representation may be kept for the next ranges
+   * @param headers the headers of the representation
+   * @param upstreamETag the entity tag of the upstream response, may be null
+   * @param upstreamLastModified the last modification date of the upstream response, may be null
+   */
+  RepresentationWriter(
+      RangeRepresentations representations,
+      RangeLookup lookup,
+      int maxRepresentationSize,
+      BodyBuffer captured,
+      boolean storable,
+      HttpHeaders headers,
+      String upstreamETag,
+      String upstreamLastModified) {
+    this.representations = representations;
+    this.lookup = lookup;
+    this.maxRepresentationSize = maxRepresentationSize;
+    this.captured = captured;
+    this.storable = storable;
+    this.headers = headers;
+    this.upstreamETag = upstreamETag;
+    this.upstreamLastModified = upstreamLastModified;
+  }
+
+  /**
+   * Creates the stream capturing the body.
+   *
+   * @param wholeBody opens the downstream response body stream to send the whole body to, once
+   *     the body exceeds the maximum representation size
+   * @return the capturing stream
+   */
+  public OutputStream capture(WholeBody wholeBody) {
+    return new OutputStream() {
+      private OutputStream out;
+
+      @Override
+      public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        if (out == null && captured.length() + len > maxRepresentationSize) {
+          log.debug(
+              "Rewritten body exceeds {} bytes, sending it whole instead of the range",
+              maxRepresentationSize);
+          sendWhole();
+        }
+        if (out == null) {
+          try {
+            captured.write(b, off, len);
+            return;
+          } catch (BufferSpaceException e) {
+            log.warn("Rewritten body cannot be buffered, sending it whole: {}", e.getMessage());
+            sendWhole();
+          }
+        }
+        out.write(b, off, len);
+      }
+
+      @Override
+      public void flush() throws IOException {
+        if (out != null) {
+          out.flush();
+        }
+      }
+
+      private void sendWhole() throws IOException {
+        out = wholeBody.open();
+        captured.writeTo(out);
+        discard();
+      }
+    };
+  }
+
+  /**
+   * Serves the requested range from the captured body once the body is complete, and keeps the
+   * representation for the next ranges if it may be kept. Nothing is served if the body was sent
+   * whole.
+   *
+   * @param response the downstream response
+   * @throws IOException if the range cannot be written
+   */
+  public void complete(HttpServletResponse response) throws IOException {
+    if (captured == null) {
+      return;
+    }
+    try {
+      captured.close();
+
+      // A body without a strong entity tag is tagged by a digest of its bytes
+      String eTag = headers.getETag();
+      if (eTag == null || eTag.startsWith("W/")) {
+        eTag = RangeRepresentations.tag(captured);
+        headers.setETag(eTag);
+      }
+      // A representation not kept is served straight from the buffer
+      Representation complete =
+          new Representation(
+              HttpHeaders.readOnlyHttpHeaders(headers),
+              storable ? representations.bodyStore().store(captured) : captured,
+              eTag,
+              upstreamETag,
+              upstreamLastModified);
+      if (storable) {
+        discard();
+        representations.store(lookup.key(), complete);
+      }
+      representations.serve(complete, lookup, response);
+    } finally {
+      discard();
+    }
+  }
+
+  /**
+   * Drops the captured body, as when the body could not be fully written. Does nothing once the
+   * body is sent whole or served.
+   */
+  public void discard() {
+    if (captured != null) {
+      captured.release();
+      captured = null;
+    }
+  }
+
+  /** Opens the downstream response body stream to send a body whole. */
+  @FunctionalInterface
+  public interface WholeBody {
+
+    /**
+     * Sends the response head and opens the stream to write the whole body to.
+     *
+     * @return the downstream response body stream
+     * @throws IOException if an I/O error occurs
+     */
+    OutputStream open() throws IOException;
+  }
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.retry;
+
+import java.util.Arrays;
+
+/**
+ * Recent upstream latencies of a context, to take the hedge delay from. Latencies are counted in
+ * a histogram of buckets growing by a quarter of an octave from 100 microseconds, precise to about
+ * 20%. The histogram of the current period of 10 seconds and the one of the period before are
+ * kept, so that the percentiles follow the latencies as they change.
+ */
+final class LatencyTracker {
+
+  private static final long PERIOD_NANOS = 10_000_000_000L;
+  private static final long MIN_NANOS = 100_000L;
+  private static final int STEPS_PER_OCTAVE = 4;
+  private static final int BUCKETS = 80;
+  private static final int MIN_SAMPLES = 20;
+
+  private long[] current = new long[BUCKETS];
+  private long[] previous = new long[BUCKETS];
+  private long currentCount;
+  private long previousCount;
+  private long periodStart = System.nanoTime();
+
+  /**
+   * Records the latency of a request.
+   *
+   * @param nanos the time to the head of the upstream response, in nanoseconds
+   */
+  synchronized void record(long nanos) {
+    rotate(System.nanoTime());
+    current[bucket(nanos)]++;
+    currentCount++;
+  }
+
+  /**
+   * Gets a percentile of the recent latencies.
+   *
+   * @param percentile the percentile, from 0 to 100
+   * @return the upper bound of the bucket holding the percentile in nanoseconds, or -1 if too few
+   *     latencies have been recorded
+   */
+  synchronized long percentile(double percentile) {
+    rotate(System.nanoTime());
+    long count = currentCount + previousCount;
+    if (count < MIN_SAMPLES) {
+      return -1;
+    }
+    long rank = (long) Math.ceil(count * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += current[i] + previous[i];
+      if (seen >= rank) {
+        return upperBound(i);
+      }
+    }
+    return upperBound(BUCKETS - 1);
+  }
+
+  /**
+   * Starts a new period once the current one is over, dropping the one before.
+   *
+   * @param now the time, in {@link System#nanoTime()} units
+   */
+  private void rotate(long now) {
+    long elapsed = now - periodStart;
+    if (elapsed < PERIOD_NANOS) {
+      return;
+    }
+    long[] dropped = previous;
+    Arrays.fill(dropped, 0);
+    if (elapsed < 2 * PERIOD_NANOS) {
+      previous = current;
+      previousCount = currentCount;
+      current = dropped;
+    } else {
+      Arrays.fill(current, 0);
+      previousCount = 0;
+    }
+    currentCount = 0;
+    periodStart = now;
+  }
+
+  private static int bucket(long nanos) {
+    if (nanos <= MIN_NANOS) {
+      return 0;
+    }
+    double octaves = Math.log((double) nanos / MIN_NANOS) / Math.log(2);
+    return (int) Math.min(BUCKETS - 1, Math.ceil(octaves * STEPS_PER_OCTAVE));
+  }
+
+  private static long upperBound(int bucket) {
+    return (long) (MIN_NANOS * Math.pow(2, (double) bucket / STEPS_PER_OCTAVE));
+  }
+}
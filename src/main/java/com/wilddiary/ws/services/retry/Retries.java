@@ -0,0 +1,63 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.retry;
+
+import com.wilddiary.ws.config.RelayProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.springframework.stereotype.Component;
+
+/**
+ * The retry policies of the mapped contexts. Policies are created on the first request to their
+ * context and kept across reloads of the context mapping, with their budget and latencies.
+ */
+@Component
+public class Retries {
+
+  private final RelayProperties relayProperties;
+  private final MeterRegistry meterRegistry;
+  private final Map<String, RetryPolicy> policies = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor for the Retries.
+   *
+   * @param relayProperties the relay properties
+   * @param meterRegistry the meter registry
+   */
+  public Retries(RelayProperties relayProperties, MeterRegistry meterRegistry) {
+    this.relayProperties = relayProperties;
+    this.meterRegistry = meterRegistry;
+  }
+
+  /**
+   * Gets the retry policy of a context.
+   *
+   * @param context the mapped context
+   * @return the retry policy
+   */
+  public RetryPolicy policyFor(String context) {
+    return policies.computeIfAbsent(
+        context,
+        key -> new RetryPolicy(key, relayProperties.retryFor(key), meterRegistry));
+  }
+}
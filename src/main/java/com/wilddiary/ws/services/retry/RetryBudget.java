@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.retry;
+
+/**
+ * Budget of the retries and hedged requests of a context. The requests and retries of the last 10
+ * seconds are counted in a rolling window of one-second buckets, and a retry is allowed while the
+ * retries stay within a ratio of the requests, plus a floor for contexts with little traffic.
+ */
+final class RetryBudget {
+
+  private static final int BUCKETS = 10;
+  private static final long BUCKET_NANOS = 1_000_000_000L;
+
+  private final double ratio;
+  private final int minPerWindow;
+
+  // Rolling window, as ring buffers indexed by the bucket number
+  private final long[] bucketNumbers = new long[BUCKETS];
+  private final int[] requests = new int[BUCKETS];
+  private final int[] retries = new int[BUCKETS];
+
+  /**
+   * Constructor for the RetryBudget.
+   *
+   * @param ratio the ratio of the requests that may be retried
+   * @param minPerSecond the retries per second allowed on top of the ratio
+   */
+  RetryBudget(double ratio, int minPerSecond) {
+    this.ratio = ratio;
+    this.minPerWindow = minPerSecond * BUCKETS;
+    long current = System.nanoTime() / BUCKET_NANOS;
+    for (int i = 0; i < BUCKETS; i++) {
+      bucketNumbers[i] = current - BUCKETS;
+    }
+  }
+
+  /** Records a request of the context. */
+  synchronized void onRequest() {
+    requests[bucket(System.nanoTime())]++;
+  }
+
+  /**
+   * Takes a retry from the budget, if it has any left.
+   *
+   * @return true if the retry is allowed
+   */
+  synchronized boolean tryRetry() {
+    long now = System.nanoTime();
+    long current = now / BUCKET_NANOS;
+    int requestCount = 0;
+    int retryCount = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      if (current - bucketNumbers[i] < BUCKETS) {
+        requestCount += requests[i];
+        retryCount += retries[i];
+      }
+    }
+    if (retryCount + 1 > ratio * requestCount + minPerWindow) {
+      return false;
+    }
+    retries[bucket(now)]++;
+    return true;
+  }
+
+  /**
+   * Gets the bucket of a time, clearing it if it last held an earlier time.
+   *
+   * @param now the time, in {@link System#nanoTime()} units
+   * @return the index of the bucket
+   */
+  private int bucket(long now) {
+    long number = now / BUCKET_NANOS;
+    int index = (int) Math.floorMod(number, (long) BUCKETS);
+    if (bucketNumbers[index] != number) {
+      bucketNumbers[index] = number;
+      requests[index] = 0;
+      retries[index] = 0;
+    }
+    return index;
+  }
+}
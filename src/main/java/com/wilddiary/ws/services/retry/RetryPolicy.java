@@ -0,0 +1,251 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.retry;
+
+import com.wilddiary.ws.config.RelayProperties;
+import com.wilddiary.ws.services.routing.UpstreamPool;
+import com.wilddiary.ws.services.routing.UpstreamTarget;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpMethod;
+
+/**
+ * The retry settings of a context, with the budget its retries and hedged requests draw from and
+ * the recent upstream latencies its hedge delay is taken from.
+ */
+@Slf4j
+public final class RetryPolicy {
+
+  private static final Set<HttpMethod> IDEMPOTENT_METHODS =
+      Set.of(
+          HttpMethod.GET,
+          HttpMethod.HEAD,
+          HttpMethod.OPTIONS,
+          HttpMethod.TRACE,
+          HttpMethod.PUT,
+          HttpMethod.DELETE);
+
+  private final String context;
+  private final MeterRegistry meterRegistry;
+  private final int maxRetries;
+  private final Set<HttpMethod> methods;
+  private final Set<Integer> statuses;
+  private final long backoffNanos;
+  private final long maxBackoffNanos;
+  private final long maxBodySize;
+  private final boolean hedge;
+  private final double hedgePercentile;
+  private final long hedgeMinDelayNanos;
+  private final RetryBudget budget;
+  private final LatencyTracker latencies = new LatencyTracker();
+
+  /**
+   * Constructor for the RetryPolicy. Configured methods that are not idempotent are dropped with
+   * a warning, as resending such a request could apply it twice.
+   *
+   * @param context the mapped context
+   * @param settings the retry settings of the context
+   * @param meterRegistry the meter registry
+   */
+  RetryPolicy(String context, RelayProperties.Retry settings, MeterRegistry meterRegistry) {
+    this.context = context;
+    this.meterRegistry = meterRegistry;
+    this.maxRetries = settings.getMaxRetries();
+    this.methods =
+        settings.getMethods().stream()
+            .map(method -> HttpMethod.valueOf(method.toUpperCase(Locale.ROOT)))
+            .filter(method -> isIdempotent(context, method))
+            .collect(Collectors.toUnmodifiableSet());
+    this.statuses = Set.copyOf(settings.getStatuses());
+    this.backoffNanos = settings.getBackoff().toNanos();
+    this.maxBackoffNanos = settings.getMaxBackoff().toNanos();
+    this.maxBodySize = settings.getMaxBodySize().toBytes();
+    this.hedge = settings.getHedge();
+    this.hedgePercentile = settings.getHedgePercentile();
+    this.hedgeMinDelayNanos = settings.getHedgeMinDelay().toNanos();
+    this.budget = new RetryBudget(settings.getBudgetRatio(), settings.getMinRetriesPerSecond());
+  }
+
+  /**
+   * Whether the context retries or hedges any request.
+   *
+   * @return true if retries or hedged requests are enabled
+   */
+  public boolean isEnabled() {
+    return maxRetries > 0 || hedge;
+  }
+
+  /**
+   * Whether requests with a method may be retried.
+   *
+   * @param method the request method
+   * @return true if the method is retried
+   */
+  public boolean isRetryable(HttpMethod method) {
+    return maxRetries > 0 && methods.contains(method);
+  }
+
+  /**
+   * Whether an upstream response status is retried.
+   *
+   * @param status the response status
+   * @return true if the status is retried
+   */
+  public boolean isRetryableStatus(int status) {
+    return statuses.contains(status);
+  }
+
+  /**
+   * Gets the maximum number of times a request is retried.
+   *
+   * @return the maximum number of retries
+   */
+  public int maxRetries() {
+    return maxRetries;
+  }
+
+  /**
+   * Gets the largest request body held in memory so that the request can be retried.
+   *
+   * @return the size in bytes
+   */
+  public long maxBodySize() {
+    return maxBodySize;
+  }
+
+  /**
+   * Gets the backoff before a retry, picked at random up to the base backoff doubled for each
+   * retry before, so that retries of requests failing together spread out.
+   *
+   * @param retry the number of the retry, from 1
+   * @return the backoff
+   */
+  public Duration backoff(int retry) {
+    long ceiling = backoffNanos << Math.min(retry - 1, 20);
+    long bound = Math.max(1, Math.min(maxBackoffNanos, ceiling < 0 ? Long.MAX_VALUE : ceiling));
+    return Duration.ofNanos(ThreadLocalRandom.current().nextLong(bound));
+  }
+
+  /**
+   * Selects the upstream server to retry a request on, preferring the servers not tried yet, if the
+   * request has retries left and the budget of the context allows one more.
+   *
+   * @param pool the upstream servers of the route
+   * @param triedTargets the upstream servers tried before
+   * @param retry the number of the retry, from 1
+   * @return the upstream server, or null if the request is not retried
+   */
+  public UpstreamTarget retryTarget(
+      UpstreamPool pool, List<UpstreamTarget> triedTargets, int retry) {
+    if (retry > maxRetries || !tryRetry()) {
+      return null;
+    }
+    UpstreamTarget target = pool.choose(triedTargets);
+    return target != null ? target : pool.choose();
+  }
+
+  /**
+   * Whether requests with a method are hedged. Only GET and HEAD requests without a body are.
+   *
+   * @param method the request method
+   * @return true if the requests are hedged
+   */
+  public boolean isHedged(HttpMethod method) {
+    return hedge && (HttpMethod.GET.equals(method) || HttpMethod.HEAD.equals(method));
+  }
+
+  /**
+   * Gets the time to wait for an upstream response before hedging the request, the configured
+   * percentile of the recent upstream latencies of the context.
+   *
+   * @return the hedge delay in nanoseconds
+   */
+  public long hedgeDelayNanos() {
+    return Math.max(hedgeMinDelayNanos, latencies.percentile(hedgePercentile));
+  }
+
+  /** Records a request of the context, growing its budget. */
+  public void onRequest() {
+    if (isEnabled()) {
+      budget.onRequest();
+    }
+  }
+
+  /**
+   * Records the time an upstream server took to answer a request of the context.
+   *
+   * @param latencyNanos the time to the head of the response in nanoseconds, or -1 if the server
+   *     did not answer
+   */
+  public void onResponse(long latencyNanos) {
+    if (hedge && latencyNanos >= 0) {
+      latencies.record(latencyNanos);
+    }
+  }
+
+  /**
+   * Takes a retry from the budget of the context.
+   *
+   * @return true if the request may be retried
+   */
+  public boolean tryRetry() {
+    return tryTake("retry");
+  }
+
+  /**
+   * Takes a hedged request from the budget of the context.
+   *
+   * @return true if the request may be hedged
+   */
+  public boolean tryHedge() {
+    return tryTake("hedge");
+  }
+
+  private boolean tryTake(String type) {
+    boolean allowed = budget.tryRetry();
+    Counter.builder(allowed ? "relay.retries" : "relay.retries.rejected")
+        .description(
+            allowed
+                ? "Retries and hedged requests sent"
+                : "Retries and hedged requests refused by the retry budget")
+        .tag("context", context)
+        .tag("type", type)
+        .register(meterRegistry)
+        .increment();
+    return allowed;
+  }
+
+  private static boolean isIdempotent(String context, HttpMethod method) {
+    if (IDEMPOTENT_METHODS.contains(method)) {
+      return true;
+    }
+    log.warn("Ignoring retry method {} of context {}: it is not idempotent", method, context);
+    return false;
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.rewrite;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+/**
+ * Multi-pattern byte matcher based on the Aho-Corasick automaton. The automaton is compiled into a
+ * dense transition table, so matching costs a single table lookup per input byte regardless of
+ * the number of patterns. Instances are immutable and can be shared across threads; the matching
+ * state is held by the caller.
+ */
+public final class AhoCorasickMatcher {
+
+  /** The initial state of the automaton. */
+  public static final int ROOT = 0;
+
+  private static final int ALPHABET = 256;
+
+  private final int[] transitions;
+  private final int[] depths;
+  private final int[] matchLengths;
+  private final int[] matchPatterns;
+  private final int maxPatternLength;
+
+  /**
+   * Compiles the automaton for a set of patterns.
+   *
+   * @param patterns the patterns, none of which may be empty
+   */
+  public AhoCorasickMatcher(byte[][] patterns) {
+    int maxStates = 1;
+    int longest = 0;
+    for (byte[] pattern : patterns) {
+      if (pattern.length == 0) {
+        throw new IllegalArgumentException("Patterns must not be empty");
+      }
+      maxStates += pattern.length;
+      longest = Math.max(longest, pattern.length);
+    }
+    this.maxPatternLength = longest;
+
+    int[] goTo = new int[maxStates * ALPHABET];
+    Arrays.fill(goTo, -1);
+    int[] depth = new int[maxStates];
+    int[] length = new int[maxStates];
+    int[] patternIds = new int[maxStates];
+    Arrays.fill(patternIds, -1);
+
+    // Build the trie of patterns
+    int states = 1;
+    for (int id = 0; id < patterns.length; id++) {
+      int state = ROOT;
+      for (byte b : patterns[id]) {
+        int index = state * ALPHABET + (b & 0xff);
+        if (goTo[index] < 0) {
+          depth[states] = depth[state] + 1;
+          goTo[index] = states++;
+        }
+        state = goTo[index];
+      }
+      if (patternIds[state] < 0) {
+        length[state] = patterns[id].length;
+        patternIds[state] = id;
+      }
+    }
+
+    // Resolve failure links breadth first and turn the trie into a complete transition table
+    int[] failure = new int[states];
+    Queue<Integer> queue = new ArrayDeque<>();
+    for (int c = 0; c < ALPHABET; c++) {
+      int next = goTo[c];
+      if (next < 0) {
+        goTo[c] = ROOT;
+      } else {
+        failure[next] = ROOT;
+        queue.add(next);
+      }
+    }
+    while (!queue.isEmpty()) {
+      int state = queue.remove();
+      // A state without a pattern of its own reports the longest pattern that is its suffix
+      if (patternIds[state] < 0) {
+        length[state] = length[failure[state]];
+        patternIds[state] = patternIds[failure[state]];
+      }
+      for (int c = 0; c < ALPHABET; c++) {
+        int index = state * ALPHABET + c;
+        int next = goTo[index];
+        if (next < 0) {
+          goTo[index] = goTo[failure[state] * ALPHABET + c];
+        } else {
+          failure[next] = goTo[failure[state] * ALPHABET + c];
+          queue.add(next);
+        }
+      }
+    }
+
+    this.transitions = Arrays.copyOf(goTo, states * ALPHABET);
+    this.depths = Arrays.copyOf(depth, states);
+    this.matchLengths = Arrays.copyOf(length, states);
+    this.matchPatterns = Arrays.copyOf(patternIds, states);
+  }
+
+  /**
+   * Advances the automaton by one byte.
+   *
+   * @param state the current state
+   * @param b the input byte
+   * @return the next state
+   */
+  public int next(int state, byte b) {
+    return transitions[state * ALPHABET + (b & 0xff)];
+  }
+
+  /**
+   * Whether a byte moves the automaton out of its initial state, i.e. whether it can start a
+   * match.
+   *
+   * @param b the input byte
+   * @return true if the byte starts a pattern
+   */
+  public boolean startsMatch(byte b) {
+    return transitions[b & 0xff] != ROOT;
+  }
+
+  /**
+   * Gets the depth of a state, i.e. the number of trailing input bytes that may still be part of
+   * a match.
+   *
+   * @param state the state
+   * @return the depth of the state
+   */
+  public int depth(int state) {
+    return depths[state];
+  }
+
+  /**
+   * Gets the length of the longest pattern ending at a state.
+   *
+   * @param state the state
+   * @return the length of the pattern, or 0 if no pattern ends at the state
+   */
+  public int matchLength(int state) {
+    return matchLengths[state];
+  }
+
+  /**
+   * Gets the longest pattern ending at a state.
+   *
+   * @param state the state
+   * @return the index of the pattern, or -1 if no pattern ends at the state
+   */
+  public int matchPattern(int state) {
+    return matchPatterns[state];
+  }
+
+  /**
+   * Gets the length of the longest pattern.
+   *
+   * @return the length of the longest pattern
+   */
+  public int maxPatternLength() {
+    return maxPatternLength;
+  }
+}
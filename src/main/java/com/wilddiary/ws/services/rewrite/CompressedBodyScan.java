@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.rewrite;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+
+/**
+ * Scan of a compressed body for URLs to rewrite. The body is decompressed incrementally and fed
+ * through the matcher, while the compressed bytes read so far are held in a bounded buffer. If the
+ * body ends without any URL to rewrite, the compressed bytes can be sent as received without
+ * recompressing them; otherwise the scan is abandoned at the first match, or once the buffer limit
+ * is reached, and the body is replayed from the start for rewriting. A body whose decoder cannot
+ * be set up is replayed as well, to be passed through as received.
+ */
+public final class CompressedBodyScan {
+
+  private static final int BUFFER_SIZE = 8192;
+
+  private final byte[] buffered;
+  private final int bufferedLength;
+  private final InputStream remaining;
+  private final boolean matchFree;
+  private final boolean decodable;
+
+  private CompressedBodyScan(
+      byte[] buffered,
+      int bufferedLength,
+      InputStream remaining,
+      boolean matchFree,
+      boolean decodable) {
+    this.buffered = buffered;
+    this.bufferedLength = bufferedLength;
+    this.remaining = remaining;
+    this.matchFree = matchFree;
+    this.decodable = decodable;
+  }
+
+  /**
+   * Scans a compressed body.
+   *
+   * @param compressedBody the compressed body
+   * @param decoder the decoder of the compressed body
+   * @param matcher the matcher of the URLs to rewrite
+   * @param limit the maximum number of compressed bytes to buffer
+   * @return the result of the scan
+   * @throws IOException if an I/O error occurs
+   */
+  public static CompressedBodyScan scan(
+      InputStream compressedBody, Decoder decoder, AhoCorasickMatcher matcher, int limit)
+      throws IOException {
+    CapturingInputStream capturingBody = new CapturingInputStream(compressedBody);
+    InputStream decodedBody;
+    try {
+      decodedBody = decoder.decode(capturingBody);
+    } catch (IOException e) {
+      return new CompressedBodyScan(
+          capturingBody.captured, capturingBody.length, compressedBody, false, false);
+    }
+    byte[] buffer = new byte[BUFFER_SIZE];
+    int state = AhoCorasickMatcher.ROOT;
+    boolean matchFree = false;
+
+    scan:
+    while (capturingBody.length <= limit) {
+      int read = decodedBody.read(buffer);
+      if (read < 0) {
+        matchFree = true;
+        break;
+      }
+      for (int i = 0; i < read; i++) {
+        state = matcher.next(state, buffer[i]);
+        if (matcher.matchLength(state) > 0) {
+          break scan;
+        }
+      }
+    }
+    return new CompressedBodyScan(
+        capturingBody.captured, capturingBody.length, compressedBody, matchFree, true);
+  }
+
+  /**
+   * Whether the body ended without any URL to rewrite.
+   *
+   * @return true if the body has nothing to rewrite
+   */
+  public boolean isMatchFree() {
+    return matchFree;
+  }
+
+  /**
+   * Whether the decoder of the body could be set up. A body that cannot be decoded has nothing
+   * scanned and is to be passed through as received.
+   *
+   * @return true if the body can be decoded
+   */
+  public boolean isDecodable() {
+    return decodable;
+  }
+
+  /**
+   * Gets the compressed body from the start, the buffered bytes followed by the bytes not yet
+   * read.
+   *
+   * @return the compressed body
+   */
+  public InputStream replay() {
+    return new SequenceInputStream(
+        new ByteArrayInputStream(buffered, 0, bufferedLength), remaining);
+  }
+
+  /** Decoder of a compressed body. */
+  @FunctionalInterface
+  public interface Decoder {
+
+    /**
+     * Decodes a compressed body.
+     *
+     * @param compressedBody the compressed body
+     * @return the decoded body
+     * @throws IOException if the decoder of the body cannot be set up
+     */
+    InputStream decode(InputStream compressedBody) throws IOException;
+  }
+
+  /** Input stream that captures the bytes read through it. */
+  private static final class CapturingInputStream extends FilterInputStream {
+    private byte[] captured = new byte[BUFFER_SIZE];
+    private int length;
+
+    private CapturingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        ensureCapacity(1);
+        captured[length++] = (byte) b;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = in.read(b, off, len);
+      if (read > 0) {
+        ensureCapacity(read);
+        System.arraycopy(b, off, captured, length, read);
+        length += read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // Skipped bytes must be captured for the replay
+      byte[] skipped = new byte[(int) Math.min(n, BUFFER_SIZE)];
+      int read = read(skipped, 0, skipped.length);
+      return Math.max(read, 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    @Override
+    public void close() {
+      // The underlying stream is replayed, it must stay open
+    }
+
+    private void ensureCapacity(int additional) {
+      if (length + additional > captured.length) {
+        captured = Arrays.copyOf(captured, Math.max(captured.length * 2, length + additional));
+      }
+    }
+  }
+}
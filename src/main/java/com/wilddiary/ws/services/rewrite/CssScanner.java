@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.rewrite;
+
+/**
+ * Scanner of CSS. URLs are rewritten in {@code url(...)} tokens and in the strings of {@code
+ * @import} rules; other strings, comments and the rest of the style sheet are left alone.
+ */
+final class CssScanner implements RewriteScanner {
+
+  private static final byte[] IMPORT = {'i', 'm', 'p', 'o', 'r', 't'};
+
+  private enum State {
+    NORMAL,
+    COMMENT,
+    STRING,
+    AT_KEYWORD,
+    AFTER_IMPORT,
+    URL,
+    IMPORT_STRING
+  }
+
+  private State state = State.NORMAL;
+  private byte quote;
+  private boolean escaped;
+  private boolean afterStar;
+  private byte previous;
+
+  // The last four bytes in the normal state, lowercased, to find "url("
+  private int history;
+
+  private final byte[] keyword = new byte[IMPORT.length];
+  private int keywordLength;
+
+  @Override
+  public boolean next(byte b) {
+    switch (state) {
+      case NORMAL:
+        if (b == '*' && previous == '/') {
+          state = State.COMMENT;
+          afterStar = false;
+        } else if (b == '"' || b == '\'') {
+          state = State.STRING;
+          quote = b;
+        } else if (b == '@') {
+          state = State.AT_KEYWORD;
+          keywordLength = 0;
+        } else if (b == '(' && isUrlFunction()) {
+          state = State.URL;
+          quote = 0;
+        }
+        history = (history << 8) | (toLowerCase(b) & 0xff);
+        previous = b;
+        return false;
+      case COMMENT:
+        if (b == '/' && afterStar) {
+          state = State.NORMAL;
+          previous = 0;
+        }
+        afterStar = b == '*';
+        return false;
+      case STRING:
+        if (escaped) {
+          escaped = false;
+        } else if (b == '\\') {
+          escaped = true;
+        } else if (b == quote || b == '\n') {
+          state = State.NORMAL;
+          previous = 0;
+        }
+        return false;
+      case AT_KEYWORD:
+        if (isIdentifier(b)) {
+          if (keywordLength < keyword.length) {
+            keyword[keywordLength] = toLowerCase(b);
+          }
+          keywordLength++;
+          return false;
+        }
+        state = isImport() ? State.AFTER_IMPORT : State.NORMAL;
+        history = 0;
+        return next(b);
+      case AFTER_IMPORT:
+        if (b == '"' || b == '\'') {
+          state = State.IMPORT_STRING;
+          quote = b;
+          return false;
+        }
+        if (isWhitespace(b)) {
+          return false;
+        }
+        state = State.NORMAL;
+        return next(b);
+      case URL:
+        if (escaped) {
+          escaped = false;
+        } else if (b == '\\') {
+          escaped = true;
+        } else if (quote != 0) {
+          if (b == quote) {
+            quote = 0;
+          }
+        } else if (b == '"' || b == '\'') {
+          quote = b;
+        } else if (b == ')') {
+          state = State.NORMAL;
+          history = 0;
+          previous = b;
+          return false;
+        }
+        return true;
+      case IMPORT_STRING:
+        if (escaped) {
+          escaped = false;
+        } else if (b == '\\') {
+          escaped = true;
+        } else if (b == quote || b == '\n') {
+          state = State.NORMAL;
+          previous = 0;
+          return false;
+        }
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Whether the bytes before an opening parenthesis name the url function.
+   *
+   * @return true if they are "url", not preceded by an identifier character
+   */
+  private boolean isUrlFunction() {
+    return (history & 0xffffff) == ('u' << 16 | 'r' << 8 | 'l')
+        && !isIdentifier((byte) (history >>> 24));
+  }
+
+  private boolean isImport() {
+    if (keywordLength != IMPORT.length) {
+      return false;
+    }
+    for (int i = 0; i < IMPORT.length; i++) {
+      if (keyword[i] != IMPORT[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Whether a byte can be part of an identifier. Bytes of multibyte characters always can.
+   *
+   * @param b the byte
+   * @return true if the byte is an identifier character
+   */
+  static boolean isIdentifier(byte b) {
+    return (b >= 'a' && b <= 'z')
+        || (b >= 'A' && b <= 'Z')
+        || (b >= '0' && b <= '9')
+        || b == '-'
+        || b == '_'
+        || b < 0;
+  }
+
+  static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+  }
+
+  static byte toLowerCase(byte b) {
+    return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+  }
+}
@@ -0,0 +1,322 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.rewrite;
+
+import static com.wilddiary.ws.services.rewrite.CssScanner.isWhitespace;
+import static com.wilddiary.ws.services.rewrite.CssScanner.toLowerCase;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * Scanner of HTML, following the states of the HTML tokenizer closely enough to find attribute
+ * values. URLs are rewritten in the values of link attributes such as {@code href}, {@code src}
+ * and {@code srcset}, in the {@code content} of {@code meta} elements for refresh redirects, and
+ * in the CSS of {@code style} elements and attributes. Text, comments and scripts are left alone.
+ * As the body is scanned in a single pass, a refresh redirect is only recognized when its {@code
+ * http-equiv} attribute comes before its {@code content}, as it conventionally does.
+ */
+final class HtmlScanner implements RewriteScanner {
+
+  private static final int MAX_NAME_LENGTH = 16;
+  private static final byte[] REFRESH = "refresh".getBytes(StandardCharsets.US_ASCII);
+
+  // Attributes holding URLs on any element
+  private static final Set<String> URL_ATTRIBUTES =
+      Set.of(
+          "href",
+          "src",
+          "srcset",
+          "action",
+          "formaction",
+          "poster",
+          "data-src",
+          "data-srcset",
+          "data-href");
+
+  private enum State {
+    DATA,
+    TAG_OPEN,
+    MARKUP,
+    COMMENT,
+    BOGUS_COMMENT,
+    TAG_NAME,
+    BEFORE_ATTRIBUTE_NAME,
+    ATTRIBUTE_NAME,
+    AFTER_ATTRIBUTE_NAME,
+    BEFORE_ATTRIBUTE_VALUE,
+    QUOTED_VALUE,
+    UNQUOTED_VALUE,
+    RAW_TEXT
+  }
+
+  /** What an attribute value holds. */
+  private enum Value {
+    OTHER,
+    URL,
+    CSS,
+    HTTP_EQUIV
+  }
+
+  private State state = State.DATA;
+  private boolean endTag;
+  private final byte[] tagName = new byte[MAX_NAME_LENGTH];
+  private int tagNameLength;
+  private final byte[] attributeName = new byte[MAX_NAME_LENGTH];
+  private int attributeNameLength;
+  private Value value = Value.OTHER;
+  private byte quote;
+  private int dashes;
+
+  // How much of the http-equiv value of the current tag matched "refresh", -1 once it cannot
+  private int refreshMatched = -1;
+
+  // End tag closing the raw text of a script or style element, and how much of it was seen
+  private byte[] rawTextEnd;
+  private int rawTextMatched;
+  private CssScanner css;
+
+  @Override
+  public boolean next(byte b) {
+    switch (state) {
+      case DATA:
+        if (b == '<') {
+          state = State.TAG_OPEN;
+        }
+        return false;
+      case TAG_OPEN:
+        if (b == '!') {
+          state = State.MARKUP;
+          dashes = 0;
+        } else if (b == '/') {
+          startTag(true);
+        } else if (isLetter(b)) {
+          startTag(false);
+          appendTagName(b);
+        } else if (b == '?') {
+          state = State.BOGUS_COMMENT;
+        } else {
+          state = b == '<' ? State.TAG_OPEN : State.DATA;
+        }
+        return false;
+      case MARKUP:
+        if (b == '-' && ++dashes == 2) {
+          state = State.COMMENT;
+          dashes = 0;
+        } else if (b != '-') {
+          state = b == '>' ? State.DATA : State.BOGUS_COMMENT;
+        }
+        return false;
+      case COMMENT:
+        if (b == '>' && dashes >= 2) {
+          state = State.DATA;
+        }
+        dashes = b == '-' ? dashes + 1 : 0;
+        return false;
+      case BOGUS_COMMENT:
+        if (b == '>') {
+          state = State.DATA;
+        }
+        return false;
+      case TAG_NAME:
+        if (isWhitespace(b) || b == '/') {
+          state = State.BEFORE_ATTRIBUTE_NAME;
+        } else if (b == '>') {
+          endOfTag();
+        } else {
+          appendTagName(b);
+        }
+        return false;
+      case BEFORE_ATTRIBUTE_NAME:
+        if (b == '>') {
+          endOfTag();
+        } else if (!isWhitespace(b) && b != '/') {
+          startAttribute(b);
+        }
+        return false;
+      case ATTRIBUTE_NAME:
+        if (isWhitespace(b)) {
+          state = State.AFTER_ATTRIBUTE_NAME;
+        } else if (b == '/') {
+          state = State.BEFORE_ATTRIBUTE_NAME;
+        } else if (b == '=') {
+          state = State.BEFORE_ATTRIBUTE_VALUE;
+        } else if (b == '>') {
+          endOfTag();
+        } else if (attributeNameLength < MAX_NAME_LENGTH) {
+          attributeName[attributeNameLength++] = toLowerCase(b);
+        } else {
+          attributeNameLength = MAX_NAME_LENGTH + 1;
+        }
+        return false;
+      case AFTER_ATTRIBUTE_NAME:
+        if (b == '=') {
+          state = State.BEFORE_ATTRIBUTE_VALUE;
+        } else if (b == '>') {
+          endOfTag();
+        } else if (b == '/') {
+          state = State.BEFORE_ATTRIBUTE_NAME;
+        } else if (!isWhitespace(b)) {
+          startAttribute(b);
+        }
+        return false;
+      case BEFORE_ATTRIBUTE_VALUE:
+        if (isWhitespace(b)) {
+          return false;
+        }
+        if (b == '>') {
+          endOfTag();
+          return false;
+        }
+        startValue();
+        if (b == '"' || b == '\'') {
+          state = State.QUOTED_VALUE;
+          quote = b;
+          return false;
+        }
+        state = State.UNQUOTED_VALUE;
+        return inValue(b);
+      case QUOTED_VALUE:
+        if (b == quote) {
+          state = State.BEFORE_ATTRIBUTE_NAME;
+          return false;
+        }
+        return inValue(b);
+      case UNQUOTED_VALUE:
+        if (isWhitespace(b)) {
+          state = State.BEFORE_ATTRIBUTE_NAME;
+          return false;
+        }
+        if (b == '>') {
+          endOfTag();
+          return false;
+        }
+        return inValue(b);
+      case RAW_TEXT:
+        return rawText(b);
+      default:
+        return false;
+    }
+  }
+
+  private void startTag(boolean end) {
+    state = State.TAG_NAME;
+    endTag = end;
+    tagNameLength = 0;
+    refreshMatched = -1;
+  }
+
+  private void appendTagName(byte b) {
+    if (tagNameLength < MAX_NAME_LENGTH) {
+      tagName[tagNameLength++] = toLowerCase(b);
+    } else {
+      tagNameLength = MAX_NAME_LENGTH + 1;
+    }
+  }
+
+  private void startAttribute(byte b) {
+    state = State.ATTRIBUTE_NAME;
+    attributeNameLength = 0;
+    attributeName[attributeNameLength++] = toLowerCase(b);
+  }
+
+  /** Tells what the value of the current attribute holds. */
+  private void startValue() {
+    String attribute = name(attributeName, attributeNameLength);
+    if (URL_ATTRIBUTES.contains(attribute) || (attribute.equals("content") && isRefresh())) {
+      value = Value.URL;
+    } else if (attribute.equals("http-equiv")) {
+      value = Value.HTTP_EQUIV;
+      refreshMatched = 0;
+    } else if (attribute.equals("style")) {
+      value = Value.CSS;
+      css = new CssScanner();
+    } else {
+      value = Value.OTHER;
+    }
+  }
+
+  private boolean inValue(byte b) {
+    return switch (value) {
+      case URL -> true;
+      case CSS -> css.next(b);
+      case HTTP_EQUIV -> {
+        boolean matches =
+            refreshMatched >= 0
+                && refreshMatched < REFRESH.length
+                && toLowerCase(b) == REFRESH[refreshMatched];
+        refreshMatched = matches ? refreshMatched + 1 : -1;
+        yield false;
+      }
+      case OTHER -> false;
+    };
+  }
+
+  /** Tells whether the current tag is a {@code meta} element for a refresh redirect. */
+  private boolean isRefresh() {
+    return refreshMatched == REFRESH.length && name(tagName, tagNameLength).equals("meta");
+  }
+
+  /** Moves on past the end of a tag, into the raw text of script and style elements. */
+  private void endOfTag() {
+    String name = name(tagName, tagNameLength);
+    if (!endTag && (name.equals("script") || name.equals("style"))) {
+      state = State.RAW_TEXT;
+      rawTextEnd = ("</" + name).getBytes(StandardCharsets.US_ASCII);
+      rawTextMatched = 0;
+      css = name.equals("style") ? new CssScanner() : null;
+    } else {
+      state = State.DATA;
+    }
+  }
+
+  /**
+   * Scans the raw text of a script or style element up to its end tag. Style sheets are scanned
+   * as CSS; scripts are left alone.
+   *
+   * @param b the byte
+   * @return true if the byte lies in a value whose URLs are rewritten
+   */
+  private boolean rawText(byte b) {
+    if (toLowerCase(b) == rawTextEnd[rawTextMatched]) {
+      rawTextMatched++;
+      if (rawTextMatched == rawTextEnd.length) {
+        startTag(true);
+        for (int i = 2; i < rawTextEnd.length; i++) {
+          appendTagName(rawTextEnd[i]);
+        }
+        return false;
+      }
+    } else {
+      rawTextMatched = b == '<' ? 1 : 0;
+    }
+    return css != null && css.next(b);
+  }
+
+  private static String name(byte[] name, int length) {
+    return length > MAX_NAME_LENGTH ? "" : new String(name, 0, length, StandardCharsets.US_ASCII);
+  }
+
+  private static boolean isLetter(byte b) {
+    return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z');
+  }
+}
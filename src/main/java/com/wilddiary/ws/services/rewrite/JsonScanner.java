@@ -0,0 +1,177 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.rewrite;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Scanner of JSON. URLs are rewritten in string values, never in member names, numbers or the
+ * structure around them. When JSON pointers are given, only the strings at or within the values
+ * they point to are rewritten; a {@code *} segment matches any member or element.
+ */
+final class JsonScanner implements RewriteScanner {
+
+  private static final int MAX_NAME_LENGTH = 256;
+
+  private final List<String[]> pointers;
+
+  // Path to the current value: whether each enclosing container is an array, and the member name
+  // or element index within it
+  private boolean[] arrays = new boolean[16];
+  private String[] names = new String[16];
+  private int[] indexes = new int[16];
+  private int depth;
+
+  private boolean expectName;
+  private boolean inString;
+  private boolean inName;
+  private boolean rewritten;
+  private boolean escaped;
+  private final byte[] name = new byte[MAX_NAME_LENGTH];
+  private int nameLength;
+
+  /**
+   * Constructor for the JsonScanner.
+   *
+   * @param pointers the segments of the JSON pointers to rewrite within, or empty to rewrite every
+   *     string value
+   */
+  JsonScanner(List<String[]> pointers) {
+    this.pointers = pointers;
+  }
+
+  @Override
+  public boolean next(byte b) {
+    if (inString) {
+      return string(b);
+    }
+    switch (b) {
+      case '"' -> {
+        inString = true;
+        inName = depth > 0 && !arrays[depth - 1] && expectName;
+        nameLength = 0;
+        rewritten = !inName && isRewritten();
+      }
+      case '{' -> push(false);
+      case '[' -> push(true);
+      case '}', ']' -> {
+        depth = Math.max(0, depth - 1);
+        expectName = false;
+      }
+      case ':' -> expectName = false;
+      case ',' -> {
+        if (depth > 0 && arrays[depth - 1]) {
+          indexes[depth - 1]++;
+        } else {
+          expectName = true;
+        }
+      }
+      default -> {
+        // Whitespace and the bytes of literals are not rewritten
+      }
+    }
+    return false;
+  }
+
+  private boolean string(byte b) {
+    if (escaped) {
+      escaped = false;
+    } else if (b == '\\') {
+      escaped = true;
+    } else if (b == '"') {
+      inString = false;
+      if (inName) {
+        names[depth - 1] = new String(name, 0, nameLength, StandardCharsets.UTF_8);
+      }
+      return false;
+    }
+    if (inName && nameLength < MAX_NAME_LENGTH) {
+      name[nameLength++] = b;
+    }
+    return rewritten;
+  }
+
+  private void push(boolean array) {
+    if (depth == arrays.length) {
+      arrays = Arrays.copyOf(arrays, depth * 2);
+      names = Arrays.copyOf(names, depth * 2);
+      indexes = Arrays.copyOf(indexes, depth * 2);
+    }
+    arrays[depth] = array;
+    names[depth] = null;
+    indexes[depth] = 0;
+    depth++;
+    expectName = !array;
+  }
+
+  /**
+   * Whether the string value at the current path is rewritten.
+   *
+   * @return true if no pointers are given or one of them points at or above the value
+   */
+  private boolean isRewritten() {
+    if (pointers.isEmpty()) {
+      return true;
+    }
+    for (String[] pointer : pointers) {
+      if (pointer.length <= depth && matches(pointer)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean matches(String[] pointer) {
+    for (int i = 0; i < pointer.length; i++) {
+      String segment = pointer[i];
+      if (segment.equals("*")) {
+        continue;
+      }
+      boolean match =
+          arrays[i] ? segment.equals(Integer.toString(indexes[i])) : segment.equals(names[i]);
+      if (!match) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Parses JSON pointers into their segments.
+   *
+   * @param pointers the JSON pointers, such as {@code /links/self}
+   * @return the unescaped segments of each pointer
+   */
+  static List<String[]> parse(List<String> pointers) {
+    return pointers.stream()
+        .map(String::trim)
+        .filter(pointer -> !pointer.isEmpty())
+        .map(
+            pointer ->
+                Arrays.stream(pointer.substring(pointer.startsWith("/") ? 1 : 0).split("/", -1))
+                    .map(segment -> segment.replace("~1", "/").replace("~0", "~"))
+                    .toArray(String[]::new))
+        .toList();
+  }
+}
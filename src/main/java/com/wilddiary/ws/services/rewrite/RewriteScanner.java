@@ -0,0 +1,38 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.rewrite;
+
+/**
+ * Scanner telling which bytes of a response body lie in the values that can hold URLs to rewrite,
+ * such as link attributes of an HTML page. Bytes are fed in order, one at a time, and a scanner
+ * instance follows a single body.
+ */
+public interface RewriteScanner {
+
+  /**
+   * Feeds the next byte of the body.
+   *
+   * @param b the byte
+   * @return true if the byte lies in a value whose URLs are rewritten
+   */
+  boolean next(byte b);
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.rewrite;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import org.springframework.http.MediaType;
+
+/**
+ * Parts of the response bodies of a context in which URLs are rewritten. Structural rewriting
+ * limits HTML to its link attributes, CSS to its {@code url()} and {@code @import} values, and
+ * JSON to its string values, optionally those at given JSON pointers. Other content types, and
+ * charsets the scanners cannot read byte by byte, have URLs rewritten anywhere in the body.
+ */
+public final class RewriteScope {
+
+  /** URLs are rewritten anywhere in the body, whatever its content type. */
+  public static final RewriteScope WHOLE_BODY = new RewriteScope(false, List.of());
+
+  private static final MediaType CSS = MediaType.valueOf("text/css");
+  private static final String PROBE = "<a href=\"/\">";
+
+  private final boolean structural;
+  private final List<String[]> jsonPointers;
+
+  private RewriteScope(boolean structural, List<String[]> jsonPointers) {
+    this.structural = structural;
+    this.jsonPointers = jsonPointers;
+  }
+
+  /**
+   * Creates a structural scope.
+   *
+   * @param jsonPointers the JSON pointers of the values to rewrite in JSON bodies, or empty to
+   *     rewrite every string value
+   * @return the scope
+   */
+  public static RewriteScope structural(List<String> jsonPointers) {
+    return new RewriteScope(true, JsonScanner.parse(jsonPointers));
+  }
+
+  /**
+   * Creates the scanner of a response body.
+   *
+   * @param contentType the content type of the body
+   * @param charset the charset of the body
+   * @return the scanner, or null if URLs are rewritten anywhere in the body
+   */
+  public RewriteScanner newScanner(MediaType contentType, Charset charset) {
+    if (!structural || !isAsciiCompatible(charset)) {
+      return null;
+    }
+    if (MediaType.TEXT_HTML.isCompatibleWith(contentType)
+        || MediaType.APPLICATION_XHTML_XML.isCompatibleWith(contentType)) {
+      return new HtmlScanner();
+    }
+    if (CSS.isCompatibleWith(contentType)) {
+      return new CssScanner();
+    }
+    if (MediaType.APPLICATION_JSON.isCompatibleWith(contentType)
+        || "json".equals(contentType.getSubtypeSuffix())) {
+      return new JsonScanner(jsonPointers);
+    }
+    return null;
+  }
+
+  /**
+   * Describes the scope, including every setting the rewritten bytes depend on.
+   *
+   * @return the description
+   */
+  @Override
+  public String toString() {
+    if (!structural) {
+      return "whole-body";
+    }
+    StringBuilder description = new StringBuilder("structural");
+    for (String[] pointer : jsonPointers) {
+      description.append(' ');
+      for (String segment : pointer) {
+        description.append('/').append(segment);
+      }
+    }
+    return description.toString();
+  }
+
+  /**
+   * Whether a charset encodes the markup characters as ASCII does, so that the scanners can find
+   * them byte by byte.
+   *
+   * @param charset the charset
+   * @return true if the charset is ASCII compatible
+   */
+  private static boolean isAsciiCompatible(Charset charset) {
+    return Arrays.equals(PROBE.getBytes(charset), PROBE.getBytes(StandardCharsets.US_ASCII));
+  }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.rewrite;
+
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Dictionary of upstream URLs to rewrite in response bodies, each mapped to the relay context it is
+ * relayed under. The patterns are compiled into an {@link AhoCorasickMatcher} once per charset and
+ * shared by all requests.
+ */
+public class UrlRewriteDictionary {
+
+  private final List<String> upstreamUrls = new ArrayList<>();
+  private final List<String> contexts = new ArrayList<>();
+  private final ConcurrentMap<Charset, AhoCorasickMatcher> matchers = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor for the UrlRewriteDictionary.
+   *
+   * @param upstreamUrlToContext the relay context of each upstream URL
+   */
+  public UrlRewriteDictionary(Map<String, String> upstreamUrlToContext) {
+    upstreamUrlToContext.forEach(
+        (upstreamUrl, context) -> {
+          if (!upstreamUrl.isEmpty()) {
+            upstreamUrls.add(upstreamUrl);
+            contexts.add(context);
+          }
+        });
+  }
+
+  /**
+   * Whether the dictionary has no URLs to rewrite.
+   *
+   * @return true if there is nothing to rewrite
+   */
+  public boolean isEmpty() {
+    return upstreamUrls.isEmpty();
+  }
+
+  /**
+   * Gets the matcher of the upstream URLs encoded in a charset.
+   *
+   * @param charset the charset of the body
+   * @return the matcher
+   */
+  public AhoCorasickMatcher matcher(Charset charset) {
+    return matchers.computeIfAbsent(
+        encodingCharset(charset), c -> new AhoCorasickMatcher(encode(upstreamUrls, c)));
+  }
+
+  /**
+   * Wraps an output stream to rewrite the upstream URLs written to it. Each upstream URL is
+   * replaced by the relay URL followed by the context it is mapped to.
+   *
+   * @param out the output stream
+   * @param charset the charset of the body
+   * @param relayUrl the URL of the relay, up to and excluding the mapped context
+   * @return the rewriting output stream
+   */
+  public UrlRewritingOutputStream rewrite(OutputStream out, Charset charset, String relayUrl) {
+    return rewrite(out, charset, relayUrl, null);
+  }
+
+  /**
+   * Wraps an output stream to rewrite the upstream URLs written to it, within the values a scanner
+   * finds. Each upstream URL is replaced by the relay URL followed by the context it is mapped to.
+   *
+   * @param out the output stream
+   * @param charset the charset of the body
+   * @param relayUrl the URL of the relay, up to and excluding the mapped context
+   * @param scanner the scanner of the values to rewrite, or null to rewrite anywhere in the body
+   * @return the rewriting output stream
+   */
+  public UrlRewritingOutputStream rewrite(
+      OutputStream out, Charset charset, String relayUrl, RewriteScanner scanner) {
+    Charset encodingCharset = encodingCharset(charset);
+    List<String> replacements = new ArrayList<>(contexts.size());
+    for (String context : contexts) {
+      replacements.add(relayUrl + context);
+    }
+    return new UrlRewritingOutputStream(
+        out, matcher(encodingCharset), encode(replacements, encodingCharset), scanner);
+  }
+
+  private static byte[][] encode(List<String> values, Charset charset) {
+    byte[][] encoded = new byte[values.size()][];
+    for (int i = 0; i < encoded.length; i++) {
+      encoded[i] = values.get(i).getBytes(charset);
+    }
+    return encoded;
+  }
+
+  /**
+   * Gets the charset to encode the patterns with. Charsets that write a byte order mark are
+   * replaced by their big-endian form, so the patterns match within the body.
+   *
+   * @param charset the charset of the body
+   * @return the charset to encode the patterns with
+   */
+  private static Charset encodingCharset(Charset charset) {
+    if (StandardCharsets.UTF_16.equals(charset)) {
+      return StandardCharsets.UTF_16BE;
+    }
+    return charset;
+  }
+}
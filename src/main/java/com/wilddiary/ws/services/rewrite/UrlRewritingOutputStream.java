@@ -0,0 +1,321 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.rewrite;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Output stream that replaces every occurrence of a set of patterns in a single pass over the
+ * bytes written to it. Matches are leftmost-longest and do not overlap, as if the body had been
+ * scanned left to right. Bytes that cannot be part of a match are passed on as they are written;
+ * only a window of at most the longest pattern length is carried over between writes, so memory
+ * use is bounded regardless of the body size. With a {@link RewriteScanner}, only the values the
+ * scanner finds are matched, and a match never spans two values.
+ */
+public class UrlRewritingOutputStream extends FilterOutputStream {
+
+  private static final int OUTPUT_BUFFER_SIZE = 8192;
+
+  private final AhoCorasickMatcher matcher;
+  private final byte[][] replacements;
+  private final RewriteScanner scanner;
+  private boolean inValue;
+
+  // Carry-over window of bytes that may still be part of a match
+  private byte[] window;
+  private int head;
+  private int tail;
+
+  private final byte[] outputBuffer = new byte[OUTPUT_BUFFER_SIZE];
+  private int outputLength;
+
+  private int state = AhoCorasickMatcher.ROOT;
+  private int candidateStart = -1;
+  private int candidateLength;
+  private int candidatePattern;
+
+  private long replacementCount;
+  private boolean finished;
+
+  /**
+   * Constructor for the UrlRewritingOutputStream.
+   *
+   * @param out the output stream to write the rewritten bytes to
+   * @param matcher the matcher of the patterns to replace
+   * @param replacements the replacement of each pattern, by pattern index
+   */
+  public UrlRewritingOutputStream(
+      OutputStream out, AhoCorasickMatcher matcher, byte[][] replacements) {
+    this(out, matcher, replacements, null);
+  }
+
+  /**
+   * Constructor for the UrlRewritingOutputStream.
+   *
+   * @param out the output stream to write the rewritten bytes to
+   * @param matcher the matcher of the patterns to replace
+   * @param replacements the replacement of each pattern, by pattern index
+   * @param scanner the scanner of the values to replace the patterns in, or null to replace them
+   *     anywhere
+   */
+  public UrlRewritingOutputStream(
+      OutputStream out,
+      AhoCorasickMatcher matcher,
+      byte[][] replacements,
+      RewriteScanner scanner) {
+    super(out);
+    this.matcher = matcher;
+    this.replacements = replacements;
+    this.scanner = scanner;
+    this.window = new byte[Math.max(64, 2 * matcher.maxPatternLength() + 2)];
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureOpen();
+    if (scanner != null) {
+      writeScanned(new byte[] {(byte) b}, 0, 1);
+      return;
+    }
+    feed((byte) b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    ensureOpen();
+    if (scanner != null) {
+      writeScanned(b, off, off + len);
+      return;
+    }
+    int end = off + len;
+    int i = off;
+    while (i < end) {
+      if (state == AhoCorasickMatcher.ROOT && candidateStart < 0 && head == tail) {
+        // Nothing is carried over, so pass through the run of bytes that cannot start a match
+        int runStart = i;
+        while (i < end && !matcher.startsMatch(b[i])) {
+          i++;
+        }
+        emit(b, runStart, i - runStart);
+        if (i == end) {
+          break;
+        }
+      }
+      feed(b[i++]);
+    }
+  }
+
+  /**
+   * Writes bytes through the scanner. Bytes within values are fed through the automaton, and the
+   * runs of bytes between values are passed on as they are.
+   *
+   * @param b the bytes
+   * @param off the start offset
+   * @param end the end offset, exclusive
+   * @throws IOException if an I/O error occurs
+   */
+  private void writeScanned(byte[] b, int off, int end) throws IOException {
+    int runStart = -1;
+    for (int i = off; i < end; i++) {
+      if (scanner.next(b[i])) {
+        if (runStart >= 0) {
+          emit(b, runStart, i - runStart);
+          runStart = -1;
+        }
+        inValue = true;
+        feed(b[i]);
+      } else {
+        if (inValue) {
+          endValue();
+        }
+        if (runStart < 0) {
+          runStart = i;
+        }
+      }
+    }
+    if (runStart >= 0) {
+      emit(b, runStart, end - runStart);
+    }
+  }
+
+  /**
+   * Ends a value, applying any pending replacement and writing the carried over bytes.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  private void endValue() throws IOException {
+    while (candidateStart >= 0) {
+      commit();
+    }
+    emitUpTo(tail);
+    state = AhoCorasickMatcher.ROOT;
+    inValue = false;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    flushOutputBuffer();
+    out.flush();
+  }
+
+  /**
+   * Writes the carried over bytes, applying any pending replacement. No more bytes can be written
+   * after the stream is finished; the underlying stream is left open.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  public void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    endValue();
+    flushOutputBuffer();
+    finished = true;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      finish();
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Gets the number of replacements made so far.
+   *
+   * @return the number of replacements
+   */
+  public long getReplacementCount() {
+    return replacementCount;
+  }
+
+  /**
+   * Feeds a byte through the automaton. The leftmost-longest match seen so far is held as the
+   * candidate until no earlier or longer match can still complete, at which point it is replaced.
+   *
+   * @param b the byte
+   * @throws IOException if an I/O error occurs
+   */
+  private void feed(byte b) throws IOException {
+    append(b);
+    state = matcher.next(state, b);
+
+    int length = matcher.matchLength(state);
+    if (length > 0) {
+      int start = tail - length;
+      if (candidateStart < 0 || start <= candidateStart) {
+        candidateStart = start;
+        candidateLength = length;
+        candidatePattern = matcher.matchPattern(state);
+      }
+    }
+
+    int keepFrom = tail - matcher.depth(state);
+    if (candidateStart >= 0 && keepFrom > candidateStart) {
+      commit();
+    } else {
+      emitUpTo(keepFrom);
+    }
+  }
+
+  /**
+   * Replaces the candidate match and rescans the bytes carried over after it.
+   *
+   * @throws IOException if an I/O error occurs
+   */
+  private void commit() throws IOException {
+    emitUpTo(candidateStart);
+    byte[] replacement = replacements[candidatePattern];
+    emit(replacement, 0, replacement.length);
+    replacementCount++;
+
+    int resumeFrom = candidateStart + candidateLength;
+    byte[] rescan = new byte[tail - resumeFrom];
+    System.arraycopy(window, resumeFrom, rescan, 0, rescan.length);
+
+    head = 0;
+    tail = 0;
+    state = AhoCorasickMatcher.ROOT;
+    candidateStart = -1;
+    for (byte b : rescan) {
+      feed(b);
+    }
+  }
+
+  private void append(byte b) {
+    if (tail == window.length) {
+      // Compact the window, the carried over bytes never exceed the longest pattern
+      int length = tail - head;
+      System.arraycopy(window, head, window, 0, length);
+      if (candidateStart >= 0) {
+        candidateStart -= head;
+      }
+      head = 0;
+      tail = length;
+      if (tail == window.length) {
+        byte[] grown = new byte[window.length * 2];
+        System.arraycopy(window, 0, grown, 0, tail);
+        window = grown;
+      }
+    }
+    window[tail++] = b;
+  }
+
+  private void emitUpTo(int position) throws IOException {
+    if (position > head) {
+      emit(window, head, position - head);
+      head = position;
+    }
+  }
+
+  private void emit(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return;
+    }
+    if (outputLength + len > outputBuffer.length) {
+      flushOutputBuffer();
+      if (len >= outputBuffer.length) {
+        out.write(b, off, len);
+        return;
+      }
+    }
+    System.arraycopy(b, off, outputBuffer, outputLength, len);
+    outputLength += len;
+  }
+
+  private void flushOutputBuffer() throws IOException {
+    if (outputLength > 0) {
+      out.write(outputBuffer, 0, outputLength);
+      outputLength = 0;
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (finished) {
+      throw new IOException("Stream has been finished");
+    }
+  }
+}
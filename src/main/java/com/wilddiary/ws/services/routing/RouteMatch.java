@@ -0,0 +1,45 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.routing;
+
+import java.net.URI;
+
+/**
+ * A request path matched to a route.
+ *
+ * @param route the matched route
+ * @param path the raw request path
+ * @param remainderStart the start of the path remaining after the matched context
+ */
+public record RouteMatch(Route route, String path, int remainderStart) {
+
+  /**
+   * Builds the upstream URI of the matched request on an upstream server of the route.
+   *
+   * @param target the upstream server
+   * @param rawQuery the raw query string, may be null
+   * @return the upstream URI
+   */
+  public URI upstreamUri(UpstreamTarget target, String rawQuery) {
+    return target.upstreamUri(path, remainderStart, rawQuery);
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.routing;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.wilddiary.ws.config.RelayProperties;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Registry of the current context mapping. The mapping is compiled into an immutable {@link
+ * RouteSnapshot} and swapped atomically on reload, so requests in flight complete on the snapshot
+ * they started with. The mapping is reloaded when the configured mapping file changes, or on
+ * demand.
+ */
+@Component
+@Slf4j
+public class RouteRegistry {
+
+  private static final TypeReference<Map<String, String>> MAPPING_TYPE = new TypeReference<>() {};
+
+  private final AtomicReference<RouteSnapshot> snapshot = new AtomicReference<>();
+  private final List<Consumer<RouteSnapshot>> listeners = new CopyOnWriteArrayList<>();
+  private final RelayProperties relayProperties;
+  private final Path mappingFile;
+  private final Duration pollInterval;
+  private final ObjectMapper objectMapper;
+  private ScheduledExecutorService watcher;
+  private volatile FileTime mappingFileModified;
+
+  /**
+   * Constructor for the RouteRegistry. The mapping file, if configured, takes precedence over the
+   * context mapping property.
+   *
+   * @param contextMap the context mapping
+   * @param relayProperties the relay properties
+   * @param objectMapper the object mapper to read the mapping file
+   * @throws IOException if the mapping file cannot be read
+   */
+  public RouteRegistry(
+      @Value("#{${relay.context.mapping}}") Map<String, String> contextMap,
+      RelayProperties relayProperties,
+      ObjectMapper objectMapper)
+      throws IOException {
+    this.relayProperties = relayProperties;
+    this.mappingFile = relayProperties.getMappingFile().getPath();
+    this.pollInterval = relayProperties.getMappingFile().getPollInterval();
+    this.objectMapper = objectMapper;
+    this.snapshot.set(
+        RouteSnapshot.of(
+            1, mappingFile == null ? contextMap : readMappingFile(), relayProperties, null));
+  }
+
+  /** Starts watching the mapping file for changes, if one is configured. */
+  @PostConstruct
+  void startWatching() {
+    if (mappingFile == null || pollInterval.isZero() || pollInterval.isNegative()) {
+      return;
+    }
+    watcher =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "route-registry-watcher");
+              thread.setDaemon(true);
+              return thread;
+            });
+    watcher.scheduleWithFixedDelay(
+        this::reloadIfModified,
+        pollInterval.toMillis(),
+        pollInterval.toMillis(),
+        TimeUnit.MILLISECONDS);
+    log.info("Watching context mapping file {} every {}", mappingFile, pollInterval);
+  }
+
+  /** Stops watching the mapping file. */
+  @PreDestroy
+  void stopWatching() {
+    if (watcher != null) {
+      watcher.shutdownNow();
+    }
+  }
+
+  /**
+   * Gets the current snapshot of the context mapping.
+   *
+   * @return the current snapshot
+   */
+  public RouteSnapshot current() {
+    return snapshot.get();
+  }
+
+  /**
+   * Gets the path of the mapping file.
+   *
+   * @return the path of the mapping file, or null if the mapping is not loaded from a file
+   */
+  public Path getMappingFile() {
+    return mappingFile;
+  }
+
+  /**
+   * Adds a listener notified with every new snapshot, in the order listeners were added.
+   *
+   * @param listener the listener
+   */
+  public void addListener(Consumer<RouteSnapshot> listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Replaces the context mapping. The new mapping is compiled before it is swapped in, so an
+   * invalid mapping leaves the current one in place.
+   *
+   * @param contextMap the new context mapping
+   * @return the new snapshot
+   * @throws IllegalArgumentException if an upstream URL is not a valid absolute URL
+   */
+  public synchronized RouteSnapshot update(Map<String, String> contextMap) {
+    RouteSnapshot updated =
+        RouteSnapshot.of(
+            snapshot.get().version() + 1, contextMap, relayProperties, snapshot.get());
+    snapshot.set(updated);
+    log.info("Loaded context mapping version {}: {}", updated.version(), updated.contextMap());
+    listeners.forEach(listener -> listener.accept(updated));
+    return updated;
+  }
+
+  /**
+   * Reloads the context mapping from the mapping file.
+   *
+   * @return the new snapshot
+   * @throws IOException if the mapping file cannot be read
+   * @throws IllegalStateException if no mapping file is configured
+   */
+  public synchronized RouteSnapshot reload() throws IOException {
+    if (mappingFile == null) {
+      throw new IllegalStateException("No context mapping file configured");
+    }
+    return update(readMappingFile());
+  }
+
+  /** Reloads the context mapping if the mapping file changed since it was last read. */
+  private void reloadIfModified() {
+    try {
+      FileTime modified = Files.getLastModifiedTime(mappingFile);
+      if (!Objects.equals(modified, mappingFileModified)) {
+        reload();
+      }
+    } catch (IOException | RuntimeException e) {
+      log.warn("Failed to reload context mapping file {}: {}", mappingFile, e.toString());
+    }
+  }
+
+  /**
+   * Reads the context mapping from the mapping file.
+   *
+   * @return the context mapping
+   * @throws IOException if the mapping file cannot be read
+   */
+  private Map<String, String> readMappingFile() throws IOException {
+    FileTime modified = Files.getLastModifiedTime(mappingFile);
+    try (InputStream in = Files.newInputStream(mappingFile)) {
+      Map<String, String> contextMap = objectMapper.readValue(in, MAPPING_TYPE);
+      mappingFileModified = modified;
+      return contextMap;
+    }
+  }
+}
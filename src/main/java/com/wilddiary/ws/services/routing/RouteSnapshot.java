@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.routing;
+
+import com.wilddiary.ws.config.RelayProperties;
+import com.wilddiary.ws.services.rewrite.UrlRewriteDictionary;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable snapshot of the context mapping, with the route table and rewrite dictionary
+ * compiled from it. A relayed request uses the snapshot current when it was received from start
+ * to end, so a reload never changes the routes of a request in flight.
+ */
+public final class RouteSnapshot {
+
+  private final long version;
+  private final Instant loadedAt;
+  private final Map<String, String> contextMap;
+  private final Map<String, String> invertedContextMap;
+  private final RouteTable routeTable;
+  private final UrlRewriteDictionary rewriteDictionary;
+
+  private RouteSnapshot(long version, Map<String, String> contextMap, List<Route> routes) {
+    this.version = version;
+    this.loadedAt = Instant.now();
+    this.contextMap = Collections.unmodifiableMap(new LinkedHashMap<>(contextMap));
+    this.invertedContextMap = Collections.unmodifiableMap(invertRoutes(routes));
+    this.routeTable = RouteTable.compile(routes);
+    this.rewriteDictionary = new UrlRewriteDictionary(invertedContextMap);
+  }
+
+  /**
+   * Compiles a snapshot of a context mapping. Each context is relayed to a pool of the upstream
+   * server it is mapped to and the additional targets configured for it. A target that a context
+   * keeps from the previous snapshot, with the same URL and weight, is carried over with its health
+   * state, so a reload does not return an ejected upstream to rotation or restart its slow start.
+   *
+   * @param version the version of the snapshot
+   * @param contextMap the upstream URL of each context
+   * @param relayProperties the relay properties
+   * @param previous the snapshot being replaced, or {@code null} for the first one
+   * @return the snapshot
+   * @throws IllegalArgumentException if an upstream URL is not a valid absolute URL
+   */
+  public static RouteSnapshot of(
+      long version,
+      Map<String, String> contextMap,
+      RelayProperties relayProperties,
+      RouteSnapshot previous) {
+    Map<String, Route> previousRoutes = new HashMap<>();
+    if (previous != null) {
+      previous.routeTable.routes().forEach(route -> previousRoutes.put(route.context(), route));
+    }
+    List<Route> routes = new ArrayList<>(contextMap.size());
+    contextMap.forEach(
+        (context, url) -> {
+          RelayProperties.Route settings = relayProperties.routeFor(context);
+          Route previousRoute = previousRoutes.get(context);
+          List<UpstreamTarget> targets = new ArrayList<>();
+          targets.add(target(previousRoute, url, settings.getWeight()));
+          for (RelayProperties.Target target : settings.getTargets()) {
+            targets.add(target(previousRoute, target.getUrl(), target.getWeight()));
+          }
+          routes.add(new Route(context, new UpstreamPool(targets, settings.getLoadBalancing())));
+        });
+    return new RouteSnapshot(version, contextMap, routes);
+  }
+
+  private static UpstreamTarget target(Route previousRoute, String url, int weight) {
+    if (previousRoute != null) {
+      for (UpstreamTarget target : previousRoute.pool().targets()) {
+        if (target.getTargetUrl().equals(url) && target.getWeight() == weight) {
+          return target;
+        }
+      }
+    }
+    return new UpstreamTarget(url, weight);
+  }
+
+  /**
+   * Gets the version of the snapshot, incremented on every reload.
+   *
+   * @return the version
+   */
+  public long version() {
+    return version;
+  }
+
+  /**
+   * Gets the time the snapshot was loaded.
+   *
+   * @return the load time
+   */
+  public Instant loadedAt() {
+    return loadedAt;
+  }
+
+  /**
+   * Gets the context mapping.
+   *
+   * @return the upstream URL of each context
+   */
+  public Map<String, String> contextMap() {
+    return contextMap;
+  }
+
+  /**
+   * Gets the inverted context mapping, covering every upstream server of each context.
+   *
+   * @return the context of each upstream URL
+   */
+  public Map<String, String> invertedContextMap() {
+    return invertedContextMap;
+  }
+
+  /**
+   * Gets the route table.
+   *
+   * @return the route table
+   */
+  public RouteTable routeTable() {
+    return routeTable;
+  }
+
+  /**
+   * Gets the dictionary of upstream URLs to rewrite in response bodies.
+   *
+   * @return the rewrite dictionary
+   */
+  public UrlRewriteDictionary rewriteDictionary() {
+    return rewriteDictionary;
+  }
+
+  /**
+   * Inverts the routes. Each upstream URL is mapped to the context of the first route it belongs
+   * to, so that every server of a pool is rewritten back to the same relay path.
+   *
+   * @param routes the routes
+   * @return the context of each upstream URL
+   */
+  private static Map<String, String> invertRoutes(List<Route> routes) {
+    Map<String, String> inverted = new LinkedHashMap<>();
+    for (Route route : routes) {
+      for (UpstreamTarget target : route.pool().targets()) {
+        inverted.putIfAbsent(target.getTargetUrl(), route.context());
+      }
+    }
+    return inverted;
+  }
+}
@@ -0,0 +1,183 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.routing;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Routing table compiled from the context mapping. Contexts are stored in a trie of path segments,
+ * so a request path is resolved to the route with the longest matching context, e.g. {@code
+ * /api/v2} before {@code /api}, in a single pass over the path without splitting it.
+ */
+public final class RouteTable {
+
+  private final Node root;
+  private final List<Route> routes;
+
+  private RouteTable(Node root, List<Route> routes) {
+    this.root = root;
+    this.routes = Collections.unmodifiableList(routes);
+  }
+
+  /**
+   * Compiles the routing table of a set of routes. A route whose context is already taken by an
+   * earlier route is ignored.
+   *
+   * @param routes the routes
+   * @return the routing table
+   */
+  public static RouteTable compile(Collection<Route> routes) {
+    NodeBuilder rootBuilder = new NodeBuilder();
+    List<Route> compiled = new ArrayList<>();
+    for (Route route : routes) {
+      NodeBuilder node = rootBuilder;
+      for (String segment : route.context().split("/")) {
+        if (!segment.isEmpty()) {
+          node = node.children.computeIfAbsent(segment, s -> new NodeBuilder());
+        }
+      }
+      if (node.route == null) {
+        node.route = route;
+        compiled.add(route);
+      }
+    }
+    return new RouteTable(rootBuilder.build(), compiled);
+  }
+
+  /**
+   * Gets the compiled routes.
+   *
+   * @return the routes
+   */
+  public List<Route> routes() {
+    return routes;
+  }
+
+  /**
+   * Matches a request path to the route with the longest matching context.
+   *
+   * @param path the raw request path
+   * @param from the start of the path relative to the relay
+   * @return the match, or empty if no context matches
+   */
+  public Optional<RouteMatch> match(String path, int from) {
+    Node node = root;
+    Route matched = root.route;
+    int matchedEnd = from;
+
+    int position = from;
+    int length = path.length();
+    while (position < length && path.charAt(position) == '/') {
+      int start = position + 1;
+      int end = path.indexOf('/', start);
+      if (end < 0) {
+        end = length;
+      }
+      node = node.child(path, start, end);
+      if (node == null) {
+        break;
+      }
+      if (node.route != null) {
+        matched = node.route;
+        matchedEnd = end;
+      }
+      position = end;
+    }
+
+    return matched == null
+        ? Optional.empty()
+        : Optional.of(new RouteMatch(matched, path, matchedEnd));
+  }
+
+  /** A compiled trie node, with its children in an open addressing table keyed by segment. */
+  private static final class Node {
+    private final Route route;
+    private final String[] segments;
+    private final Node[] children;
+    private final int mask;
+
+    private Node(Route route, Map<String, Node> children) {
+      this.route = route;
+      int capacity = Integer.highestOneBit(Math.max(1, children.size() * 2 - 1)) * 2;
+      this.segments = new String[capacity];
+      this.children = new Node[capacity];
+      this.mask = capacity - 1;
+      children.forEach(
+          (segment, child) -> {
+            int slot = spread(segment.hashCode()) & mask;
+            while (segments[slot] != null) {
+              slot = (slot + 1) & mask;
+            }
+            segments[slot] = segment;
+            this.children[slot] = child;
+          });
+    }
+
+    /**
+     * Gets the child of a path segment, without extracting the segment from the path.
+     *
+     * @param path the path
+     * @param start the start of the segment
+     * @param end the end of the segment
+     * @return the child node, or null if there is none
+     */
+    private Node child(String path, int start, int end) {
+      int hash = 0;
+      for (int i = start; i < end; i++) {
+        hash = 31 * hash + path.charAt(i);
+      }
+      int segmentLength = end - start;
+      int slot = spread(hash) & mask;
+      String segment;
+      while ((segment = segments[slot]) != null) {
+        if (segment.length() == segmentLength
+            && path.regionMatches(start, segment, 0, segmentLength)) {
+          return children[slot];
+        }
+        slot = (slot + 1) & mask;
+      }
+      return null;
+    }
+
+    private static int spread(int hash) {
+      return hash ^ (hash >>> 16);
+    }
+  }
+
+  /** A trie node under construction. */
+  private static final class NodeBuilder {
+    private final Map<String, NodeBuilder> children = new LinkedHashMap<>();
+    private Route route;
+
+    private Node build() {
+      Map<String, Node> built = new LinkedHashMap<>();
+      children.forEach((segment, child) -> built.put(segment, child.build()));
+      return new Node(route, built);
+    }
+  }
+}
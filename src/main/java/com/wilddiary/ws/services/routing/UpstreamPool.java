@@ -0,0 +1,261 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.routing;
+
+import com.wilddiary.ws.config.RelayProperties.LoadBalancing;
+import com.wilddiary.ws.config.RelayProperties.LoadBalancing.Policy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The upstream servers of a route, and the load balancer selecting one of them for each request.
+ * Servers failing repeatedly with 5xx responses or connect failures are passively ejected for a
+ * while, and ramp back up to their full weight once they return.
+ */
+@Slf4j
+public final class UpstreamPool {
+
+  private final List<UpstreamTarget> targets;
+  private final Policy policy;
+  private final int consecutiveFailures;
+  private final long baseEjectionTime;
+  private final long maxEjectionTime;
+  private final int maxEjected;
+  private final long slowStart;
+
+  /**
+   * Constructor for the UpstreamPool.
+   *
+   * @param targets the upstream servers
+   * @param loadBalancing the load balancing settings
+   */
+  public UpstreamPool(List<UpstreamTarget> targets, LoadBalancing loadBalancing) {
+    if (targets.isEmpty()) {
+      throw new IllegalArgumentException("Upstream pool must have at least one target");
+    }
+    this.targets = List.copyOf(targets);
+    this.policy = loadBalancing.getPolicy();
+    this.consecutiveFailures = loadBalancing.getConsecutiveFailures();
+    this.baseEjectionTime = loadBalancing.getBaseEjectionTime().toNanos();
+    this.maxEjectionTime = loadBalancing.getMaxEjectionTime().toNanos();
+    this.maxEjected = targets.size() * loadBalancing.getMaxEjectionPercent() / 100;
+    this.slowStart = loadBalancing.getSlowStart().toNanos();
+  }
+
+  /**
+   * Gets the upstream servers.
+   *
+   * @return the upstream servers
+   */
+  public List<UpstreamTarget> targets() {
+    return targets;
+  }
+
+  /**
+   * Selects the upstream server of a request and records the start of the request on it. Each
+   * selection must be followed by a call to {@link #complete(UpstreamTarget, boolean)}, or to
+   * {@link #cancel(UpstreamTarget)} if the request is not relayed to the server.
+   *
+   * @return the upstream server
+   */
+  public UpstreamTarget choose() {
+    return choose(Collections.emptySet());
+  }
+
+  /**
+   * Selects the upstream server of a request, other than the servers already tried for it, and
+   * records the start of the request on it. Ejected servers are only selected if no other server
+   * is left.
+   *
+   * @param excluded the servers already tried
+   * @return the upstream server, or null if all servers have been tried
+   */
+  public UpstreamTarget choose(Collection<UpstreamTarget> excluded) {
+    long now = System.nanoTime();
+    List<UpstreamTarget> candidates = new ArrayList<>(targets.size());
+    for (UpstreamTarget target : targets) {
+      if (!excluded.contains(target) && !target.isEjected(now)) {
+        candidates.add(target);
+      }
+    }
+    if (candidates.isEmpty()) {
+      for (UpstreamTarget target : targets) {
+        if (!excluded.contains(target)) {
+          candidates.add(target);
+        }
+      }
+    }
+    if (candidates.isEmpty()) {
+      return null;
+    }
+    UpstreamTarget chosen =
+        candidates.size() == 1
+            ? candidates.get(0)
+            : switch (policy) {
+              case ROUND_ROBIN -> roundRobin(candidates, now);
+              case LEAST_OUTSTANDING -> leastOutstanding(candidates, now);
+              case POWER_OF_TWO_CHOICES -> powerOfTwoChoices(candidates, now);
+            };
+    chosen.onStart();
+    return chosen;
+  }
+
+  /**
+   * Records the completion of a request. A server reaching the consecutive failure threshold is
+   * ejected, unless the maximum share of ejected servers is reached.
+   *
+   * @param target the upstream server of the request
+   * @param failed whether the request failed with a 5xx response or could not connect
+   */
+  public void complete(UpstreamTarget target, boolean failed) {
+    int failures = target.onComplete(failed);
+    long now = System.nanoTime();
+    if (!failed) {
+      target.resetEjections(now, slowStart);
+      return;
+    }
+    if (failures < consecutiveFailures || target.isEjected(now)) {
+      return;
+    }
+    synchronized (this) {
+      if (ejectedCount(now) < maxEjected) {
+        long duration = target.eject(now, baseEjectionTime, maxEjectionTime);
+        log.warn(
+            "Ejected upstream {} for {} ms after {} consecutive failures",
+            target,
+            duration / 1_000_000,
+            failures);
+      }
+    }
+  }
+
+  /**
+   * Records a request that was selected for a server but not relayed to it, leaving the health
+   * state of the server as it is.
+   *
+   * @param target the upstream server of the request
+   */
+  public void cancel(UpstreamTarget target) {
+    target.onCancel();
+  }
+
+  private int ejectedCount(long now) {
+    int ejected = 0;
+    for (UpstreamTarget target : targets) {
+      if (target.isEjected(now)) {
+        ejected++;
+      }
+    }
+    return ejected;
+  }
+
+  /**
+   * Selects a server by smooth weighted round-robin, which interleaves the servers in proportion
+   * to their weights instead of sending bursts to the heaviest one.
+   *
+   * @param candidates the servers to select from
+   * @param now the time, in {@link System#nanoTime()} units
+   * @return the selected server
+   */
+  private synchronized UpstreamTarget roundRobin(List<UpstreamTarget> candidates, long now) {
+    double total = 0;
+    UpstreamTarget best = null;
+    for (UpstreamTarget target : candidates) {
+      double weight = target.effectiveWeight(now, slowStart);
+      target.currentWeight += weight;
+      total += weight;
+      if (best == null || target.currentWeight > best.currentWeight) {
+        best = target;
+      }
+    }
+    best.currentWeight -= total;
+    return best;
+  }
+
+  /**
+   * Selects the server with the fewest outstanding requests relative to its weight. Ties are
+   * broken from a random offset so that idle servers share the load evenly.
+   *
+   * @param candidates the servers to select from
+   * @param now the time, in {@link System#nanoTime()} units
+   * @return the selected server
+   */
+  private UpstreamTarget leastOutstanding(List<UpstreamTarget> candidates, long now) {
+    int size = candidates.size();
+    int offset = ThreadLocalRandom.current().nextInt(size);
+    UpstreamTarget best = null;
+    double bestLoad = Double.MAX_VALUE;
+    for (int i = 0; i < size; i++) {
+      UpstreamTarget target = candidates.get((offset + i) % size);
+      double load = load(target, now);
+      if (load < bestLoad) {
+        best = target;
+        bestLoad = load;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Selects the less loaded of two distinct servers picked at random in proportion to their
+   * weights.
+   *
+   * @param candidates the servers to select from
+   * @param now the time, in {@link System#nanoTime()} units
+   * @return the selected server
+   */
+  private UpstreamTarget powerOfTwoChoices(List<UpstreamTarget> candidates, long now) {
+    UpstreamTarget first = weightedRandom(candidates, null, now);
+    UpstreamTarget second = weightedRandom(candidates, first, now);
+    return load(second, now) < load(first, now) ? second : first;
+  }
+
+  private UpstreamTarget weightedRandom(
+      List<UpstreamTarget> candidates, UpstreamTarget excluded, long now) {
+    double total = 0;
+    for (UpstreamTarget target : candidates) {
+      if (target != excluded) {
+        total += target.effectiveWeight(now, slowStart);
+      }
+    }
+    double pick = ThreadLocalRandom.current().nextDouble(total);
+    UpstreamTarget last = null;
+    for (UpstreamTarget target : candidates) {
+      if (target != excluded) {
+        last = target;
+        pick -= target.effectiveWeight(now, slowStart);
+        if (pick < 0) {
+          return target;
+        }
+      }
+    }
+    return last;
+  }
+
+  private double load(UpstreamTarget target, long now) {
+    return (target.getOutstanding() + 1) / target.effectiveWeight(now, slowStart);
+  }
+}
@@ -0,0 +1,258 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.services.routing;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An upstream server of a route, with the health state the load balancer keeps for it. The
+ * upstream URL is parsed once when the route is compiled, so relayed requests only append their
+ * path and query to it.
+ */
+public final class UpstreamTarget {
+
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  private final String targetUrl;
+  private final URI target;
+  private final String prefix;
+  private final int weight;
+
+  // Health state, updated by the upstream pool
+  private final AtomicInteger outstanding = new AtomicInteger();
+  private final AtomicInteger consecutiveFailures = new AtomicInteger();
+  private volatile long ejectedUntil;
+  private volatile int ejections;
+
+  // Smooth weighted round-robin state, guarded by the upstream pool
+  double currentWeight;
+
+  /**
+   * Constructor for the UpstreamTarget.
+   *
+   * @param targetUrl the URL of the upstream server
+   * @param weight the relative share of requests relayed to the server
+   */
+  public UpstreamTarget(String targetUrl, int weight) {
+    this.targetUrl = targetUrl;
+    this.target = URI.create(targetUrl);
+    if (target.getScheme() == null || target.getRawAuthority() == null) {
+      throw new IllegalArgumentException("Upstream URL must be absolute: " + targetUrl);
+    }
+    if (weight <= 0) {
+      throw new IllegalArgumentException("Weight of " + targetUrl + " must be positive");
+    }
+    String basePath = target.getRawPath() == null ? "" : target.getRawPath();
+    this.prefix = target.getScheme() + "://" + target.getRawAuthority() + basePath;
+    this.weight = weight;
+  }
+
+  /**
+   * Gets the URL of the upstream server, as configured.
+   *
+   * @return the upstream URL
+   */
+  public String getTargetUrl() {
+    return targetUrl;
+  }
+
+  /**
+   * Gets the parsed URL of the upstream server.
+   *
+   * @return the upstream URI
+   */
+  public URI getTarget() {
+    return target;
+  }
+
+  /**
+   * Builds the upstream URI of a relayed request. Characters that are not allowed in a URI are
+   * percent-encoded; the path and query are otherwise relayed exactly as received.
+   *
+   * @param path the raw request path
+   * @param from the start of the path remaining after the context
+   * @param rawQuery the raw query string, may be null
+   * @return the upstream URI
+   */
+  public URI upstreamUri(String path, int from, String rawQuery) {
+    int length = prefix.length() + path.length() - from;
+    if (rawQuery != null) {
+      length += rawQuery.length() + 1;
+    }
+    StringBuilder uri = new StringBuilder(length + 16).append(prefix);
+    if (from < path.length()
+        && path.charAt(from) == '/'
+        && !prefix.isEmpty()
+        && prefix.charAt(prefix.length() - 1) == '/') {
+      from++;
+    }
+    appendEncoded(uri, path, from, path.length());
+    if (rawQuery != null) {
+      uri.append('?');
+      appendEncoded(uri, rawQuery, 0, rawQuery.length());
+    }
+    return URI.create(uri.toString());
+  }
+
+  private static void appendEncoded(StringBuilder uri, String value, int from, int to) {
+    for (int i = from; i < to; i++) {
+      char c = value.charAt(i);
+      if (isAllowed(c)) {
+        uri.append(c);
+      } else if (c < 0x80) {
+        appendEscaped(uri, c);
+      } else {
+        int codePoint = value.codePointAt(i);
+        i += Character.charCount(codePoint) - 1;
+        for (byte b : new String(Character.toChars(codePoint)).getBytes(StandardCharsets.UTF_8)) {
+          appendEscaped(uri, b & 0xff);
+        }
+      }
+    }
+  }
+
+  private static void appendEscaped(StringBuilder uri, int b) {
+    uri.append('%').append(HEX[b >> 4]).append(HEX[b & 0xf]);
+  }
+
+  /**
+   * Whether a character is allowed as is in the path or query of a URI. Percent signs are kept as
+   * they introduce the escapes already present in the request.
+   *
+   * @param c the character
+   * @return true if the character is allowed
+   */
+  private static boolean isAllowed(char c) {
+    return (c >= 'a' && c <= 'z')
+        || (c >= 'A' && c <= 'Z')
+        || (c >= '0' && c <= '9')
+        || "-._~!$&'()*+,;=:@/?%".indexOf(c) >= 0;
+  }
+
+  /**
+   * Gets the configured weight of the server.
+   *
+   * @return the weight
+   */
+  public int getWeight() {
+    return weight;
+  }
+
+  /**
+   * Gets the number of requests relayed to the server that have not completed yet.
+   *
+   * @return the number of outstanding requests
+   */
+  public int getOutstanding() {
+    return outstanding.get();
+  }
+
+  /**
+   * Whether the server is ejected from load balancing at a time.
+   *
+   * @param now the time, in {@link System#nanoTime()} units
+   * @return true if the server is ejected
+   */
+  public boolean isEjected(long now) {
+    return ejections > 0 && now - ejectedUntil < 0;
+  }
+
+  /**
+   * Gets the weight of the server at a time. A server recovering from an ejection ramps up from a
+   * tenth of its weight to its full weight over the slow start window.
+   *
+   * @param now the time, in {@link System#nanoTime()} units
+   * @param slowStart the slow start window, in nanoseconds
+   * @return the effective weight
+   */
+  double effectiveWeight(long now, long slowStart) {
+    if (ejections == 0 || slowStart <= 0) {
+      return weight;
+    }
+    long recovering = now - ejectedUntil;
+    if (recovering >= slowStart) {
+      return weight;
+    }
+    return weight * Math.max(0.1, (double) Math.max(0, recovering) / slowStart);
+  }
+
+  /** Records the start of a request relayed to the server. */
+  void onStart() {
+    outstanding.incrementAndGet();
+  }
+
+  /** Records a request selected for the server that was not relayed to it. */
+  void onCancel() {
+    outstanding.decrementAndGet();
+  }
+
+  /**
+   * Records the completion of a request relayed to the server.
+   *
+   * @param failed whether the request failed
+   * @return the number of consecutive failures
+   */
+  int onComplete(boolean failed) {
+    outstanding.decrementAndGet();
+    if (failed) {
+      return consecutiveFailures.incrementAndGet();
+    }
+    consecutiveFailures.set(0);
+    return 0;
+  }
+
+  /**
+   * Ejects the server. Each consecutive ejection lasts longer, up to the maximum ejection time.
+   *
+   * @param now the time, in {@link System#nanoTime()} units
+   * @param baseEjectionTime the duration of the first ejection, in nanoseconds
+   * @param maxEjectionTime the maximum duration of an ejection, in nanoseconds
+   * @return the duration of the ejection, in nanoseconds
+   */
+  long eject(long now, long baseEjectionTime, long maxEjectionTime) {
+    int count = ejections + 1;
+    long duration = Math.min(baseEjectionTime * count, maxEjectionTime);
+    ejectedUntil = now + duration;
+    ejections = count;
+    consecutiveFailures.set(0);
+    return duration;
+  }
+
+  /**
+   * Forgets past ejections once the server has fully recovered from the last one.
+   *
+   * @param now the time, in {@link System#nanoTime()} units
+   * @param slowStart the slow start window, in nanoseconds
+   */
+  void resetEjections(long now, long slowStart) {
+    if (ejections > 0 && now - ejectedUntil >= slowStart) {
+      ejections = 0;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return targetUrl;
+  }
+}
@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Wilddiary.com under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work for
+ * additional information regarding copyright ownership.
+ * Wilddiary.com licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ * SPDX-License-Identifier: Apache-2.0
+ *
+ */
+
+
+package com.wilddiary.ws.config;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests of the {@link UpstreamDnsResolver}, resolving host names with a stub lookup on a manual
+ * clock, and refreshing them in the calling thread.
+ */
+class UpstreamDnsResolverTest {
+
+  private static final String HOST = "upstream.test";
+
+  private final StubLookup lookup = new StubLookup();
+  private final AtomicLong nanos = new AtomicLong();
+  private UpstreamDnsResolver resolver;
+
+  @AfterEach
+  void close() {
+    if (resolver != null) {
+      resolver.close();
+    }
+  }
+
+  @Test
+  void resolvesFromTheCacheWithinTheTtl() throws Exception {
+    lookup.answer(address(10, 0, 0, 1));
+    resolver = resolver(Duration.ofMinutes(1), new RelayProperties.Dns());
+
+    assertThat(resolver.resolve(HOST)).containsExactly(address(10, 0, 0, 1));
+    assertThat(resolver.resolve(HOST.toUpperCase(Locale.ROOT)))
+        .containsExactly(address(10, 0, 0, 1));
+    assertThat(lookup.calls()).isEqualTo(1);
+  }
+
+  @Test
+  void refreshesTheAddressesAheadOfTheirExpiry() throws Exception {
+    RelayProperties.Dns settings = new RelayProperties.Dns();
+    settings.setRefreshAhead(0.1);
+    lookup.answer(address(10, 0, 0, 1));
+    resolver = resolver(Duration.ofSeconds(5), settings);
+    resolver.resolve(HOST);
+    lookup.answer(address(10, 0, 0, 2));
+    advance(Duration.ofMillis(600));
+
+    // Past the refresh point, the cached addresses are returned while they are refreshed
+    assertThat(resolver.resolve(HOST)).containsExactly(address(10, 0, 0, 1));
+    assertThat(resolver.resolve(HOST)).containsExactly(address(10, 0, 0, 2));
+    assertThat(lookup.calls()).isEqualTo(2);
+  }
+
+  @Test
+  void cachesFailuresForTheNegativeTtl() throws Exception {
+    RelayProperties.Dns settings = new RelayProperties.Dns();
+    settings.setNegativeTtl(Duration.ofMillis(300));
+    resolver = resolver(Duration.ofMinutes(1), settings);
+
+    assertThatThrownBy(() -> resolver.resolve(HOST)).isInstanceOf(UnknownHostException.class);
+    assertThatThrownBy(() -> resolver.resolve(HOST)).isInstanceOf(UnknownHostException.class);
+    assertThat(lookup.calls()).isEqualTo(1);
+
+    advance(Duration.ofMillis(400));
+    lookup.answer(address(10, 0, 0, 1));
+    assertThat(resolver.resolve(HOST)).containsExactly(address(10, 0, 0, 1));
+    assertThat(lookup.calls()).isEqualTo(2);
+  }
+
+  @Test
+  void usesTheExpiredAddressesWhenTheLookupFails() throws Exception {
+    RelayProperties.Dns settings = new RelayProperties.Dns();
+    settings.setRefreshAhead(1.0);
+    lookup.answer(address(10, 0, 0, 1));
+    resolver = resolver(Duration.ofMillis(200), settings);
+    resolver.resolve(HOST);
+    lookup.fail();
+    advance(Duration.ofMillis(300));
+
+    assertThat(resolver.resolve(HOST)).containsExactly(address(10, 0, 0, 1));
+    assertThat(lookup.calls()).isEqualTo(2);
+  }
+
+  @Test
+  void interleavesTheAddressFamiliesOfTheResolvedAddresses() throws Exception {
+    InetAddress v6First = address(0x20, 0x01, 0x0d, 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1);
+    InetAddress v6Second = address(0x20, 0x01, 0x0d, 0xb8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 2);
+    InetAddress v4First = address(10, 0, 0, 1);
+    InetAddress v4Second = address(10, 0, 0, 2);
+    InetAddress v4Third = address(10, 0, 0, 3);
+    lookup.answer(v6First, v6Second, v4First, v4Second, v4Third);
+    resolver = resolver(Duration.ofMinutes(1), new RelayProperties.Dns());
+
+    assertThat(MeteredConnectionOperator.interleave(resolver.resolve(HOST)))
+        .containsExactly(v6First, v4First, v6Second, v4Second, v4Third);
+  }
+
+  private UpstreamDnsResolver resolver(Duration ttl, RelayProperties.Dns settings) {
+    RelayProperties relayProperties = new RelayProperties();
+    relayProperties.getUpstream().setDnsTtl(ttl);
+    return new UpstreamDnsResolver(
+        new UpstreamRouteSettings(Map.of(), relayProperties),
+        settings,
+        lookup,
+        nanos::get,
+        Runnable::run,
+        new SimpleMeterRegistry());
+  }
+
+  private void advance(Duration duration) {
+    nanos.addAndGet(duration.toNanos());
+  }
+
+  private static InetAddress address(int... bytes) throws UnknownHostException {
+    byte[] address = new byte[bytes.length];
+    for (int i = 0; i < bytes.length; i++) {
+      address[i] = (byte) bytes[i];
+    }
+    return InetAddress.getByAddress(HOST, address);
+  }
+
+  /** A lookup answering with the addresses it is given, or failing. */
+  private static final class StubLookup implements UpstreamDnsResolver.Lookup {
+    private final AtomicInteger calls = new AtomicInteger();
+    private volatile List<InetAddress> addresses = List.of();
+
+    void answer(InetAddress... addresses) {
+      this.addresses = List.of(addresses);
+    }
+
+    void fail() {
+      this.addresses = List.of();
+    }
+
+    int calls() {
+      return calls.get();
+    }
+
+    @Override
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+      calls.incrementAndGet();
+      if (addresses.isEmpty()) {
+        throw new UnknownHostException(host + ": no address records");
+      }
+      return addresses.toArray(new InetAddress[0]);
+    }
+  }
+}